@@ -4,43 +4,178 @@
  */
 package com.adamiworks.filesync;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Vector;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.adamiworks.filesync.compress.Compression;
+import com.adamiworks.filesync.copy.CopyEngine;
+import com.adamiworks.filesync.copy.CopyStrategy;
+import com.adamiworks.filesync.copy.DeferredSync;
+import com.adamiworks.filesync.copy.DeltaCopier;
+import com.adamiworks.filesync.copy.DeltaMode;
+import com.adamiworks.filesync.copy.DeltaResult;
 import com.adamiworks.filesync.exception.InvalidDirectoryException;
 import com.adamiworks.filesync.exception.WritePermissionDeniedException;
+import com.adamiworks.filesync.filter.PathFilter;
+import com.adamiworks.filesync.hash.FileHasher;
+import com.adamiworks.filesync.hash.HashAlgorithm;
+import com.adamiworks.filesync.hash.HashCache;
+import com.adamiworks.filesync.manifest.ManifestDirectory;
+import com.adamiworks.filesync.manifest.ManifestEntry;
+import com.adamiworks.filesync.manifest.ScanManifest;
+import com.adamiworks.filesync.metrics.FlightRecorderEvents;
+import com.adamiworks.filesync.metrics.Stage;
+import com.adamiworks.filesync.metrics.SyncMetrics;
+import com.adamiworks.filesync.plan.PlanReader;
+import com.adamiworks.filesync.plan.PlanWriter;
+import com.adamiworks.filesync.pipeline.SizeScheduler;
+import com.adamiworks.filesync.pipeline.SyncAction;
+import com.adamiworks.filesync.pipeline.SyncPipeline;
+import com.adamiworks.filesync.remote.RemoteSyncClient;
+import com.adamiworks.filesync.scan.DirectoryQueue;
+import com.adamiworks.filesync.scan.DirectoryScanner;
+import com.adamiworks.filesync.snapshot.SnapshotManager;
+import com.adamiworks.filesync.store.ContentStore;
+import com.adamiworks.filesync.throttle.IoThrottle;
+import com.adamiworks.filesync.util.DaemonThreadFactory;
+import com.adamiworks.filesync.util.FileTrees;
+import com.adamiworks.filesync.util.InternalFiles;
+import com.adamiworks.filesync.verify.ContentComparator;
 import com.adamiworks.utils.FileUtils;
 import com.adamiworks.utils.StringUtils;
 
 /**
  * Synchronizes a file into another location.<BR>
- * There are two methods to check if the sync is necessary: Fast and Secure:
+ * There are three methods to check if the sync is necessary: Fast, Secure and
+ * Compare:
  * <b>Fast Method</b>: the fastest way to check changes in the files. This
  * method determine if a sync is needed comparing two attributes: file length
  * and file modification date. If the source file doesn't exists in destination,
  * the file is synchronized;<BR>
  * <b>Secure Method</b>: the secure method uses Fast Method to identify all the
  * files to be synchronized. For all files in which Fast Method don't apply
- * (when modification date and length don't change), a MD5 hash is calculated
- * for source and for destination file. If hash value is different, the file is
- * synchronized.
+ * (when modification date and length don't change), a hash is calculated
+ * for source and for destination file at the same time. If hash value is
+ * different, the file is synchronized. The {@link HashAlgorithm} is
+ * configurable, MD5 is still available for compatibility.<BR>
+ * <b>Compare Method</b>: like the secure method, but files are compared byte by
+ * byte by a {@link ContentComparator}, which stops at the first difference and
+ * computes no hash.<BR>
+ * When the manifest is enabled, the state of every source file is recorded in
+ * a {@link ScanManifest} in the destination root. Next runs compare the source
+ * against the manifest only, without reading destination attributes.<BR>
+ * When a delta mode is set, changed files that already exist in the
+ * destination are updated by a {@link DeltaCopier}, which writes only the
+ * blocks that differ instead of copying the whole file. Other copies are made
+ * by a {@link CopyEngine} into a temporary file that replaces the destination
+ * only when complete. When deduplication is on, each distinct content is
+ * stored once in a {@link ContentStore} and linked from the destination
+ * tree.<BR>
+ * {@link #snapshotFolder(String, String)} writes a new generation of the
+ * destination on every run, hard-linking files unchanged since the previous
+ * generation.<BR>
+ * Directories are listed as a stream by a {@link DirectoryScanner} and
+ * traversed by a work-stealing {@link ForkJoinPool}: every
+ * subdirectory becomes a task that idle workers can steal, so wide and deep
+ * trees keep all workers busy. With {@link #setScanQueueMemory(long)} the
+ * directories still to be scanned are held instead in a {@link DirectoryQueue}
+ * of bounded memory, for trees too large to keep a task per directory. Files of {@link #setLargeFileSize(long)} bytes
+ * or more that need a copy are copied by the few dedicated workers of a
+ * {@link SizeScheduler}, largest first, while the tree workers go on with the
+ * small files and the next directories. Entries
+ * excluded by a {@link PathFilter} are skipped, and excluded directories are
+ * never listed.<BR>
+ * Scans, hashes and copies are counted and timed in {@link SyncMetrics}, and
+ * each copy and hash is a Flight Recorder event.<BR>
+ * {@link #mirrorFolder(String, String)} also deletes destination files missing
+ * in the source, running the scan, the comparison and the copies as
+ * concurrent stages of a {@link SyncPipeline}.<BR>
+ * {@link #planFolder(String, String, String, boolean)} runs the scan and diff
+ * stages only, writing the changes to a plan that
+ * {@link #applyPlan(String)} applies later without scanning again.
  * 
  * @author Tiago J. Adami
  */
-public final class FileSync extends Thread {
+public final class FileSync {
 
-	private static long fileCount = 0;
+	private static final int MAX_PENDING_SUBTASKS = 1024;
+	private static final int MAX_SCANNER_THREADS = 4;
+
+	private final LongAdder fileCount = new LongAdder();
+	private final LongAdder bytesReused = new LongAdder();
+	private final LongAdder deleteCount = new LongAdder();
+	private final Map<CopyStrategy, LongAdder> strategyCount = new EnumMap<CopyStrategy, LongAdder>(
+			CopyStrategy.class);
+	private final CopyEngine copyEngine = new CopyEngine();
+	private final LongAdder dedupCount = new LongAdder();
+	private boolean dedupEnabled;
+	private boolean verifyOnWrite;
+	private HashCache hashCache;
+	private Compression compression;
+	private long fsyncInterval;
+	private long scanQueueMemory;
+	private final LongAdder remoteBytesRead = new LongAdder();
+	private final LongAdder remoteBytesTransferred = new LongAdder();
+	private final ThreadLocal<byte[]> verifiedHash = new ThreadLocal<byte[]>();
+	// Bytes written by the last copy of the thread
+	private final ThreadLocal<Long> copiedBytes = new ThreadLocal<Long>();
+	private volatile ContentStore contentStore;
+	private final LongAdder linkCount = new LongAdder();
+	private final LongAdder bytesWritten = new LongAdder();
+	// Files that could not be copied and folders that could not be
+	// created or listed
+	private final LongAdder failCount = new LongAdder();
+	private volatile Path previousGeneration;
+	private volatile boolean snapshotRunning;
+	private boolean snapshotted;
+	private int snapshotRetention;
+	private boolean mirrored;
 	private boolean secureMethodOn;
+	private boolean compareMethodOn;
+	private HashAlgorithm hashAlgorithm;
 	private boolean verbose;
-	private static int threadCount = 0;
-	private String threadSourceDir;
-	private String threadDestinationDir;
+	private int parallelism;
+	private boolean manifestEnabled;
+	private ScanManifest manifest;
+	private DeltaCopier deltaCopier;
+	private IoThrottle throttle;
+	private long largeFileSize = SizeScheduler.DEFAULT_LARGE_FILE_SIZE;
+	private int largeFileWorkers = 2;
+	private SizeScheduler sizeScheduler;
+	private PathFilter filter = PathFilter.NONE;
+	private final SyncMetrics metrics = new SyncMetrics();
+	private boolean listFiles = true;
 
 	private void init() {
+		for (CopyStrategy strategy : CopyStrategy.values()) {
+			strategyCount.put(strategy, new LongAdder());
+		}
 		secureMethodOn = false;
+		hashAlgorithm = HashAlgorithm.XXHASH64;
+		manifestEnabled = false;
+		parallelism = Runtime.getRuntime().availableProcessors();
+		copyEngine.setMetrics(metrics);
 	}
 
 	public FileSync() {
@@ -49,34 +184,436 @@ public final class FileSync extends Thread {
 
 	public FileSync(boolean secureMethodOn, boolean verbose) {
 		this.init();
-		FileSync.addThreadCount();
 		this.secureMethodOn = secureMethodOn;
 		this.verbose = verbose;
 	}
 
-	public static synchronized void addThreadCount() {
-		threadCount++;
+	/**
+	 * @param secureMethodOn
+	 *            compare hashes when length and modification date match
+	 * @param verbose
+	 *            log every processed file and directory
+	 * @param parallelism
+	 *            maximum number of directories processed at the same time
+	 */
+	public FileSync(boolean secureMethodOn, boolean verbose, int parallelism) {
+		this(secureMethodOn, verbose);
+		this.setParallelism(parallelism);
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("Parallelism must be greater than zero: " + parallelism);
+		}
+		this.parallelism = parallelism;
+	}
+
+	public boolean isCompareMethodOn() {
+		return compareMethodOn;
+	}
+
+	/**
+	 * Compare the contents of files with the same length and modification date
+	 * directly, stopping at the first different byte. Takes precedence over
+	 * the secure method hashes.
+	 * 
+	 * @param compareMethodOn
+	 */
+	public void setCompareMethodOn(boolean compareMethodOn) {
+		this.compareMethodOn = compareMethodOn;
+	}
+
+	public HashAlgorithm getHashAlgorithm() {
+		return hashAlgorithm;
+	}
+
+	/**
+	 * Algorithm used by the secure method to compare file contents.
+	 * 
+	 * @param hashAlgorithm
+	 */
+	public void setHashAlgorithm(HashAlgorithm hashAlgorithm) {
+		if (hashAlgorithm == null) {
+			throw new IllegalArgumentException("Hash algorithm is required");
+		}
+		this.hashAlgorithm = hashAlgorithm;
+	}
+
+	public boolean isManifestEnabled() {
+		return manifestEnabled;
+	}
+
+	/**
+	 * Keep a manifest of the synchronized files in the destination root, so
+	 * next runs do not need to read destination attributes of unchanged
+	 * files.
+	 * 
+	 * @param manifestEnabled
+	 */
+	public void setManifestEnabled(boolean manifestEnabled) {
+		this.manifestEnabled = manifestEnabled;
+	}
+
+	public DeltaMode getDeltaMode() {
+		return deltaCopier == null ? null : deltaCopier.getMode();
+	}
+
+	/**
+	 * Update changed destination files with a delta transfer.
+	 * 
+	 * @param deltaMode
+	 *            how destination files are rewritten, or null to always copy
+	 *            whole files
+	 */
+	public void setDeltaMode(DeltaMode deltaMode) {
+		this.deltaCopier = deltaMode == null ? null : new DeltaCopier(deltaMode, throttle, metrics);
+	}
+
+	public IoThrottle getThrottle() {
+		return throttle;
+	}
+
+	/**
+	 * Limit the bandwidth, IOPS and concurrent copies per device of all
+	 * copies. The bandwidth and IOPS limits also apply to the reads of the
+	 * secure and compare methods. The limits of the throttle may be changed
+	 * while synchronizing.
+	 * 
+	 * @param throttle
+	 *            the limits, or null to copy at full speed
+	 */
+	public void setThrottle(IoThrottle throttle) {
+		this.throttle = throttle;
+		copyEngine.setThrottle(throttle);
+		if (deltaCopier != null) {
+			deltaCopier = new DeltaCopier(deltaCopier.getMode(), throttle, metrics);
+		}
+	}
+
+	public boolean isReflinkEnabled() {
+		return copyEngine.isReflinkEnabled();
+	}
+
+	/**
+	 * Clone files on copy-on-write file systems instead of copying their
+	 * data.
+	 * 
+	 * @param reflinkEnabled
+	 * @see CopyEngine#setReflinkEnabled(boolean)
+	 */
+	public void setReflinkEnabled(boolean reflinkEnabled) {
+		copyEngine.setReflinkEnabled(reflinkEnabled);
+	}
+
+	public boolean isSparseEnabled() {
+		return copyEngine.isSparseEnabled();
+	}
+
+	/**
+	 * Leave holes in the destination files instead of writing blocks of
+	 * zeros.
+	 * 
+	 * @param sparseEnabled
+	 * @see CopyEngine#setSparseEnabled(boolean)
+	 */
+	public void setSparseEnabled(boolean sparseEnabled) {
+		copyEngine.setSparseEnabled(sparseEnabled);
+	}
+
+	public boolean isDedupEnabled() {
+		return dedupEnabled;
+	}
+
+	/**
+	 * Store each distinct file content once in the destination, in a
+	 * {@link ContentStore}. Destination files become hard links to the stored
+	 * content, or pointer files where hard links are not supported.
+	 * 
+	 * @param dedupEnabled
+	 */
+	public void setDedupEnabled(boolean dedupEnabled) {
+		this.dedupEnabled = dedupEnabled;
+	}
+
+	public boolean isVerifyOnWrite() {
+		return verifyOnWrite;
+	}
+
+	/**
+	 * Hash the data of every copy on both the read and the write side with
+	 * the hash algorithm, rejecting copies whose destination does not match
+	 * the source. With the manifest, the hash is recorded, so the next secure
+	 * run only hashes the source of unchanged files.
+	 * 
+	 * @param verifyOnWrite
+	 * @see CopyEngine#copyVerified(Path, Path, HashAlgorithm)
+	 */
+	public void setVerifyOnWrite(boolean verifyOnWrite) {
+		this.verifyOnWrite = verifyOnWrite;
+	}
+
+	public boolean isHashCacheEnabled() {
+		return hashCache != null;
+	}
+
+	/**
+	 * Keep the hash of every hashed file in a {@link HashCache}, so files
+	 * that did not change since they were hashed are not read again by the
+	 * secure method.
+	 * 
+	 * @param hashCacheEnabled
+	 */
+	public void setHashCacheEnabled(boolean hashCacheEnabled) {
+		this.hashCache = hashCacheEnabled ? new HashCache() : null;
+	}
+
+	public long getFsyncInterval() {
+		return fsyncInterval;
+	}
+
+	/**
+	 * Make copied files durable in batches: every interval, the files copied
+	 * into each directory are synced, followed by one sync of the directory.
+	 * Each run also waits for its files to be synced before it ends.
+	 * 
+	 * @param fsyncInterval
+	 *            milliseconds between batches, 0 to leave the files to the
+	 *            operating system
+	 * @see DeferredSync
+	 */
+	public void setFsyncInterval(long fsyncInterval) {
+		DeferredSync previous = copyEngine.getDeferredSync();
+		DeferredSync sync = null;
+		if (fsyncInterval > 0) {
+			sync = new DeferredSync(fsyncInterval);
+			sync.setMetrics(metrics);
+		}
+		copyEngine.setDeferredSync(sync);
+		this.fsyncInterval = fsyncInterval;
+
+		if (previous != null) {
+			previous.close();
+		}
+	}
+
+	public long getScanQueueMemory() {
+		return scanQueueMemory;
+	}
+
+	/**
+	 * Bound the memory used to track the directories still to be scanned.
+	 * Instead of a fork/join task per directory, workers take "/" separated
+	 * paths from a {@link DirectoryQueue}, which spills to a file in the
+	 * temporary directory beyond this many bytes. Meant for trees of tens of
+	 * millions of entries; the scan becomes breadth first.
+	 * 
+	 * @param scanQueueMemory
+	 *            bytes of queued paths kept in memory, 0 for fork/join tasks
+	 */
+	public void setScanQueueMemory(long scanQueueMemory) {
+		if (scanQueueMemory < 0) {
+			throw new IllegalArgumentException("Scan queue memory cannot be negative: " + scanQueueMemory);
+		}
+		this.scanQueueMemory = scanQueueMemory;
+	}
+
+	public boolean isOwnerPreserved() {
+		return copyEngine.getMetadataApplier().isOwnerEnabled();
+	}
+
+	/**
+	 * Give copies the owner and group of their source. Disabled by itself
+	 * the first time the process is not allowed to change an owner.
+	 * 
+	 * @param ownerPreserved
+	 */
+	public void setOwnerPreserved(boolean ownerPreserved) {
+		copyEngine.getMetadataApplier().setOwnerEnabled(ownerPreserved);
+	}
+
+	public Compression getCompression() {
+		return compression;
+	}
+
+	/**
+	 * Compress the file data sent by {@link #syncRemote(String, InetSocketAddress)}
+	 * with an algorithm the agent also supports. Local copies are not
+	 * affected, destination files are always plain copies.
+	 * 
+	 * @param compression
+	 *            an available algorithm, or null
+	 */
+	public void setCompression(Compression compression) {
+		this.compression = compression;
+	}
+
+	public int getSnapshotRetention() {
+		return snapshotRetention;
+	}
+
+	/**
+	 * @param snapshotRetention
+	 *            number of snapshot generations kept, including the new one,
+	 *            or 0 to keep all of them
+	 */
+	public void setSnapshotRetention(int snapshotRetention) {
+		if (snapshotRetention < 0) {
+			throw new IllegalArgumentException("Snapshot retention must not be negative: " + snapshotRetention);
+		}
+		this.snapshotRetention = snapshotRetention;
+	}
+
+	public boolean isResumeEnabled() {
+		return copyEngine.isResumeEnabled();
+	}
+
+	/**
+	 * Journal the copies of large files, so a copy interrupted by a crash or
+	 * a lost mount continues where it stopped on the next run.
+	 * 
+	 * @param resumeEnabled
+	 * @see CopyEngine#setResumeEnabled(boolean)
+	 */
+	public void setResumeEnabled(boolean resumeEnabled) {
+		copyEngine.setResumeEnabled(resumeEnabled);
+	}
+
+	public long getParallelCopyThreshold() {
+		return copyEngine.getParallelThreshold();
+	}
+
+	/**
+	 * Copy files of this size or larger as ranges written by concurrent
+	 * workers.
+	 * 
+	 * @param threshold
+	 *            size in bytes, Long.MAX_VALUE disables parallel copies
+	 * @see CopyEngine#setParallelThreshold(long)
+	 */
+	public void setParallelCopyThreshold(long threshold) {
+		copyEngine.setParallelThreshold(threshold);
+	}
+
+	public int getParallelCopyWorkers() {
+		return copyEngine.getParallelWorkers();
+	}
+
+	/**
+	 * @param workers
+	 *            number of ranges of large files copied at the same time
+	 * @see CopyEngine#setParallelWorkers(int)
+	 */
+	public void setParallelCopyWorkers(int workers) {
+		copyEngine.setParallelWorkers(workers);
+	}
+
+	public long getLargeFileSize() {
+		return largeFileSize;
+	}
+
+	/**
+	 * Files of this size or larger are copied by dedicated workers instead
+	 * of the workers walking the tree. Must be set before the first
+	 * synchronization.
+	 * 
+	 * @param largeFileSize
+	 *            size in bytes
+	 * @see SizeScheduler
+	 */
+	public void setLargeFileSize(long largeFileSize) {
+		if (largeFileSize < 1) {
+			throw new IllegalArgumentException("Large file size must be greater than zero: " + largeFileSize);
+		}
+		this.largeFileSize = largeFileSize;
+	}
+
+	public int getLargeFileWorkers() {
+		return largeFileWorkers;
+	}
+
+	/**
+	 * @param largeFileWorkers
+	 *            number of large files copied at the same time. Must be set
+	 *            before the first synchronization.
+	 */
+	public void setLargeFileWorkers(int largeFileWorkers) {
+		if (largeFileWorkers < 1) {
+			throw new IllegalArgumentException("Large file workers must be greater than zero: " + largeFileWorkers);
+		}
+		this.largeFileWorkers = largeFileWorkers;
+	}
+
+	private synchronized SizeScheduler sizeScheduler() {
+		if (sizeScheduler == null) {
+			sizeScheduler = new SizeScheduler(largeFileSize, largeFileWorkers);
+			metrics.registerQueue("largeFiles", sizeScheduler::getQueuedFiles);
+		}
+		return sizeScheduler;
+	}
+
+	/**
+	 * @return counters and latencies of the running synchronization
+	 */
+	public SyncMetrics getMetrics() {
+		return metrics;
+	}
+
+	public boolean isListFiles() {
+		return listFiles;
 	}
 
-	public static synchronized void removeThreadCount() {
-		threadCount--;
+	/**
+	 * Print every copied and deleted file on the standard output. Printing
+	 * costs a console write per file, which slows down trees of many small
+	 * files.
+	 * 
+	 * @param listFiles
+	 */
+	public void setListFiles(boolean listFiles) {
+		this.listFiles = listFiles;
 	}
 
-	public static synchronized int getThreadCount() {
-		return threadCount;
+	public PathFilter getFilter() {
+		return filter;
 	}
 
 	/**
-	 * Set parameters to be used in a FileSync thread.
+	 * Skip the files and directories excluded by gitignore style rules. In
+	 * mirror mode excluded destination entries are not deleted either.
 	 * 
-	 * @param threadSourceDir
-	 *            Source directory
-	 * @param threadDestinationDir
-	 *            Destination directory
+	 * @param filter
+	 *            the rules, or null to synchronize everything
 	 */
-	private void setThreadParameters(String threadSourceDir, String threadDestinationDir) {
-		this.threadDestinationDir = threadDestinationDir;
-		this.threadSourceDir = threadSourceDir;
+	public void setFilter(PathFilter filter) {
+		this.filter = filter == null ? PathFilter.NONE : filter;
+	}
+
+	/**
+	 * Task that synchronizes one directory and forks a new task for each of
+	 * its subdirectories.
+	 */
+	private final class FolderSyncTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 5917373283011565812L;
+
+		private final String sourceFolder;
+		private final String destinationFolder;
+		private final PathFilter.Scope scope;
+
+		private FolderSyncTask(String sourceFolder, String destinationFolder, PathFilter.Scope scope) {
+			this.sourceFolder = sourceFolder;
+			this.destinationFolder = destinationFolder;
+			this.scope = scope;
+		}
+
+		@Override
+		protected void compute() {
+			processFolder(sourceFolder, destinationFolder, scope, null);
+		}
 	}
 
 	/**
@@ -91,43 +628,105 @@ public final class FileSync extends Thread {
 	 *         exists; false if are equals.
 	 */
 	public boolean isSyncAble(String s, String d) {
+		BasicFileAttributes srcAttrs = readAttributes(s);
+		return srcAttrs != null && this.isSyncAble(s, srcAttrs, d);
+	}
+
+	/**
+	 * Same as {@link #isSyncAble(String, String)} for a source whose attributes
+	 * were already read by the directory scan. Destination attributes are read
+	 * with a single call.
+	 */
+	private boolean isSyncAble(String s, BasicFileAttributes srcAttrs, String d) {
 		File dest = new File(d);
+		BasicFileAttributes destAttrs;
+
+		ContentStore store = contentStore;
+		if (store != null) {
+			return this.isStoreSyncAble(store, new File(s).toPath(), srcAttrs, dest.toPath(),
+					secureMethodOn || compareMethodOn);
+		}
 
 		// Check for destination file existence
-		if (!dest.exists()) {
+		metrics.stat();
+		try {
+			destAttrs = Files.readAttributes(dest.toPath(), BasicFileAttributes.class);
+		} catch (IOException ex) {
 			return true;
 		}
 
-		File src = new File(s);
-
 		// Compare length
-		if (src.length() != dest.length()) {
+		if (srcAttrs.size() != destAttrs.size()) {
 			return true;
 		}
 
 		// Compare modified date
-		if (src.lastModified() != dest.lastModified()) {
+		if (srcAttrs.lastModifiedTime().toMillis() != destAttrs.lastModifiedTime().toMillis()) {
 			return true;
 		}
 
-		// Check if secure method is on. If yes, compare MD5 hashes to certify
-		// the file will be sync-ed for any changes.
-		if (secureMethodOn) {
+		return this.contentDiffers(s, d);
+	}
+
+	/**
+	 * With deduplication a destination file has the attributes of its stored
+	 * object, shared with other files; the content store tells whether it is
+	 * up to date instead.
+	 * 
+	 * @param compareContents
+	 *            compare the source with the stored object
+	 * @return true if the destination must be stored again
+	 */
+	private boolean isStoreSyncAble(ContentStore store, Path source, BasicFileAttributes attrs, Path dest,
+			boolean compareContents) {
+		try {
+			return !store.isStored(source, attrs, dest, compareContents);
+		} catch (IOException ex) {
+			Logger.getLogger(FileSync.class.getName()).log(Level.SEVERE, "Cannot hash " + source, ex);
+			return true;
+		}
+	}
+
+	/**
+	 * Compare the contents of two files with the same length and modification
+	 * date, using the compare method or the secure method hashes.
+	 * 
+	 * @return true if the contents differ; always false when neither method
+	 *         is on
+	 */
+	private boolean contentDiffers(String s, String d) {
+		File src = new File(s);
+		File dest = new File(d);
+
+		// Check if compare method is on. If yes, compare contents until the
+		// first different byte.
+		if (compareMethodOn) {
 			try {
 				if (verbose)
-					Logger.getLogger(FileUtils.class.getName()).log(Level.INFO, "Calculating MD5 for " + s);
-				// Message.info(" Calculating MD5 Hash for " + s);
-				String srcMd5 = FileUtils.getHashMD5(src);
+					Logger.getLogger(FileUtils.class.getName()).log(Level.INFO, "Comparing " + s + " and " + d);
+				if (ContentComparator.differs(src.toPath(), dest.toPath(), throttle)) {
+					if (verbose)
+						Logger.getLogger(FileUtils.class.getName()).log(Level.INFO, "Content differs " + s);
+					return true;
+				}
+			} catch (Exception ex) {
+				Logger.getLogger(FileSync.class.getName()).log(Level.SEVERE, null, ex);
+			}
+		}
 
+		// Check if secure method is on. If yes, compare hashes to certify
+		// the file will be sync-ed for any changes.
+		else if (secureMethodOn) {
+			try {
 				if (verbose)
-					Logger.getLogger(FileUtils.class.getName()).log(Level.INFO, "Calculating MD5 for " + d);
-				// Message.info(" Calculating MD5 Hash for " + d);
-				String destMd5 = FileUtils.getHashMD5(dest);
+					Logger.getLogger(FileUtils.class.getName()).log(Level.INFO,
+							"Calculating " + hashAlgorithm.getName() + " for " + s + " and " + d);
+				byte[][] hashes = this.hash(src.toPath(), dest.toPath());
 
-				if (!srcMd5.equals(destMd5)) {
+				if (!Arrays.equals(hashes[0], hashes[1])) {
 					if (verbose)
-						Logger.getLogger(FileUtils.class.getName()).log(Level.INFO,
-								"MD5 Hash differs " + srcMd5 + " != " + srcMd5);
+						Logger.getLogger(FileUtils.class.getName()).log(Level.INFO, hashAlgorithm.getName()
+								+ " Hash differs " + FileHasher.toHex(hashes[0]) + " != " + FileHasher.toHex(hashes[1]));
 					return true;
 				}
 			} catch (Exception ex) {
@@ -148,41 +747,704 @@ public final class FileSync extends Thread {
 	 * @return
 	 */
 	public boolean syncFile(String s, String d) {
+		BasicFileAttributes srcAttrs = readAttributes(s);
+		return srcAttrs != null && this.syncFile(s, srcAttrs, d, null);
+	}
+
+	/**
+	 * Sync a file whose attributes were already read by the directory scan.
+	 * 
+	 * @param large
+	 *            large copies of the directory, or null to copy here
+	 */
+	private boolean syncFile(String s, BasicFileAttributes srcAttrs, String d, SizeScheduler.Group large) {
+		long start = System.nanoTime();
+		boolean syncAble = this.isSyncAble(s, srcAttrs, d);
+		metrics.record(Stage.DIFF, System.nanoTime() - start);
+
+		if (syncAble) {
+			return this.copy(new File(s), new File(d), srcAttrs.size(), large, () -> {
+			});
+		} else {
+			if (verbose)
+				Logger.getLogger(FileUtils.class.getName()).log(Level.INFO, "File " + d + " is up to date.");
+		}
+
+		return false;
+	}
+
+	/**
+	 * Sync a file using the entry recorded for it in the manifest. The
+	 * destination is only read when the source changed since the last run or
+	 * was never recorded.
+	 * 
+	 * @param s
+	 *            Source path and file name.
+	 * @param attrs
+	 *            Source file attributes.
+	 * @param d
+	 *            Destination path and file name.
+	 * @param name
+	 *            File name inside its directory.
+	 * @param manifestDir
+	 *            Manifest entries of the file directory.
+	 * @param large
+	 *            Large copies of the directory, or null to copy here.
+	 * @return true if the file was copied.
+	 */
+	private boolean syncFile(String s, BasicFileAttributes attrs, String d, String name,
+			ManifestDirectory manifestDir, SizeScheduler.Group large) {
 		File src = new File(s);
 		File dest = new File(d);
 
-		if (this.isSyncAble(s, d)) {
-			if (dest.exists()) {
-				dest.delete();
+		ManifestEntry previous = manifestDir.getPrevious(name);
+		ManifestEntry current = ManifestEntry.of(name, attrs);
+
+		if (previous != null && previous.isUnchanged(attrs)) {
+			if (!secureMethodOn && !compareMethodOn) {
+				manifestDir.put(previous);
+				if (verbose)
+					Logger.getLogger(FileUtils.class.getName()).log(Level.INFO, "File " + d + " is up to date.");
+				return false;
+			}
+
+			// Stored files are compared with their object, pointer files
+			// cannot be read as the content
+			ContentStore store = contentStore;
+			if (store != null) {
+				if (!this.isStoreSyncAble(store, src.toPath(), attrs, dest.toPath(), true)) {
+					manifestDir.put(previous);
+					if (verbose)
+						Logger.getLogger(FileUtils.class.getName()).log(Level.INFO, "File " + d + " is up to date.");
+					return false;
+				}
+				return this.copy(src, dest, attrs.size(), large, () -> this.record(manifestDir, current, dest));
+			}
+
+			if (compareMethodOn) {
+				try {
+					if (dest.exists() && !ContentComparator.differs(src.toPath(), dest.toPath(), throttle)) {
+						manifestDir.put(previous);
+						if (verbose)
+							Logger.getLogger(FileUtils.class.getName()).log(Level.INFO, "File " + d + " is up to date.");
+						return false;
+					}
+				} catch (IOException ex) {
+					Logger.getLogger(FileSync.class.getName()).log(Level.SEVERE, "Cannot compare " + s, ex);
+					return false;
+				}
+
+				return this.copy(src, dest, attrs.size(), large,
+						() -> this.record(manifestDir, this.verified(current), dest));
+			}
+
+			// The source did not change since it was copied. A recorded hash was
+			// taken from the destination content, so only the source needs to
+			// be hashed again; without one both files are hashed.
+			byte[] srcHash;
+			boolean upToDate;
+
+			try {
+				if (previous.hasHash(hashAlgorithm.getName())) {
+					srcHash = this.hash(src.toPath());
+					upToDate = previous.hashEquals(hashAlgorithm.getName(), srcHash);
+				} else if (dest.exists()) {
+					byte[][] hashes = this.hash(src.toPath(), dest.toPath());
+					srcHash = hashes[0];
+					upToDate = Arrays.equals(hashes[0], hashes[1]);
+				} else {
+					srcHash = this.hash(src.toPath());
+					upToDate = false;
+				}
+			} catch (IOException ex) {
+				Logger.getLogger(FileSync.class.getName()).log(Level.SEVERE, "Cannot hash " + s, ex);
+				return false;
+			}
+
+			if (upToDate) {
+				manifestDir.put(current.withHash(hashAlgorithm.getName(), srcHash));
+				if (verbose)
+					Logger.getLogger(FileUtils.class.getName()).log(Level.INFO, "File " + d + " is up to date.");
+				return false;
+			}
+
+			final ManifestEntry hashed = current.withHash(hashAlgorithm.getName(), srcHash);
+			return this.copy(src, dest, attrs.size(), large, () -> {
+				ManifestEntry copied = this.verified(current);
+				this.record(manifestDir, copied.hasHash(hashAlgorithm.getName()) ? copied : hashed, dest);
+			});
+		}
+
+		if (!this.isSyncAble(s, attrs, d)) {
+			this.record(manifestDir, current, dest);
+			if (verbose)
+				Logger.getLogger(FileUtils.class.getName()).log(Level.INFO, "File " + d + " is up to date.");
+			return false;
+		}
+
+		// A failed copy is not recorded, so the next run tries it again
+		return this.copy(src, dest, attrs.size(), large, () -> this.record(manifestDir, this.verified(current), dest));
+	}
+
+	/**
+	 * @return the entry with the hash of the last copy of this thread, if it
+	 *         was verified
+	 */
+	private ManifestEntry verified(ManifestEntry entry) {
+		byte[] hash = verifiedHash.get();
+		return hash == null ? entry : entry.withHash(hashAlgorithm.getName(), hash);
+	}
+
+	private static BasicFileAttributes readAttributes(String file) {
+		try {
+			return Files.readAttributes(new File(file).toPath(), BasicFileAttributes.class);
+		} catch (IOException ex) {
+			Logger.getLogger(FileSync.class.getName()).log(Level.SEVERE, "Cannot read attributes of " + file, ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Record a file in the manifest only if its destination copy looks
+	 * complete, so failed copies are checked again by the next run. Pointer
+	 * files of the content store are complete once stored.
+	 */
+	private void record(ManifestDirectory manifestDir, ManifestEntry entry, File dest) {
+		ContentStore store = contentStore;
+		if (dest.length() == entry.getSize() || store != null && store.contains(dest.toPath())) {
+			manifestDir.put(entry);
+		}
+	}
+
+	/**
+	 * Hash a file with the configured algorithm, or take its hash from the
+	 * hash cache if the file did not change since it was cached.
+	 */
+	private byte[] hash(Path file) throws IOException {
+		HashCache cache = hashCache;
+		if (cache == null) {
+			return this.computeHash(file);
+		}
+
+		metrics.stat();
+		BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+		byte[] hash = cache.get(file, attrs, hashAlgorithm);
+		if (hash == null) {
+			hash = this.computeHash(file);
+			cache.put(file, attrs, hashAlgorithm, hash);
+		}
+		return hash;
+	}
+
+	/**
+	 * Hash a source file and its destination, taking the hashes of unchanged
+	 * files from the hash cache.
+	 */
+	private byte[][] hash(Path src, Path dest) throws IOException {
+		HashCache cache = hashCache;
+		if (cache == null) {
+			return this.computeHashes(src, dest);
+		}
+
+		metrics.stat();
+		BasicFileAttributes srcAttrs = Files.readAttributes(src, BasicFileAttributes.class);
+		metrics.stat();
+		BasicFileAttributes destAttrs = Files.readAttributes(dest, BasicFileAttributes.class);
+		byte[] srcHash = cache.get(src, srcAttrs, hashAlgorithm);
+		byte[] destHash = cache.get(dest, destAttrs, hashAlgorithm);
+
+		if (srcHash == null && destHash == null) {
+			byte[][] hashes = this.computeHashes(src, dest);
+			srcHash = hashes[0];
+			destHash = hashes[1];
+			cache.put(src, srcAttrs, hashAlgorithm, srcHash);
+			cache.put(dest, destAttrs, hashAlgorithm, destHash);
+		} else if (srcHash == null) {
+			srcHash = this.computeHash(src);
+			cache.put(src, srcAttrs, hashAlgorithm, srcHash);
+		} else if (destHash == null) {
+			destHash = this.computeHash(dest);
+			cache.put(dest, destAttrs, hashAlgorithm, destHash);
+		}
+		return new byte[][] { srcHash, destHash };
+	}
+
+	/**
+	 * Hash a file with the configured algorithm, recording the time taken.
+	 */
+	private byte[] computeHash(Path file) throws IOException {
+		Object event = FlightRecorderEvents.beginHash();
+		long start = System.nanoTime();
+		byte[] hash = FileHasher.hash(file, hashAlgorithm, throttle);
+		long bytes = Files.size(file);
+
+		metrics.stat();
+		metrics.hashed(bytes, System.nanoTime() - start);
+		FlightRecorderEvents.commitHash(event, file.toString(), bytes, hashAlgorithm.getName());
+		return hash;
+	}
+
+	/**
+	 * Hash a source file and its destination, recording the time taken.
+	 */
+	private byte[][] computeHashes(Path src, Path dest) throws IOException {
+		Object event = FlightRecorderEvents.beginHash();
+		long start = System.nanoTime();
+		byte[][] hashes = FileHasher.hash(src, dest, hashAlgorithm, throttle);
+		long bytes = Files.size(src) + Files.size(dest);
+
+		metrics.stat();
+		metrics.stat();
+		metrics.hashed(bytes, System.nanoTime() - start);
+		FlightRecorderEvents.commitHash(event, src.toString(), bytes, hashAlgorithm.getName());
+		return hashes;
+	}
+
+	/**
+	 * Replace the destination file with a copy of the source.
+	 * 
+	 * @return false if the copy failed, the destination is left untouched
+	 */
+	private boolean copy(File src, File dest) {
+		if (throttle == null) {
+			return this.measuredCopy(src, dest);
+		}
+
+		Closeable device;
+		try {
+			device = throttle.enter(src.toPath(), dest.toPath());
+		} catch (IOException ex) {
+			Logger.getLogger(FileSync.class.getName()).log(Level.SEVERE,
+					"Error copying file " + src.getPath() + " to " + dest.getPath(), ex);
+			return false;
+		}
+
+		try {
+			return this.measuredCopy(src, dest);
+		} finally {
+			try {
+				device.close();
+			} catch (IOException ex) {
+				// Releasing the device workers does not fail
+			}
+		}
+	}
+
+	private boolean measuredCopy(File src, File dest) {
+		Object event = FlightRecorderEvents.beginCopy();
+		long start = System.nanoTime();
+		String method = this.copyFile(src, dest);
+
+		if (method == null) {
+			failCount.increment();
+			return false;
+		}
+		long bytes = copiedBytes.get();
+		metrics.copied(bytes, System.nanoTime() - start);
+		FlightRecorderEvents.commitCopy(event, src.getPath(), dest.getPath(), bytes, method);
+		return true;
+	}
+
+	/**
+	 * @return how the file was copied, or null if the copy failed. The bytes
+	 *         written are left in {@link #copiedBytes}.
+	 */
+	private String copyFile(File src, File dest) {
+		verifiedHash.remove();
+		copiedBytes.set(0L);
+
+		// Stored objects are shared, so they are never updated by a delta
+		ContentStore store = contentStore;
+		if (store != null) {
+			try {
+				if (store.store(src.toPath(), dest.toPath())) {
+					// Only a link was written
+					dedupCount.increment();
+					if (verbose)
+						Logger.getLogger(FileSync.class.getName()).log(Level.INFO,
+								"Content of " + dest.getPath() + " already stored");
+					return "DEDUP";
+				}
+				metrics.stat();
+				copiedBytes.set(src.length());
+				return "STORE";
+			} catch (IOException ex) {
+				Logger.getLogger(FileSync.class.getName()).log(Level.SEVERE,
+						"Error storing file " + src.getPath() + " as " + dest.getPath(), ex);
+				return null;
+			}
+		}
+
+		if (deltaCopier != null && deltaCopier.accepts(dest)) {
+			try {
+				DeltaResult result = deltaCopier.copy(src, dest);
+				bytesReused.add(result.getReusedBytes());
+				copiedBytes.set(result.getLiteralBytes());
+				copyEngine.finish(src.toPath(), dest.toPath());
+
+				if (verbose)
+					Logger.getLogger(FileSync.class.getName()).log(Level.INFO, "Delta transfer of " + dest.getPath()
+							+ ": " + result.getLiteralBytes() + " bytes written, " + result.getReusedBytes()
+							+ " bytes reused");
+				return "DELTA";
+			} catch (IOException ex) {
+				Logger.getLogger(FileSync.class.getName()).log(Level.WARNING,
+						"Delta transfer of " + dest.getPath() + " failed, copying the whole file", ex);
+			}
+		}
+
+		try {
+			CopyStrategy strategy;
+			if (verifyOnWrite) {
+				HashCache cache = hashCache;
+				BasicFileAttributes before = null;
+				if (cache != null) {
+					metrics.stat();
+					before = Files.readAttributes(src.toPath(), BasicFileAttributes.class);
+				}
+				byte[] hash = copyEngine.copyVerified(src.toPath(), dest.toPath(), hashAlgorithm);
+				verifiedHash.set(hash);
+				strategy = CopyStrategy.VERIFIED;
+
+				if (cache != null) {
+					metrics.stat();
+					cache.put(dest.toPath(), Files.readAttributes(dest.toPath(), BasicFileAttributes.class),
+							hashAlgorithm, hash);
+					// The hash is of the source too, unless it changed while
+					// being copied
+					metrics.stat();
+					BasicFileAttributes after = Files.readAttributes(src.toPath(), BasicFileAttributes.class);
+					if (after.size() == before.size() && after.lastModifiedTime().equals(before.lastModifiedTime())) {
+						cache.put(src.toPath(), before, hashAlgorithm, hash);
+					}
+				}
+			} else {
+				strategy = copyEngine.copy(src.toPath(), dest.toPath());
+			}
+			strategyCount.get(strategy).increment();
+			metrics.stat();
+			copiedBytes.set(src.length());
+
+			if (verbose)
+				Logger.getLogger(FileSync.class.getName()).log(Level.INFO,
+						"Copied " + dest.getPath() + " using " + strategy);
+			return strategy.name();
+		} catch (IOException ex) {
+			Logger.getLogger(FileSync.class.getName()).log(Level.SEVERE,
+					"Error copying file " + src.getPath() + " to " + dest.getPath(), ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Write a file into a new snapshot generation. A file unchanged since
+	 * the previous generation, as told by the same check used for
+	 * synchronization, is hard-linked to it instead of copied.
+	 * 
+	 * @param s
+	 *            Source path and file name.
+	 * @param attrs
+	 *            Source file attributes.
+	 * @param d
+	 *            Path and file name in the new generation.
+	 * @param previous
+	 *            The same file in the previous generation, or null for the
+	 *            first generation.
+	 * @param large
+	 *            Large copies of the directory, or null to copy here.
+	 * @return true if the file was copied.
+	 */
+	private boolean snapshotFile(String s, BasicFileAttributes attrs, String d, Path previous,
+			SizeScheduler.Group large) {
+		Path dest = new File(d).toPath();
+
+		if (previous != null && !this.isSyncAble(s, attrs, previous.toString())) {
+			try {
+				Files.createLink(dest, previous);
+				linkCount.increment();
+				if (verbose)
+					Logger.getLogger(FileUtils.class.getName()).log(Level.INFO, "File " + d + " is unchanged.");
+				return false;
+			} catch (IOException | UnsupportedOperationException ex) {
+				Logger.getLogger(FileSync.class.getName()).log(Level.WARNING,
+						"Cannot link " + d + " to the previous snapshot, copying it", ex);
+			}
+		}
+
+		return this.copy(new File(s), dest.toFile(), attrs.size(), large, () -> bytesWritten.add(attrs.size()));
+	}
+
+	/**
+	 * Write a new snapshot generation of a source folder into a destination
+	 * folder that keeps all generations. Files unchanged since the previous
+	 * generation are hard links to it, so each generation only takes the
+	 * space of the files that changed. The oldest generations are deleted
+	 * according to {@link #setSnapshotRetention(int)}, and the files and bytes
+	 * written are appended to a report in the destination folder. The manifest
+	 * is not used.<BR>
+	 * <BR>
+	 * A generation where some files could not be copied, or some folders
+	 * created or listed, is published anyway so the files that were copied
+	 * are kept. It is reported as partial, with its number of failures, and
+	 * the missing files are copied again by the next run.
+	 * 
+	 * @param sourceParentFolder
+	 *            the parent folder containing all files to be synchronized.
+	 * @param destinationParentFolder
+	 *            the folder holding the generations.
+	 */
+	public void snapshotFolder(String sourceParentFolder, String destinationParentFolder) {
+		if (destinationParentFolder == null || destinationParentFolder.trim().equals("")) {
+			Logger.getLogger(FileSync.class.getName()).log(Level.SEVERE, "Invalid destination path!");
+			return;
+		}
+
+		SnapshotManager snapshots = new SnapshotManager(new File(destinationParentFolder.trim()).toPath());
+		String generation;
+		Path incomplete;
+
+		try {
+			previousGeneration = snapshots.getLatest();
+			generation = snapshots.newGeneration();
+			incomplete = snapshots.getIncomplete(generation);
+		} catch (IOException ex) {
+			Logger.getLogger(FileSync.class.getName()).log(Level.SEVERE,
+					"Cannot create a snapshot in " + destinationParentFolder, ex);
+			previousGeneration = null;
+			return;
+		}
+
+		snapshotted = true;
+		if (verbose && previousGeneration != null)
+			Logger.getLogger(FileSync.class.getName()).log(Level.INFO,
+					"Linking unchanged files to snapshot " + previousGeneration.getFileName());
+
+		snapshotRunning = true;
+		try {
+			this.traverse(sourceParentFolder, incomplete.toString());
+		} finally {
+			this.flushHashCache();
+			this.syncWrittenFiles();
+			snapshotRunning = false;
+			previousGeneration = null;
+		}
+
+		if (!incomplete.toFile().isDirectory()) {
+			return;
+		}
+
+		try {
+			Path target = snapshots.complete(generation);
+			long failures = failCount.sum();
+			if (failures > 0) {
+				System.out.println("Snapshot " + target + " is partial, " + failures + " files or folders failed");
+			} else {
+				System.out.println("Snapshot " + target);
+			}
+			snapshots.report(generation, fileCount.sum(), linkCount.sum(), bytesWritten.sum(), failures);
+
+			if (snapshotRetention > 0) {
+				for (Path deleted : snapshots.prune(snapshotRetention)) {
+					System.out.println("Deleted snapshot " + deleted);
+				}
+			}
+		} catch (IOException ex) {
+			Logger.getLogger(FileSync.class.getName()).log(Level.SEVERE, "Cannot complete snapshot " + generation, ex);
+		}
+	}
+
+	/**
+	 * Open the content store of a destination root, if deduplication is on.
+	 */
+	private void openStore(String destinationParentFolder) {
+		if (dedupEnabled && destinationParentFolder != null && !destinationParentFolder.trim().equals("")) {
+			try {
+				contentStore = ContentStore.open(new File(destinationParentFolder.trim()).toPath(), copyEngine);
+				contentStore.setMetrics(metrics);
+			} catch (IOException ex) {
+				Logger.getLogger(FileSync.class.getName()).log(Level.SEVERE,
+						"Cannot open content store, files will be copied", ex);
+			}
+		}
+	}
+
+	/**
+	 * Wait for the files written by this run to be durable.
+	 */
+	private void syncWrittenFiles() {
+		DeferredSync sync = copyEngine.getDeferredSync();
+		if (sync != null) {
+			sync.flush();
+		}
+	}
+
+	private void flushHashCache() {
+		HashCache cache = hashCache;
+		if (cache != null) {
+			cache.flush();
+		}
+	}
+
+	private void closeStore() {
+		if (contentStore != null) {
+			try {
+				contentStore.close();
+			} catch (IOException ex) {
+				Logger.getLogger(FileSync.class.getName()).log(Level.WARNING, "Cannot write content store", ex);
+			}
+			contentStore = null;
+		}
+	}
+
+	/**
+	 * Synchronize a whole tree with fork/join tasks or, when the scan queue
+	 * memory is bounded, with workers taking directories from a
+	 * {@link DirectoryQueue}.
+	 */
+	private void traverse(String sourceRoot, String destinationRoot) {
+		if (scanQueueMemory <= 0) {
+			ForkJoinPool pool = new ForkJoinPool(parallelism);
+			metrics.registerQueue("folders", () -> (int) pool.getQueuedTaskCount());
+			try {
+				pool.invoke(new FolderSyncTask(sourceRoot, destinationRoot, filter.root()));
+			} finally {
+				this.awaitLargeCopies();
+				pool.shutdown();
+				metrics.unregisterQueue("folders");
+			}
+			return;
+		}
+
+		Path spillDirectory = Paths.get(System.getProperty("java.io.tmpdir"));
+		ExecutorService workers = Executors.newFixedThreadPool(parallelism, new DaemonThreadFactory("FileSync-scan"));
+		try (DirectoryQueue queue = new DirectoryQueue(scanQueueMemory, spillDirectory)) {
+			metrics.registerQueue("folders", () -> (int) Math.min(Integer.MAX_VALUE, queue.size()));
+			queue.add("");
+			for (int i = 0; i < parallelism; i++) {
+				workers.execute(() -> this.scanQueue(queue, sourceRoot, destinationRoot));
+			}
+			workers.shutdown();
+			workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+
+			if (verbose && queue.getSpilledBytes() > 0)
+				Logger.getLogger(FileSync.class.getName()).log(Level.INFO,
+						queue.getSpilledBytes() + " bytes of directories spilled to " + spillDirectory);
+		} catch (IOException ex) {
+			Logger.getLogger(FileSync.class.getName()).log(Level.SEVERE, "Cannot queue directories", ex);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} finally {
+			workers.shutdownNow();
+			this.awaitLargeCopies();
+			metrics.unregisterQueue("folders");
+		}
+	}
+
+	/**
+	 * Wait for the large files queued by a tree walk, whose last copy in each
+	 * directory also stores the manifest entries of the directory.
+	 */
+	private void awaitLargeCopies() {
+		try {
+			this.sizeScheduler().awaitIdle();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Worker of a bounded traversal: synchronize directories of the queue
+	 * until the whole tree is done.
+	 */
+	private void scanQueue(DirectoryQueue queue, String sourceRoot, String destinationRoot) {
+		try {
+			String relative;
+			while ((relative = queue.take()) != null) {
+				try {
+					String source = sourceRoot;
+					String destination = destinationRoot;
+					if (!relative.isEmpty()) {
+						String folder = relative.replace('/', File.separatorChar);
+						source = new File(sourceRoot.trim(), folder).getPath();
+						destination = new File(destinationRoot.trim(), folder).getPath();
+					}
+					this.processFolder(source, destination, filter.scope(relative), queue);
+				} finally {
+					queue.done();
+				}
+			}
+		} catch (IOException ex) {
+			Logger.getLogger(FileSync.class.getName()).log(Level.SEVERE, "Cannot read queued directories", ex);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Synchronize a source folder to a destination path. This method blocks
+	 * until the whole tree has been processed.
+	 * 
+	 * @param sourceParentFolder
+	 *            the parent folder containing all files to be synchronized.
+	 * @param destinationParentFolder
+	 *            the destination when the files must be updated.
+	 */
+	public void syncFolder(String sourceParentFolder, String destinationParentFolder) {
+		if (manifestEnabled && destinationParentFolder != null && !destinationParentFolder.trim().equals("")) {
+			try {
+				manifest = ScanManifest.open(new File(destinationParentFolder));
+			} catch (IOException ex) {
+				Logger.getLogger(FileSync.class.getName()).log(Level.SEVERE,
+						"Cannot create manifest, files will be compared with the destination", ex);
+			}
+		}
+
+		this.openStore(destinationParentFolder);
 
-				if (dest.exists()) {
-					Logger.getLogger(FileUtils.class.getName()).log(Level.WARNING,
-							"File " + d + " could not be replaced. Check file permissions and try again.");
+		try {
+			this.traverse(sourceParentFolder, destinationParentFolder);
 
-				}
+			if (manifest != null) {
+				manifest.commit();
 			}
+		} catch (IOException ex) {
+			Logger.getLogger(FileSync.class.getName()).log(Level.SEVERE, "Cannot write manifest", ex);
+		} finally {
+			this.closeStore();
+			this.flushHashCache();
+			this.syncWrittenFiles();
 
-			FileUtils.fileCopy(src, dest);
-			return true;
-		} else {
-			if (verbose)
-				Logger.getLogger(FileUtils.class.getName()).log(Level.INFO, "File " + d + " is up to date.");
+			if (manifest != null) {
+				try {
+					manifest.close();
+				} catch (IOException ex) {
+					Logger.getLogger(FileSync.class.getName()).log(Level.WARNING, null, ex);
+				}
+				manifest = null;
+			}
 		}
-
-		return false;
 	}
 
 	/**
-	 * Synchronize a source folder to a destination path.
+	 * Synchronize the files of a single folder. Subfolders are forked as new
+	 * tasks and joined before returning, so it must run inside the pool, or
+	 * added to the queue of a bounded traversal.
 	 * 
 	 * @param sourceParentFolder
 	 *            the parent folder containing all files to be synchronized.
 	 * @param destinationParentFolder
 	 *            the destination when the files must be updated.
+	 * @param scope
+	 *            filter rules of the folder, which also holds the folder path
+	 *            relative to the synchronized root.
+	 * @param queue
+	 *            where subfolders go in a bounded traversal, null to fork them
 	 */
-	public void syncFolder(String sourceParentFolder, String destinationParentFolder) {
-		Vector<String> folders = new Vector<String>();
-		Vector<String> files = new Vector<String>();
+	private void processFolder(String sourceParentFolder, String destinationParentFolder, PathFilter.Scope scope,
+			DirectoryQueue queue) {
+		final String relativeFolder = scope.getPath();
+		final List<FolderSyncTask> subtasks = new ArrayList<FolderSyncTask>();
+		SizeScheduler.Group largeCopies = null;
 
 		if (sourceParentFolder == null || sourceParentFolder.trim().equals("")) {
 			Logger.getLogger(FileSync.class.getName()).log(Level.SEVERE, "Invalid source path!");
@@ -214,6 +1476,7 @@ public final class FileSync extends Thread {
 		// Check if destination directory exists
 		if (!destinationDir.exists()) {
 			if (!destinationDir.mkdirs()) {
+				failCount.increment();
 				try {
 					throw new WritePermissionDeniedException(destinationParentFolder);
 				} catch (WritePermissionDeniedException ex) {
@@ -237,63 +1500,108 @@ public final class FileSync extends Thread {
 			try {
 				Logger.getLogger(FileSync.class.getName()).log(Level.FINE,
 						"Syncing DIR \"" + sourceParentFolder + "\" to \"" + destinationParentFolder + "\"");
-				String[] result = FileUtils.getDirList(sourceDir, false);
-
-				Arrays.sort(result);
-
-				// Find all files and folders inside directory
-				if (result != null && result.length > 0) {
-					for (String s : result) {
-						File test = new File(sourceParentFolder + s);
-						if (test.isDirectory()) {
-							folders.add(s);
-						} else {
-							files.add(s);
+
+				if (!sourceParentFolder.trim().endsWith(File.separator)) {
+					sourceParentFolder = sourceParentFolder.trim() + File.separator;
+				}
+				if (!destinationParentFolder.trim().endsWith(File.separator)) {
+					destinationParentFolder = destinationParentFolder.trim() + File.separator;
+				}
+
+				final String sourceFolder = sourceParentFolder;
+				final String destinationFolder = destinationParentFolder;
+				final ManifestDirectory manifestDir = manifest == null ? null : manifest.directory(relativeFolder);
+				// The manifest of the directory is complete only when its
+				// large files have been copied
+				final SizeScheduler.Group large = this.sizeScheduler().group(() -> {
+					if (manifestDir != null) {
+						try {
+							manifest.store(manifestDir);
+						} catch (IOException ex) {
+							Logger.getLogger(FileSync.class.getName()).log(Level.SEVERE, "Cannot write manifest", ex);
 						}
 					}
+				});
+				largeCopies = large;
+
+				// Before any copy into the folder, which writes its own
+				// temporary files
+				try {
+					CopyEngine.deleteStaleTempFiles(destinationDir.toPath());
+				} catch (IOException ex) {
+					Logger.getLogger(FileSync.class.getName()).log(Level.WARNING,
+							"Cannot list \"" + destinationParentFolder + "\"", ex);
+				}
+
+				final int[] files = new int[1];
+				final long[] processingNanos = new long[1];
+				final long scanStart = System.nanoTime();
+
+				// Entries are handled as they are listed. Subfolders are forked
+				// so idle workers can steal them while this one copies the files
+				DirectoryScanner.scan(sourceDir.toPath(), (entry, attrs) -> {
+					String s = entry.getFileName().toString();
+					metrics.scanned();
 
-					if (!sourceParentFolder.trim().endsWith(File.separator)) {
-						sourceParentFolder = sourceParentFolder.trim() + File.separator;
+					// Manifests and sidecar hashes of the source belong to it
+					if (InternalFiles.isInternal(s)) {
+						return;
 					}
-					if (!destinationParentFolder.trim().endsWith(File.separator)) {
-						destinationParentFolder = destinationParentFolder.trim() + File.separator;
+
+					if (scope.isExcluded(s, attrs.isDirectory())) {
+						if (verbose)
+							Logger.getLogger(FileSync.class.getName()).log(Level.INFO,
+									"Excluded " + sourceFolder + s);
+						return;
 					}
 
-					for (String s : folders) {
-						if (FileSync.getThreadCount() < 1) {
-							FileSync fs = new FileSync(secureMethodOn, verbose);
-							fs.setThreadParameters(sourceParentFolder + s, destinationParentFolder + s);
-							fs.start();
-						} else {
-							this.syncFolder(sourceParentFolder + s, destinationParentFolder + s);
-						}
+					if (attrs.isDirectory() && queue != null) {
+						queue.add(relativeFolder.isEmpty() ? s : relativeFolder + "/" + s);
+						return;
 					}
 
-					// Process all files inside the directory
-					for (String s : files) {
-						String sourceFileName = sourceParentFolder + s;
-						String destinationFileName = destinationParentFolder + s;
-
-						// Logger.getLogger(FileSync.class.getName()).log(Level.INFO,
-						// "Syncing FILE [" + sourceFileName + "] to [" +
-						// destinationFileName + "]");
-
-						// Sync file
-						if (this.syncFile(sourceFileName, destinationFileName)) {
-							// System.out.println("Syncing FILE [" +
-							// sourceFileName + "] to [" + destinationFileName +
-							// "]");
-							System.out.println(destinationFileName);
-							fileCount++;
+					if (attrs.isDirectory()) {
+						FolderSyncTask task = new FolderSyncTask(sourceFolder + s, destinationFolder + s,
+								scope.enter(s));
+						task.fork();
+						subtasks.add(task);
+
+						// Bound the tasks kept by a folder with too many subfolders
+						if (subtasks.size() >= MAX_PENDING_SUBTASKS) {
+							long start = System.nanoTime();
+							joinAll(subtasks);
+							processingNanos[0] += System.nanoTime() - start;
 						}
+						return;
 					}
-					if (verbose)
-						Logger.getLogger(FileSync.class.getName()).log(Level.INFO,
-								files.size() + " files processed in directory " + sourceParentFolder);
 
-				}
+					String sourceFileName = sourceFolder + s;
+					String destinationFileName = destinationFolder + s;
+
+					long start = System.nanoTime();
+					this.processFile(sourceFileName, attrs, destinationFileName, relativeFolder, s, manifestDir, large);
+					processingNanos[0] += System.nanoTime() - start;
+					files[0]++;
+				});
+
+				// Listing time of the directory, without the files handled
+				// while it was listed
+				metrics.record(Stage.SCAN, System.nanoTime() - scanStart - processingNanos[0]);
+
+				if (verbose)
+					Logger.getLogger(FileSync.class.getName()).log(Level.INFO,
+							files[0] + " files processed in directory " + sourceParentFolder);
+
 			} catch (Exception ex) {
+				failCount.increment();
 				Logger.getLogger(FileSync.class.getName()).log(Level.SEVERE, null, ex);
+			} finally {
+				// Large copies may still run, the run waits for them at its end
+				if (largeCopies != null) {
+					largeCopies.close();
+				}
+				// Wait for the whole subtree before reporting this folder done
+				joinAll(subtasks);
 			}
 		} else {
 			try {
@@ -304,6 +1612,583 @@ public final class FileSync extends Thread {
 		}
 	}
 
+	/**
+	 * Synchronize a single file or folder tree, for example after a change
+	 * notification. A source that no longer exists is deleted from the
+	 * destination when mirroring. The manifest and the content store are not
+	 * used.
+	 * 
+	 * @param sourcePath
+	 *            source file or folder.
+	 * @param destinationPath
+	 *            where the source must be synchronized to.
+	 * @param relativePath
+	 *            path of the source relative to the synchronized root, "/"
+	 *            separated, to apply the filter rules.
+	 * @param mirror
+	 *            delete destination entries missing in the source.
+	 */
+	public void syncPath(String sourcePath, String destinationPath, String relativePath, boolean mirror) {
+		try {
+			this.syncChangedPath(sourcePath, destinationPath, relativePath, mirror);
+		} finally {
+			this.flushHashCache();
+			this.syncWrittenFiles();
+		}
+	}
+
+	private void syncChangedPath(String sourcePath, String destinationPath, String relativePath, boolean mirror) {
+		BasicFileAttributes attrs;
+		try {
+			attrs = Files.readAttributes(new File(sourcePath).toPath(), BasicFileAttributes.class);
+		} catch (IOException ex) {
+			attrs = null;
+		}
+
+		boolean directory = attrs != null ? attrs.isDirectory() : new File(destinationPath).isDirectory();
+		if (!relativePath.isEmpty() && filter.isExcluded(relativePath, directory)) {
+			if (verbose)
+				Logger.getLogger(FileSync.class.getName()).log(Level.INFO, "Excluded " + sourcePath);
+			return;
+		}
+
+		if (attrs == null) {
+			Path destination = new File(destinationPath).toPath();
+			if (mirror && Files.exists(destination, LinkOption.NOFOLLOW_LINKS)) {
+				mirrored = true;
+				try {
+					FileTrees.delete(destination);
+					this.printFile("Deleted ", destination);
+					deleteCount.increment();
+				} catch (IOException ex) {
+					Logger.getLogger(FileSync.class.getName()).log(Level.SEVERE, "Cannot delete " + destination, ex);
+				}
+			}
+			return;
+		}
+
+		if (attrs.isDirectory()) {
+			if (mirror) {
+				this.mirror(sourcePath, destinationPath, filter.scope(relativePath));
+				return;
+			}
+
+			ForkJoinPool pool = new ForkJoinPool(parallelism);
+			try {
+				pool.invoke(new FolderSyncTask(sourcePath, destinationPath, filter.scope(relativePath)));
+			} finally {
+				this.awaitLargeCopies();
+				pool.shutdown();
+			}
+			return;
+		}
+
+		File dest = new File(destinationPath);
+		if (!dest.getParentFile().isDirectory() && !dest.getParentFile().mkdirs()) {
+			Logger.getLogger(FileSync.class.getName()).log(Level.SEVERE, null,
+					new WritePermissionDeniedException(dest.getParent()));
+			return;
+		}
+
+		if (this.syncFile(sourcePath, attrs, destinationPath, null)) {
+			this.printFile("", destinationPath);
+			fileCount.increment();
+		}
+	}
+
+	/**
+	 * Make a destination folder an exact copy of a source folder: besides
+	 * synchronizing new and changed files, files and folders missing in the
+	 * source are deleted from the destination. Runs on a {@link SyncPipeline},
+	 * so deletions and copies start while the trees are still being listed.
+	 * This method blocks until the whole tree has been processed. The manifest
+	 * is not used, as the destination is listed anyway to find stale files.
+	 * 
+	 * @param sourceParentFolder
+	 *            the parent folder containing all files to be synchronized.
+	 * @param destinationParentFolder
+	 *            the destination when the files must be updated.
+	 */
+	public void mirrorFolder(String sourceParentFolder, String destinationParentFolder) {
+		this.openStore(destinationParentFolder);
+		try {
+			this.mirror(sourceParentFolder, destinationParentFolder, filter.root());
+		} finally {
+			this.closeStore();
+			this.flushHashCache();
+			this.syncWrittenFiles();
+		}
+	}
+
+	/**
+	 * Write the changes a synchronization would make to a change plan, without
+	 * touching the destination. The trees are scanned and compared by a
+	 * {@link SyncPipeline} whose actions go to a {@link PlanWriter}; the
+	 * totals of the plan are printed. Files with the same length and
+	 * modification date are planned to be compared when the secure or compare
+	 * method is on.
+	 * 
+	 * @param sourceParentFolder
+	 *            the parent folder containing all files to be synchronized.
+	 * @param destinationParentFolder
+	 *            the destination when the files must be updated.
+	 * @param planFile
+	 *            where the plan is written
+	 * @param mirror
+	 *            plan the deletion of destination entries missing in the
+	 *            source
+	 * @see #applyPlan(String)
+	 */
+	public void planFolder(String sourceParentFolder, String destinationParentFolder, String planFile,
+			boolean mirror) {
+		if (sourceParentFolder == null || sourceParentFolder.trim().equals("")) {
+			Logger.getLogger(FileSync.class.getName()).log(Level.SEVERE, "Invalid source path!");
+			return;
+		}
+
+		if (destinationParentFolder == null || destinationParentFolder.trim().equals("")) {
+			Logger.getLogger(FileSync.class.getName()).log(Level.SEVERE, "Invalid destination path!");
+			return;
+		}
+
+		File sourceDir = new File(sourceParentFolder.trim());
+		if (!sourceDir.isDirectory()) {
+			Logger.getLogger(FileSync.class.getName()).log(Level.SEVERE,
+					"Source path \"" + sourceParentFolder + "\" does not exists or is not a directory!");
+			return;
+		}
+
+		Path destination = new File(destinationParentFolder.trim()).toPath();
+		boolean verify = secureMethodOn || compareMethodOn;
+		PlanWriter writer;
+		try {
+			writer = new PlanWriter(Paths.get(planFile), sourceDir.toPath(), destination, mirror, verify);
+		} catch (IOException ex) {
+			Logger.getLogger(FileSync.class.getName()).log(Level.SEVERE, "Cannot create plan " + planFile, ex);
+			return;
+		}
+
+		// A single applier keeps the actions in the order they were found
+		SyncPipeline pipeline = new SyncPipeline(sourceDir.toPath(), destination, writer);
+		pipeline.setMirror(mirror);
+		pipeline.setVerifyContents(verify);
+		pipeline.setScannerThreads(Math.min(MAX_SCANNER_THREADS, Math.max(1, parallelism / 2)));
+		pipeline.setApplierThreads(1);
+		pipeline.setFilter(filter.root());
+		pipeline.setMetrics(metrics);
+
+		try {
+			pipeline.run();
+			writer.close();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			writer.discard();
+			Logger.getLogger(FileSync.class.getName()).log(Level.WARNING, "Plan interrupted", ex);
+			return;
+		} catch (IOException ex) {
+			writer.discard();
+			Logger.getLogger(FileSync.class.getName()).log(Level.SEVERE, "Cannot write plan " + planFile, ex);
+			return;
+		}
+
+		System.out.println("Plan " + planFile);
+		System.out.println(String.valueOf(writer.getCopies()) + " files to copy, " + writer.getCopyBytes() + " bytes.");
+		if (verify) {
+			System.out.println(
+					String.valueOf(writer.getVerifies()) + " files to compare, " + writer.getVerifyBytes() + " bytes.");
+		}
+		if (mirror) {
+			System.out.println(String.valueOf(writer.getDeletes()) + " files and folders to delete.");
+		}
+		System.out.println(String.valueOf(writer.getDirectories()) + " folders to create.");
+	}
+
+	/**
+	 * Apply a change plan written by {@link #planFolder(String, String, String, boolean)}
+	 * without scanning the trees again. Actions are read one at a time and
+	 * applied by as many threads as the parallelism, like the actions of a
+	 * mirror. Each is checked against the trees as they are now: files
+	 * already up to date and files deleted from the source since the plan
+	 * are skipped, and so are planned deletions of entries already deleted
+	 * or that exist in the source again. Changed files are copied as they are now. This method
+	 * blocks until the whole plan has been applied.
+	 * 
+	 * @param planFile
+	 *            the plan
+	 */
+	public void applyPlan(String planFile) {
+		final PlanReader plan;
+		try {
+			plan = new PlanReader(Paths.get(planFile));
+		} catch (IOException ex) {
+			Logger.getLogger(FileSync.class.getName()).log(Level.SEVERE, "Cannot read plan " + planFile, ex);
+			return;
+		}
+
+		final Path sourceRoot = plan.getSourceRoot().normalize();
+		final Path destinationRoot = plan.getDestinationRoot().normalize();
+		if (plan.isVerify() && !secureMethodOn && !compareMethodOn) {
+			Logger.getLogger(FileSync.class.getName()).log(Level.WARNING,
+					"The plan compares files, but neither the secure nor the compare method is on");
+		}
+		if (verbose)
+			Logger.getLogger(FileSync.class.getName()).log(Level.INFO,
+					"Applying plan of " + plan.getCreated() + " from " + sourceRoot + " to " + destinationRoot);
+
+		mirrored = plan.isMirror();
+		this.openStore(destinationRoot.toString());
+		ExecutorService workers = Executors.newFixedThreadPool(parallelism, new DaemonThreadFactory("FileSync-plan"));
+		try {
+			for (int i = 0; i < parallelism; i++) {
+				workers.execute(() -> this.applyPlanned(plan, sourceRoot, destinationRoot));
+			}
+			workers.shutdown();
+			workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			Logger.getLogger(FileSync.class.getName()).log(Level.WARNING, "Plan interrupted", ex);
+		} finally {
+			workers.shutdownNow();
+			try {
+				plan.close();
+			} catch (IOException ex) {
+				Logger.getLogger(FileSync.class.getName()).log(Level.WARNING, null, ex);
+			}
+			this.closeStore();
+			this.flushHashCache();
+			this.syncWrittenFiles();
+		}
+	}
+
+	/**
+	 * Worker of {@link #applyPlan(String)}: apply actions of the plan until
+	 * its end.
+	 */
+	private void applyPlanned(PlanReader plan, Path sourceRoot, Path destinationRoot) {
+		try {
+			SyncAction action;
+			while ((action = plan.next()) != null) {
+				Path source = sourceRoot.resolve(action.getRelativePath()).normalize();
+				Path destination = destinationRoot.resolve(action.getRelativePath()).normalize();
+
+				if (!source.startsWith(sourceRoot) || !destination.startsWith(destinationRoot)) {
+					Logger.getLogger(FileSync.class.getName()).log(Level.SEVERE,
+							"Not applying " + action + ", it is outside the synchronized folders");
+					continue;
+				}
+
+				try {
+					if (this.isPlanned(action, source, destination)) {
+						this.apply(action, source, destination);
+					}
+				} catch (IOException | RuntimeException ex) {
+					Logger.getLogger(FileSync.class.getName()).log(Level.SEVERE, "Cannot apply " + action, ex);
+				}
+			}
+		} catch (IOException ex) {
+			Logger.getLogger(FileSync.class.getName()).log(Level.SEVERE, "Cannot read plan", ex);
+		}
+	}
+
+	/**
+	 * Check a planned action against the trees as they are now.
+	 * 
+	 * @return false if the action must be skipped
+	 */
+	private boolean isPlanned(SyncAction action, Path source, Path destination) throws IOException {
+		switch (action.getType()) {
+		case MKDIR:
+			return true;
+
+		case DELETE:
+			if (!Files.exists(destination, LinkOption.NOFOLLOW_LINKS)) {
+				return false;
+			}
+			if (Files.exists(source, LinkOption.NOFOLLOW_LINKS)) {
+				Logger.getLogger(FileSync.class.getName()).log(Level.WARNING,
+						"Not deleting " + destination + ", it exists in the source again");
+				return false;
+			}
+			return true;
+
+		default:
+			BasicFileAttributes attrs;
+			try {
+				attrs = Files.readAttributes(source, BasicFileAttributes.class);
+			} catch (NoSuchFileException ex) {
+				Logger.getLogger(FileSync.class.getName()).log(Level.WARNING,
+						"Not copying " + source + ", it no longer exists");
+				return false;
+			}
+
+			long lastModified = attrs.lastModifiedTime().toMillis();
+			// The mirror actions check stored files themselves
+			if (action.getType() != SyncAction.Type.VERIFY && contentStore == null) {
+				BasicFileAttributes existing = null;
+				try {
+					existing = Files.readAttributes(destination, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+				} catch (NoSuchFileException ex) {
+					// Still to be copied
+				}
+				if (existing != null && existing.isRegularFile() && existing.size() == attrs.size()
+						&& existing.lastModifiedTime().toMillis() == lastModified) {
+					if (verbose)
+						Logger.getLogger(FileSync.class.getName()).log(Level.INFO,
+								"File " + destination + " is up to date.");
+					return false;
+				}
+			}
+
+			if (verbose && (attrs.size() != action.getSize() || lastModified != action.getLastModified()))
+				Logger.getLogger(FileSync.class.getName()).log(Level.INFO,
+						"File " + source + " changed since the plan, copying it as it is now");
+			return true;
+		}
+	}
+
+	/**
+	 * Synchronize a source folder to the folder served by a
+	 * {@link com.adamiworks.filesync.remote.SyncAgent} on another host. The
+	 * agent compares the files with its own, so only the attributes of
+	 * unchanged files cross the network. The secure method, hash algorithm,
+	 * hash cache, filter and throttle apply; the other options are local to
+	 * the destination and ignored.
+	 * 
+	 * @param sourceParentFolder
+	 *            the parent folder containing all files to be synchronized.
+	 * @param agent
+	 *            address of the agent.
+	 */
+	public void syncRemote(String sourceParentFolder, final InetSocketAddress agent) {
+		RemoteSyncClient client = new RemoteSyncClient(agent);
+		client.setSecure(secureMethodOn);
+		client.setHashAlgorithm(hashAlgorithm);
+		client.setHashCache(hashCache);
+		client.setFilter(filter);
+		client.setThrottle(throttle);
+		client.setMetrics(metrics);
+		client.setCompression(compression);
+		client.setListener(path -> {
+			this.printFile("", agent.getHostString() + ":" + agent.getPort() + "/" + path);
+			fileCount.increment();
+		});
+
+		try {
+			client.sync(Paths.get(sourceParentFolder));
+		} catch (IOException ex) {
+			Logger.getLogger(FileSync.class.getName()).log(Level.SEVERE, "Cannot synchronize to " + agent, ex);
+		} finally {
+			this.flushHashCache();
+			remoteBytesRead.add(client.getBytesRead());
+			remoteBytesTransferred.add(client.getBytesTransferred());
+		}
+
+		if (client.getFailures() > 0) {
+			Logger.getLogger(FileSync.class.getName()).log(Level.WARNING,
+					client.getFailures() + " files could not be sent to " + agent);
+		}
+	}
+
+	private void mirror(String sourceParentFolder, String destinationParentFolder, PathFilter.Scope scope) {
+		if (sourceParentFolder == null || sourceParentFolder.trim().equals("")) {
+			Logger.getLogger(FileSync.class.getName()).log(Level.SEVERE, "Invalid source path!");
+			return;
+		}
+
+		if (destinationParentFolder == null || destinationParentFolder.trim().equals("")) {
+			Logger.getLogger(FileSync.class.getName()).log(Level.SEVERE, "Invalid destination path!");
+			return;
+		}
+
+		File sourceDir = new File(sourceParentFolder.trim());
+		if (!sourceDir.isDirectory()) {
+			Logger.getLogger(FileSync.class.getName()).log(Level.SEVERE,
+					"Source path \"" + sourceParentFolder + "\" does not exists or is not a directory!");
+			return;
+		}
+
+		SyncPipeline pipeline = new SyncPipeline(sourceDir.toPath(), new File(destinationParentFolder.trim()).toPath(),
+				this::apply);
+		pipeline.setMirror(true);
+		pipeline.setDeleteStaleTempFiles(true);
+		pipeline.setVerifyContents(secureMethodOn || compareMethodOn);
+		pipeline.setScannerThreads(Math.min(MAX_SCANNER_THREADS, Math.max(1, parallelism / 2)));
+		pipeline.setApplierThreads(parallelism);
+		pipeline.setScheduler(this.sizeScheduler());
+		pipeline.setFilter(scope);
+		pipeline.setMetrics(metrics);
+		mirrored = true;
+
+		try {
+			pipeline.run();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			Logger.getLogger(FileSync.class.getName()).log(Level.WARNING, "Mirror interrupted", ex);
+		}
+	}
+
+	/**
+	 * Execute an action of the mirror pipeline. Called concurrently by all
+	 * applier threads.
+	 */
+	private void apply(SyncAction action, Path source, Path destination) throws IOException {
+		switch (action.getType()) {
+		case MKDIR:
+			ensureDirectory(destination);
+			break;
+
+		case DELETE:
+			FileTrees.delete(destination);
+			if (contentStore != null) {
+				contentStore.remove(destination);
+			}
+			this.printFile("Deleted ", destination);
+			deleteCount.increment();
+			break;
+
+		case VERIFY:
+			if (!this.isStaleCopy(action, source, destination)) {
+				if (verbose)
+					Logger.getLogger(FileUtils.class.getName()).log(Level.INFO,
+							"File " + destination + " is up to date.");
+				break;
+			}
+			if (this.copy(source.toFile(), destination.toFile())) {
+				this.printFile("", destination);
+				fileCount.increment();
+			}
+			break;
+
+		case ADD:
+		case UPDATE:
+			// Stored files have the attributes of their object, so the diff
+			// finds them changed, and a plan may be applied again
+			if (contentStore != null && !this.isStaleCopy(action, source, destination)) {
+				if (verbose)
+					Logger.getLogger(FileUtils.class.getName()).log(Level.INFO,
+							"File " + destination + " is up to date.");
+				break;
+			}
+			// A directory with the name of a source file
+			if (action.getType() == SyncAction.Type.UPDATE
+					&& Files.isDirectory(destination, LinkOption.NOFOLLOW_LINKS)) {
+				FileTrees.delete(destination);
+			}
+			ensureDirectory(destination.getParent());
+			if (this.copy(source.toFile(), destination.toFile())) {
+				this.printFile("", destination);
+				fileCount.increment();
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Check a file the diff found changed, or that it planned to compare,
+	 * against the content store when there is one.
+	 * 
+	 * @return true if the file must be copied
+	 */
+	private boolean isStaleCopy(SyncAction action, Path source, Path destination) throws IOException {
+		ContentStore store = contentStore;
+		if (store == null) {
+			return action.getType() != SyncAction.Type.VERIFY
+					|| this.contentDiffers(source.toString(), destination.toString());
+		}
+		return this.isStoreSyncAble(store, source, Files.readAttributes(source, BasicFileAttributes.class),
+				destination, action.getType() == SyncAction.Type.VERIFY || secureMethodOn || compareMethodOn);
+	}
+
+	/**
+	 * Create a directory and its parents, replacing a file with the same
+	 * name. Safe to call from concurrent threads for the same directory.
+	 */
+	private static void ensureDirectory(Path directory) throws IOException {
+		if (Files.isDirectory(directory)) {
+			return;
+		}
+		if (Files.exists(directory, LinkOption.NOFOLLOW_LINKS)) {
+			Files.deleteIfExists(directory);
+		}
+		Files.createDirectories(directory);
+	}
+
+	/**
+	 * Synchronize or snapshot one file found in a directory scan. Large files
+	 * that need a copy are queued to the large file workers, which report
+	 * them when copied.
+	 */
+	private void processFile(String sourceFileName, BasicFileAttributes attrs, String destinationFileName,
+			String relativeFolder, String name, ManifestDirectory manifestDir, SizeScheduler.Group large) {
+		Path previous = previousGeneration;
+		boolean synced;
+		if (snapshotRunning) {
+			synced = this.snapshotFile(sourceFileName, attrs, destinationFileName,
+					previous == null ? null : previous.resolve(relativeFolder).resolve(name), large);
+		} else if (manifestDir != null) {
+			synced = this.syncFile(sourceFileName, attrs, destinationFileName, name, manifestDir, large);
+		} else {
+			synced = this.syncFile(sourceFileName, attrs, destinationFileName, large);
+		}
+		if (synced) {
+			this.printFile("", destinationFileName);
+			fileCount.increment();
+		}
+	}
+
+	/**
+	 * Copy a file found to need it. A large file is queued to the large file
+	 * workers when a group is given, and reported by the worker that copies
+	 * it.
+	 * 
+	 * @param size
+	 *            size of the source
+	 * @param large
+	 *            large copies of the directory, or null to copy here
+	 * @param after
+	 *            runs after a successful copy, in the thread that copied it
+	 * @return true if the file was copied here; false if the copy failed or
+	 *         was queued
+	 */
+	private boolean copy(File src, File dest, long size, SizeScheduler.Group large, Runnable after) {
+		if (large != null && large.isLarge(size)) {
+			large.submit(size, () -> {
+				if (this.copy(src, dest)) {
+					after.run();
+					this.printFile("", dest.getPath());
+					fileCount.increment();
+				}
+			});
+			return false;
+		}
+
+		if (!this.copy(src, dest)) {
+			return false;
+		}
+		after.run();
+		return true;
+	}
+
+	/**
+	 * Join forked tasks, newest first so they can still be taken back from
+	 * this worker's queue and run here.
+	 */
+	private static void joinAll(List<FolderSyncTask> subtasks) {
+		for (int i = subtasks.size() - 1; i >= 0; i--) {
+			subtasks.get(i).join();
+		}
+		subtasks.clear();
+	}
+
+	/**
+	 * Print a copied or deleted file, unless file listing is disabled.
+	 */
+	private void printFile(String prefix, Object file) {
+		if (listFiles) {
+			System.out.println(prefix + file);
+		}
+	}
+
 	/**
 	 * Show the number o files synchronized.
 	 * 
@@ -311,15 +2196,60 @@ public final class FileSync extends Thread {
 	 *            reset the file counter to 0.
 	 */
 	public void showFileCount(boolean resetCount) {
-		System.out.println(String.valueOf(fileCount) + " files synchronized.");
+		System.out.println(String.valueOf(fileCount.sum()) + " files synchronized.");
+		if (mirrored) {
+			System.out.println(String.valueOf(deleteCount.sum()) + " files deleted.");
+		}
+		if (deltaCopier != null) {
+			System.out.println(String.valueOf(bytesReused.sum()) + " bytes reused by delta transfer.");
+		}
+		if (dedupEnabled) {
+			System.out.println(String.valueOf(dedupCount.sum()) + " files deduplicated.");
+		}
+		if (snapshotted) {
+			System.out.println(String.valueOf(linkCount.sum()) + " files linked to the previous snapshot.");
+			System.out.println(String.valueOf(bytesWritten.sum()) + " bytes written.");
+			System.out.println(String.valueOf(failCount.sum()) + " files or folders failed.");
+		}
+		if (throttle != null) {
+			System.out.println(String.valueOf(throttle.getThrottledMillis()) + " ms waited for I/O limits.");
+		}
+		if (hashCache != null) {
+			System.out.println(String.valueOf(hashCache.getHits()) + " hashes taken from the hash cache.");
+		}
+		DeferredSync sync = copyEngine.getDeferredSync();
+		if (sync != null) {
+			System.out.println(String.valueOf(sync.getFilesSynced()) + " files synced to disk with "
+					+ sync.getDirectoriesSynced() + " directory syncs.");
+		}
+		if (compression != null) {
+			System.out.println(String.valueOf(remoteBytesRead.sum()) + " bytes of files sent as "
+					+ remoteBytesTransferred.sum() + " bytes.");
+		}
+		if (copyEngine.isReflinkEnabled() || copyEngine.isSparseEnabled() || copyEngine.isResumeEnabled()
+				|| copyEngine.getParallelThreshold() != Long.MAX_VALUE || verifyOnWrite) {
+			for (CopyStrategy strategy : CopyStrategy.values()) {
+				System.out.println(String.valueOf(strategyCount.get(strategy).sum()) + " files copied using "
+						+ strategy + ".");
+			}
+		}
 		if (resetCount) {
-			fileCount = 0;
+			fileCount.reset();
+			bytesReused.reset();
+			deleteCount.reset();
+			dedupCount.reset();
+			linkCount.reset();
+			bytesWritten.reset();
+			failCount.reset();
+			remoteBytesRead.reset();
+			remoteBytesTransferred.reset();
+			if (sync != null) {
+				sync.resetCounts();
+			}
+			for (LongAdder count : strategyCount.values()) {
+				count.reset();
+			}
+			metrics.reset();
 		}
 	}
-
-	@Override
-	public void run() {
-		this.syncFolder(threadSourceDir, threadDestinationDir);
-		FileSync.removeThreadCount();
-	}
 }
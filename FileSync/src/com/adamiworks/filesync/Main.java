@@ -1,10 +1,37 @@
 package com.adamiworks.filesync;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.adamiworks.filesync.compress.Compression;
+import com.adamiworks.filesync.copy.DeltaMode;
+import com.adamiworks.filesync.filter.PathFilter;
+import com.adamiworks.filesync.hash.HashAlgorithm;
+import com.adamiworks.filesync.hash.HashCache;
+import com.adamiworks.filesync.metrics.ProgressReporter;
+import com.adamiworks.filesync.pipeline.SizeScheduler;
+import com.adamiworks.filesync.remote.SyncAgent;
+import com.adamiworks.filesync.throttle.IoThrottle;
+import com.adamiworks.filesync.throttle.ThrottleControlFile;
+import com.adamiworks.filesync.watch.SyncDaemon;
+
 /**
  *
  * @author Tiago J. Adami
  */
 public class Main {
+
+	private static final String REMOTE_PREFIX = "filesync://";
+	private static final String AGENT_COMMAND = "--agent";
+	private static final String APPLY_COMMAND = "--apply";
+
 	/**
 	 * @param args
 	 *            the command line arguments
@@ -17,15 +44,224 @@ public class Main {
 		// System.out.println(s);
 		// }
 
-		boolean showInfo = false;
+		// A dashed command, which a folder name would hardly be; a folder
+		// with the same name is still synchronized, not served
+		if (args.length >= 2 && isCommand(args[0], AGENT_COMMAND)) {
+			if (runAgent(args)) {
+				return;
+			}
+		}
+
+		boolean showInfo = args.length < 2;
+		boolean apply = args.length >= 2 && isCommand(args[0], APPLY_COMMAND);
+		String plan = null;
+		boolean secure = false;
+		boolean compare = false;
+		boolean verbose = false;
+		boolean manifest = false;
+		boolean mirror = false;
+		boolean reflink = false;
+		boolean sparse = false;
+		boolean resume = false;
+		boolean dedup = false;
+		boolean verify = false;
+		boolean hashCache = false;
+		boolean snapshot = false;
+		int keep = 0;
+		boolean daemon = false;
+		long window = 500;
+		long parallelCopy = Long.MAX_VALUE;
+		int copyThreads = 4;
+		long largeFile = SizeScheduler.DEFAULT_LARGE_FILE_SIZE;
+		int largeThreads = 2;
+		long bandwidth = 0;
+		long iops = 0;
+		int deviceWorkers = 0;
+		String control = null;
+		boolean quiet = false;
+		long fsync = 0;
+		long scanQueue = 0;
+		boolean owner = true;
+		long progress = 0;
+		List<String> rules = new ArrayList<String>();
+		DeltaMode delta = null;
+		Compression compression = null;
+		HashAlgorithm hash = HashAlgorithm.XXHASH64;
+		int threads = Runtime.getRuntime().availableProcessors();
+
+		for (int i = 2; i < args.length && !showInfo; i++) {
+			String arg = args[i].toLowerCase();
 
-		if (args.length == 3 && !args[2].toLowerCase().equals("secure")) {
-			showInfo = true;
+			if (arg.equals("secure")) {
+				secure = true;
+			} else if (arg.equals("compare")) {
+				compare = true;
+			} else if (arg.equals("verbose")) {
+				verbose = true;
+			} else if (arg.equals("manifest")) {
+				manifest = true;
+			} else if (arg.equals("mirror")) {
+				mirror = true;
+			} else if (arg.equals("reflink")) {
+				reflink = true;
+			} else if (arg.equals("sparse")) {
+				sparse = true;
+			} else if (arg.equals("resume")) {
+				resume = true;
+			} else if (arg.equals("dedup")) {
+				dedup = true;
+			} else if (arg.equals("hashcache")) {
+				hashCache = true;
+			} else if (arg.equals("verify")) {
+				verify = true;
+			} else if (arg.equals("snapshot")) {
+				snapshot = true;
+			} else if (arg.startsWith("keep=")) {
+				try {
+					keep = Integer.parseInt(arg.substring("keep=".length()));
+					showInfo = keep < 1;
+				} catch (NumberFormatException e) {
+					showInfo = true;
+				}
+			} else if (arg.equals("daemon")) {
+				daemon = true;
+			} else if (arg.startsWith("window=")) {
+				try {
+					window = Long.parseLong(arg.substring("window=".length()));
+					showInfo = window < 0;
+				} catch (NumberFormatException e) {
+					showInfo = true;
+				}
+			} else if (arg.equals("delta")) {
+				delta = DeltaMode.ROLLING;
+			} else if (arg.equals("delta=inplace")) {
+				delta = DeltaMode.IN_PLACE;
+			} else if (arg.startsWith("hash=")) {
+				hash = HashAlgorithm.forName(arg.substring("hash=".length()));
+				showInfo = hash == null;
+			} else if (arg.startsWith("parallelcopy=")) {
+				try {
+					parallelCopy = Long.parseLong(arg.substring("parallelcopy=".length())) * 1024 * 1024;
+					showInfo = parallelCopy < 1;
+				} catch (NumberFormatException e) {
+					showInfo = true;
+				}
+			} else if (arg.startsWith("copythreads=")) {
+				try {
+					copyThreads = Integer.parseInt(arg.substring("copythreads=".length()));
+					showInfo = copyThreads < 1;
+				} catch (NumberFormatException e) {
+					showInfo = true;
+				}
+			} else if (arg.startsWith("largefile=")) {
+				try {
+					largeFile = Long.parseLong(arg.substring("largefile=".length())) * 1024 * 1024;
+					showInfo = largeFile < 1;
+				} catch (NumberFormatException e) {
+					showInfo = true;
+				}
+			} else if (arg.startsWith("largethreads=")) {
+				try {
+					largeThreads = Integer.parseInt(arg.substring("largethreads=".length()));
+					showInfo = largeThreads < 1;
+				} catch (NumberFormatException e) {
+					showInfo = true;
+				}
+			} else if (arg.startsWith("bandwidth=")) {
+				try {
+					bandwidth = IoThrottle.parseRate(arg.substring("bandwidth=".length()));
+					showInfo = bandwidth < 1;
+				} catch (NumberFormatException e) {
+					showInfo = true;
+				}
+			} else if (arg.startsWith("iops=")) {
+				try {
+					iops = IoThrottle.parseRate(arg.substring("iops=".length()));
+					showInfo = iops < 1;
+				} catch (NumberFormatException e) {
+					showInfo = true;
+				}
+			} else if (arg.startsWith("deviceworkers=")) {
+				try {
+					deviceWorkers = Integer.parseInt(arg.substring("deviceworkers=".length()));
+					showInfo = deviceWorkers < 1;
+				} catch (NumberFormatException e) {
+					showInfo = true;
+				}
+			} else if (arg.startsWith("control=")) {
+				// The file name keeps its case
+				control = args[i].substring("control=".length());
+				showInfo = control.isEmpty();
+			} else if (arg.startsWith("exclude=")) {
+				rules.add(args[i].substring("exclude=".length()));
+			} else if (arg.startsWith("include=")) {
+				rules.add("!" + args[i].substring("include=".length()));
+			} else if (arg.startsWith("filter=")) {
+				String file = args[i].substring("filter=".length());
+				try {
+					rules.addAll(Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8));
+				} catch (IOException e) {
+					Logger.getLogger(Main.class.getName()).log(Level.SEVERE, "Cannot read filter " + file, e);
+					showInfo = true;
+				}
+			} else if (arg.startsWith("fsync=")) {
+				try {
+					fsync = Long.parseLong(arg.substring("fsync=".length()));
+					showInfo = fsync < 1;
+				} catch (NumberFormatException e) {
+					showInfo = true;
+				}
+			} else if (arg.startsWith("scanqueue=")) {
+				try {
+					scanQueue = Long.parseLong(arg.substring("scanqueue=".length())) * 1024 * 1024;
+					showInfo = scanQueue < 1;
+				} catch (NumberFormatException e) {
+					showInfo = true;
+				}
+			} else if (arg.startsWith("plan=")) {
+				plan = args[i].substring("plan=".length());
+				showInfo = plan.isEmpty();
+			} else if (arg.equals("noowner")) {
+				owner = false;
+			} else if (arg.equals("quiet")) {
+				quiet = true;
+			} else if (arg.startsWith("progress=")) {
+				try {
+					progress = Long.parseLong(arg.substring("progress=".length()));
+					showInfo = progress < 1;
+				} catch (NumberFormatException e) {
+					showInfo = true;
+				}
+			} else if (arg.equals("compress")) {
+				compression = Compression.best();
+			} else if (arg.startsWith("compress=")) {
+				compression = Compression.forName(arg.substring("compress=".length()));
+				showInfo = compression == null || !compression.isAvailable();
+			} else if (arg.startsWith("threads=")) {
+				try {
+					threads = Integer.parseInt(arg.substring("threads=".length()));
+					showInfo = threads < 1;
+				} catch (NumberFormatException e) {
+					showInfo = true;
+				}
+			} else {
+				showInfo = true;
+			}
 		}
 
-		if (args.length > 3 || args.length < 2) {
-			showInfo = true;
+		InetSocketAddress agent = null;
+		// A plan is of a local destination, which the plan being applied names
+		if (plan != null || apply) {
+			showInfo |= snapshot || daemon || args[1].toLowerCase().startsWith(REMOTE_PREFIX);
+			showInfo |= apply && (plan != null || mirror);
+		}
+		if (!showInfo && !apply && args[1].toLowerCase().startsWith(REMOTE_PREFIX)) {
+			agent = parseAgent(args[1].substring(REMOTE_PREFIX.length()));
+			// Options that change how the destination is written are agent side
+			showInfo = agent == null || mirror || snapshot || daemon;
 		}
+		// Destinations on this host are plain copies
+		showInfo |= compression != null && agent == null;
 
 		if (showInfo) {
 			System.out.println("");
@@ -33,25 +269,262 @@ public class Main {
 			System.out.println(
 					"THIS PROGRAM IS DISTRIBUTED UNDER GNU GPLv3 LICENCE. READ LICENSE.TXT FOR FURTHER DETAILS.");
 			System.out.println("");
-			System.out.println("   Usage for secure method (slow, uses MD5 hash)");
-			System.out.println("      java -jar FileSync.jar <source dir> <destination dir> [secure] [verbose]");
+			System.out.println("   Usage for secure method (slow, compares file hashes)");
+			System.out.println("      java -jar FileSync.jar <source dir> <destination dir> secure [hash=<algorithm>] [options]");
+			System.out.println("");
+			System.out.println("   Usage for compare method (reads both files, stops at the first difference)");
+			System.out.println("      java -jar FileSync.jar <source dir> <destination dir> compare [options]");
 			System.out.println("");
 			System.out.println("   Usage for fast method:");
-			System.out.println("      java -jar FileSync.jar <source dir> <destination dir>");
+			System.out.println("      java -jar FileSync.jar <source dir> <destination dir> [options]");
+			System.out.println("");
+			System.out.println("   Usage for a change plan, computed now and applied later:");
+			System.out.println("      java -jar FileSync.jar <source dir> <destination dir> plan=<file> [mirror] [secure|compare]");
+			System.out.println("      java -jar FileSync.jar " + APPLY_COMMAND + " <file> [secure|compare] [options]");
+			System.out.println("      plan= scans both folders and writes the files to copy, compare and delete");
+			System.out.println("      to a JSON-lines file with their sizes, without changing the destination.");
+			System.out.println("      " + APPLY_COMMAND + " copies and deletes them without scanning again, skipping files");
+			System.out.println("      already up to date or deleted from the source since the plan");
+			System.out.println("");
+			System.out.println("   Usage for a destination on another host:");
+			System.out.println("      java -jar FileSync.jar " + AGENT_COMMAND + " <destination dir> [port=N] [bind=ADDR] [hashcache]");
+			System.out.println("      java -jar FileSync.jar <source dir> filesync://<host>[:port] [options]");
+			System.out.println("      The agent compares the files on the destination host and receives the");
+			System.out.println("      ones that changed (default port " + SyncAgent.DEFAULT_PORT
+					+ "). It listens on localhost unless bind= is");
+			System.out.println("      given, and has no authentication: expose it only to trusted hosts, or");
+			System.out.println("      reach it through an SSH tunnel. mirror, snapshot and daemon are local only");
+			System.out.println("      compress sends file data compressed with zstd or lz4 when their libraries");
+			System.out.println("      are on the class path of both hosts, else deflate. compress=<algorithm>");
+			System.out.println("      picks one. Files whose first block does not compress are sent as is, and");
+			System.out.println("      the level goes down while compressing is slower than the network");
+			System.out.println("");
+			System.out.println("   Options:");
+			System.out.println("   verbose logs every processed file and directory");
+			System.out.println("   hash=<algorithm> is one of crc32c, xxhash64 (default), sha256 or md5");
+			System.out.println("   manifest keeps the state of synchronized files in the destination so next");
+			System.out.println("      runs only need to read the source attributes");
+			System.out.println("   mirror also deletes destination files and folders missing in the source");
+			System.out.println("      (the manifest is not used in this mode)");
+			System.out.println("   delta updates changed files rewriting only the blocks that differ");
+			System.out.println("      (delta=inplace overwrites the blocks directly in the destination file)");
+			System.out.println("   dedup stores each distinct content once in the destination, linking");
+			System.out.println("      identical files to it (hard links, or pointer files if unsupported)");
+			System.out.println("   hashcache keeps the hash of each hashed file in an extended attribute of");
+			System.out.println("      the file (or a .filesync.hashes file where unsupported), so the secure");
+			System.out.println("      method does not read files again while their size and date match");
+			System.out.println("   verify hashes every copy on the read and write side with hash=<algorithm>,");
+			System.out.println("      rejecting copies that do not match. With manifest the hash is kept,");
+			System.out.println("      so the next secure run only hashes the source of unchanged files");
+			System.out.println("   snapshot writes a new dated generation into the destination on every run,");
+			System.out.println("      hard-linking files unchanged since the previous one. keep=N deletes");
+			System.out.println("      the oldest generations beyond the last N");
+			System.out.println("   daemon keeps running after the first synchronization, watching the source");
+			System.out.println("      for changes and synchronizing only the changed paths. window=ms sets");
+			System.out.println("      how long changes are collected before each synchronization (default 500)");
+			System.out.println("   reflink clones files on copy-on-write file systems (Btrfs, XFS, ZFS)");
+			System.out.println("   sparse leaves holes in destination files instead of blocks of zeros");
+			System.out.println("   resume journals copies of files of 64 MB or more, so an interrupted copy");
+			System.out.println("      continues where it stopped on the next run");
+			System.out.println("   parallelcopy=MB copies files of MB megabytes or more as ranges written by");
+			System.out.println("      copythreads=N concurrent workers (default 4), for RAID and NVMe drives");
+			System.out.println("   largefile=MB copies files of MB megabytes or more (default 16) apart from");
+			System.out.println("      the small ones, largest first, by largethreads=N workers (default 2)");
+			System.out.println("   bandwidth=RATE limits the data read and written per second by all copies,");
+			System.out.println("      hashes and comparisons, in bytes or with a K, M or G suffix");
+			System.out.println("      (like bandwidth=20M)");
+			System.out.println("   iops=N limits the read and write requests per second of all copies,");
+			System.out.println("      hashes and comparisons");
+			System.out.println("   deviceworkers=N limits the files copied at the same time on each disk");
+			System.out.println("   control=<file> reads bandwidth= and iops= from a properties file, applying");
+			System.out.println("      its changes while running. The limits can also be changed through JMX");
+			System.out.println("   exclude=<pattern> skips files and folders matching a gitignore pattern,");
+			System.out.println("      like exclude=node_modules/ or exclude=*.tmp. include=<pattern> takes");
+			System.out.println("      back files excluded by an earlier pattern, and filter=<file> reads");
+			System.out.println("      patterns from a .gitignore style file. The last matching pattern wins");
+			System.out.println("   Copies get the modification date, permissions and, when allowed, the owner");
+			System.out.println("      of their source. noowner keeps them owned by the current user");
+			System.out.println("   fsync=ms makes copies durable, syncing every ms milliseconds the files");
+			System.out.println("      copied into each folder and then the folder once, instead of waiting");
+			System.out.println("      for the disk after every file");
+			System.out.println("   scanqueue=MB keeps the folders still to be scanned in at most MB megabytes,");
+			System.out.println("      spilling the rest to the temporary folder, to scan trees of tens of");
+			System.out.println("      millions of files in a small heap");
+			System.out.println("   quiet does not list every copied and deleted file");
+			System.out.println("   progress=SECONDS prints the files scanned, hashed and copied and the copy");
+			System.out.println("      rate at every interval, and stage latencies at the end. Counters and");
+			System.out.println("      queue depths are also published through JMX, and copies and hashes are");
+			System.out.println("      Flight Recorder events (com.adamiworks.filesync.FileCopy and FileHash)");
+			System.out.println("   threads=N sets how many directories are synchronized in parallel");
+			System.out.println("      (default is the number of available processors)");
 			System.out.println("");
 		} else {
-			FileSync fs = null;
-			
-			boolean secure = (args.length > 2 && args[2].toLowerCase().equals("secure"))
-					|| (args.length > 3 && args[3].toLowerCase().equals("secure"));
-			
-			boolean verbose = (args.length > 2 && args[2].toLowerCase().equals("verbose"))
-					|| (args.length > 3 && args[3].toLowerCase().equals("verbose"));
+			FileSync fs = new FileSync(secure, verbose, threads);
+			fs.setManifestEnabled(manifest);
+			fs.setDeltaMode(delta);
+			fs.setHashAlgorithm(hash);
+			fs.setCompareMethodOn(compare);
+			fs.setReflinkEnabled(reflink);
+			fs.setSparseEnabled(sparse);
+			fs.setResumeEnabled(resume);
+			fs.setDedupEnabled(dedup);
+			fs.setVerifyOnWrite(verify);
+			fs.setHashCacheEnabled(hashCache);
+			fs.setSnapshotRetention(keep);
+			fs.setParallelCopyThreshold(parallelCopy);
+			fs.setParallelCopyWorkers(copyThreads);
+			fs.setLargeFileSize(largeFile);
+			fs.setLargeFileWorkers(largeThreads);
+			fs.setFsyncInterval(fsync);
+			fs.setOwnerPreserved(owner);
+			fs.setScanQueueMemory(scanQueue);
+			fs.setCompression(compression);
+			fs.setListFiles(!quiet);
+			fs.getMetrics().registerMBean();
+			if (!rules.isEmpty()) {
+				fs.setFilter(PathFilter.compile(rules));
+			}
+
+			if (bandwidth > 0 || iops > 0 || deviceWorkers > 0 || control != null) {
+				IoThrottle throttle = new IoThrottle(deviceWorkers);
+				throttle.setBandwidthLimit(bandwidth);
+				throttle.setIopsLimit(iops);
+				throttle.registerMBean();
+				if (control != null) {
+					new ThrottleControlFile(Paths.get(control), throttle).start();
+				}
+				fs.setThrottle(throttle);
+			}
+
+			ProgressReporter reporter = null;
+			if (progress > 0) {
+				reporter = new ProgressReporter(fs.getMetrics(), progress);
+				reporter.start();
+			}
+
+			if (daemon) {
+				try (SyncDaemon syncDaemon = new SyncDaemon(fs, Paths.get(args[0]), Paths.get(args[1]), mirror)) {
+					syncDaemon.setCoalesceWindow(window);
+					syncDaemon.run();
+				} catch (IOException e) {
+					Logger.getLogger(Main.class.getName()).log(Level.SEVERE, "Cannot watch " + args[0], e);
+				}
+				return;
+			}
 
-			fs = new FileSync(secure, verbose);
+			if (plan != null) {
+				fs.planFolder(args[0], args[1], plan, mirror);
+			} else if (apply) {
+				fs.applyPlan(args[1]);
+			} else if (agent != null) {
+				fs.syncRemote(args[0], agent);
+			} else if (snapshot) {
+				fs.snapshotFolder(args[0], args[1]);
+			} else if (mirror) {
+				fs.mirrorFolder(args[0], args[1]);
+			} else {
+				fs.syncFolder(args[0], args[1]);
+			}
+
+			if (reporter != null) {
+				reporter.stop();
+				System.out.println(fs.getMetrics().summary());
+				System.out.println(fs.getMetrics().latencySummary());
+			}
+			// A plan prints what would be synchronized instead
+			if (plan == null) {
+				fs.showFileCount(true);
+			}
+		}
+	}
+
+	/**
+	 * @param arg
+	 *            the first argument
+	 * @param command
+	 * @return true if arg is the command and does not name an existing
+	 *         folder, which would rather be the source of a synchronization
+	 */
+	private static boolean isCommand(String arg, String command) {
+		return arg.equalsIgnoreCase(command) && !Files.isDirectory(Paths.get(arg));
+	}
+
+	/**
+	 * Serve a destination folder to remote clients, until the process is
+	 * stopped.
+	 * 
+	 * @return false if the arguments are invalid
+	 */
+	private static boolean runAgent(String[] args) {
+		int port = SyncAgent.DEFAULT_PORT;
+		String bind = "localhost";
+		boolean hashCache = false;
+
+		for (int i = 2; i < args.length; i++) {
+			String arg = args[i].toLowerCase();
+
+			if (arg.startsWith("port=")) {
+				try {
+					port = Integer.parseInt(arg.substring("port=".length()));
+				} catch (NumberFormatException e) {
+					return false;
+				}
+				if (port < 0 || port > 65535) {
+					return false;
+				}
+			} else if (arg.startsWith("bind=")) {
+				bind = args[i].substring("bind=".length());
+			} else if (arg.equals("hashcache")) {
+				hashCache = true;
+			} else {
+				return false;
+			}
+		}
+
+		try (SyncAgent syncAgent = new SyncAgent(Paths.get(args[1]), new InetSocketAddress(bind, port))) {
+			if (hashCache) {
+				syncAgent.setHashCache(new HashCache());
+			}
+			syncAgent.run();
+		} catch (IOException e) {
+			Logger.getLogger(Main.class.getName()).log(Level.SEVERE, "Cannot serve " + args[1], e);
+		}
+		return true;
+	}
+
+	/**
+	 * @param address
+	 *            host[:port]
+	 * @return the address, or null if invalid
+	 */
+	private static InetSocketAddress parseAgent(String address) {
+		String host = address;
+		int port = SyncAgent.DEFAULT_PORT;
+
+		if (host.endsWith("/")) {
+			host = host.substring(0, host.length() - 1);
+		}
+		int colon = host.lastIndexOf(':');
+		if (colon >= 0 && host.indexOf(']') < colon) {
+			try {
+				port = Integer.parseInt(host.substring(colon + 1));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+			host = host.substring(0, colon);
+		}
+		if (host.startsWith("[") && host.endsWith("]")) {
+			host = host.substring(1, host.length() - 1);
+		}
+		if (host.isEmpty() || port < 1 || port > 65535) {
+			return null;
+		}
 
-			fs.syncFolder(args[0], args[1]);
-			fs.showFileCount(true);
+		InetSocketAddress agent = new InetSocketAddress(host, port);
+		if (agent.isUnresolved()) {
+			Logger.getLogger(Main.class.getName()).log(Level.SEVERE, "Unknown host " + host);
+			return null;
 		}
+		return agent;
 	}
 }
@@ -0,0 +1,61 @@
+package com.adamiworks.filesync.compress;
+
+/**
+ * Chooses the compression level from where the sender spends its time. While
+ * it mostly waits for compressed blocks the CPU is the bottleneck and the
+ * level goes down; while it mostly waits for the network to take the data
+ * there is CPU to spare and the level goes up again, up to the maximum given.
+ *
+ * @author Tiago J. Adami
+ */
+final class AdaptiveLevel {
+
+	/**
+	 * Blocks between two decisions.
+	 */
+	private static final int WINDOW = 16;
+
+	private final int min;
+	private final int max;
+	private volatile int level;
+	private long compressNanos;
+	private long writeNanos;
+	private int blocks;
+
+	AdaptiveLevel(int min, int max, int initial) {
+		this.min = min;
+		this.max = max;
+		this.level = Math.max(min, Math.min(max, initial));
+	}
+
+	/**
+	 * @return the level for the next blocks
+	 */
+	int level() {
+		return level;
+	}
+
+	/**
+	 * @param compressNanos
+	 *            time the sender waited for a block to be compressed
+	 * @param writeNanos
+	 *            time the sender waited to write it to the network
+	 */
+	synchronized void record(long compressNanos, long writeNanos) {
+		this.compressNanos += compressNanos;
+		this.writeNanos += writeNanos;
+		if (++blocks < WINDOW) {
+			return;
+		}
+
+		if (this.compressNanos > this.writeNanos * 3 / 2 && level > min) {
+			level--;
+		} else if (this.writeNanos > this.compressNanos * 3 && level < max) {
+			level++;
+		}
+		this.compressNanos = 0;
+		this.writeNanos = 0;
+		blocks = 0;
+	}
+
+}
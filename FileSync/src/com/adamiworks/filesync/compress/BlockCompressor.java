@@ -0,0 +1,325 @@
+package com.adamiworks.filesync.compress;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.adamiworks.filesync.throttle.IoThrottle;
+import com.adamiworks.filesync.util.DaemonThreadFactory;
+
+/**
+ * Streams files as independently compressed blocks, read back by a
+ * {@link BlockDecompressor}. Every block is a header of one kind byte and the
+ * raw and stored lengths, followed by the stored bytes:
+ *
+ * <pre>
+ * kind (RAW or COMPRESSED), raw length, stored length, stored bytes
+ * </pre>
+ *
+ * The first block of every file is compressed as a sample. Files whose sample
+ * does not shrink by at least 5%, like archives, media or encrypted files,
+ * are sent raw with {@link FileChannel#transferTo}, so no CPU is spent on
+ * them. Blocks of larger files are compressed by a pool of threads while the
+ * sending thread reads the next ones and writes the finished ones in order.
+ * The level adapts to the speed of the network, see {@link AdaptiveLevel}.<BR>
+ * <BR>
+ * An instance is used by one sending thread at a time.
+ *
+ * @author Tiago J. Adami
+ */
+public final class BlockCompressor implements Closeable {
+
+	static final int BLOCK_SIZE = 256 * 1024;
+	static final int HEADER_SIZE = 9;
+	static final byte RAW = 0;
+	static final byte COMPRESSED = 1;
+
+	/**
+	 * Files smaller than this are sent raw, their headers would take most of
+	 * the saving.
+	 */
+	private static final int MIN_FILE_SIZE = 512;
+
+	private final Compression compression;
+	private final AdaptiveLevel level;
+	private final ExecutorService executor;
+	private final int window;
+	private final ArrayDeque<Block> free = new ArrayDeque<Block>();
+	private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+	private volatile long bytesIn;
+	private volatile long bytesOut;
+	private volatile long incompressibleFiles;
+
+	/**
+	 * @param compression
+	 *            an available algorithm
+	 * @param threads
+	 *            threads compressing the blocks of a file
+	 */
+	public BlockCompressor(Compression compression, int threads) {
+		if (!compression.isAvailable()) {
+			throw new IllegalArgumentException(compression.getName() + " is not available");
+		}
+		this.compression = compression;
+		this.level = new AdaptiveLevel(compression.getMinLevel(), compression.getDefaultLevel(),
+				compression.getDefaultLevel());
+		this.executor = threads > 1
+				? Executors.newFixedThreadPool(threads, new DaemonThreadFactory("BlockCompressor")) : null;
+		this.window = threads * 2;
+	}
+
+	public Compression getCompression() {
+		return compression;
+	}
+
+	/**
+	 * @return bytes of files sent
+	 */
+	public long getBytesIn() {
+		return bytesIn;
+	}
+
+	/**
+	 * @return bytes written to the channel for them, headers included
+	 */
+	public long getBytesOut() {
+		return bytesOut;
+	}
+
+	/**
+	 * @return number of files sent raw because their sample did not compress
+	 */
+	public long getIncompressibleFiles() {
+		return incompressibleFiles;
+	}
+
+	/**
+	 * @return the level of the next blocks
+	 */
+	public int getLevel() {
+		return level.level();
+	}
+
+	/**
+	 * Send length bytes of a file. If the file ends early it is padded with
+	 * zeros, so the receiver always gets the announced length.
+	 *
+	 * @param in
+	 *            the file
+	 * @param length
+	 *            bytes to send
+	 * @param out
+	 *            the channel, in blocking mode
+	 * @param throttle
+	 *            limits the bytes read from the file, or null
+	 * @return true if the whole file was sent
+	 * @throws IOException
+	 */
+	public boolean send(FileChannel in, long length, GatheringByteChannel out, IoThrottle throttle)
+			throws IOException {
+		if (length < MIN_FILE_SIZE) {
+			return sendRaw(in, 0, length, out, throttle);
+		}
+
+		Block sample = take();
+		boolean complete = sample.read(in, 0, (int) Math.min(BLOCK_SIZE, length), throttle);
+		long start = System.nanoTime();
+		sample.compress(level.level());
+		long compressed = System.nanoTime();
+
+		if (sample.storedLength * 20L > sample.rawLength * 19L) {
+			incompressibleFiles++;
+			sample.storedLength = -1;
+			write(sample, out);
+			free.add(sample);
+			return sendRaw(in, sample.rawLength, length, out, throttle) && complete;
+		}
+		write(sample, out);
+		level.record(compressed - start, System.nanoTime() - compressed);
+		free.add(sample);
+
+		if (executor == null || length - sample.rawLength <= BLOCK_SIZE) {
+			return sendSequential(in, sample.rawLength, length, out, throttle) && complete;
+		}
+		return sendParallel(in, sample.rawLength, length, out, throttle) && complete;
+	}
+
+	private boolean sendSequential(FileChannel in, long position, long length, GatheringByteChannel out,
+			IoThrottle throttle) throws IOException {
+		boolean complete = true;
+		Block block = take();
+
+		while (position < length) {
+			complete &= block.read(in, position, (int) Math.min(BLOCK_SIZE, length - position), throttle);
+			position += block.rawLength;
+
+			long start = System.nanoTime();
+			block.compress(level.level());
+			long compressed = System.nanoTime();
+			write(block, out);
+			level.record(compressed - start, System.nanoTime() - compressed);
+		}
+		free.add(block);
+		return complete;
+	}
+
+	private boolean sendParallel(FileChannel in, long position, long length, GatheringByteChannel out,
+			IoThrottle throttle) throws IOException {
+		ArrayDeque<Future<Block>> pending = new ArrayDeque<Future<Block>>();
+		boolean complete = true;
+
+		try {
+			while (position < length || !pending.isEmpty()) {
+				while (position < length && pending.size() < window) {
+					final Block block = take();
+					complete &= block.read(in, position, (int) Math.min(BLOCK_SIZE, length - position), throttle);
+					position += block.rawLength;
+
+					final int blockLevel = level.level();
+					pending.add(executor.submit(() -> {
+						block.compress(blockLevel);
+						return block;
+					}));
+				}
+
+				long start = System.nanoTime();
+				Block block = pending.poll().get();
+				long compressed = System.nanoTime();
+				write(block, out);
+				level.record(compressed - start, System.nanoTime() - compressed);
+				free.add(block);
+			}
+			return complete;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while compressing", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Cannot compress", e.getCause());
+		} finally {
+			// Blocks still in use by the pool are left to the garbage collector
+			for (Future<Block> future : pending) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Send a range of a file as raw blocks, straight from the file channel.
+	 */
+	private boolean sendRaw(FileChannel in, long position, long length, GatheringByteChannel out,
+			IoThrottle throttle) throws IOException {
+		boolean complete = true;
+
+		while (position < length) {
+			int size = (int) Math.min(BLOCK_SIZE, length - position);
+			header(RAW, size, size);
+			writeFully(out, header);
+			if (throttle != null) {
+				throttle.acquire(size);
+			}
+
+			long sent = 0;
+			while (sent < size) {
+				long n = in.transferTo(position + sent, size - sent, out);
+				if (n <= 0) {
+					complete = false;
+					writeFully(out, ByteBuffer.allocate((int) (size - sent)));
+					break;
+				}
+				sent += n;
+			}
+			position += size;
+			bytesIn += size;
+			bytesOut += HEADER_SIZE + size;
+		}
+		return complete;
+	}
+
+	private void write(Block block, GatheringByteChannel out) throws IOException {
+		if (block.storedLength < 0 || block.storedLength >= block.rawLength) {
+			header(RAW, block.rawLength, block.rawLength);
+			writeFully(out, header, ByteBuffer.wrap(block.raw, 0, block.rawLength));
+			bytesOut += HEADER_SIZE + block.rawLength;
+		} else {
+			header(COMPRESSED, block.rawLength, block.storedLength);
+			writeFully(out, header, ByteBuffer.wrap(block.stored, 0, block.storedLength));
+			bytesOut += HEADER_SIZE + block.storedLength;
+		}
+		bytesIn += block.rawLength;
+	}
+
+	private void header(byte kind, int rawLength, int storedLength) {
+		header.clear();
+		header.put(kind).putInt(rawLength).putInt(storedLength);
+		header.flip();
+	}
+
+	private static void writeFully(GatheringByteChannel out, ByteBuffer... buffers) throws IOException {
+		ByteBuffer last = buffers[buffers.length - 1];
+		while (last.hasRemaining()) {
+			out.write(buffers);
+		}
+	}
+
+	private Block take() {
+		Block block = free.poll();
+		return block == null ? new Block(compression.maxCompressedLength(BLOCK_SIZE)) : block;
+	}
+
+	@Override
+	public void close() {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * A block read from a file and its compressed form.
+	 */
+	private final class Block {
+
+		private final byte[] raw = new byte[BLOCK_SIZE];
+		private final byte[] stored;
+		private int rawLength;
+		private int storedLength;
+
+		private Block(int maxStoredLength) {
+			this.stored = new byte[maxStoredLength];
+		}
+
+		/**
+		 * @return false if the file ended early and the block was padded
+		 */
+		private boolean read(FileChannel in, long position, int length, IoThrottle throttle) throws IOException {
+			if (throttle != null) {
+				throttle.acquire(length);
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(raw, 0, length);
+			while (buffer.hasRemaining()) {
+				if (in.read(buffer, position + buffer.position()) < 0) {
+					Arrays.fill(raw, buffer.position(), length, (byte) 0);
+					rawLength = length;
+					return false;
+				}
+			}
+			rawLength = length;
+			return true;
+		}
+
+		private void compress(int level) throws IOException {
+			storedLength = compression.compress(raw, rawLength, stored, level);
+		}
+	}
+
+}
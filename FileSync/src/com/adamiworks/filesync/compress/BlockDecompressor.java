@@ -0,0 +1,135 @@
+package com.adamiworks.filesync.compress;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Writes the blocks sent by a {@link BlockCompressor} to a file. Raw blocks
+ * go straight from the channel to the file with
+ * {@link FileChannel#transferFrom}. Reads never go past the last block, so
+ * the channel can carry other messages after it.<BR>
+ * <BR>
+ * An instance is used by one receiving thread at a time.
+ *
+ * @author Tiago J. Adami
+ */
+public final class BlockDecompressor {
+
+	private final Compression compression;
+	private final ByteBuffer header = ByteBuffer.allocate(BlockCompressor.HEADER_SIZE);
+	private final byte[] stored;
+	private final byte[] raw = new byte[BlockCompressor.BLOCK_SIZE];
+	private int rawLength;
+	private int storedLength;
+
+	/**
+	 * @param compression
+	 *            an available algorithm
+	 */
+	public BlockDecompressor(Compression compression) {
+		if (!compression.isAvailable()) {
+			throw new IllegalArgumentException(compression.getName() + " is not available");
+		}
+		this.compression = compression;
+		this.stored = new byte[compression.maxCompressedLength(BlockCompressor.BLOCK_SIZE)];
+	}
+
+	/**
+	 * Receive the blocks of a file.
+	 *
+	 * @param in
+	 *            the channel, in blocking mode
+	 * @param out
+	 *            the file
+	 * @param length
+	 *            bytes of the file
+	 * @throws IOException
+	 *             if a block is corrupt or the channel is closed
+	 */
+	public void receive(ReadableByteChannel in, FileChannel out, long length) throws IOException {
+		long position = 0;
+
+		while (position < length) {
+			byte kind = this.nextBlock(in, position, length);
+
+			if (kind == BlockCompressor.RAW) {
+				long received = 0;
+				while (received < rawLength) {
+					long n = out.transferFrom(in, position + received, rawLength - received);
+					if (n <= 0) {
+						throw new EOFException("Connection closed during a file transfer");
+					}
+					received += n;
+				}
+			} else {
+				readFully(in, ByteBuffer.wrap(stored, 0, storedLength));
+				compression.decompress(stored, storedLength, raw, rawLength);
+
+				ByteBuffer data = ByteBuffer.wrap(raw, 0, rawLength);
+				while (data.hasRemaining()) {
+					out.write(data, position + data.position());
+				}
+			}
+			position += rawLength;
+		}
+	}
+
+	/**
+	 * Read the blocks of a file without decompressing or writing them, to
+	 * throw a file away.
+	 *
+	 * @param in
+	 *            the channel, in blocking mode
+	 * @param length
+	 *            bytes of the file
+	 * @throws IOException
+	 *             if a block is malformed or the channel is closed
+	 */
+	public void skip(ReadableByteChannel in, long length) throws IOException {
+		long position = 0;
+
+		while (position < length) {
+			this.nextBlock(in, position, length);
+			readFully(in, ByteBuffer.wrap(stored, 0, storedLength));
+			position += rawLength;
+		}
+	}
+
+	/**
+	 * Read and check the header of the next block, leaving its lengths in
+	 * {@link #rawLength} and {@link #storedLength}.
+	 *
+	 * @return the kind of block
+	 */
+	private byte nextBlock(ReadableByteChannel in, long position, long length) throws IOException {
+		header.clear();
+		readFully(in, header);
+		header.flip();
+		byte kind = header.get();
+		rawLength = header.getInt();
+		storedLength = header.getInt();
+
+		if (rawLength <= 0 || rawLength > BlockCompressor.BLOCK_SIZE || rawLength > length - position) {
+			throw new IOException("Block of " + rawLength + " bytes at " + position + " of " + length);
+		}
+		if (kind == BlockCompressor.RAW && storedLength == rawLength) {
+			return kind;
+		}
+		if (kind == BlockCompressor.COMPRESSED && storedLength > 0 && storedLength <= stored.length) {
+			return kind;
+		}
+		throw new IOException("Malformed block of kind " + kind + " at " + position);
+	}
+
+	private static void readFully(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (in.read(buffer) < 0) {
+				throw new EOFException("Connection closed during a file transfer");
+			}
+		}
+	}
+
+}
@@ -0,0 +1,25 @@
+package com.adamiworks.filesync.compress;
+
+import java.io.IOException;
+
+/**
+ * Compresses independent blocks held in byte arrays. Implementations may be
+ * used by concurrent threads.
+ *
+ * @author Tiago J. Adami
+ */
+interface Codec {
+
+	int maxCompressedLength(int length);
+
+	/**
+	 * @return size of the compressed data written at the start of dst
+	 */
+	int compress(byte[] src, int length, byte[] dst, int level) throws IOException;
+
+	/**
+	 * Decompress exactly rawLength bytes to the start of dst.
+	 */
+	void decompress(byte[] src, int length, byte[] dst, int rawLength) throws IOException;
+
+}
@@ -0,0 +1,142 @@
+package com.adamiworks.filesync.compress;
+
+import java.io.IOException;
+
+/**
+ * Compression algorithms for file data sent over the network. Deflate is
+ * always available; LZ4 and Zstandard are used when lz4-java or zstd-jni are
+ * on the class path.
+ *
+ * @author Tiago J. Adami
+ */
+public enum Compression {
+
+	/**
+	 * The JDK zlib, slowest but available everywhere.
+	 */
+	DEFLATE("deflate", 1, 9, 6) {
+		@Override
+		Codec codec() {
+			return DeflateCodec.INSTANCE;
+		}
+	},
+
+	/**
+	 * Very fast with a lower ratio, for links of hundreds of megabits. Levels
+	 * above 1 use LZ4 HC.
+	 */
+	LZ4("lz4", 1, 12, 1) {
+		@Override
+		Codec codec() {
+			return Lz4Codec.INSTANCE;
+		}
+	},
+
+	/**
+	 * Ratio close to deflate at several times its speed.
+	 */
+	ZSTD("zstd", 1, 19, 3) {
+		@Override
+		Codec codec() {
+			return ZstdCodec.INSTANCE;
+		}
+	};
+
+	private final String name;
+	private final int minLevel;
+	private final int maxLevel;
+	private final int defaultLevel;
+
+	private Compression(String name, int minLevel, int maxLevel, int defaultLevel) {
+		this.name = name;
+		this.minLevel = minLevel;
+		this.maxLevel = maxLevel;
+		this.defaultLevel = defaultLevel;
+	}
+
+	/**
+	 * @return the implementation, or null if its library is missing
+	 */
+	abstract Codec codec();
+
+	/**
+	 * @return true if the library of the algorithm was found
+	 */
+	public boolean isAvailable() {
+		return codec() != null;
+	}
+
+	/**
+	 * @return the name sent to the agent and shown in messages
+	 */
+	public String getName() {
+		return name;
+	}
+
+	public int getMinLevel() {
+		return minLevel;
+	}
+
+	public int getMaxLevel() {
+		return maxLevel;
+	}
+
+	public int getDefaultLevel() {
+		return defaultLevel;
+	}
+
+	/**
+	 * @param length
+	 *            bytes to compress
+	 * @return the largest compressed size of that many bytes
+	 */
+	public int maxCompressedLength(int length) {
+		return codec().maxCompressedLength(length);
+	}
+
+	/**
+	 * @return size of the compressed data in dst
+	 * @throws IOException
+	 *             if the library fails
+	 */
+	public int compress(byte[] src, int length, byte[] dst, int level) throws IOException {
+		return codec().compress(src, length, dst, level);
+	}
+
+	/**
+	 * @param rawLength
+	 *            exact size of the data before compression
+	 * @throws IOException
+	 *             if the data is corrupt
+	 */
+	public void decompress(byte[] src, int length, byte[] dst, int rawLength) throws IOException {
+		codec().decompress(src, length, dst, rawLength);
+	}
+
+	/**
+	 * @return the fastest available algorithm with a good ratio: Zstandard,
+	 *         else LZ4, else deflate
+	 */
+	public static Compression best() {
+		if (ZSTD.isAvailable()) {
+			return ZSTD;
+		}
+		return LZ4.isAvailable() ? LZ4 : DEFLATE;
+	}
+
+	/**
+	 * Find an algorithm by its name or constant name, ignoring case.
+	 *
+	 * @param name
+	 * @return the algorithm or null if none matches
+	 */
+	public static Compression forName(String name) {
+		for (Compression c : values()) {
+			if (c.name.equalsIgnoreCase(name) || c.name().equalsIgnoreCase(name)) {
+				return c;
+			}
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,83 @@
+package com.adamiworks.filesync.compress;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Raw deflate blocks, without zlib headers. Each thread keeps its own
+ * {@link Deflater} and {@link Inflater}, so their native memory is allocated
+ * once.
+ *
+ * @author Tiago J. Adami
+ */
+final class DeflateCodec implements Codec {
+
+	static final DeflateCodec INSTANCE = new DeflateCodec();
+
+	private static final ThreadLocal<Deflater> DEFLATER = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		}
+	};
+
+	private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater(true);
+		}
+	};
+
+	private DeflateCodec() {
+	}
+
+	@Override
+	public int maxCompressedLength(int length) {
+		// The bound of zlib deflateBound(), with room for the block headers
+		return length + (length >> 12) + (length >> 14) + 64;
+	}
+
+	@Override
+	public int compress(byte[] src, int length, byte[] dst, int level) throws IOException {
+		Deflater deflater = DEFLATER.get();
+		deflater.reset();
+		deflater.setLevel(level);
+		deflater.setInput(src, 0, length);
+		deflater.finish();
+
+		int size = 0;
+		while (!deflater.finished()) {
+			if (size == dst.length) {
+				throw new IOException("Deflated block exceeds " + dst.length + " bytes");
+			}
+			size += deflater.deflate(dst, size, dst.length - size);
+		}
+		return size;
+	}
+
+	@Override
+	public void decompress(byte[] src, int length, byte[] dst, int rawLength) throws IOException {
+		Inflater inflater = INFLATER.get();
+		inflater.reset();
+		inflater.setInput(src, 0, length);
+
+		try {
+			int size = 0;
+			while (size < rawLength && !inflater.finished()) {
+				int n = inflater.inflate(dst, size, rawLength - size);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				size += n;
+			}
+			if (size != rawLength) {
+				throw new IOException("Deflated block holds " + size + " bytes instead of " + rawLength);
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt deflated block", e);
+		}
+	}
+
+}
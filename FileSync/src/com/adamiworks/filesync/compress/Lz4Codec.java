@@ -0,0 +1,106 @@
+package com.adamiworks.filesync.compress;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * LZ4 blocks through lz4-java (net.jpountz.lz4), found at run time so the
+ * library stays optional. Level 1 uses the fast compressor, higher levels the
+ * HC compressor of that level. Blocks are decoded with the safe decompressor,
+ * which checks every offset against the input it was given: they may come from
+ * a peer that is not trusted.
+ *
+ * @author Tiago J. Adami
+ */
+final class Lz4Codec implements Codec {
+
+	/**
+	 * The codec, or null if lz4-java is not on the class path.
+	 */
+	static final Lz4Codec INSTANCE;
+
+	static {
+		Lz4Codec codec;
+		try {
+			codec = new Lz4Codec();
+		} catch (Throwable e) {
+			codec = null;
+		}
+		INSTANCE = codec;
+	}
+
+	private final Object[] compressors = new Object[Compression.LZ4.getMaxLevel() + 1];
+	private final Object decompressor;
+	private final MethodHandle compress;
+	private final MethodHandle maxCompressedLength;
+	private final MethodHandle decompress;
+
+	private Lz4Codec() throws Throwable {
+		MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+		Class<?> factoryClass = Class.forName("net.jpountz.lz4.LZ4Factory");
+		Class<?> compressorClass = Class.forName("net.jpountz.lz4.LZ4Compressor");
+		Class<?> decompressorClass = Class.forName("net.jpountz.lz4.LZ4SafeDecompressor");
+
+		Object factory = lookup.findStatic(factoryClass, "fastestInstance", MethodType.methodType(factoryClass))
+				.invoke();
+		MethodHandle high = lookup.findVirtual(factoryClass, "highCompressor",
+				MethodType.methodType(compressorClass, int.class));
+
+		compressors[1] = lookup.findVirtual(factoryClass, "fastCompressor", MethodType.methodType(compressorClass))
+				.invoke(factory);
+		for (int level = 2; level < compressors.length; level++) {
+			compressors[level] = high.invoke(factory, level);
+		}
+		decompressor = lookup
+				.findVirtual(factoryClass, "safeDecompressor", MethodType.methodType(decompressorClass))
+				.invoke(factory);
+
+		compress = lookup.findVirtual(compressorClass, "compress", MethodType.methodType(int.class, byte[].class,
+				int.class, int.class, byte[].class, int.class, int.class));
+		maxCompressedLength = lookup.findVirtual(compressorClass, "maxCompressedLength",
+				MethodType.methodType(int.class, int.class));
+		decompress = lookup.findVirtual(decompressorClass, "decompress",
+				MethodType.methodType(int.class, byte[].class, int.class, int.class, byte[].class, int.class,
+						int.class));
+	}
+
+	@Override
+	public int maxCompressedLength(int length) {
+		try {
+			return (int) maxCompressedLength.invoke(compressors[1], length);
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public int compress(byte[] src, int length, byte[] dst, int level) throws IOException {
+		Object compressor = compressors[Math.max(1, Math.min(level, compressors.length - 1))];
+		try {
+			return (int) compress.invoke(compressor, src, 0, length, dst, 0, dst.length);
+		} catch (RuntimeException e) {
+			throw new IOException("LZ4 compression failed", e);
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public void decompress(byte[] src, int length, byte[] dst, int rawLength) throws IOException {
+		int written;
+		try {
+			written = (int) decompress.invoke(decompressor, src, 0, length, dst, 0, rawLength);
+		} catch (RuntimeException e) {
+			throw new IOException("Corrupt LZ4 block", e);
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+		if (written != rawLength) {
+			throw new IOException("LZ4 block of " + length + " bytes decoded to " + written + " bytes instead of "
+					+ rawLength);
+		}
+	}
+
+}
@@ -0,0 +1,96 @@
+package com.adamiworks.filesync.compress;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Zstandard frames through zstd-jni (com.github.luben.zstd), found at run time
+ * so the library stays optional.
+ *
+ * @author Tiago J. Adami
+ */
+final class ZstdCodec implements Codec {
+
+	/**
+	 * The codec, or null if zstd-jni is not on the class path.
+	 */
+	static final ZstdCodec INSTANCE;
+
+	static {
+		ZstdCodec codec;
+		try {
+			codec = new ZstdCodec();
+		} catch (Throwable e) {
+			codec = null;
+		}
+		INSTANCE = codec;
+	}
+
+	private final MethodHandle compress;
+	private final MethodHandle decompress;
+	private final MethodHandle compressBound;
+	private final MethodHandle isError;
+	private final MethodHandle getErrorName;
+
+	private ZstdCodec() throws Throwable {
+		MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+		Class<?> zstd = Class.forName("com.github.luben.zstd.Zstd");
+
+		compress = lookup.findStatic(zstd, "compressByteArray", MethodType.methodType(long.class, byte[].class,
+				int.class, int.class, byte[].class, int.class, int.class, int.class));
+		decompress = lookup.findStatic(zstd, "decompressByteArray", MethodType.methodType(long.class,
+				byte[].class, int.class, int.class, byte[].class, int.class, int.class));
+		compressBound = lookup.findStatic(zstd, "compressBound", MethodType.methodType(long.class, long.class));
+		isError = lookup.findStatic(zstd, "isError", MethodType.methodType(boolean.class, long.class));
+		getErrorName = lookup.findStatic(zstd, "getErrorName", MethodType.methodType(String.class, long.class));
+
+		// Loads the native library, failing here if it is missing
+		compressBound.invoke(1L);
+	}
+
+	@Override
+	public int maxCompressedLength(int length) {
+		try {
+			return (int) (long) compressBound.invoke((long) length);
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public int compress(byte[] src, int length, byte[] dst, int level) throws IOException {
+		try {
+			long size = (long) compress.invoke(dst, 0, dst.length, src, 0, length, level);
+			check(size, "Zstandard compression failed: ");
+			return (int) size;
+		} catch (IOException e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public void decompress(byte[] src, int length, byte[] dst, int rawLength) throws IOException {
+		try {
+			long size = (long) decompress.invoke(dst, 0, rawLength, src, 0, length);
+			check(size, "Corrupt Zstandard block: ");
+			if (size != rawLength) {
+				throw new IOException("Zstandard block holds " + size + " bytes instead of " + rawLength);
+			}
+		} catch (IOException e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void check(long result, String message) throws Throwable {
+		if ((boolean) isError.invoke(result)) {
+			throw new IOException(message + (String) getErrorName.invoke(result));
+		}
+	}
+
+}
@@ -0,0 +1,789 @@
+package com.adamiworks.filesync.copy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.adamiworks.filesync.hash.HashAlgorithm;
+import com.adamiworks.filesync.hash.Hasher;
+import com.adamiworks.filesync.metrics.SyncMetrics;
+import com.adamiworks.filesync.throttle.IoThrottle;
+import com.adamiworks.filesync.util.DaemonThreadFactory;
+import com.adamiworks.filesync.util.InternalFiles;
+
+/**
+ * Copies whole files with the cheapest method the platform offers:
+ * <ol>
+ * <li>a reflink clone made by GNU "cp --reflink=always", when enabled. On
+ * copy-on-write file systems (Btrfs, XFS, ZFS) no data is copied at all. Pairs
+ * of source and destination file stores that cannot clone are remembered and
+ * not tried again;</li>
+ * <li>a parallel copy of files above a threshold, when enabled, in which
+ * ranges of the file are copied by concurrent workers;</li>
+ * <li>a copy of large files in chunks recorded in a {@link CopyJournal}, when
+ * resumable copies are enabled, so an interrupted copy continues where it
+ * stopped;</li>
+ * <li>a sparse copy, when enabled, which skips blocks of zeros so holes in the
+ * source stay holes in the destination;</li>
+ * <li>a FileChannel.transferTo loop, which lets the kernel move the data
+ * (sendfile or copy_file_range on Linux) and resumes partial transfers.</li>
+ * </ol>
+ * Data is always written to a temporary file next to the destination, which
+ * is renamed over the destination only after the copy succeeded. A failed copy
+ * never leaves a half-written destination. The temporary file gets the times,
+ * permissions and owner of the source before the rename, see
+ * {@link MetadataApplier}, and with a {@link DeferredSync} the destination is
+ * made durable with the next batch of syncs. A verified copy also hashes the
+ * data on both sides while it is copied, see
+ * {@link #copyVerified(Path, Path, HashAlgorithm)}.<BR>
+ * <BR>
+ * With an {@link IoThrottle}, every read and write of data passes through its
+ * limits; reflink clones copy no data and are not throttled.<BR>
+ * <BR>
+ * Instances may be shared by concurrent threads.
+ *
+ * @author Tiago J. Adami
+ */
+public final class CopyEngine {
+
+	private static final long TRANSFER_CHUNK_SIZE = 64L * 1024 * 1024;
+	private static final long THROTTLED_CHUNK_SIZE = 1024 * 1024;
+	private static final int BUFFER_SIZE = 1024 * 1024;
+	private static final long RANGE_SIZE = 64L * 1024 * 1024;
+	private static final int SPARSE_BLOCK_SIZE = 4 * 1024;
+	private static final int MAX_CP_OUTPUT = 4 * 1024;
+
+	/**
+	 * Smaller files are copied again from the start when interrupted.
+	 */
+	public static final long RESUME_MIN_SIZE = RANGE_SIZE;
+
+	private static final ThreadLocal<ByteBuffer> BUFFER = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.nativeOrder());
+		}
+	};
+
+	private boolean reflinkEnabled;
+	private boolean sparseEnabled;
+	private long parallelThreshold = Long.MAX_VALUE;
+	private int parallelWorkers = 4;
+	private ExecutorService rangeExecutor;
+	private boolean resumeEnabled;
+	private IoThrottle throttle;
+	private volatile SyncMetrics metrics;
+	private final MetadataApplier metadata = new MetadataApplier();
+	private volatile DeferredSync deferredSync;
+	private volatile boolean cpAvailable = true;
+	private final Map<List<FileStore>, Boolean> reflinkUnsupported = new ConcurrentHashMap<List<FileStore>, Boolean>();
+
+	public boolean isReflinkEnabled() {
+		return reflinkEnabled;
+	}
+
+	/**
+	 * Try to clone files with "cp --reflink=always" before copying them.
+	 * Starting a process per file only pays off on copy-on-write file
+	 * systems, so it is disabled by default.
+	 *
+	 * @param reflinkEnabled
+	 */
+	public void setReflinkEnabled(boolean reflinkEnabled) {
+		this.reflinkEnabled = reflinkEnabled;
+	}
+
+	public boolean isSparseEnabled() {
+		return sparseEnabled;
+	}
+
+	/**
+	 * Do not write blocks of zeros, so sparse source files stay sparse. The
+	 * data passes through a buffer to be checked, so it is slower than a
+	 * kernel transfer for dense files.
+	 *
+	 * @param sparseEnabled
+	 */
+	public void setSparseEnabled(boolean sparseEnabled) {
+		this.sparseEnabled = sparseEnabled;
+	}
+
+	public long getParallelThreshold() {
+		return parallelThreshold;
+	}
+
+	/**
+	 * Files of this size or larger are split into ranges copied by concurrent
+	 * workers, which keeps the queues of RAID arrays and NVMe drives busy.
+	 * Disabled by default, as concurrent writes slow down spinning disks.
+	 *
+	 * @param parallelThreshold
+	 *            size in bytes, or Long.MAX_VALUE to copy every file with a
+	 *            single thread
+	 */
+	public void setParallelThreshold(long parallelThreshold) {
+		if (parallelThreshold < 1) {
+			throw new IllegalArgumentException("Parallel copy threshold must be greater than zero: "
+					+ parallelThreshold);
+		}
+		this.parallelThreshold = parallelThreshold;
+	}
+
+	public int getParallelWorkers() {
+		return parallelWorkers;
+	}
+
+	/**
+	 * @param parallelWorkers
+	 *            number of ranges copied at the same time, shared by all files
+	 *            being copied in parallel. Must be set before the first copy.
+	 */
+	public void setParallelWorkers(int parallelWorkers) {
+		if (parallelWorkers < 1) {
+			throw new IllegalArgumentException("Parallel copy workers must be greater than zero: "
+					+ parallelWorkers);
+		}
+		this.parallelWorkers = parallelWorkers;
+	}
+
+	public boolean isResumeEnabled() {
+		return resumeEnabled;
+	}
+
+	/**
+	 * Keep a {@link CopyJournal} of the chunks copied so far for files of
+	 * {@link #RESUME_MIN_SIZE} bytes or more. A failed copy keeps its
+	 * temporary file, and the next copy of the same source continues after
+	 * the chunks that are still intact.
+	 *
+	 * @param resumeEnabled
+	 */
+	public void setResumeEnabled(boolean resumeEnabled) {
+		this.resumeEnabled = resumeEnabled;
+	}
+
+	public IoThrottle getThrottle() {
+		return throttle;
+	}
+
+	/**
+	 * Limit the bandwidth and IOPS of the copies. Throttled transfers move at
+	 * most 1 MB at a time, so the limits are kept smoothly.
+	 *
+	 * @param throttle
+	 *            the limits, or null to copy at full speed
+	 */
+	public void setThrottle(IoThrottle throttle) {
+		this.throttle = throttle;
+	}
+
+	/**
+	 * @param metrics
+	 *            counts the attributes read by copies, or null
+	 */
+	public void setMetrics(SyncMetrics metrics) {
+		this.metrics = metrics;
+		metadata.setMetrics(metrics);
+	}
+
+	private void stat() {
+		SyncMetrics metrics = this.metrics;
+		if (metrics != null) {
+			metrics.stat();
+		}
+	}
+
+	public MetadataApplier getMetadataApplier() {
+		return metadata;
+	}
+
+	public DeferredSync getDeferredSync() {
+		return deferredSync;
+	}
+
+	/**
+	 * @param deferredSync
+	 *            syncs the copies in batches, or null to leave them to the
+	 *            operating system
+	 */
+	public void setDeferredSync(DeferredSync deferredSync) {
+		this.deferredSync = deferredSync;
+	}
+
+	/**
+	 * Give a file written without this engine, like a delta transfer, the
+	 * metadata of its source, and sync it like a copy.
+	 *
+	 * @param source
+	 * @param dest
+	 * @throws IOException
+	 *             if the times cannot be set
+	 */
+	public void finish(Path source, Path dest) throws IOException {
+		metadata.apply(source, dest);
+		written(dest);
+	}
+
+	private void written(Path dest) {
+		DeferredSync sync = deferredSync;
+		if (sync != null) {
+			sync.written(dest);
+		}
+	}
+
+	/**
+	 * @param dest
+	 * @return the temporary file a copy to dest is written to
+	 */
+	public static Path tempFile(Path dest) {
+		return dest.resolveSibling("." + dest.getFileName() + InternalFiles.TEMP_SUFFIX);
+	}
+
+	/**
+	 * Delete the temporary files that interrupted copies left in a folder.
+	 * Temporary files with a journal are kept for the copy to resume, and
+	 * journals without their temporary file are deleted. Call it before any
+	 * copy into the folder starts.
+	 *
+	 * @param directory
+	 * @param names
+	 *            names of the files in the folder, or at least of its
+	 *            temporary files
+	 * @return the number of files deleted
+	 */
+	public static int deleteStaleTempFiles(Path directory, Collection<String> names) {
+		int deleted = 0;
+
+		for (String name : names) {
+			String owner = InternalFiles.temporaryOwner(name, InternalFiles.TEMP_SUFFIX);
+			if (owner != null) {
+				if (names.contains("." + owner + InternalFiles.JOURNAL_SUFFIX)) {
+					continue;
+				}
+			} else if ((owner = InternalFiles.temporaryOwner(name, InternalFiles.JOURNAL_SUFFIX)) != null) {
+				if (names.contains("." + owner + InternalFiles.TEMP_SUFFIX)) {
+					continue;
+				}
+			} else if (InternalFiles.temporaryOwner(name, InternalFiles.DELTA_SUFFIX) == null) {
+				continue;
+			}
+
+			try {
+				if (Files.deleteIfExists(directory.resolve(name))) {
+					deleted++;
+				}
+			} catch (IOException e) {
+				Logger.getLogger(CopyEngine.class.getName()).log(Level.WARNING,
+						"Cannot delete " + directory.resolve(name), e);
+			}
+		}
+		return deleted;
+	}
+
+	/**
+	 * List a folder and delete its stale temporary files, see
+	 * {@link #deleteStaleTempFiles(Path, Collection)}.
+	 *
+	 * @param directory
+	 * @return the number of files deleted
+	 * @throws IOException
+	 *             if the folder cannot be listed
+	 */
+	public static int deleteStaleTempFiles(Path directory) throws IOException {
+		Set<String> names = new HashSet<String>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+				entry -> InternalFiles.isTemporary(entry.getFileName().toString()))) {
+			for (Path entry : stream) {
+				names.add(entry.getFileName().toString());
+			}
+		}
+		return names.isEmpty() ? 0 : deleteStaleTempFiles(directory, names);
+	}
+
+	/**
+	 * Copy source over dest.
+	 *
+	 * @param source
+	 * @param dest
+	 * @return the strategy that copied the file
+	 * @throws IOException
+	 *             if the copy failed. dest is left untouched.
+	 */
+	public CopyStrategy copy(Path source, Path dest) throws IOException {
+		Path temp = tempFile(dest);
+		CopyStrategy strategy;
+		long length = 0;
+		if (parallelThreshold != Long.MAX_VALUE || resumeEnabled) {
+			stat();
+			length = Files.size(source);
+		}
+		boolean parallel = parallelThreshold != Long.MAX_VALUE && parallelWorkers > 1 && length >= parallelThreshold;
+		boolean resumable = resumeEnabled && length >= RESUME_MIN_SIZE;
+
+		try {
+			if (reflinkEnabled && reflink(source, temp)) {
+				strategy = CopyStrategy.REFLINK;
+			} else if (parallel || resumable) {
+				copyRanges(source, temp, dest, parallel, resumable);
+				strategy = parallel ? CopyStrategy.PARALLEL : CopyStrategy.RESUMABLE;
+			} else if (sparseEnabled) {
+				copySparse(source, temp);
+				strategy = CopyStrategy.SPARSE;
+			} else {
+				transfer(source, temp);
+				strategy = CopyStrategy.TRANSFER;
+			}
+			metadata.apply(source, temp);
+		} catch (IOException e) {
+			// The journal needs the temporary file to resume the copy
+			if (!resumable) {
+				Files.deleteIfExists(temp);
+			}
+			throw e;
+		}
+
+		replace(temp, dest);
+		written(dest);
+
+		if (resumable) {
+			Files.deleteIfExists(CopyJournal.journalFile(dest));
+		}
+
+		return strategy;
+	}
+
+	/**
+	 * Copy source over dest, hashing the data read from the source and the
+	 * data read back from the destination after it was written. The copy is
+	 * rejected if both hashes differ, so no second pass over the files is
+	 * needed to trust it.<BR>
+	 * <BR>
+	 * Data is always streamed through buffers: reflink, parallel, resumable
+	 * and sparse copies are not used. The data is read back from the page
+	 * cache, which catches corrupted buffers, short writes and file system
+	 * errors but does not prove the data reached the device.
+	 *
+	 * @param source
+	 * @param dest
+	 * @param algorithm
+	 * @return the hash of the copied content
+	 * @throws IOException
+	 *             if the copy failed or could not be verified. dest is left
+	 *             untouched.
+	 */
+	public byte[] copyVerified(Path source, Path dest, HashAlgorithm algorithm) throws IOException {
+		Path temp = tempFile(dest);
+		byte[] hash;
+
+		try {
+			try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+					FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+							StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				hash = VerifiedTransfer.copy(in, out, source, throttle, algorithm);
+			}
+			metadata.apply(source, temp);
+		} catch (IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+
+		replace(temp, dest);
+		written(dest);
+		return hash;
+	}
+
+	private static void replace(Path temp, Path dest) throws IOException {
+		try {
+			Files.move(temp, dest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp, dest, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private boolean reflink(Path source, Path temp) throws IOException {
+		if (!cpAvailable) {
+			return false;
+		}
+
+		List<FileStore> stores = Arrays.asList(Files.getFileStore(source),
+				Files.getFileStore(temp.toAbsolutePath().getParent()));
+		if (reflinkUnsupported.containsKey(stores)) {
+			return false;
+		}
+
+		Process process;
+		try {
+			ProcessBuilder builder = new ProcessBuilder("cp", "--reflink=always", source.toString(), temp.toString())
+					.redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.PIPE);
+			// The error is matched in English
+			builder.environment().put("LC_ALL", "C");
+			process = builder.start();
+		} catch (IOException e) {
+			Logger.getLogger(CopyEngine.class.getName()).log(Level.WARNING,
+					"Cannot run cp, reflink copies disabled", e);
+			cpAvailable = false;
+			return false;
+		}
+
+		String error;
+		try {
+			process.getOutputStream().close();
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1024];
+			int n;
+			while ((n = process.getInputStream().read(buffer)) >= 0) {
+				if (output.size() < MAX_CP_OUTPUT) {
+					output.write(buffer, 0, n);
+				}
+			}
+			if (process.waitFor() == 0) {
+				return true;
+			}
+			error = new String(output.toByteArray(), StandardCharsets.UTF_8).trim();
+		} catch (InterruptedException e) {
+			process.destroy();
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while cloning " + source, e);
+		}
+
+		if (isCloneUnsupported(error)) {
+			// A file system without copy-on-write, or two file systems.
+			// Cloning is not tried again between these stores.
+			reflinkUnsupported.put(stores, Boolean.TRUE);
+			Logger.getLogger(CopyEngine.class.getName()).log(Level.FINE,
+					"Reflink not supported from " + stores.get(0) + " to " + stores.get(1) + ", copying data: " + error);
+		} else {
+			// Like a full disk or a denied permission, which the copy of the
+			// data will most likely report too
+			Logger.getLogger(CopyEngine.class.getName()).log(Level.FINE,
+					"Cannot clone " + source + ", copying data: " + error);
+		}
+		return false;
+	}
+
+	/**
+	 * @param error
+	 *            the output of a failed "cp --reflink=always"
+	 * @return true if it failed with EXDEV or EOPNOTSUPP, or ENOTTY from file
+	 *         systems that do not know the clone ioctl at all
+	 */
+	private static boolean isCloneUnsupported(String error) {
+		return error.contains("Invalid cross-device link") || error.contains("Operation not supported")
+				|| error.contains("Inappropriate ioctl for device");
+	}
+
+	private void transfer(Path source, Path temp) throws IOException {
+		IoThrottle throttle = this.throttle;
+		long chunkSize = throttle == null ? TRANSFER_CHUNK_SIZE : THROTTLED_CHUNK_SIZE;
+
+		try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+			long length = in.size();
+			long position = 0;
+
+			// transferTo may move less than asked, so it is called until the
+			// whole file has been transferred
+			while (position < length) {
+				long chunk = Math.min(chunkSize, length - position);
+				if (throttle != null) {
+					throttle.acquire(chunk);
+				}
+				long n = in.transferTo(position, chunk, out);
+				if (n <= 0) {
+					throw new IOException("File changed while being copied: " + source);
+				}
+				position += n;
+			}
+		}
+	}
+
+	private void copySparse(Path source, Path temp) throws IOException {
+		try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+			long length = in.size();
+			copyRange(in, out, 0, length, true, null);
+			extend(out, length);
+		}
+	}
+
+	/**
+	 * Copy a large file as ranges of {@link #RANGE_SIZE} bytes, copied with
+	 * positional reads and writes so concurrent workers can share both
+	 * channels. The copy is rejected if the source changed while it was being
+	 * copied.
+	 *
+	 * @param parallel
+	 *            hand the ranges to the parallel copy workers instead of
+	 *            copying them in the calling thread
+	 * @param resumable
+	 *            keep a {@link CopyJournal} of the copied ranges, and skip the
+	 *            ranges a previous attempt already copied
+	 */
+	private void copyRanges(Path source, Path temp, Path dest, boolean parallel, boolean resumable)
+			throws IOException {
+		stat();
+		BasicFileAttributes before = Files.readAttributes(source, BasicFileAttributes.class);
+		final boolean sparse = sparseEnabled;
+		final CopyJournal journal = resumable
+				? CopyJournal.open(CopyJournal.journalFile(dest), temp, before, RANGE_SIZE) : null;
+
+		try {
+			// Chunks kept from a previous attempt must not be truncated
+			boolean reused = journal != null && journal.getCompletedChunks() > 0;
+			StandardOpenOption reuse = reused ? StandardOpenOption.READ : StandardOpenOption.TRUNCATE_EXISTING;
+
+			try (final FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+					final FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+							StandardOpenOption.WRITE, reuse)) {
+				long length = in.size();
+				// Chunks copied again over the data of a previous attempt must
+				// write their zeros, a hole would leave the old bytes there
+				final long stale = reused ? out.size() : 0;
+
+				if (reused) {
+					Logger.getLogger(CopyEngine.class.getName()).log(Level.INFO, "Resuming copy of " + source
+							+ ", " + journal.getCompletedChunks() + " chunks already copied");
+				}
+
+				ExecutorService executor = parallel ? rangeExecutor() : null;
+				List<Future<Void>> ranges = new ArrayList<Future<Void>>();
+				final AtomicBoolean failed = new AtomicBoolean();
+
+				try {
+					for (long start = 0; start < length; start += RANGE_SIZE) {
+						final int chunk = (int) (start / RANGE_SIZE);
+						final long from = start;
+						final long to = Math.min(length, start + RANGE_SIZE);
+
+						if (journal != null && journal.isCompleted(chunk)) {
+							continue;
+						}
+
+						Callable<Void> range = () -> {
+							// Once a range failed, the ones not started yet are
+							// skipped
+							if (failed.get()) {
+								return null;
+							}
+							Hasher hasher = journal == null ? null : CopyJournal.newHasher();
+							copyRange(in, out, from, to, sparse && from >= stale, hasher);
+							if (journal != null) {
+								journal.record(chunk, hasher.digest());
+							}
+							return null;
+						};
+
+						if (executor != null) {
+							ranges.add(executor.submit(range));
+						} else {
+							range.call();
+						}
+					}
+
+					for (Future<Void> range : ranges) {
+						get(range, source);
+					}
+				} catch (Exception e) {
+					// Interrupting a range would close the shared channels
+					// under the others, and a cancelled range may still be
+					// running: the channels and the journal are closed only
+					// after every range ended
+					failed.set(true);
+					awaitAll(ranges);
+					if (e instanceof IOException) {
+						throw (IOException) e;
+					}
+					throw new IOException("Cannot copy " + source, e);
+				}
+
+				if (out.size() > length) {
+					out.truncate(length);
+				}
+				extend(out, length);
+				if (out.size() != length) {
+					throw new IOException("Copy of " + source + " has " + out.size() + " bytes instead of "
+							+ length);
+				}
+			}
+
+			stat();
+			BasicFileAttributes after = Files.readAttributes(source, BasicFileAttributes.class);
+			if (after.size() != before.size()
+					|| after.lastModifiedTime().toMillis() != before.lastModifiedTime().toMillis()) {
+				throw new IOException("File changed while being copied: " + source);
+			}
+		} finally {
+			if (journal != null) {
+				journal.close();
+			}
+		}
+	}
+
+	private synchronized ExecutorService rangeExecutor() {
+		if (rangeExecutor == null) {
+			rangeExecutor = Executors.newFixedThreadPool(parallelWorkers, new DaemonThreadFactory("CopyEngine"));
+		}
+		return rangeExecutor;
+	}
+
+	/**
+	 * Wait until every range ended, ignoring how. An interrupt is kept for
+	 * the caller.
+	 */
+	private static void awaitAll(List<Future<Void>> ranges) {
+		boolean interrupted = false;
+		for (Future<Void> range : ranges) {
+			while (true) {
+				try {
+					range.get();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					break;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void get(Future<Void> range, Path source) throws IOException {
+		try {
+			range.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while copying " + source, e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Cannot copy " + source, e.getCause());
+		}
+	}
+
+	/**
+	 * Copy bytes from start to end of the source to the same offsets of the
+	 * destination through a buffer of the calling thread.
+	 *
+	 * @param sparse
+	 *            skip blocks of zeros, leaving holes
+	 * @param hasher
+	 *            receives all copied bytes, or null
+	 */
+	private void copyRange(FileChannel in, FileChannel out, long start, long end, boolean sparse,
+			Hasher hasher) throws IOException {
+		ByteBuffer buffer = BUFFER.get();
+		IoThrottle throttle = this.throttle;
+		long position = start;
+
+		while (position < end) {
+			buffer.clear();
+			buffer.limit((int) Math.min(BUFFER_SIZE, end - position));
+			if (throttle != null) {
+				throttle.acquire(buffer.limit());
+			}
+			while (buffer.hasRemaining()) {
+				if (in.read(buffer, position + buffer.position()) < 0) {
+					throw new IOException("File changed while being copied");
+				}
+			}
+			buffer.flip();
+
+			if (hasher != null) {
+				hasher.update(buffer.duplicate());
+			}
+
+			if (!sparse) {
+				write(out, buffer, 0, buffer.limit(), position);
+				position += buffer.limit();
+				continue;
+			}
+
+			// Write runs of non-zero blocks, seeking over zero blocks
+			int runStart = -1;
+			for (int offset = 0; offset < buffer.limit(); offset += SPARSE_BLOCK_SIZE) {
+				int blockEnd = Math.min(buffer.limit(), offset + SPARSE_BLOCK_SIZE);
+				boolean zero = isZero(buffer, offset, blockEnd);
+
+				if (!zero && runStart < 0) {
+					runStart = offset;
+				} else if (zero && runStart >= 0) {
+					write(out, buffer, runStart, offset, position);
+					runStart = -1;
+				}
+			}
+			if (runStart >= 0) {
+				write(out, buffer, runStart, buffer.limit(), position);
+			}
+
+			position += buffer.limit();
+		}
+	}
+
+	/**
+	 * A trailing hole only exists if the file reaches its length.
+	 */
+	private static void extend(FileChannel out, long length) throws IOException {
+		if (out.size() < length) {
+			out.write(ByteBuffer.allocate(1), length - 1);
+		}
+	}
+
+	private static boolean isZero(ByteBuffer buffer, int start, int end) {
+		int i = start;
+		for (; i + 8 <= end; i += 8) {
+			if (buffer.getLong(i) != 0) {
+				return false;
+			}
+		}
+		for (; i < end; i++) {
+			if (buffer.get(i) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void write(FileChannel out, ByteBuffer buffer, int start, int end, long position)
+			throws IOException {
+		ByteBuffer run = buffer.duplicate();
+		run.limit(end);
+		run.position(start);
+		long at = position + start;
+		while (run.hasRemaining()) {
+			at += out.write(run, at);
+		}
+	}
+
+}
@@ -0,0 +1,228 @@
+package com.adamiworks.filesync.copy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.adamiworks.filesync.hash.HashAlgorithm;
+import com.adamiworks.filesync.hash.Hasher;
+import com.adamiworks.filesync.util.InternalFiles;
+
+/**
+ * Write-ahead journal of a copy in progress, kept next to its temporary file
+ * so an interrupted copy can be resumed by the next run.<BR>
+ * <BR>
+ * The journal starts with the length and modification date of the source and
+ * the chunk size, followed by one record per chunk already written to the
+ * temporary file, with its index and xxHash64. Records are appended after a
+ * chunk is written, in any order. Nothing is forced to disk: when a journal is
+ * opened again, every recorded chunk is read back from the temporary file and
+ * hashed, and chunks that did not reach the disk are simply copied again.
+ *
+ * @author Tiago J. Adami
+ */
+final class CopyJournal implements Closeable {
+
+	private static final int MAGIC = 0x46534A4C;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 8;
+	private static final int HASH_SIZE = 8;
+	private static final int RECORD_SIZE = 4 + HASH_SIZE;
+	private static final HashAlgorithm ALGORITHM = HashAlgorithm.XXHASH64;
+	private static final int BUFFER_SIZE = 1024 * 1024;
+
+	private final FileChannel channel;
+	private final BitSet completed;
+
+	private CopyJournal(FileChannel channel, BitSet completed) {
+		this.channel = channel;
+		this.completed = completed;
+	}
+
+	/**
+	 * @param dest
+	 * @return the journal of copies to dest
+	 */
+	static Path journalFile(Path dest) {
+		return dest.resolveSibling("." + dest.getFileName() + InternalFiles.JOURNAL_SUFFIX);
+	}
+
+	/**
+	 * Open the journal of a copy, keeping the chunks of a previous attempt
+	 * that are still intact in the temporary file.
+	 *
+	 * @param file
+	 *            the journal
+	 * @param temp
+	 *            the temporary file the copy is written to
+	 * @param source
+	 *            attributes of the source file
+	 * @param chunkSize
+	 * @return a journal ready to record new chunks
+	 * @throws IOException
+	 */
+	static CopyJournal open(Path file, Path temp, BasicFileAttributes source, long chunkSize) throws IOException {
+		Map<Integer, byte[]> recorded = read(file, source, chunkSize);
+		BitSet completed = verify(temp, source.size(), chunkSize, recorded);
+
+		// The journal is written again with the verified chunks only
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(VERSION).putLong(source.size())
+					.putLong(source.lastModifiedTime().toMillis()).putLong(chunkSize).flip();
+			write(channel, header);
+
+			CopyJournal journal = new CopyJournal(channel, new BitSet());
+			for (int i = completed.nextSetBit(0); i >= 0; i = completed.nextSetBit(i + 1)) {
+				journal.record(i, recorded.get(i));
+			}
+			return journal;
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the chunk hashes recorded for the same source, or an empty map
+	 *         if there is no journal or it belongs to another version of the
+	 *         source
+	 */
+	private static Map<Integer, byte[]> read(Path file, BasicFileAttributes source, long chunkSize)
+			throws IOException {
+		Map<Integer, byte[]> recorded = new LinkedHashMap<Integer, byte[]>();
+		if (!Files.exists(file)) {
+			return recorded;
+		}
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(Integer.MAX_VALUE, channel.size()));
+			while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+				// Read the whole journal
+			}
+			buffer.flip();
+
+			if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+					|| buffer.getLong() != source.size()
+					|| buffer.getLong() != source.lastModifiedTime().toMillis() || buffer.getLong() != chunkSize) {
+				return recorded;
+			}
+
+			// A record cut by a crash is ignored
+			while (buffer.remaining() >= RECORD_SIZE) {
+				int chunk = buffer.getInt();
+				byte[] hash = new byte[HASH_SIZE];
+				buffer.get(hash);
+				recorded.put(chunk, hash);
+			}
+		}
+
+		return recorded;
+	}
+
+	/**
+	 * Hash the recorded chunks as they are in the temporary file.
+	 */
+	private static BitSet verify(Path temp, long length, long chunkSize, Map<Integer, byte[]> recorded)
+			throws IOException {
+		BitSet completed = new BitSet();
+		if (recorded.isEmpty() || !Files.exists(temp)) {
+			return completed;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.READ)) {
+			for (Map.Entry<Integer, byte[]> e : recorded.entrySet()) {
+				long start = e.getKey() * chunkSize;
+				long end = Math.min(length, start + chunkSize);
+				if (e.getKey() < 0 || start >= length || end > channel.size()) {
+					continue;
+				}
+
+				Hasher hasher = ALGORITHM.newHasher();
+				for (long position = start; position < end; position += buffer.limit()) {
+					buffer.clear().limit((int) Math.min(BUFFER_SIZE, end - position));
+					while (buffer.hasRemaining()) {
+						if (channel.read(buffer, position + buffer.position()) < 0) {
+							break;
+						}
+					}
+					buffer.flip();
+					hasher.update(buffer.duplicate());
+				}
+
+				if (Arrays.equals(hasher.digest(), e.getValue())) {
+					completed.set(e.getKey());
+				} else {
+					Logger.getLogger(CopyJournal.class.getName()).log(Level.FINE,
+							"Chunk " + e.getKey() + " of " + temp + " is damaged and will be copied again");
+				}
+			}
+		}
+
+		return completed;
+	}
+
+	/**
+	 * @return a hasher for the data of a chunk, whose digest is passed to
+	 *         {@link #record(int, byte[])}
+	 */
+	static Hasher newHasher() {
+		return ALGORITHM.newHasher();
+	}
+
+	/**
+	 * @param chunk
+	 * @return true if the chunk was already copied and verified
+	 */
+	synchronized boolean isCompleted(int chunk) {
+		return completed.get(chunk);
+	}
+
+	/**
+	 * @return number of chunks already copied
+	 */
+	synchronized int getCompletedChunks() {
+		return completed.cardinality();
+	}
+
+	/**
+	 * Append a chunk that was written to the temporary file.
+	 *
+	 * @param chunk
+	 * @param hash
+	 *            hash of the chunk data
+	 * @throws IOException
+	 */
+	synchronized void record(int chunk, byte[] hash) throws IOException {
+		ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+		record.putInt(chunk).put(hash).flip();
+		write(channel, record);
+		completed.set(chunk);
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+}
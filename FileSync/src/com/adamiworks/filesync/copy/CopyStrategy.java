@@ -0,0 +1,45 @@
+package com.adamiworks.filesync.copy;
+
+/**
+ * How a {@link CopyEngine} copied a file.
+ *
+ * @author Tiago J. Adami
+ */
+public enum CopyStrategy {
+
+	/**
+	 * The destination shares the source blocks (copy-on-write clone), no data
+	 * was copied.
+	 */
+	REFLINK,
+
+	/**
+	 * Data was moved by the kernel with FileChannel.transferTo, without
+	 * passing through the Java heap.
+	 */
+	TRANSFER,
+
+	/**
+	 * Ranges of a large file were copied by concurrent workers with
+	 * positional reads and writes.
+	 */
+	PARALLEL,
+
+	/**
+	 * A large file was copied in chunks recorded in a journal, continuing a
+	 * previous interrupted copy when there was one.
+	 */
+	RESUMABLE,
+
+	/**
+	 * Blocks of zeros were skipped, leaving holes in the destination.
+	 */
+	SPARSE,
+
+	/**
+	 * Data was streamed through buffers and hashed on both sides, and the
+	 * destination was checked against the source.
+	 */
+	VERIFIED
+
+}
@@ -0,0 +1,179 @@
+package com.adamiworks.filesync.copy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.adamiworks.filesync.metrics.Stage;
+import com.adamiworks.filesync.metrics.SyncMetrics;
+import com.adamiworks.filesync.util.DaemonThreadFactory;
+
+/**
+ * Makes written files durable in batches instead of one by one. Copies are
+ * renamed into place without waiting for the disk; a background thread
+ * collects them by directory and, at every interval, syncs the files of each
+ * directory and then the directory itself, once, so the renames of all its
+ * files are durable together. Files written long enough before their sync
+ * have usually been written back already, which makes the sync cheap, and no
+ * copying thread ever waits for the disk.<BR>
+ * <BR>
+ * A copy is renamed over its destination before its data is synced, so
+ * until the sync after it a crash may leave the destination with the old
+ * file, the new file, or the new file's name, length and times over data
+ * that never reached the disk, read back as zeros or nothing. File systems
+ * like ext4 write the data of a file renamed over another one first, but
+ * not all of them do, and such a file looks up to date to a quick
+ * comparison; after a crash, synchronize again comparing contents.
+ * {@link #flush()} syncs everything written so far.<BR>
+ * <BR>
+ * Instances may be shared by concurrent threads.
+ *
+ * @author Tiago J. Adami
+ */
+public final class DeferredSync implements Closeable {
+
+	/**
+	 * Pending files that trigger a sync before the interval ends, to bound
+	 * the memory and the data at risk.
+	 */
+	private static final int MAX_PENDING_FILES = 4096;
+
+	private final ScheduledExecutorService scheduler = Executors
+			.newSingleThreadScheduledExecutor(new DaemonThreadFactory("DeferredSync"));
+	private Map<Path, List<Path>> pending = new HashMap<Path, List<Path>>();
+	private int pendingFiles;
+	private final Object flushLock = new Object();
+	private final LongAdder filesSynced = new LongAdder();
+	private final LongAdder directoriesSynced = new LongAdder();
+	private volatile boolean directorySyncSupported = true;
+	private volatile SyncMetrics metrics;
+
+	/**
+	 * @param intervalMillis
+	 *            time between two batches
+	 */
+	public DeferredSync(long intervalMillis) {
+		scheduler.scheduleWithFixedDelay(this::flush, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public void setMetrics(SyncMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @return number of files synced
+	 */
+	public long getFilesSynced() {
+		return filesSynced.sum();
+	}
+
+	/**
+	 * @return number of directory syncs, one per directory of every batch
+	 */
+	public long getDirectoriesSynced() {
+		return directoriesSynced.sum();
+	}
+
+	public void resetCounts() {
+		filesSynced.reset();
+		directoriesSynced.reset();
+	}
+
+	/**
+	 * Sync a file, and the directory it was renamed into, with the next
+	 * batch.
+	 *
+	 * @param file
+	 */
+	public void written(Path file) {
+		Path directory = file.toAbsolutePath().getParent();
+		boolean full;
+
+		synchronized (this) {
+			List<Path> files = pending.get(directory);
+			if (files == null) {
+				files = new ArrayList<Path>();
+				pending.put(directory, files);
+			}
+			files.add(file);
+			full = ++pendingFiles == MAX_PENDING_FILES;
+		}
+
+		if (full) {
+			scheduler.execute(this::flush);
+		}
+	}
+
+	/**
+	 * Sync every file written so far and their directories. Blocks until they
+	 * are on the disk.
+	 */
+	public void flush() {
+		synchronized (flushLock) {
+			Map<Path, List<Path>> batch;
+			synchronized (this) {
+				batch = pending;
+				pending = new HashMap<Path, List<Path>>();
+				pendingFiles = 0;
+			}
+
+			for (Map.Entry<Path, List<Path>> entry : batch.entrySet()) {
+				long start = System.nanoTime();
+				for (Path file : entry.getValue()) {
+					sync(file);
+				}
+				filesSynced.add(entry.getValue().size());
+				if (directorySyncSupported) {
+					sync(entry.getKey());
+					directoriesSynced.increment();
+				}
+
+				SyncMetrics m = metrics;
+				if (m != null) {
+					m.record(Stage.FSYNC, System.nanoTime() - start);
+				}
+			}
+		}
+	}
+
+	private void sync(Path path) {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (NoSuchFileException e) {
+			// Replaced or deleted since it was written
+		} catch (IOException e) {
+			if (directorySyncSupported && Files.isDirectory(path)) {
+				// Directories cannot be opened on some platforms, like Windows
+				directorySyncSupported = false;
+				Logger.getLogger(DeferredSync.class.getName()).log(Level.FINE,
+						"Directories cannot be synced, only files are", e);
+			} else {
+				Logger.getLogger(DeferredSync.class.getName()).log(Level.WARNING, "Cannot sync " + path, e);
+			}
+		}
+	}
+
+	/**
+	 * Sync the pending files and stop the background thread.
+	 */
+	@Override
+	public void close() {
+		scheduler.shutdown();
+		flush();
+	}
+
+}
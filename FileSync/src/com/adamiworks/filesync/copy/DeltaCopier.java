@@ -0,0 +1,426 @@
+package com.adamiworks.filesync.copy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import com.adamiworks.filesync.metrics.SyncMetrics;
+import com.adamiworks.filesync.throttle.IoThrottle;
+import com.adamiworks.filesync.util.InternalFiles;
+
+/**
+ * Updates a destination file that already exists by writing only the data
+ * that changed in the source, in the same way rsync does.<BR>
+ * <BR>
+ * In {@link DeltaMode#ROLLING} mode the destination is split into blocks and a
+ * weak rolling checksum and a strong MD5 checksum are computed for each one.
+ * The source is scanned with a window of one block that is moved byte by byte,
+ * and the weak checksum is updated in constant time on every move. When it
+ * matches a destination block and the strong checksums agree, the block is
+ * taken from the destination, otherwise the source bytes are written as
+ * literals. The new file is built in a temporary file that replaces the
+ * destination at the end. Nothing is forced to disk: the caller makes the
+ * destination durable like any other copy, see
+ * {@link CopyEngine#finish(java.nio.file.Path, java.nio.file.Path)}.<BR>
+ * <BR>
+ * In {@link DeltaMode#IN_PLACE} mode blocks of both files at the same offset
+ * are compared directly and only the differing blocks are overwritten. With
+ * both files on local disks this is cheaper than computing checksums.<BR>
+ * <BR>
+ * Reads of both files pass through the {@link IoThrottle} given, if any.<BR>
+ * <BR>
+ * Instances are immutable and may be shared by concurrent threads.
+ *
+ * @author Tiago J. Adami
+ */
+public final class DeltaCopier {
+
+	/**
+	 * Smaller destination files are cheaper to copy in full.
+	 */
+	public static final long MIN_FILE_SIZE = 1024 * 1024;
+
+	private static final int MIN_BLOCK_SIZE = 4 * 1024;
+	private static final int MAX_BLOCK_SIZE = 128 * 1024;
+	private static final int BUFFER_SIZE = 1024 * 1024;
+	private static final int STRONG_LENGTH = 16;
+
+	private final DeltaMode mode;
+	private final IoThrottle throttle;
+	private final SyncMetrics metrics;
+
+	public DeltaCopier(DeltaMode mode) {
+		this(mode, null, null);
+	}
+
+	/**
+	 * @param mode
+	 * @param throttle
+	 *            limits the data read from both files, or null
+	 * @param metrics
+	 *            counts the attributes read, or null
+	 */
+	public DeltaCopier(DeltaMode mode, IoThrottle throttle, SyncMetrics metrics) {
+		this.mode = mode;
+		this.throttle = throttle;
+		this.metrics = metrics;
+	}
+
+	public DeltaMode getMode() {
+		return mode;
+	}
+
+	/**
+	 * Check if a delta transfer is worthwhile for a destination file.
+	 *
+	 * @param dest
+	 * @return
+	 */
+	public boolean accepts(File dest) {
+		if (metrics != null) {
+			metrics.stat();
+		}
+		try {
+			BasicFileAttributes attrs = Files.readAttributes(dest.toPath(), BasicFileAttributes.class);
+			return attrs.isRegularFile() && attrs.size() >= MIN_FILE_SIZE;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Make dest equal to source, reusing the data already in dest.
+	 *
+	 * @param source
+	 * @param dest
+	 *            an existing file
+	 * @return amount of bytes written and reused
+	 * @throws IOException
+	 *             on any I/O error. In {@link DeltaMode#ROLLING} mode dest is
+	 *             left untouched.
+	 */
+	public DeltaResult copy(File source, File dest) throws IOException {
+		if (mode == DeltaMode.IN_PLACE) {
+			return copyInPlace(source.toPath(), dest.toPath());
+		} else {
+			return copyRolling(source.toPath(), dest.toPath());
+		}
+	}
+
+	/**
+	 * Block size grows with the square root of the file, as rsync does, so
+	 * the number of blocks stays reasonable for huge files.
+	 */
+	static int blockSize(long length) {
+		int size = Integer.highestOneBit((int) Math.min(Integer.MAX_VALUE, (long) Math.sqrt(length)));
+		return Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+	}
+
+	private DeltaResult copyInPlace(Path source, Path dest) throws IOException {
+		long literal = 0;
+		long reused = 0;
+
+		try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(dest, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			long length = in.size();
+			long destLength = out.size();
+			ByteBuffer a = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			ByteBuffer b = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+			for (long position = 0; position < length; position += a.limit()) {
+				throttle(2L * Math.min(BUFFER_SIZE, length - position));
+				readFully(in, a, position, (int) Math.min(BUFFER_SIZE, length - position));
+				readFully(out, b, position, (int) Math.max(0, Math.min(a.limit(), destLength - position)));
+
+				// Compare and rewrite smaller blocks of the buffer, so a single
+				// changed byte does not rewrite the whole buffer
+				for (int offset = 0; offset < a.limit(); offset += MIN_BLOCK_SIZE) {
+					int blockEnd = Math.min(a.limit(), offset + MIN_BLOCK_SIZE);
+					ByteBuffer block = a.duplicate();
+					block.position(offset);
+					block.limit(blockEnd);
+
+					if (blockEnd <= b.limit()) {
+						ByteBuffer existing = b.duplicate();
+						existing.position(offset);
+						existing.limit(blockEnd);
+
+						if (block.equals(existing)) {
+							reused += blockEnd - offset;
+							continue;
+						}
+					}
+
+					writeFully(out, block, position + offset);
+					literal += blockEnd - offset;
+				}
+			}
+
+			if (destLength > length) {
+				out.truncate(length);
+			}
+		}
+
+		return new DeltaResult(literal, reused);
+	}
+
+	private DeltaResult copyRolling(Path source, Path dest) throws IOException {
+		Path temp = dest.resolveSibling("." + dest.getFileName() + InternalFiles.DELTA_SUFFIX);
+		long literal = 0;
+		long reused = 0;
+
+		try (FileChannel base = FileChannel.open(dest, StandardOpenOption.READ);
+				FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+			int blockSize = blockSize(base.size());
+			Signature signature = new Signature(base, blockSize, throttle);
+			MessageDigest md = newDigest();
+			byte[] strong = new byte[STRONG_LENGTH];
+
+			byte[] buf = new byte[Math.max(BUFFER_SIZE, blockSize * 4)];
+			int start = 0;
+			int end = 0;
+			int literalStart = 0;
+			boolean eof = false;
+			boolean rolling = false;
+			int a = 0;
+			int b = 0;
+
+			while (true) {
+				// Keep at least one byte after the window so it can roll
+				if (end - start <= blockSize && !eof) {
+					literal += write(out, buf, literalStart, start - literalStart);
+					System.arraycopy(buf, start, buf, 0, end - start);
+					end -= start;
+					start = 0;
+					literalStart = 0;
+
+					while (end < buf.length && !eof) {
+						int n = in.read(ByteBuffer.wrap(buf, end, buf.length - end));
+						if (n < 0) {
+							eof = true;
+						} else {
+							throttle(n);
+							end += n;
+						}
+					}
+					continue;
+				}
+
+				if (end - start < blockSize) {
+					break;
+				}
+
+				if (!rolling) {
+					a = 0;
+					b = 0;
+					for (int i = 0; i < blockSize; i++) {
+						int x = buf[start + i] & 0xff;
+						a += x;
+						b += (blockSize - i) * x;
+					}
+					a &= 0xffff;
+					b &= 0xffff;
+					rolling = true;
+				}
+
+				int match = -1;
+				int weak = a | (b << 16);
+				if (signature.mayContain(weak)) {
+					md.update(buf, start, blockSize);
+					try {
+						md.digest(strong, 0, STRONG_LENGTH);
+					} catch (DigestException e) {
+						throw new IOException(e);
+					}
+					match = signature.find(weak, strong);
+				}
+
+				if (match >= 0) {
+					literal += write(out, buf, literalStart, start - literalStart);
+					transferFully(base, (long) match * blockSize, blockSize, out);
+					reused += blockSize;
+					start += blockSize;
+					literalStart = start;
+					rolling = false;
+				} else if (end - start > blockSize) {
+					int x = buf[start] & 0xff;
+					int y = buf[start + blockSize] & 0xff;
+					a = (a - x + y) & 0xffff;
+					b = (b - blockSize * x + a) & 0xffff;
+					start++;
+				} else {
+					start++;
+					rolling = false;
+				}
+			}
+
+			literal += write(out, buf, literalStart, end - literalStart);
+		} catch (IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+
+		try {
+			Files.move(temp, dest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp, dest, StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		return new DeltaResult(literal, reused);
+	}
+
+	/**
+	 * Weak and strong checksums of all complete blocks of a file, indexed by
+	 * weak checksum in an open hash table with chaining.
+	 */
+	private static final class Signature {
+
+		private final int[] weak;
+		private final byte[] strong;
+		private final int[] table;
+		private final int[] next;
+		private final int mask;
+
+		private Signature(FileChannel channel, int blockSize, IoThrottle throttle) throws IOException {
+			long count = channel.size() / blockSize;
+			if (count > Integer.MAX_VALUE / STRONG_LENGTH) {
+				throw new IOException("File is too large for a delta transfer");
+			}
+
+			int blocks = (int) count;
+			weak = new int[blocks];
+			strong = new byte[blocks * STRONG_LENGTH];
+			next = new int[blocks];
+			table = new int[Math.max(16, Integer.highestOneBit(Math.max(1, blocks)) * 4)];
+			mask = table.length - 1;
+			Arrays.fill(table, -1);
+
+			MessageDigest md = newDigest();
+			ByteBuffer buffer = ByteBuffer.allocate(blockSize);
+			byte[] block = buffer.array();
+
+			for (int i = 0; i < blocks; i++) {
+				if (throttle != null) {
+					throttle.acquire(blockSize);
+				}
+				readFully(channel, buffer, (long) i * blockSize, blockSize);
+				int a = 0;
+				int b = 0;
+				for (int j = 0; j < blockSize; j++) {
+					int x = block[j] & 0xff;
+					a += x;
+					b += (blockSize - j) * x;
+				}
+				weak[i] = (a & 0xffff) | ((b & 0xffff) << 16);
+
+				md.update(block, 0, blockSize);
+				try {
+					md.digest(strong, i * STRONG_LENGTH, STRONG_LENGTH);
+				} catch (DigestException e) {
+					throw new IOException(e);
+				}
+
+				int slot = slot(weak[i]);
+				next[i] = table[slot];
+				table[slot] = i;
+			}
+		}
+
+		private int slot(int weak) {
+			return (weak ^ (weak >>> 15)) * 0x2c1b3c6d >>> 8 & mask;
+		}
+
+		private boolean mayContain(int w) {
+			for (int i = table[slot(w)]; i >= 0; i = next[i]) {
+				if (weak[i] == w) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private int find(int w, byte[] digest) {
+			for (int i = table[slot(w)]; i >= 0; i = next[i]) {
+				if (weak[i] == w && equals(i, digest)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		private boolean equals(int block, byte[] digest) {
+			int offset = block * STRONG_LENGTH;
+			for (int i = 0; i < STRONG_LENGTH; i++) {
+				if (strong[offset + i] != digest[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private void throttle(long bytes) throws IOException {
+		if (throttle != null) {
+			throttle.acquire(bytes);
+		}
+	}
+
+	private static MessageDigest newDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position, int length)
+			throws IOException {
+		buffer.clear().limit(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("File changed while being read");
+			}
+		}
+		buffer.flip();
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	private static int write(FileChannel channel, byte[] buf, int offset, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(buf, offset, length);
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		return length;
+	}
+
+	private static void transferFully(FileChannel from, long position, long count, FileChannel to)
+			throws IOException {
+		while (count > 0) {
+			long n = from.transferTo(position, count, to);
+			if (n <= 0) {
+				throw new IOException("File changed while being read");
+			}
+			position += n;
+			count -= n;
+		}
+	}
+
+}
@@ -0,0 +1,25 @@
+package com.adamiworks.filesync.copy;
+
+/**
+ * How {@link DeltaCopier} rewrites a changed destination file.
+ *
+ * @author Tiago J. Adami
+ */
+public enum DeltaMode {
+
+	/**
+	 * Search source data for blocks of the destination using rolling
+	 * checksums, so inserted or removed bytes do not invalidate the rest of
+	 * the file. The result is built in a temporary file and renamed over the
+	 * destination.
+	 */
+	ROLLING,
+
+	/**
+	 * Compare blocks at the same offset and overwrite only the blocks that
+	 * differ. Writes the least, but cannot detect shifted data and a failed
+	 * run leaves a partially updated destination.
+	 */
+	IN_PLACE
+
+}
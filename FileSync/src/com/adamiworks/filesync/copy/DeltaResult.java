@@ -0,0 +1,33 @@
+package com.adamiworks.filesync.copy;
+
+/**
+ * Amount of data written and reused by a delta transfer.
+ *
+ * @author Tiago J. Adami
+ */
+public final class DeltaResult {
+
+	private final long literalBytes;
+	private final long reusedBytes;
+
+	public DeltaResult(long literalBytes, long reusedBytes) {
+		this.literalBytes = literalBytes;
+		this.reusedBytes = reusedBytes;
+	}
+
+	/**
+	 * @return bytes taken from the source because no matching destination
+	 *         block was found
+	 */
+	public long getLiteralBytes() {
+		return literalBytes;
+	}
+
+	/**
+	 * @return bytes that did not need to be copied from the source
+	 */
+	public long getReusedBytes() {
+		return reusedBytes;
+	}
+
+}
@@ -0,0 +1,152 @@
+package com.adamiworks.filesync.copy;
+
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.adamiworks.filesync.metrics.SyncMetrics;
+
+/**
+ * Gives a copy the metadata of its source: modification and access times,
+ * POSIX permissions, and owner and group. The modification time is what the
+ * fast method compares, so a copy without it would be copied again on every
+ * run.<BR>
+ * <BR>
+ * Changing the owner needs privileges the process usually does not have.
+ * The first time it is refused, owners are no longer changed and the copies
+ * keep the user running the synchronization. Permissions are only copied on
+ * POSIX file systems, after the owner, whose change clears the setuid and
+ * setgid bits; the times are set last.<BR>
+ * <BR>
+ * Instances may be shared by concurrent threads.
+ *
+ * @author Tiago J. Adami
+ */
+public final class MetadataApplier {
+
+	private volatile boolean ownerEnabled = true;
+	private volatile boolean unixModeSupported = true;
+	private volatile SyncMetrics metrics;
+
+	public boolean isOwnerEnabled() {
+		return ownerEnabled;
+	}
+
+	/**
+	 * @param ownerEnabled
+	 *            false to leave copies owned by the user running the
+	 *            synchronization
+	 */
+	public void setOwnerEnabled(boolean ownerEnabled) {
+		this.ownerEnabled = ownerEnabled;
+	}
+
+	/**
+	 * @param metrics
+	 *            counts the attributes read, or null
+	 */
+	public void setMetrics(SyncMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	private void stat() {
+		SyncMetrics metrics = this.metrics;
+		if (metrics != null) {
+			metrics.stat();
+		}
+	}
+
+	/**
+	 * @param source
+	 * @param target
+	 *            the copy, usually the temporary file before it replaces the
+	 *            destination
+	 * @throws IOException
+	 *             if the times cannot be set. Failures to copy permissions and
+	 *             owners are logged.
+	 */
+	public void apply(Path source, Path target) throws IOException {
+		PosixFileAttributeView posix = Files.getFileAttributeView(target, PosixFileAttributeView.class);
+		BasicFileAttributes attrs;
+
+		if (posix != null) {
+			stat();
+			PosixFileAttributes posixAttrs = Files.readAttributes(source, PosixFileAttributes.class);
+			attrs = posixAttrs;
+
+			// Changing the owner clears the setuid and setgid bits, so the
+			// mode is set after it
+			if (ownerEnabled) {
+				this.applyOwner(posix, posixAttrs, target);
+			}
+			try {
+				this.applyMode(posix, source, posixAttrs, target);
+			} catch (IOException e) {
+				Logger.getLogger(MetadataApplier.class.getName()).log(Level.WARNING,
+						"Cannot set the permissions of " + target, e);
+			}
+		} else {
+			stat();
+			attrs = Files.readAttributes(source, BasicFileAttributes.class);
+		}
+
+		// Last, as some file systems touch the times when other attributes change
+		Files.getFileAttributeView(target, BasicFileAttributeView.class).setTimes(attrs.lastModifiedTime(),
+				attrs.lastAccessTime(), null);
+	}
+
+	/**
+	 * Set the permissions with the setuid, setgid and sticky bits, which
+	 * PosixFilePermission cannot express, where the "unix" attribute view is
+	 * available.
+	 */
+	private void applyMode(PosixFileAttributeView posix, Path source, PosixFileAttributes attrs, Path target)
+			throws IOException {
+		if (unixModeSupported) {
+			try {
+				stat();
+				Files.setAttribute(target, "unix:mode", Files.getAttribute(source, "unix:mode"));
+				return;
+			} catch (UnsupportedOperationException | IllegalArgumentException e) {
+				unixModeSupported = false;
+			}
+		}
+		posix.setPermissions(attrs.permissions());
+	}
+
+	private void applyOwner(PosixFileAttributeView posix, PosixFileAttributes source, Path target) {
+		try {
+			stat();
+			PosixFileAttributes current = posix.readAttributes();
+			if (!current.owner().equals(source.owner())) {
+				posix.setOwner(source.owner());
+			}
+			if (!current.group().equals(source.group())) {
+				posix.setGroup(source.group());
+			}
+		} catch (FileSystemException e) {
+			// EPERM, which comes without a more specific exception
+			disableOwner(target, e);
+		} catch (IOException e) {
+			Logger.getLogger(MetadataApplier.class.getName()).log(Level.WARNING,
+					"Cannot set the owner of " + target, e);
+		}
+	}
+
+	private void disableOwner(Path target, IOException e) {
+		if (ownerEnabled) {
+			ownerEnabled = false;
+			Logger.getLogger(MetadataApplier.class.getName()).log(Level.INFO,
+					"Not allowed to change the owner of " + target + ", copies keep the current user: "
+							+ e.getMessage());
+		}
+	}
+
+}
@@ -0,0 +1,253 @@
+package com.adamiworks.filesync.copy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.adamiworks.filesync.hash.HashAlgorithm;
+import com.adamiworks.filesync.hash.Hasher;
+import com.adamiworks.filesync.throttle.IoThrottle;
+import com.adamiworks.filesync.util.DaemonThreadFactory;
+
+/**
+ * Copies a file while hashing both what is read from the source and what the
+ * destination holds after each write, so a copy is verified without reading
+ * both files again.<BR>
+ * <BR>
+ * The copying thread reads and writes chunks; a helper thread hashes each
+ * chunk from the buffer it was read into, reads the same range back from the
+ * destination while it is still in the page cache and hashes it too. A few
+ * buffers circulate between both threads, so reading the next chunk overlaps
+ * with hashing the previous ones. Files of a single chunk are verified in the
+ * calling thread.
+ *
+ * @author Tiago J. Adami
+ */
+final class VerifiedTransfer {
+
+	private static final int BUFFER_SIZE = 1024 * 1024;
+	private static final int BUFFER_COUNT = 3;
+	private static final long POLL_MILLIS = 100;
+
+	/**
+	 * Buffers of a copying thread, lent to the helper thread during a copy.
+	 */
+	private static final ThreadLocal<ByteBuffer[]> BUFFERS = new ThreadLocal<ByteBuffer[]>() {
+		@Override
+		protected ByteBuffer[] initialValue() {
+			ByteBuffer[] buffers = new ByteBuffer[BUFFER_COUNT];
+			for (int i = 0; i < BUFFER_COUNT; i++) {
+				buffers[i] = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			}
+			return buffers;
+		}
+	};
+
+	private static final ThreadLocal<ByteBuffer> READ_BACK = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+	};
+
+	private static final ExecutorService EXECUTOR = Executors
+			.newCachedThreadPool(new DaemonThreadFactory("VerifiedTransfer"));
+
+	private static final Chunk END = new Chunk(null, -1);
+
+	private VerifiedTransfer() {
+	}
+
+	/**
+	 * @param in
+	 *            the source
+	 * @param out
+	 *            the destination, open for reading and writing
+	 * @param source
+	 *            path of the source, for error messages
+	 * @param throttle
+	 *            limits the copied chunks, or null
+	 * @param algorithm
+	 * @return the hash of the copied content
+	 * @throws IOException
+	 *             if the copy failed or the destination does not hold the
+	 *             bytes read from the source
+	 */
+	static byte[] copy(FileChannel in, FileChannel out, Path source, IoThrottle throttle, HashAlgorithm algorithm)
+			throws IOException {
+		long length = in.size();
+		byte[][] hashes;
+
+		if (length <= BUFFER_SIZE) {
+			ByteBuffer buffer = BUFFERS.get()[0];
+			read(in, buffer, 0, (int) length, throttle, source);
+			write(out, buffer, 0);
+
+			Hasher sourceHasher = algorithm.newHasher();
+			Hasher destHasher = algorithm.newHasher();
+			sourceHasher.update(buffer.duplicate());
+			readBack(out, 0, buffer.limit(), destHasher);
+			hashes = new byte[][] { sourceHasher.digest(), destHasher.digest() };
+		} else {
+			hashes = pipeline(in, out, length, source, throttle, algorithm);
+		}
+
+		if (out.size() != length) {
+			throw new IOException("Copy of " + source + " has " + out.size() + " bytes instead of " + length);
+		}
+		if (!Arrays.equals(hashes[0], hashes[1])) {
+			throw new IOException("Copy of " + source + " does not match the data read from it");
+		}
+		return hashes[0];
+	}
+
+	private static byte[][] pipeline(FileChannel in, final FileChannel out, long length, Path source,
+			IoThrottle throttle, final HashAlgorithm algorithm) throws IOException {
+		final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<ByteBuffer>(BUFFER_COUNT);
+		// Never full, so the copying thread only waits for free buffers
+		final BlockingQueue<Chunk> written = new ArrayBlockingQueue<Chunk>(BUFFER_COUNT + 1);
+		free.addAll(Arrays.asList(BUFFERS.get()));
+
+		Future<byte[][]> verifier = EXECUTOR.submit(() -> {
+			Hasher sourceHasher = algorithm.newHasher();
+			Hasher destHasher = algorithm.newHasher();
+			Chunk chunk;
+
+			while ((chunk = written.take()) != END) {
+				sourceHasher.update(chunk.buffer.duplicate());
+				readBack(out, chunk.position, chunk.buffer.limit(), destHasher);
+				free.put(chunk.buffer);
+			}
+			return new byte[][] { sourceHasher.digest(), destHasher.digest() };
+		});
+
+		try {
+			for (long position = 0; position < length; position += BUFFER_SIZE) {
+				ByteBuffer buffer = take(free, verifier, source);
+				read(in, buffer, position, (int) Math.min(BUFFER_SIZE, length - position), throttle, source);
+				write(out, buffer, position);
+				written.put(new Chunk(buffer, position));
+			}
+			written.put(END);
+			return verifier.get();
+		} catch (InterruptedException e) {
+			stop(written, verifier);
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while copying " + source, e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Cannot verify " + source, e.getCause());
+		} catch (IOException | RuntimeException e) {
+			stop(written, verifier);
+			throw e;
+		}
+	}
+
+	/**
+	 * Make the helper thread skip the chunks left and wait for it to end, so
+	 * it no longer uses the buffers when the next copy of this thread starts.
+	 * It is not interrupted, which would close the destination channel.
+	 */
+	private static void stop(BlockingQueue<Chunk> written, Future<byte[][]> verifier) {
+		written.clear();
+		written.offer(END);
+
+		boolean interrupted = false;
+		while (true) {
+			try {
+				verifier.get();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			} catch (ExecutionException | CancellationException e) {
+				break;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Wait for a buffer the helper thread is done with, failing if the helper
+	 * thread failed.
+	 */
+	private static ByteBuffer take(BlockingQueue<ByteBuffer> free, Future<byte[][]> verifier, Path source)
+			throws InterruptedException, ExecutionException {
+		while (true) {
+			ByteBuffer buffer = free.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+			if (buffer != null) {
+				return buffer;
+			}
+			if (verifier.isDone()) {
+				verifier.get();
+				throw new IllegalStateException("Verification of " + source + " ended early");
+			}
+		}
+	}
+
+	private static void read(FileChannel in, ByteBuffer buffer, long position, int length, IoThrottle throttle,
+			Path source) throws IOException {
+		buffer.clear();
+		buffer.limit(length);
+		if (throttle != null) {
+			throttle.acquire(length);
+		}
+		while (buffer.hasRemaining()) {
+			if (in.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("File changed while being copied: " + source);
+			}
+		}
+		buffer.flip();
+	}
+
+	private static void write(FileChannel out, ByteBuffer buffer, long position) throws IOException {
+		ByteBuffer data = buffer.duplicate();
+		while (data.hasRemaining()) {
+			out.write(data, position + data.position());
+		}
+	}
+
+	/**
+	 * Read a range of the destination back and hash it.
+	 */
+	private static void readBack(FileChannel out, long position, int length, Hasher hasher) throws IOException {
+		ByteBuffer buffer = READ_BACK.get();
+		buffer.clear();
+		buffer.limit(length);
+		while (buffer.hasRemaining()) {
+			if (out.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Destination is shorter than the data written to it");
+			}
+		}
+		buffer.flip();
+		hasher.update(buffer);
+	}
+
+	/**
+	 * A chunk written to the destination, waiting to be verified.
+	 */
+	private static final class Chunk {
+
+		private final ByteBuffer buffer;
+		private final long position;
+
+		private Chunk(ByteBuffer buffer, long position) {
+			this.buffer = buffer;
+			this.position = position;
+		}
+	}
+
+}
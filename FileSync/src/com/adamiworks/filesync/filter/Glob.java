@@ -0,0 +1,220 @@
+package com.adamiworks.filesync.filter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A gitignore glob compiled into tokens:
+ * <ul>
+ * <li><b>*</b> matches any characters except "/";</li>
+ * <li><b>?</b> matches one character except "/";</li>
+ * <li><b>[a-z]</b>, <b>[!a-z]</b> match one character of a class;</li>
+ * <li><b>**&#47;</b> matches zero or more whole directories;</li>
+ * <li>a trailing <b>&#47;**</b> matches everything inside a directory;</li>
+ * <li><b>\</b> escapes the next character.</li>
+ * </ul>
+ * Paths are matched as a directory path and a name joined by "/", without
+ * building the joined String, and matching never allocates.
+ *
+ * @author Tiago J. Adami
+ */
+final class Glob {
+
+	private static final byte LITERAL = 0;
+	private static final byte ANY = 1;
+	private static final byte STAR = 2;
+	private static final byte DIRECTORIES = 3;
+	private static final byte EVERYTHING = 4;
+	private static final byte CLASS = 5;
+
+	private final byte[] kinds;
+	private final char[] chars;
+	private final char[][] classes;
+	private final boolean[] negated;
+
+	private Glob(byte[] kinds, char[] chars, char[][] classes, boolean[] negated) {
+		this.kinds = kinds;
+		this.chars = chars;
+		this.classes = classes;
+		this.negated = negated;
+	}
+
+	/**
+	 * @param pattern
+	 *            a glob without leading or trailing "/"
+	 * @return
+	 */
+	static Glob compile(String pattern) {
+		List<Byte> kinds = new ArrayList<Byte>();
+		StringBuilder chars = new StringBuilder();
+		List<char[]> classes = new ArrayList<char[]>();
+		List<Boolean> negated = new ArrayList<Boolean>();
+		int n = pattern.length();
+
+		for (int i = 0; i < n; i++) {
+			char c = pattern.charAt(i);
+			byte kind = LITERAL;
+			char[] range = null;
+			boolean negate = false;
+
+			if (c == '\\' && i + 1 < n) {
+				c = pattern.charAt(++i);
+			} else if (c == '?') {
+				kind = ANY;
+			} else if (c == '*') {
+				boolean segmentStart = i == 0 || pattern.charAt(i - 1) == '/';
+				if (i + 1 < n && pattern.charAt(i + 1) == '*' && segmentStart) {
+					if (i + 2 == n) {
+						kind = EVERYTHING;
+						i++;
+					} else if (pattern.charAt(i + 2) == '/') {
+						kind = DIRECTORIES;
+						i += 2;
+					} else {
+						kind = STAR;
+					}
+				} else {
+					kind = STAR;
+				}
+				// Consecutive stars are the same as one
+				while (kind == STAR && i + 1 < n && pattern.charAt(i + 1) == '*') {
+					i++;
+				}
+			} else if (c == '[') {
+				int end = pattern.indexOf(']', i + 2);
+				if (end > 0) {
+					int start = i + 1;
+					if (pattern.charAt(start) == '!' || pattern.charAt(start) == '^') {
+						negate = true;
+						start++;
+					}
+					range = ranges(pattern.substring(start, end));
+					kind = CLASS;
+					i = end;
+				}
+			}
+
+			kinds.add(kind);
+			chars.append(c);
+			classes.add(range);
+			negated.add(negate);
+		}
+
+		byte[] k = new byte[kinds.size()];
+		boolean[] neg = new boolean[negated.size()];
+		for (int i = 0; i < k.length; i++) {
+			k[i] = kinds.get(i);
+			neg[i] = negated.get(i);
+		}
+		return new Glob(k, chars.toString().toCharArray(), classes.toArray(new char[classes.size()][]), neg);
+	}
+
+	/**
+	 * @return pairs of first and last characters
+	 */
+	private static char[] ranges(String spec) {
+		StringBuilder pairs = new StringBuilder();
+		for (int i = 0; i < spec.length(); i++) {
+			char first = spec.charAt(i);
+			char last = first;
+			if (i + 2 < spec.length() && spec.charAt(i + 1) == '-') {
+				last = spec.charAt(i + 2);
+				i += 2;
+			}
+			pairs.append(first).append(last);
+		}
+		return pairs.toString().toCharArray();
+	}
+
+	/**
+	 * @param directory
+	 *            path of the directory of the name, "" for none
+	 * @param name
+	 * @return true if directory + "/" + name matches
+	 */
+	boolean matches(String directory, String name) {
+		int length = directory.isEmpty() ? name.length() : directory.length() + 1 + name.length();
+		return match(0, directory, name, 0, length);
+	}
+
+	private boolean match(int t, String directory, String name, int p, int length) {
+		while (t < kinds.length) {
+			switch (kinds[t]) {
+			case LITERAL:
+				if (p >= length || charAt(directory, name, p) != chars[t]) {
+					return false;
+				}
+				break;
+
+			case ANY:
+				if (p >= length || charAt(directory, name, p) == '/') {
+					return false;
+				}
+				break;
+
+			case CLASS:
+				if (p >= length) {
+					return false;
+				}
+				char c = charAt(directory, name, p);
+				if (c == '/' || inClass(classes[t], c) == negated[t]) {
+					return false;
+				}
+				break;
+
+			case STAR:
+				for (int q = p;; q++) {
+					if (match(t + 1, directory, name, q, length)) {
+						return true;
+					}
+					if (q >= length || charAt(directory, name, q) == '/') {
+						return false;
+					}
+				}
+
+			case DIRECTORIES:
+				for (int q = p;;) {
+					if (match(t + 1, directory, name, q, length)) {
+						return true;
+					}
+					while (q < length && charAt(directory, name, q) != '/') {
+						q++;
+					}
+					if (q >= length) {
+						return false;
+					}
+					q++;
+				}
+
+			case EVERYTHING:
+				return p < length;
+
+			default:
+				return false;
+			}
+			t++;
+			p++;
+		}
+		return p == length;
+	}
+
+	private static boolean inClass(char[] pairs, char c) {
+		for (int i = 0; i < pairs.length; i += 2) {
+			if (c >= pairs[i] && c <= pairs[i + 1]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static char charAt(String directory, String name, int p) {
+		if (directory.isEmpty()) {
+			return name.charAt(p);
+		}
+		if (p < directory.length()) {
+			return directory.charAt(p);
+		}
+		return p == directory.length() ? '/' : name.charAt(p - directory.length() - 1);
+	}
+
+}
@@ -0,0 +1,400 @@
+package com.adamiworks.filesync.filter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Include and exclude rules in gitignore syntax, compiled once for the whole
+ * synchronization:
+ *
+ * <pre>
+ * # comment
+ * node_modules/      directories named node_modules, at any depth
+ * *.tmp              files ending with .tmp, at any depth
+ * /build             build in the root only
+ * docs/**&#47;*.pdf       PDFs anywhere under docs
+ * !keep.tmp          include again a file excluded by an earlier rule
+ * </pre>
+ *
+ * The last rule matching a path decides. As in git, a file inside an excluded
+ * directory cannot be included again, because excluded directories are never
+ * listed.<BR>
+ * <BR>
+ * Rules are sorted by the cheapest test that can match them: names without
+ * wildcards are looked up in a hash table, "*.ext" rules are suffix checks,
+ * and anchored paths are kept in a trie of their literal directories, so
+ * their globs are only tried inside the directories they can match. Paths are
+ * checked one directory at a time through a {@link Scope}, which is created
+ * once per directory; checking an entry does not allocate.<BR>
+ * <BR>
+ * Instances are immutable and may be shared by concurrent threads.
+ *
+ * @author Tiago J. Adami
+ */
+public final class PathFilter {
+
+	private static final Rule[] NO_RULES = new Rule[0];
+
+	/**
+	 * A filter without rules, which excludes nothing.
+	 */
+	public static final PathFilter NONE = compile(Collections.<String> emptyList());
+
+	private final int ruleCount;
+	private final Map<String, Rule[]> names = new HashMap<String, Rule[]>();
+	private Rule[] suffixes = NO_RULES;
+	private Rule[] nameGlobs = NO_RULES;
+	private final Node trie = new Node();
+
+	private PathFilter(int ruleCount) {
+		this.ruleCount = ruleCount;
+	}
+
+	/**
+	 * @param lines
+	 *            rules in gitignore syntax, in order
+	 * @return
+	 */
+	public static PathFilter compile(List<String> lines) {
+		PathFilter filter = new PathFilter(lines.size());
+		int index = 0;
+
+		for (String line : lines) {
+			Rule rule = Rule.parse(line, index++);
+			if (rule != null) {
+				filter.add(rule);
+			}
+		}
+		return filter;
+	}
+
+	/**
+	 * @param file
+	 *            a file of rules in gitignore syntax
+	 * @return
+	 * @throws IOException
+	 */
+	public static PathFilter load(Path file) throws IOException {
+		return compile(Files.readAllLines(file, StandardCharsets.UTF_8));
+	}
+
+	private void add(Rule rule) {
+		if (!rule.anchored) {
+			if (rule.suffix) {
+				suffixes = prepend(suffixes, rule);
+			} else if (rule.glob == null) {
+				Rule[] rules = names.get(rule.literal);
+				names.put(rule.literal, prepend(rules == null ? NO_RULES : rules, rule));
+			} else {
+				nameGlobs = prepend(nameGlobs, rule);
+			}
+			return;
+		}
+
+		// Literal leading directories lead to the node the rule is kept in
+		String[] segments = rule.pattern.split("/");
+		int last = segments.length - 1;
+		Node node = trie;
+		int i = 0;
+		while (i < last && Rule.isLiteral(segments[i])) {
+			node = node.child(segments[i]);
+			i++;
+		}
+
+		if (i == last && Rule.isLiteral(segments[last])) {
+			node = node.child(segments[last]);
+			node.exact = prepend(node.exact, rule);
+		} else {
+			node.globs = prepend(node.globs, rule);
+		}
+	}
+
+	private static Rule[] prepend(Rule[] rules, Rule rule) {
+		Rule[] result = new Rule[rules.length + 1];
+		result[0] = rule;
+		System.arraycopy(rules, 0, result, 1, rules.length);
+		return result;
+	}
+
+	/**
+	 * @return number of lines the filter was compiled from
+	 */
+	public int getRuleCount() {
+		return ruleCount;
+	}
+
+	/**
+	 * @return the scope of the root of the synchronized trees
+	 */
+	public Scope root() {
+		return new Scope("", trie, trie.globs);
+	}
+
+	/**
+	 * @param relativeDirectory
+	 *            "/" separated path of a directory, "" for the root
+	 * @return the scope of the directory, which is not checked itself
+	 */
+	public Scope scope(String relativeDirectory) {
+		Scope scope = root();
+		if (!relativeDirectory.isEmpty()) {
+			for (String segment : relativeDirectory.split("/")) {
+				scope = scope.enter(segment);
+			}
+		}
+		return scope;
+	}
+
+	/**
+	 * Check a path and all directories leading to it. Allocates, so it is
+	 * meant for single paths; tree walks use {@link Scope}s.
+	 *
+	 * @param relativePath
+	 *            "/" separated path relative to the synchronized root
+	 * @param directory
+	 *            true if the path is a directory
+	 * @return true if the path or one of its directories is excluded
+	 */
+	public boolean isExcluded(String relativePath, boolean directory) {
+		String[] segments = relativePath.split("/");
+		Scope scope = root();
+
+		for (int i = 0; i < segments.length; i++) {
+			boolean last = i == segments.length - 1;
+			if (scope.isExcluded(segments[i], last ? directory : true)) {
+				return true;
+			}
+			if (!last) {
+				scope = scope.enter(segments[i]);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The rules that apply inside one directory.
+	 */
+	public final class Scope {
+
+		private final String path;
+		private final Node node;
+		private final Rule[] globs;
+
+		private Scope(String path, Node node, Rule[] globs) {
+			this.path = path;
+			this.node = node;
+			this.globs = globs;
+		}
+
+		/**
+		 * @return "/" separated path of the directory, "" for the root
+		 */
+		public String getPath() {
+			return path;
+		}
+
+		/**
+		 * @param name
+		 *            name of an entry of the directory
+		 * @param directory
+		 *            true if the entry is a directory
+		 * @return true if the entry must be skipped
+		 */
+		public boolean isExcluded(String name, boolean directory) {
+			Rule best = null;
+
+			Rule[] named = names.get(name);
+			if (named != null) {
+				best = first(named, best, name, directory);
+			}
+			best = first(suffixes, best, name, directory);
+			best = first(nameGlobs, best, name, directory);
+			best = first(globs, best, name, directory);
+
+			if (node != null) {
+				Node child = node.children.get(name);
+				if (child != null) {
+					best = first(child.exact, best, name, directory);
+				}
+			}
+
+			return best != null && !best.negate;
+		}
+
+		/**
+		 * The newest rule of a list, newest first, matching the entry, if
+		 * newer than the best match so far.
+		 */
+		private Rule first(Rule[] rules, Rule best, String name, boolean directory) {
+			for (Rule rule : rules) {
+				if (best != null && rule.index < best.index) {
+					break;
+				}
+				if ((directory || !rule.directoryOnly) && rule.matches(path, name)) {
+					return rule;
+				}
+			}
+			return best;
+		}
+
+		/**
+		 * @param name
+		 *            a subdirectory that is not excluded
+		 * @return the scope of the subdirectory
+		 */
+		public Scope enter(String name) {
+			Node child = node == null ? null : node.children.get(name);
+			Rule[] inherited = globs;
+
+			if (child != null && child.globs.length > 0) {
+				inherited = Arrays.copyOf(globs, globs.length + child.globs.length);
+				System.arraycopy(child.globs, 0, inherited, globs.length, child.globs.length);
+				Arrays.sort(inherited, NEWEST_FIRST);
+			}
+			return new Scope(path.isEmpty() ? name : path + "/" + name, child, inherited);
+		}
+
+	}
+
+	private static final Comparator<Rule> NEWEST_FIRST = (a, b) -> Integer.compare(b.index, a.index);
+
+	/**
+	 * Literal directory of anchored rules.
+	 */
+	private static final class Node {
+
+		private final Map<String, Node> children = new HashMap<String, Node>();
+
+		/**
+		 * Rules naming exactly this path, newest first.
+		 */
+		private Rule[] exact = NO_RULES;
+
+		/**
+		 * Rules with a glob for the entries under this directory, newest
+		 * first.
+		 */
+		private Rule[] globs = NO_RULES;
+
+		private Node child(String name) {
+			Node child = children.get(name);
+			if (child == null) {
+				child = new Node();
+				children.put(name, child);
+			}
+			return child;
+		}
+	}
+
+	/**
+	 * One compiled line.
+	 */
+	private static final class Rule {
+
+		private final int index;
+		private final String pattern;
+		private final boolean negate;
+		private final boolean directoryOnly;
+		private final boolean anchored;
+		private final boolean suffix;
+		private final String literal;
+		private final Glob glob;
+
+		private Rule(int index, String pattern, boolean negate, boolean directoryOnly, boolean anchored) {
+			this.index = index;
+			this.pattern = pattern;
+			this.negate = negate;
+			this.directoryOnly = directoryOnly;
+			this.anchored = anchored;
+
+			if (!anchored && isLiteral(pattern)) {
+				this.suffix = false;
+				this.literal = pattern;
+				this.glob = null;
+			} else if (!anchored && pattern.startsWith("*") && isLiteral(pattern.substring(1))) {
+				this.suffix = true;
+				this.literal = pattern.substring(1);
+				this.glob = null;
+			} else {
+				this.suffix = false;
+				this.literal = null;
+				this.glob = anchored && isLiteral(pattern) ? null : Glob.compile(pattern);
+			}
+		}
+
+		/**
+		 * @return the rule, or null for blank lines and comments
+		 */
+		private static Rule parse(String line, int index) {
+			// Trailing spaces are ignored unless escaped
+			int end = line.length();
+			while (end > 0 && line.charAt(end - 1) == ' ' && (end < 2 || line.charAt(end - 2) != '\\')) {
+				end--;
+			}
+			String p = line.substring(0, end);
+
+			if (p.isEmpty() || p.startsWith("#")) {
+				return null;
+			}
+
+			boolean negate = false;
+			if (p.startsWith("!")) {
+				negate = true;
+				p = p.substring(1);
+			} else if (p.startsWith("\\#") || p.startsWith("\\!")) {
+				p = p.substring(1);
+			}
+
+			boolean directoryOnly = false;
+			if (p.endsWith("/")) {
+				directoryOnly = true;
+				p = p.substring(0, p.length() - 1);
+			}
+
+			// "**/name" is the same as "name"
+			while (p.startsWith("**/") && p.indexOf('/', 3) < 0 && p.length() > 3) {
+				p = p.substring(3);
+			}
+
+			boolean anchored = p.indexOf('/') >= 0;
+			if (p.startsWith("/")) {
+				p = p.substring(1);
+			}
+
+			if (p.isEmpty()) {
+				return null;
+			}
+			return new Rule(index, p, negate, directoryOnly, anchored);
+		}
+
+		private static boolean isLiteral(String s) {
+			for (int i = 0; i < s.length(); i++) {
+				char c = s.charAt(i);
+				if (c == '*' || c == '?' || c == '[' || c == '\\') {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private boolean matches(String directory, String name) {
+			if (literal != null) {
+				return !suffix || name.endsWith(literal);
+			}
+			if (glob == null) {
+				// Exact anchored paths are found through the trie
+				return true;
+			}
+			return glob.matches(anchored ? directory : "", name);
+		}
+	}
+
+}
@@ -0,0 +1,117 @@
+package com.adamiworks.filesync.hash;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * CRC-32C (Castagnoli) {@link Hasher}.<BR>
+ * On Java 9 or newer the JDK java.util.zip.CRC32C class is used, which the JIT
+ * replaces with the SSE 4.2/ARMv8 CRC instructions. On Java 8 a slicing-by-8
+ * table implementation is used instead.
+ *
+ * @author Tiago J. Adami
+ */
+final class Crc32cHasher implements Hasher {
+
+	private static final int POLYNOMIAL = 0x82F63B78;
+	private static final int[][] TABLE = new int[8][256];
+
+	private static final MethodHandle JDK_CONSTRUCTOR;
+	private static final MethodHandle JDK_UPDATE;
+	private static final MethodHandle JDK_VALUE;
+
+	static {
+		for (int n = 0; n < 256; n++) {
+			int c = n;
+			for (int k = 0; k < 8; k++) {
+				c = (c & 1) != 0 ? (c >>> 1) ^ POLYNOMIAL : c >>> 1;
+			}
+			TABLE[0][n] = c;
+		}
+		for (int n = 0; n < 256; n++) {
+			for (int k = 1; k < 8; k++) {
+				TABLE[k][n] = (TABLE[k - 1][n] >>> 8) ^ TABLE[0][TABLE[k - 1][n] & 0xff];
+			}
+		}
+
+		MethodHandle constructor = null;
+		MethodHandle update = null;
+		MethodHandle value = null;
+		try {
+			Class<?> crc32c = Class.forName("java.util.zip.CRC32C");
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			constructor = lookup.findConstructor(crc32c, MethodType.methodType(void.class));
+			update = lookup.findVirtual(crc32c, "update", MethodType.methodType(void.class, ByteBuffer.class));
+			value = lookup.findVirtual(crc32c, "getValue", MethodType.methodType(long.class));
+		} catch (ReflectiveOperationException e) {
+			constructor = null;
+		}
+		JDK_CONSTRUCTOR = constructor;
+		JDK_UPDATE = update;
+		JDK_VALUE = value;
+	}
+
+	private final Object jdk;
+	private int crc = 0xFFFFFFFF;
+
+	Crc32cHasher() {
+		Object checksum = null;
+		if (JDK_CONSTRUCTOR != null) {
+			try {
+				checksum = JDK_CONSTRUCTOR.invoke();
+			} catch (Throwable e) {
+				checksum = null;
+			}
+		}
+		this.jdk = checksum;
+	}
+
+	@Override
+	public void update(ByteBuffer buffer) {
+		if (jdk != null) {
+			try {
+				JDK_UPDATE.invoke(jdk, buffer);
+				return;
+			} catch (Throwable e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		ByteBuffer b = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+		int c = crc;
+
+		while (b.remaining() >= 8) {
+			long x = b.getLong() ^ (c & 0xFFFFFFFFL);
+			c = TABLE[7][(int) x & 0xff] ^ TABLE[6][(int) (x >>> 8) & 0xff] ^ TABLE[5][(int) (x >>> 16) & 0xff]
+					^ TABLE[4][(int) (x >>> 24) & 0xff] ^ TABLE[3][(int) (x >>> 32) & 0xff]
+					^ TABLE[2][(int) (x >>> 40) & 0xff] ^ TABLE[1][(int) (x >>> 48) & 0xff]
+					^ TABLE[0][(int) (x >>> 56) & 0xff];
+		}
+		while (b.hasRemaining()) {
+			c = (c >>> 8) ^ TABLE[0][(c ^ b.get()) & 0xff];
+		}
+
+		crc = c;
+		buffer.position(buffer.limit());
+	}
+
+	@Override
+	public byte[] digest() {
+		int value;
+		if (jdk != null) {
+			try {
+				value = (int) (long) JDK_VALUE.invoke(jdk);
+			} catch (Throwable e) {
+				throw new IllegalStateException(e);
+			}
+		} else {
+			value = ~crc;
+		}
+
+		return new byte[] { (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value };
+	}
+
+}
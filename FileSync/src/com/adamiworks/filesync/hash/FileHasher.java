@@ -0,0 +1,153 @@
+package com.adamiworks.filesync.hash;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.adamiworks.filesync.throttle.IoThrottle;
+import com.adamiworks.filesync.util.DaemonThreadFactory;
+
+/**
+ * Computes file hashes reading the files through large direct buffers, which
+ * avoids copying the data into the Java heap. With an {@link IoThrottle},
+ * every buffer read passes through its limits.
+ *
+ * @author Tiago J. Adami
+ */
+public final class FileHasher {
+
+	private static final int BUFFER_SIZE = 1024 * 1024;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static final ThreadLocal<ByteBuffer> BUFFER = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+	};
+
+	private static final ExecutorService EXECUTOR = Executors
+			.newCachedThreadPool(new DaemonThreadFactory("FileHasher"));
+
+	private FileHasher() {
+	}
+
+	/**
+	 * Hash the whole content of a file.
+	 *
+	 * @param file
+	 * @param algorithm
+	 * @return
+	 * @throws IOException
+	 */
+	public static byte[] hash(Path file, HashAlgorithm algorithm) throws IOException {
+		return hash(file, algorithm, null);
+	}
+
+	/**
+	 * Hash the whole content of a file within the limits of a throttle.
+	 *
+	 * @param file
+	 * @param algorithm
+	 * @param throttle
+	 *            the throttle, or null
+	 * @return
+	 * @throws IOException
+	 */
+	public static byte[] hash(Path file, HashAlgorithm algorithm, IoThrottle throttle) throws IOException {
+		Hasher hasher = algorithm.newHasher();
+		ByteBuffer buffer = BUFFER.get();
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long length = throttle == null ? 0 : channel.size();
+			long position = 0;
+			buffer.clear();
+			while (true) {
+				if (throttle != null && position < length) {
+					throttle.acquire(Math.min(buffer.remaining(), length - position));
+				}
+				int n = channel.read(buffer);
+				if (n < 0) {
+					break;
+				}
+				position += n;
+				buffer.flip();
+				hasher.update(buffer);
+				buffer.clear();
+			}
+		}
+
+		return hasher.digest();
+	}
+
+	/**
+	 * Hash two files at the same time, the first one in a helper thread and
+	 * the second in the calling thread.
+	 *
+	 * @param first
+	 * @param second
+	 * @param algorithm
+	 * @return the hashes of both files, in the same order
+	 * @throws IOException
+	 */
+	public static byte[][] hash(final Path first, Path second, final HashAlgorithm algorithm) throws IOException {
+		return hash(first, second, algorithm, null);
+	}
+
+	/**
+	 * Hash two files at the same time within the limits of a throttle, the
+	 * first one in a helper thread and the second in the calling thread.
+	 *
+	 * @param first
+	 * @param second
+	 * @param algorithm
+	 * @param throttle
+	 *            the throttle, or null
+	 * @return the hashes of both files, in the same order
+	 * @throws IOException
+	 */
+	public static byte[][] hash(final Path first, Path second, final HashAlgorithm algorithm,
+			final IoThrottle throttle) throws IOException {
+		Future<byte[]> firstHash = EXECUTOR.submit(() -> hash(first, algorithm, throttle));
+		byte[] secondHash;
+
+		try {
+			secondHash = hash(second, algorithm, throttle);
+		} catch (IOException e) {
+			firstHash.cancel(true);
+			throw e;
+		}
+
+		try {
+			return new byte[][] { firstHash.get(), secondHash };
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while hashing " + first, e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Cannot hash " + first, e.getCause());
+		}
+	}
+
+	/**
+	 * @param hash
+	 * @return lower case hexadecimal representation of a hash
+	 */
+	public static String toHex(byte[] hash) {
+		char[] chars = new char[hash.length * 2];
+		for (int i = 0; i < hash.length; i++) {
+			chars[i * 2] = HEX[(hash[i] >> 4) & 0xf];
+			chars[i * 2 + 1] = HEX[hash[i] & 0xf];
+		}
+		return new String(chars);
+	}
+
+}
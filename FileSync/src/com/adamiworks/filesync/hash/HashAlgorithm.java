@@ -0,0 +1,85 @@
+package com.adamiworks.filesync.hash;
+
+/**
+ * Hash algorithms available to compare file contents.
+ *
+ * @author Tiago J. Adami
+ */
+public enum HashAlgorithm {
+
+	/**
+	 * 32-bit CRC, hardware accelerated on Java 9 or newer. Fastest, but with
+	 * the highest chance of collisions.
+	 */
+	CRC32C("CRC32C") {
+		@Override
+		public Hasher newHasher() {
+			return new Crc32cHasher();
+		}
+	},
+
+	/**
+	 * 64-bit non-cryptographic hash, the best trade-off to detect changed
+	 * files.
+	 */
+	XXHASH64("XXH64") {
+		@Override
+		public Hasher newHasher() {
+			return new XxHash64();
+		}
+	},
+
+	/**
+	 * Cryptographic hash, for content that may be tampered with.
+	 */
+	SHA256("SHA-256") {
+		@Override
+		public Hasher newHasher() {
+			return new MessageDigestHasher("SHA-256");
+		}
+	},
+
+	/**
+	 * The algorithm used by older FileSync versions.
+	 */
+	MD5("MD5") {
+		@Override
+		public Hasher newHasher() {
+			return new MessageDigestHasher("MD5");
+		}
+	};
+
+	private final String name;
+
+	private HashAlgorithm(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @return a new hasher for this algorithm
+	 */
+	public abstract Hasher newHasher();
+
+	/**
+	 * @return the name recorded in manifests and shown in messages
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Find an algorithm by its name or constant name, ignoring case.
+	 *
+	 * @param name
+	 * @return the algorithm or null if none matches
+	 */
+	public static HashAlgorithm forName(String name) {
+		for (HashAlgorithm a : values()) {
+			if (a.name.equalsIgnoreCase(name) || a.name().equalsIgnoreCase(name)) {
+				return a;
+			}
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,320 @@
+package com.adamiworks.filesync.hash;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.adamiworks.filesync.util.InternalFiles;
+
+/**
+ * Keeps the hash of a file on the file itself, in the user extended attribute
+ * "user.filesync.hash", together with the size and modification time the file
+ * had when it was hashed. A cached hash is used only while both still match,
+ * so an unchanged file is never read again to be compared.<BR>
+ * <BR>
+ * Where extended attributes are not supported, or cannot be written, hashes
+ * are kept in a {@value #SIDECAR_NAME} file in the directory of the files.
+ * Sidecar files are written by {@link #flush()}.<BR>
+ * <BR>
+ * Like the manifest, the cache trusts modification times: a file rewritten
+ * with the same size and its old modification time restored is not hashed
+ * again. Instances may be shared by concurrent threads.
+ *
+ * @author Tiago J. Adami
+ */
+public final class HashCache {
+
+	/**
+	 * Name of the extended attribute, in the user namespace.
+	 */
+	public static final String ATTRIBUTE = "filesync.hash";
+
+	public static final String SIDECAR_NAME = InternalFiles.PREFIX + ".hashes";
+
+	/**
+	 * Directories kept in memory before they are all flushed and forgotten.
+	 */
+	private static final int MAX_DIRECTORIES = 4096;
+
+	private final ConcurrentHashMap<Path, Directory> directories = new ConcurrentHashMap<Path, Directory>();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * @param file
+	 * @param attrs
+	 *            current attributes of the file
+	 * @param algorithm
+	 * @return the cached hash, or null if there is none for the current size
+	 *         and modification time of the file
+	 */
+	public byte[] get(Path file, BasicFileAttributes attrs, HashAlgorithm algorithm) {
+		Directory directory = directory(file);
+		String name = file.getFileName().toString();
+		String value = null;
+
+		if (!directory.sidecarOnly) {
+			try {
+				value = readAttribute(file);
+			} catch (IOException | UnsupportedOperationException e) {
+				directory.sidecarOnly = true;
+			}
+		}
+		if (value == null) {
+			synchronized (directory) {
+				value = directory.sidecar().get(name);
+			}
+		}
+
+		byte[] hash = value == null ? null : parse(value, attrs, algorithm);
+		if (hash == null) {
+			misses.increment();
+		} else {
+			hits.increment();
+		}
+		return hash;
+	}
+
+	/**
+	 * @param file
+	 * @param attrs
+	 *            attributes of the file when it was hashed
+	 * @param algorithm
+	 * @param hash
+	 */
+	public void put(Path file, BasicFileAttributes attrs, HashAlgorithm algorithm, byte[] hash) {
+		String name = file.getFileName().toString();
+		String value = algorithm.getName() + " " + attrs.size() + " " + modified(attrs) + " "
+				+ FileHasher.toHex(hash);
+
+		while (true) {
+			Directory directory = directory(file);
+
+			if (!directory.sidecarOnly) {
+				try {
+					writeAttribute(file, value);
+					return;
+				} catch (IOException | UnsupportedOperationException e) {
+					Logger.getLogger(HashCache.class.getName()).log(Level.FINE,
+							"No extended attributes in " + directory.path + ", using " + SIDECAR_NAME, e);
+					directory.sidecarOnly = true;
+				}
+			}
+
+			synchronized (directory) {
+				// An evicted directory was already written, look it up again
+				if (!directory.evicted) {
+					directory.sidecar().put(name, value);
+					directory.dirty = true;
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write the sidecar files of the directories that changed.
+	 */
+	public synchronized void flush() {
+		for (Directory directory : directories.values()) {
+			synchronized (directory) {
+				directory.write();
+			}
+		}
+	}
+
+	/**
+	 * @return number of lookups that found a valid hash
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return number of lookups that found no hash, or an outdated one
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	private Directory directory(Path file) {
+		Path path = file.toAbsolutePath().getParent();
+		Directory directory = directories.get(path);
+
+		if (directory == null) {
+			if (directories.size() >= MAX_DIRECTORIES) {
+				evictAll();
+			}
+			Directory created = new Directory(path);
+			directory = directories.putIfAbsent(path, created);
+			if (directory == null) {
+				directory = created;
+			}
+		}
+		return directory;
+	}
+
+	private synchronized void evictAll() {
+		if (directories.size() < MAX_DIRECTORIES) {
+			return;
+		}
+		for (Directory directory : directories.values()) {
+			synchronized (directory) {
+				directory.write();
+				directory.evicted = true;
+			}
+		}
+		directories.clear();
+	}
+
+	private static String readAttribute(Path file) throws IOException {
+		UserDefinedFileAttributeView view = Files.getFileAttributeView(file, UserDefinedFileAttributeView.class);
+		if (view == null) {
+			throw new UnsupportedOperationException("No user defined attributes for " + file);
+		}
+		if (!view.list().contains(ATTRIBUTE)) {
+			return null;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(view.size(ATTRIBUTE));
+		view.read(ATTRIBUTE, buffer);
+		buffer.flip();
+		return StandardCharsets.UTF_8.decode(buffer).toString();
+	}
+
+	private static void writeAttribute(Path file, String value) throws IOException {
+		UserDefinedFileAttributeView view = Files.getFileAttributeView(file, UserDefinedFileAttributeView.class);
+		if (view == null) {
+			throw new UnsupportedOperationException("No user defined attributes for " + file);
+		}
+		view.write(ATTRIBUTE, StandardCharsets.UTF_8.encode(value));
+	}
+
+	/**
+	 * @return the hash in "algorithm size modified hex", if it still applies
+	 */
+	private static byte[] parse(String value, BasicFileAttributes attrs, HashAlgorithm algorithm) {
+		String[] fields = value.split(" ");
+		if (fields.length != 4 || !fields[0].equals(algorithm.getName())) {
+			return null;
+		}
+
+		try {
+			if (Long.parseLong(fields[1]) != attrs.size() || Long.parseLong(fields[2]) != modified(attrs)) {
+				return null;
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+
+		String hex = fields[3];
+		if (hex.length() % 2 != 0) {
+			return null;
+		}
+		byte[] hash = new byte[hex.length() / 2];
+		for (int i = 0; i < hash.length; i++) {
+			int high = Character.digit(hex.charAt(i * 2), 16);
+			int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+			if (high < 0 || low < 0) {
+				return null;
+			}
+			hash[i] = (byte) (high << 4 | low);
+		}
+		return hash;
+	}
+
+	private static long modified(BasicFileAttributes attrs) {
+		return attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Cache state of one directory. The sidecar is only read when a file of
+	 * the directory has no extended attribute.
+	 */
+	private static final class Directory {
+
+		private final Path path;
+		private volatile boolean sidecarOnly;
+		private Map<String, String> sidecar;
+		private boolean dirty;
+		private boolean evicted;
+
+		private Directory(Path path) {
+			this.path = path;
+		}
+
+		private Map<String, String> sidecar() {
+			if (sidecar == null) {
+				sidecar = new HashMap<String, String>();
+				try (BufferedReader reader = Files.newBufferedReader(path.resolve(SIDECAR_NAME),
+						StandardCharsets.UTF_8)) {
+					String line;
+					while ((line = reader.readLine()) != null) {
+						int tab = line.indexOf('\t');
+						if (tab > 0) {
+							sidecar.put(line.substring(0, tab), line.substring(tab + 1));
+						}
+					}
+				} catch (NoSuchFileException e) {
+					// No hash kept in this directory yet
+				} catch (IOException e) {
+					Logger.getLogger(HashCache.class.getName()).log(Level.WARNING,
+							"Cannot read " + path.resolve(SIDECAR_NAME), e);
+				}
+			}
+			return sidecar;
+		}
+
+		/**
+		 * Replace the sidecar file with the entries in memory.
+		 */
+		private void write() {
+			if (!dirty) {
+				return;
+			}
+			dirty = false;
+
+			Path file = path.resolve(SIDECAR_NAME);
+			Path temp = path.resolve(SIDECAR_NAME + "-tmp");
+			try {
+				try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+					for (Map.Entry<String, String> entry : sidecar.entrySet()) {
+						// Files deleted since they were hashed are dropped
+						if (Files.exists(path.resolve(entry.getKey()))) {
+							writer.write(entry.getKey() + "\t" + entry.getValue());
+							writer.newLine();
+						}
+					}
+				}
+				try {
+					Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				} catch (AtomicMoveNotSupportedException e) {
+					Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+				}
+			} catch (AccessDeniedException e) {
+				// A read-only tree, its files are hashed again next time
+				Logger.getLogger(HashCache.class.getName()).log(Level.FINE, "Cannot write " + file, e);
+			} catch (IOException e) {
+				Logger.getLogger(HashCache.class.getName()).log(Level.WARNING, "Cannot write " + file, e);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,26 @@
+package com.adamiworks.filesync.hash;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental hash computation. Instances are not thread-safe and can only
+ * compute one hash.
+ *
+ * @author Tiago J. Adami
+ */
+public interface Hasher {
+
+	/**
+	 * Add the remaining bytes of a buffer to the hash. The buffer position is
+	 * moved to its limit.
+	 *
+	 * @param buffer
+	 */
+	void update(ByteBuffer buffer);
+
+	/**
+	 * @return the hash of all bytes given to {@link #update(ByteBuffer)}
+	 */
+	byte[] digest();
+
+}
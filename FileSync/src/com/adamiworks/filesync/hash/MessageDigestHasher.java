@@ -0,0 +1,34 @@
+package com.adamiworks.filesync.hash;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * {@link Hasher} backed by a JCA {@link MessageDigest}.
+ *
+ * @author Tiago J. Adami
+ */
+final class MessageDigestHasher implements Hasher {
+
+	private final MessageDigest md;
+
+	MessageDigestHasher(String algorithm) {
+		try {
+			this.md = MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(algorithm + " is not available in this JVM", e);
+		}
+	}
+
+	@Override
+	public void update(ByteBuffer buffer) {
+		md.update(buffer);
+	}
+
+	@Override
+	public byte[] digest() {
+		return md.digest();
+	}
+
+}
@@ -0,0 +1,114 @@
+package com.adamiworks.filesync.hash;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Streaming implementation of the 64-bit xxHash algorithm (seed 0). It is not
+ * a cryptographic hash, but detects changed file content at memory bandwidth.
+ *
+ * @author Tiago J. Adami
+ */
+final class XxHash64 implements Hasher {
+
+	private static final long P1 = 0x9E3779B185EBCA87L;
+	private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long P3 = 0x165667B19E3779F9L;
+	private static final long P4 = 0x85EBCA77C2B2AE63L;
+	private static final long P5 = 0x27D4EB2F165667C5L;
+
+	private long v1 = P1 + P2;
+	private long v2 = P2;
+	private long v3 = 0;
+	private long v4 = -P1;
+	private long length;
+
+	// Bytes of an incomplete 32 byte stripe
+	private final ByteBuffer pending = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+
+	@Override
+	public void update(ByteBuffer buffer) {
+		ByteBuffer b = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+		length += b.remaining();
+		buffer.position(buffer.limit());
+
+		if (pending.position() > 0) {
+			while (pending.hasRemaining() && b.hasRemaining()) {
+				pending.put(b.get());
+			}
+			if (pending.hasRemaining()) {
+				return;
+			}
+			pending.flip();
+			stripe(pending);
+			pending.clear();
+		}
+
+		while (b.remaining() >= 32) {
+			stripe(b);
+		}
+		pending.put(b);
+	}
+
+	private void stripe(ByteBuffer b) {
+		v1 = round(v1, b.getLong());
+		v2 = round(v2, b.getLong());
+		v3 = round(v3, b.getLong());
+		v4 = round(v4, b.getLong());
+	}
+
+	@Override
+	public byte[] digest() {
+		long h;
+
+		if (length >= 32) {
+			h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+			h = merge(h, v1);
+			h = merge(h, v2);
+			h = merge(h, v3);
+			h = merge(h, v4);
+		} else {
+			h = P5;
+		}
+		h += length;
+
+		pending.flip();
+		while (pending.remaining() >= 8) {
+			h ^= round(0, pending.getLong());
+			h = Long.rotateLeft(h, 27) * P1 + P4;
+		}
+		if (pending.remaining() >= 4) {
+			h ^= (pending.getInt() & 0xFFFFFFFFL) * P1;
+			h = Long.rotateLeft(h, 23) * P2 + P3;
+		}
+		while (pending.hasRemaining()) {
+			h ^= (pending.get() & 0xFF) * P5;
+			h = Long.rotateLeft(h, 11) * P1;
+		}
+
+		h ^= h >>> 33;
+		h *= P2;
+		h ^= h >>> 29;
+		h *= P3;
+		h ^= h >>> 32;
+
+		byte[] digest = new byte[8];
+		for (int i = 7; i >= 0; i--) {
+			digest[i] = (byte) h;
+			h >>>= 8;
+		}
+		return digest;
+	}
+
+	private static long round(long acc, long input) {
+		acc += input * P2;
+		acc = Long.rotateLeft(acc, 31);
+		return acc * P1;
+	}
+
+	private static long merge(long acc, long value) {
+		acc ^= round(0, value);
+		return acc * P1 + P4;
+	}
+
+}
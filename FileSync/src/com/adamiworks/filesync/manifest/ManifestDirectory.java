@@ -0,0 +1,61 @@
+package com.adamiworks.filesync.manifest;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Manifest entries of one directory. Holds the entries recorded by the
+ * previous run and collects the entries of the current run, which are written
+ * back by {@link ScanManifest#store(ManifestDirectory)}.<BR>
+ * An instance belongs to the single task processing that directory. Entries
+ * may also be put by the copies of its large files, which end before the
+ * directory is stored.
+ *
+ * @author Tiago J. Adami
+ */
+public final class ManifestDirectory {
+
+	private final String relativePath;
+	private final Map<String, ManifestEntry> previous;
+	private final Map<String, ManifestEntry> current = new LinkedHashMap<String, ManifestEntry>();
+
+	ManifestDirectory(String relativePath, Map<String, ManifestEntry> previous) {
+		this.relativePath = relativePath;
+		this.previous = previous == null ? new HashMap<String, ManifestEntry>() : previous;
+	}
+
+	/**
+	 * @return directory path relative to the synchronized root, using "/" as
+	 *         separator. The root itself is an empty String.
+	 */
+	public String getRelativePath() {
+		return relativePath;
+	}
+
+	/**
+	 * Entry recorded by the previous run.
+	 *
+	 * @param name
+	 *            file name
+	 * @return the entry or null if the file was not known
+	 */
+	public ManifestEntry getPrevious(String name) {
+		return previous.get(name);
+	}
+
+	/**
+	 * Record the state of a file for the next run.
+	 *
+	 * @param entry
+	 */
+	public synchronized void put(ManifestEntry entry) {
+		current.put(entry.getName(), entry);
+	}
+
+	Collection<ManifestEntry> getCurrentEntries() {
+		return current.values();
+	}
+
+}
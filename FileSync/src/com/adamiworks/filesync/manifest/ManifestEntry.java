@@ -0,0 +1,131 @@
+package com.adamiworks.filesync.manifest;
+
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+
+/**
+ * State of a single source file as recorded by a previous FileSync run.
+ *
+ * @author Tiago J. Adami
+ */
+public final class ManifestEntry {
+
+	private final String name;
+	private final long size;
+	private final long lastModified;
+	private final String fileKey;
+	private final String hashAlgorithm;
+	private final byte[] hash;
+
+	/**
+	 * @param name
+	 *            file name, without the parent directory
+	 * @param size
+	 *            file length in bytes
+	 * @param lastModified
+	 *            modification time in milliseconds
+	 * @param fileKey
+	 *            inode/file key as given by the file system, may be null
+	 * @param hashAlgorithm
+	 *            algorithm used to compute hash, null when there is no hash
+	 * @param hash
+	 *            content hash, may be null
+	 */
+	public ManifestEntry(String name, long size, long lastModified, String fileKey, String hashAlgorithm,
+			byte[] hash) {
+		this.name = name;
+		this.size = size;
+		this.lastModified = lastModified;
+		this.fileKey = fileKey;
+		this.hashAlgorithm = hash == null ? null : hashAlgorithm;
+		this.hash = hash;
+	}
+
+	/**
+	 * Creates an entry from the attributes of a source file.
+	 *
+	 * @param name
+	 * @param attrs
+	 * @return
+	 */
+	public static ManifestEntry of(String name, BasicFileAttributes attrs) {
+		Object key = attrs.fileKey();
+		return new ManifestEntry(name, attrs.size(), attrs.lastModifiedTime().toMillis(),
+				key == null ? null : key.toString(), null, null);
+	}
+
+	/**
+	 * Returns a copy of this entry holding the given content hash.
+	 *
+	 * @param hashAlgorithm
+	 * @param hash
+	 * @return
+	 */
+	public ManifestEntry withHash(String hashAlgorithm, byte[] hash) {
+		return new ManifestEntry(name, size, lastModified, fileKey, hashAlgorithm, hash);
+	}
+
+	/**
+	 * Check if a source file still has the length, modification date and file
+	 * key recorded in this entry.
+	 *
+	 * @param attrs
+	 *            current attributes of the source file
+	 * @return true if the file did not change since it was recorded
+	 */
+	public boolean isUnchanged(BasicFileAttributes attrs) {
+		if (attrs.size() != size || attrs.lastModifiedTime().toMillis() != lastModified) {
+			return false;
+		}
+
+		Object key = attrs.fileKey();
+		return fileKey == null || key == null || fileKey.equals(key.toString());
+	}
+
+	/**
+	 * Check if this entry holds a hash computed with the given algorithm.
+	 *
+	 * @param algorithm
+	 * @return
+	 */
+	public boolean hasHash(String algorithm) {
+		return hash != null && algorithm.equals(hashAlgorithm);
+	}
+
+	/**
+	 * Compare the recorded hash with another one.
+	 *
+	 * @param algorithm
+	 * @param other
+	 * @return true only if both hashes were computed with the same algorithm
+	 *         and are equal
+	 */
+	public boolean hashEquals(String algorithm, byte[] other) {
+		return hasHash(algorithm) && Arrays.equals(hash, other);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	public String getFileKey() {
+		return fileKey;
+	}
+
+	public String getHashAlgorithm() {
+		return hashAlgorithm;
+	}
+
+	public byte[] getHash() {
+		return hash;
+	}
+
+}
@@ -0,0 +1,292 @@
+package com.adamiworks.filesync.manifest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Binary manifest of the source files seen by the last FileSync run, kept in
+ * the destination root. With it a run only needs to stat the source: files
+ * whose length, modification date and file key match the manifest are known
+ * to be in sync without touching the destination.<BR>
+ * <BR>
+ * The file is a sequence of directory blocks followed by an index:
+ *
+ * <pre>
+ * header:  int magic, int version
+ * block:   int count, count x (UTF name, long size, long lastModified,
+ *          UTF fileKey, UTF hashAlgorithm, short hashLength, byte[] hash)
+ * index:   int count, count x (UTF directory, long offset, int length)
+ * trailer: long indexOffset, int magic
+ * </pre>
+ *
+ * Only the index is loaded in memory. Each directory block is read on demand
+ * when its directory is processed, so the memory needed does not depend on the
+ * number of files in the tree. Blocks of the new manifest are appended by
+ * concurrent tasks as they finish their directories and the new file replaces
+ * the old one on {@link #commit()}.
+ *
+ * @author Tiago J. Adami
+ */
+public final class ScanManifest implements Closeable {
+
+	public static final String FILE_NAME = ".filesync.manifest";
+
+	private static final int MAGIC = 0x46534D46;
+	private static final int VERSION = 1;
+	private static final int TRAILER_LENGTH = 12;
+
+	private final Path file;
+	private final Path tempFile;
+	private final Map<String, long[]> previousIndex = new HashMap<String, long[]>();
+	private final List<IndexEntry> currentIndex = new ArrayList<IndexEntry>();
+	private FileChannel previousChannel;
+	private FileChannel currentChannel;
+	private boolean committed;
+
+	private static final class IndexEntry {
+		private final String directory;
+		private final long offset;
+		private final int length;
+
+		private IndexEntry(String directory, long offset, int length) {
+			this.directory = directory;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private ScanManifest(Path file) {
+		this.file = file;
+		this.tempFile = file.resolveSibling(FILE_NAME + ".tmp");
+	}
+
+	/**
+	 * Load the manifest of a destination root and start a new one.
+	 *
+	 * @param destinationRoot
+	 *            root of the synchronized destination tree
+	 * @return
+	 * @throws IOException
+	 *             if the new manifest cannot be created
+	 */
+	public static ScanManifest open(File destinationRoot) throws IOException {
+		destinationRoot.mkdirs();
+		ScanManifest manifest = new ScanManifest(new File(destinationRoot, FILE_NAME).toPath());
+
+		if (Files.isRegularFile(manifest.file)) {
+			try {
+				manifest.loadIndex();
+			} catch (IOException e) {
+				Logger.getLogger(ScanManifest.class.getName()).log(Level.WARNING,
+						"Ignoring unreadable manifest " + manifest.file + ": " + e.getMessage());
+				manifest.previousIndex.clear();
+				manifest.closePrevious();
+			}
+		}
+
+		manifest.currentChannel = FileChannel.open(manifest.tempFile, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		ByteBuffer header = ByteBuffer.allocate(8);
+		header.putInt(MAGIC).putInt(VERSION).flip();
+		writeFully(manifest.currentChannel, header);
+
+		return manifest;
+	}
+
+	private void loadIndex() throws IOException {
+		previousChannel = FileChannel.open(file, StandardOpenOption.READ);
+		long size = previousChannel.size();
+
+		if (size < 8 + TRAILER_LENGTH) {
+			throw new IOException("manifest is truncated");
+		}
+
+		ByteBuffer header = readFully(previousChannel, 0, 8);
+		if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+			throw new IOException("unknown manifest format");
+		}
+
+		ByteBuffer trailer = readFully(previousChannel, size - TRAILER_LENGTH, TRAILER_LENGTH);
+		long indexOffset = trailer.getLong();
+		if (trailer.getInt() != MAGIC || indexOffset < 8 || indexOffset > size - TRAILER_LENGTH) {
+			throw new IOException("manifest was not completely written");
+		}
+
+		ByteBuffer index = readFully(previousChannel, indexOffset, (int) (size - TRAILER_LENGTH - indexOffset));
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(index.array()));
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			String directory = in.readUTF();
+			long offset = in.readLong();
+			int length = in.readInt();
+			previousIndex.put(directory, new long[] { offset, length });
+		}
+	}
+
+	/**
+	 * Entries of a directory as recorded by the previous run. The returned
+	 * object must be given back to {@link #store(ManifestDirectory)} once the
+	 * directory has been processed.
+	 *
+	 * @param relativePath
+	 *            directory relative to the root, "/" separated
+	 * @return
+	 */
+	public ManifestDirectory directory(String relativePath) {
+		long[] position = previousIndex.get(relativePath);
+		Map<String, ManifestEntry> entries = null;
+
+		if (position != null) {
+			try {
+				entries = readBlock(position[0], (int) position[1]);
+			} catch (IOException e) {
+				Logger.getLogger(ScanManifest.class.getName()).log(Level.WARNING,
+						"Ignoring unreadable manifest block for \"" + relativePath + "\": " + e.getMessage());
+			}
+		}
+
+		return new ManifestDirectory(relativePath, entries);
+	}
+
+	private Map<String, ManifestEntry> readBlock(long offset, int length) throws IOException {
+		DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(readFully(previousChannel, offset, length).array()));
+		int count = in.readInt();
+		Map<String, ManifestEntry> entries = new HashMap<String, ManifestEntry>(count * 4 / 3 + 1);
+
+		for (int i = 0; i < count; i++) {
+			String name = in.readUTF();
+			long size = in.readLong();
+			long lastModified = in.readLong();
+			String fileKey = in.readUTF();
+			String hashAlgorithm = in.readUTF();
+			byte[] hash = new byte[in.readShort()];
+			in.readFully(hash);
+
+			entries.put(name, new ManifestEntry(name, size, lastModified, fileKey.isEmpty() ? null : fileKey,
+					hashAlgorithm, hash.length == 0 ? null : hash));
+		}
+
+		return entries;
+	}
+
+	/**
+	 * Append the entries collected for a directory to the new manifest. Safe
+	 * to call from concurrent tasks.
+	 *
+	 * @param directory
+	 * @throws IOException
+	 */
+	public void store(ManifestDirectory directory) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		out.writeInt(directory.getCurrentEntries().size());
+		for (ManifestEntry e : directory.getCurrentEntries()) {
+			out.writeUTF(e.getName());
+			out.writeLong(e.getSize());
+			out.writeLong(e.getLastModified());
+			out.writeUTF(e.getFileKey() == null ? "" : e.getFileKey());
+			out.writeUTF(e.getHashAlgorithm() == null ? "" : e.getHashAlgorithm());
+			byte[] hash = e.getHash() == null ? new byte[0] : e.getHash();
+			out.writeShort(hash.length);
+			out.write(hash);
+		}
+		out.flush();
+
+		synchronized (this) {
+			long offset = currentChannel.position();
+			writeFully(currentChannel, ByteBuffer.wrap(bytes.toByteArray()));
+			currentIndex.add(new IndexEntry(directory.getRelativePath(), offset, bytes.size()));
+		}
+	}
+
+	/**
+	 * Write the index of the new manifest and replace the previous one.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void commit() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		long indexOffset = currentChannel.position();
+
+		out.writeInt(currentIndex.size());
+		for (IndexEntry i : currentIndex) {
+			out.writeUTF(i.directory);
+			out.writeLong(i.offset);
+			out.writeInt(i.length);
+		}
+		out.writeLong(indexOffset);
+		out.writeInt(MAGIC);
+		out.flush();
+
+		writeFully(currentChannel, ByteBuffer.wrap(bytes.toByteArray()));
+		currentChannel.force(true);
+		currentChannel.close();
+		closePrevious();
+
+		try {
+			Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+		}
+		committed = true;
+	}
+
+	/**
+	 * Release the manifest files. If {@link #commit()} was not called the new
+	 * manifest is discarded and the previous one is kept.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		closePrevious();
+		if (!committed) {
+			currentChannel.close();
+			Files.deleteIfExists(tempFile);
+		}
+	}
+
+	private void closePrevious() throws IOException {
+		if (previousChannel != null) {
+			previousChannel.close();
+			previousChannel = null;
+		}
+	}
+
+	private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("unexpected end of manifest");
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+}
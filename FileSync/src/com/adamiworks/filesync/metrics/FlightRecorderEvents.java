@@ -0,0 +1,189 @@
+package com.adamiworks.filesync.metrics;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Java Flight Recorder events for every file copy and hash, shown under
+ * "FileSync" in JDK Mission Control:
+ * <ul>
+ * <li>com.adamiworks.filesync.FileCopy: source, destination, bytes and copy
+ * method;</li>
+ * <li>com.adamiworks.filesync.FileHash: file, bytes and algorithm.</li>
+ * </ul>
+ * The program runs on Java 8, where the jdk.jfr API does not exist, so the
+ * event types are defined at run time with the EventFactory of Java 12 or
+ * newer, called through method handles. On older Java versions, and while no
+ * recording is running, begin returns null and nothing is allocated.
+ *
+ * @author Tiago J. Adami
+ */
+public final class FlightRecorderEvents {
+
+	private static final MethodHandle NEW_EVENT;
+	private static final MethodHandle BEGIN;
+	private static final MethodHandle COMMIT;
+	private static final MethodHandle SET;
+	private static final MethodHandle IS_ENABLED;
+	private static final Object COPY_FACTORY;
+	private static final Object HASH_FACTORY;
+	private static final Object COPY_PROTOTYPE;
+	private static final Object HASH_PROTOTYPE;
+
+	static {
+		MethodHandle newEvent = null;
+		MethodHandle begin = null;
+		MethodHandle commit = null;
+		MethodHandle set = null;
+		MethodHandle isEnabled = null;
+		Object copyFactory = null;
+		Object hashFactory = null;
+		Object copyPrototype = null;
+		Object hashPrototype = null;
+
+		try {
+			Class<?> event = Class.forName("jdk.jfr.Event");
+			Class<?> factory = Class.forName("jdk.jfr.EventFactory");
+			Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+			Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor");
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+
+			MethodHandle create = lookup.findStatic(factory, "create",
+					MethodType.methodType(factory, List.class, List.class));
+			MethodHandle annotation = lookup.findConstructor(annotationElement,
+					MethodType.methodType(void.class, Class.class, Object.class));
+			MethodHandle field = lookup.findConstructor(valueDescriptor,
+					MethodType.methodType(void.class, Class.class, String.class));
+
+			Class<?> name = Class.forName("jdk.jfr.Name");
+			Class<?> label = Class.forName("jdk.jfr.Label");
+			Class<?> category = Class.forName("jdk.jfr.Category");
+			Object fileSync = new String[] { "FileSync" };
+
+			copyFactory = create.invoke(
+					Arrays.asList(annotation.invoke(name, "com.adamiworks.filesync.FileCopy"),
+							annotation.invoke(label, "File Copy"), annotation.invoke(category, fileSync)),
+					Arrays.asList(field.invoke(String.class, "source"), field.invoke(String.class, "destination"),
+							field.invoke(long.class, "bytes"), field.invoke(String.class, "method")));
+			hashFactory = create.invoke(
+					Arrays.asList(annotation.invoke(name, "com.adamiworks.filesync.FileHash"),
+							annotation.invoke(label, "File Hash"), annotation.invoke(category, fileSync)),
+					Arrays.asList(field.invoke(String.class, "file"), field.invoke(long.class, "bytes"),
+							field.invoke(String.class, "algorithm")));
+
+			newEvent = lookup.findVirtual(factory, "newEvent", MethodType.methodType(event))
+					.asType(MethodType.methodType(Object.class, Object.class));
+			begin = lookup.findVirtual(event, "begin", MethodType.methodType(void.class))
+					.asType(MethodType.methodType(void.class, Object.class));
+			commit = lookup.findVirtual(event, "commit", MethodType.methodType(void.class))
+					.asType(MethodType.methodType(void.class, Object.class));
+			set = lookup.findVirtual(event, "set", MethodType.methodType(void.class, int.class, Object.class))
+					.asType(MethodType.methodType(void.class, Object.class, int.class, Object.class));
+			isEnabled = lookup.findVirtual(event, "isEnabled", MethodType.methodType(boolean.class))
+					.asType(MethodType.methodType(boolean.class, Object.class));
+
+			copyPrototype = newEvent.invokeExact(copyFactory);
+			hashPrototype = newEvent.invokeExact(hashFactory);
+		} catch (Throwable e) {
+			// Java 11 or older: no events
+			newEvent = null;
+		}
+
+		NEW_EVENT = newEvent;
+		BEGIN = begin;
+		COMMIT = commit;
+		SET = set;
+		IS_ENABLED = isEnabled;
+		COPY_FACTORY = copyFactory;
+		HASH_FACTORY = hashFactory;
+		COPY_PROTOTYPE = copyPrototype;
+		HASH_PROTOTYPE = hashPrototype;
+	}
+
+	private FlightRecorderEvents() {
+	}
+
+	/**
+	 * @return true if events can be recorded by this Java version
+	 */
+	public static boolean isAvailable() {
+		return NEW_EVENT != null;
+	}
+
+	/**
+	 * Start timing a copy.
+	 *
+	 * @return the event, or null if not recorded
+	 */
+	public static Object beginCopy() {
+		return begin(COPY_FACTORY, COPY_PROTOTYPE);
+	}
+
+	/**
+	 * @param event
+	 *            returned by {@link #beginCopy()}
+	 * @param source
+	 * @param destination
+	 * @param bytes
+	 * @param method
+	 *            how the file was copied
+	 */
+	public static void commitCopy(Object event, String source, String destination, long bytes, String method) {
+		if (event != null) {
+			commit(event, source, destination, bytes, method);
+		}
+	}
+
+	/**
+	 * Start timing a hash.
+	 *
+	 * @return the event, or null if not recorded
+	 */
+	public static Object beginHash() {
+		return begin(HASH_FACTORY, HASH_PROTOTYPE);
+	}
+
+	/**
+	 * @param event
+	 *            returned by {@link #beginHash()}
+	 * @param file
+	 * @param bytes
+	 * @param algorithm
+	 */
+	public static void commitHash(Object event, String file, long bytes, String algorithm) {
+		if (event != null) {
+			commit(event, file, bytes, algorithm);
+		}
+	}
+
+	private static Object begin(Object factory, Object prototype) {
+		if (NEW_EVENT == null) {
+			return null;
+		}
+		try {
+			if (!(boolean) IS_ENABLED.invokeExact(prototype)) {
+				return null;
+			}
+			Object event = NEW_EVENT.invokeExact(factory);
+			BEGIN.invokeExact(event);
+			return event;
+		} catch (Throwable e) {
+			return null;
+		}
+	}
+
+	private static void commit(Object event, Object... values) {
+		try {
+			for (int i = 0; i < values.length; i++) {
+				SET.invokeExact(event, i, values[i]);
+			}
+			COMMIT.invokeExact(event);
+		} catch (Throwable e) {
+			// Events are best effort
+		}
+	}
+
+}
@@ -0,0 +1,88 @@
+package com.adamiworks.filesync.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations in power of two buckets of nanoseconds. Recording
+ * is a single striped increment, so it can be called for every file by all
+ * threads; percentiles are precise to a factor of two.
+ *
+ * @author Tiago J. Adami
+ */
+public final class LatencyHistogram {
+
+	private static final int BUCKETS = 64;
+
+	private final LongAdder[] buckets = new LongAdder[BUCKETS];
+	private final LongAdder total = new LongAdder();
+
+	public LatencyHistogram() {
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * @param nanos
+	 *            a duration
+	 */
+	public void record(long nanos) {
+		long n = Math.max(0, nanos);
+		buckets[BUCKETS - Long.numberOfLeadingZeros(n) - (n == 0 ? 0 : 1)].increment();
+		total.add(n);
+	}
+
+	/**
+	 * @return number of durations recorded
+	 */
+	public long getCount() {
+		long count = 0;
+		for (LongAdder bucket : buckets) {
+			count += bucket.sum();
+		}
+		return count;
+	}
+
+	/**
+	 * @return sum of all durations, in nanoseconds
+	 */
+	public long getTotalNanos() {
+		return total.sum();
+	}
+
+	/**
+	 * @param quantile
+	 *            between 0 and 1, like 0.99
+	 * @return upper bound of the bucket holding the quantile, in
+	 *         nanoseconds, or 0 if nothing was recorded
+	 */
+	public long getPercentile(double quantile) {
+		long[] counts = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets[i].sum();
+			count += counts[i];
+		}
+		if (count == 0) {
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(quantile * count);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank && counts[i] > 0) {
+				return i >= BUCKETS - 1 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+			}
+		}
+		return Long.MAX_VALUE;
+	}
+
+	public void reset() {
+		for (LongAdder bucket : buckets) {
+			bucket.reset();
+		}
+		total.reset();
+	}
+
+}
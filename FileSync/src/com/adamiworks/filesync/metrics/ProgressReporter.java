@@ -0,0 +1,75 @@
+package com.adamiworks.filesync.metrics;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import com.adamiworks.filesync.util.DaemonThreadFactory;
+
+/**
+ * Prints one line of {@link SyncMetrics} at a fixed interval, with the copy
+ * rate since the previous line. Lines go to the standard error, so the list of
+ * copied files on the standard output can still be piped.
+ *
+ * @author Tiago J. Adami
+ */
+public final class ProgressReporter implements Runnable {
+
+	private final SyncMetrics metrics;
+	private final long intervalMillis;
+	private final PrintStream out;
+	private Thread thread;
+
+	/**
+	 * @param metrics
+	 * @param intervalSeconds
+	 *            time between two lines
+	 */
+	public ProgressReporter(SyncMetrics metrics, long intervalSeconds) {
+		if (intervalSeconds < 1) {
+			throw new IllegalArgumentException("Progress interval must be greater than zero: " + intervalSeconds);
+		}
+		this.metrics = metrics;
+		this.intervalMillis = TimeUnit.SECONDS.toMillis(intervalSeconds);
+		this.out = System.err;
+	}
+
+	public synchronized void start() {
+		if (thread == null) {
+			thread = new DaemonThreadFactory("ProgressReporter").newThread(this);
+			thread.start();
+		}
+	}
+
+	public synchronized void stop() {
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	@Override
+	public void run() {
+		long lastBytes = metrics.getBytesCopied();
+		long lastTime = System.nanoTime();
+
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				Thread.sleep(intervalMillis);
+
+				long bytes = metrics.getBytesCopied();
+				long now = System.nanoTime();
+				// Counters are reset between daemon runs
+				long copied = bytes >= lastBytes ? bytes - lastBytes : bytes;
+				double seconds = (now - lastTime) / 1e9;
+
+				out.println("Progress: " + metrics.summary() + ", "
+						+ SyncMetrics.megabytes((long) (copied / seconds)) + "/s");
+				lastBytes = bytes;
+				lastTime = now;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -0,0 +1,37 @@
+package com.adamiworks.filesync.metrics;
+
+/**
+ * Steps of a synchronization whose latency is measured by
+ * {@link SyncMetrics}.
+ *
+ * @author Tiago J. Adami
+ */
+public enum Stage {
+
+	/**
+	 * Listing one directory and reading the attributes of its entries.
+	 */
+	SCAN,
+
+	/**
+	 * Comparing the listings of one directory in the mirror pipeline.
+	 */
+	DIFF,
+
+	/**
+	 * Hashing one file, or the source and destination of one file.
+	 */
+	HASH,
+
+	/**
+	 * Copying, delta transferring or storing one file.
+	 */
+	COPY,
+
+	/**
+	 * Syncing the files of one directory written by a batch of
+	 * {@link com.adamiworks.filesync.copy.DeferredSync}, and the directory.
+	 */
+	FSYNC
+
+}
@@ -0,0 +1,259 @@
+package com.adamiworks.filesync.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters, latency histograms and queue depths of a synchronization. All
+ * updates are striped increments that never block, so the workers can
+ * update them for every file.<BR>
+ * <BR>
+ * Metrics can be read through JMX, a {@link ProgressReporter} and
+ * {@link #summary()}. Instances may be shared by concurrent threads.
+ *
+ * @author Tiago J. Adami
+ */
+public final class SyncMetrics implements SyncMetricsMXBean {
+
+	public static final String OBJECT_NAME = "com.adamiworks.filesync:type=SyncMetrics";
+
+	private final LongAdder filesScanned = new LongAdder();
+	private final LongAdder statCalls = new LongAdder();
+	private final LongAdder filesHashed = new LongAdder();
+	private final LongAdder bytesHashed = new LongAdder();
+	private final LongAdder filesCopied = new LongAdder();
+	private final LongAdder bytesCopied = new LongAdder();
+	private final Map<Stage, LatencyHistogram> latencies = new EnumMap<Stage, LatencyHistogram>(Stage.class);
+	private final Map<String, IntSupplier> queues = new ConcurrentHashMap<String, IntSupplier>();
+
+	public SyncMetrics() {
+		for (Stage stage : Stage.values()) {
+			latencies.put(stage, new LatencyHistogram());
+		}
+	}
+
+	/**
+	 * An entry was listed and its attributes read.
+	 */
+	public void scanned() {
+		filesScanned.increment();
+		statCalls.increment();
+	}
+
+	/**
+	 * Attributes of a file were read outside a listing.
+	 */
+	public void stat() {
+		statCalls.increment();
+	}
+
+	/**
+	 * @param bytes
+	 *            bytes read to hash one file, or both files of a comparison
+	 * @param nanos
+	 *            time taken
+	 */
+	public void hashed(long bytes, long nanos) {
+		filesHashed.increment();
+		bytesHashed.add(bytes);
+		latencies.get(Stage.HASH).record(nanos);
+	}
+
+	/**
+	 * @param bytes
+	 *            bytes written for the file: its size, only the changed
+	 *            blocks of a delta transfer, or nothing when its content was
+	 *            already stored
+	 * @param nanos
+	 *            time taken
+	 */
+	public void copied(long bytes, long nanos) {
+		filesCopied.increment();
+		bytesCopied.add(bytes);
+		latencies.get(Stage.COPY).record(nanos);
+	}
+
+	/**
+	 * @param stage
+	 * @param nanos
+	 *            time taken by one operation of the stage
+	 */
+	public void record(Stage stage, long nanos) {
+		latencies.get(stage).record(nanos);
+	}
+
+	/**
+	 * @param stage
+	 * @return latencies of a stage
+	 */
+	public LatencyHistogram getLatency(Stage stage) {
+		return latencies.get(stage);
+	}
+
+	/**
+	 * Report the size of a queue, replacing any queue of the same name.
+	 *
+	 * @param name
+	 * @param depth
+	 *            returns the current number of items
+	 */
+	public void registerQueue(String name, IntSupplier depth) {
+		queues.put(name, depth);
+	}
+
+	public void unregisterQueue(String name) {
+		queues.remove(name);
+	}
+
+	@Override
+	public long getFilesScanned() {
+		return filesScanned.sum();
+	}
+
+	@Override
+	public long getStatCalls() {
+		return statCalls.sum();
+	}
+
+	@Override
+	public long getFilesHashed() {
+		return filesHashed.sum();
+	}
+
+	@Override
+	public long getBytesHashed() {
+		return bytesHashed.sum();
+	}
+
+	@Override
+	public long getFilesCopied() {
+		return filesCopied.sum();
+	}
+
+	@Override
+	public long getBytesCopied() {
+		return bytesCopied.sum();
+	}
+
+	@Override
+	public Map<String, Long> getStageCounts() {
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for (Map.Entry<Stage, LatencyHistogram> e : latencies.entrySet()) {
+			counts.put(e.getKey().name(), e.getValue().getCount());
+		}
+		return counts;
+	}
+
+	@Override
+	public Map<String, Long> getMedianLatencyMicros() {
+		return percentiles(0.5);
+	}
+
+	@Override
+	public Map<String, Long> getP99LatencyMicros() {
+		return percentiles(0.99);
+	}
+
+	private Map<String, Long> percentiles(double quantile) {
+		Map<String, Long> result = new TreeMap<String, Long>();
+		for (Map.Entry<Stage, LatencyHistogram> e : latencies.entrySet()) {
+			result.put(e.getKey().name(), TimeUnit.NANOSECONDS.toMicros(e.getValue().getPercentile(quantile)));
+		}
+		return result;
+	}
+
+	@Override
+	public Map<String, Integer> getQueueDepths() {
+		Map<String, Integer> depths = new TreeMap<String, Integer>();
+		for (Map.Entry<String, IntSupplier> e : queues.entrySet()) {
+			depths.put(e.getKey(), e.getValue().getAsInt());
+		}
+		return depths;
+	}
+
+	/**
+	 * @return the counters and queue depths in one line
+	 */
+	public String summary() {
+		StringBuilder line = new StringBuilder();
+		line.append(getFilesScanned()).append(" scanned, ");
+		line.append(getStatCalls()).append(" stats, ");
+		line.append(getFilesHashed()).append(" hashed (").append(megabytes(getBytesHashed())).append("), ");
+		line.append(getFilesCopied()).append(" copied (").append(megabytes(getBytesCopied())).append(")");
+
+		Map<String, Integer> depths = getQueueDepths();
+		if (!depths.isEmpty()) {
+			line.append(", queues");
+			for (Map.Entry<String, Integer> e : depths.entrySet()) {
+				line.append(' ').append(e.getKey()).append('=').append(e.getValue());
+			}
+		}
+		return line.toString();
+	}
+
+	/**
+	 * @return the latency percentiles of every stage that ran, in one line
+	 */
+	public String latencySummary() {
+		StringBuilder line = new StringBuilder();
+		for (Map.Entry<Stage, LatencyHistogram> e : latencies.entrySet()) {
+			LatencyHistogram h = e.getValue();
+			if (h.getCount() == 0) {
+				continue;
+			}
+			if (line.length() > 0) {
+				line.append(", ");
+			}
+			line.append(e.getKey()).append(" p50<").append(TimeUnit.NANOSECONDS.toMicros(h.getPercentile(0.5)))
+					.append("us p99<").append(TimeUnit.NANOSECONDS.toMicros(h.getPercentile(0.99))).append("us");
+		}
+		return line.toString();
+	}
+
+	static String megabytes(long bytes) {
+		return String.format("%.1f MB", bytes / (1024.0 * 1024));
+	}
+
+	/**
+	 * Clear all counters and histograms. Queues stay registered.
+	 */
+	public void reset() {
+		filesScanned.reset();
+		statCalls.reset();
+		filesHashed.reset();
+		bytesHashed.reset();
+		filesCopied.reset();
+		bytesCopied.reset();
+		for (LatencyHistogram h : latencies.values()) {
+			h.reset();
+		}
+	}
+
+	/**
+	 * Register the metrics in the platform MBean server.
+	 */
+	public void registerMBean() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (!server.isRegistered(name)) {
+				server.registerMBean(this, name);
+			}
+		} catch (JMException e) {
+			Logger.getLogger(SyncMetrics.class.getName()).log(Level.WARNING, "Cannot register " + OBJECT_NAME, e);
+		}
+	}
+
+}
@@ -0,0 +1,52 @@
+package com.adamiworks.filesync.metrics;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link SyncMetrics}. Counters cover the current
+ * run and are reset by FileSync.showFileCount(true).
+ *
+ * @author Tiago J. Adami
+ */
+public interface SyncMetricsMXBean {
+
+	/**
+	 * @return source and destination entries listed
+	 */
+	long getFilesScanned();
+
+	/**
+	 * @return file attribute reads
+	 */
+	long getStatCalls();
+
+	long getFilesHashed();
+
+	long getBytesHashed();
+
+	long getFilesCopied();
+
+	long getBytesCopied();
+
+	/**
+	 * @return operations measured, by {@link Stage}
+	 */
+	Map<String, Long> getStageCounts();
+
+	/**
+	 * @return median latency by {@link Stage}, in microseconds
+	 */
+	Map<String, Long> getMedianLatencyMicros();
+
+	/**
+	 * @return 99th percentile latency by {@link Stage}, in microseconds
+	 */
+	Map<String, Long> getP99LatencyMicros();
+
+	/**
+	 * @return current number of items in each queue of the running
+	 *         synchronization
+	 */
+	Map<String, Integer> getQueueDepths();
+
+}
@@ -0,0 +1,25 @@
+package com.adamiworks.filesync.pipeline;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Executes the actions of a {@link SyncPipeline}. Called concurrently by all
+ * applier threads.
+ *
+ * @author Tiago J. Adami
+ */
+public interface ActionApplier {
+
+	/**
+	 * @param action
+	 * @param source
+	 *            the action path inside the source tree
+	 * @param destination
+	 *            the action path inside the destination tree
+	 * @throws IOException
+	 *             logged by the pipeline, which goes on with the next action
+	 */
+	void apply(SyncAction action, Path source, Path destination) throws IOException;
+
+}
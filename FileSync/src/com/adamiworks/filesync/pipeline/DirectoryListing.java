@@ -0,0 +1,28 @@
+package com.adamiworks.filesync.pipeline;
+
+import java.util.List;
+
+/**
+ * Sorted contents of the same directory in the source and in the destination,
+ * passed from the scan stage to the diff stage.
+ *
+ * @author Tiago J. Adami
+ */
+final class DirectoryListing {
+
+	final String relativePath;
+	final List<ListingEntry> source;
+	final List<ListingEntry> destination;
+	final boolean destinationExists;
+	final boolean destinationIsDirectory;
+
+	DirectoryListing(String relativePath, List<ListingEntry> source, List<ListingEntry> destination,
+			boolean destinationExists, boolean destinationIsDirectory) {
+		this.relativePath = relativePath;
+		this.source = source;
+		this.destination = destination;
+		this.destinationExists = destinationExists;
+		this.destinationIsDirectory = destinationIsDirectory;
+	}
+
+}
@@ -0,0 +1,29 @@
+package com.adamiworks.filesync.pipeline;
+
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * The attributes of a directory entry the diff stage needs.
+ *
+ * @author Tiago J. Adami
+ */
+final class ListingEntry implements Comparable<ListingEntry> {
+
+	final String name;
+	final boolean directory;
+	final long size;
+	final long lastModified;
+
+	ListingEntry(String name, BasicFileAttributes attrs) {
+		this.name = name;
+		this.directory = attrs.isDirectory();
+		this.size = attrs.size();
+		this.lastModified = attrs.lastModifiedTime().toMillis();
+	}
+
+	@Override
+	public int compareTo(ListingEntry o) {
+		return name.compareTo(o.name);
+	}
+
+}
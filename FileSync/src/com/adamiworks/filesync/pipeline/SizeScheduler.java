@@ -0,0 +1,275 @@
+package com.adamiworks.filesync.pipeline;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.adamiworks.filesync.util.DaemonThreadFactory;
+
+/**
+ * Splits the files to copy in two classes by size. Small files stay with the
+ * many workers that walk the tree, or with the appliers of a
+ * {@link SyncPipeline}, which receive them in batches. Large files are handed
+ * to a few dedicated workers that only stream data, so a huge file never
+ * holds up thousands of small ones queued behind it, and the small ones never
+ * take the disk bandwidth a huge one needs.<BR>
+ * <BR>
+ * Queued large files are started largest first. Starting the longest copies
+ * early makes the whole run end close to the time of the largest single copy
+ * instead of the sum of them.<BR>
+ * <BR>
+ * A tree walker does not wait for the large files of a directory: it adds
+ * them to a {@link Group} whose completion runs when the directory has been
+ * listed and its last large copy ended, in whichever thread gets there last.
+ * {@link #awaitIdle()} waits for every queued copy at the end of a run.<BR>
+ * <BR>
+ * Instances may be shared by concurrent threads.
+ *
+ * @author Tiago J. Adami
+ */
+public final class SizeScheduler {
+
+	/**
+	 * Files of this size or larger are large by default.
+	 */
+	public static final long DEFAULT_LARGE_FILE_SIZE = 16L * 1024 * 1024;
+
+	private final long largeFileSize;
+	private final ThreadPoolExecutor executor;
+	private final AtomicLong sequence = new AtomicLong();
+	private final Object idle = new Object();
+	private long outstanding;
+
+	/**
+	 * @param largeFileSize
+	 *            files of this size or larger are copied by the large file
+	 *            workers
+	 * @param largeFileWorkers
+	 *            number of large files copied at the same time
+	 */
+	public SizeScheduler(long largeFileSize, int largeFileWorkers) {
+		if (largeFileSize < 1) {
+			throw new IllegalArgumentException("Large file size must be greater than zero: " + largeFileSize);
+		}
+		if (largeFileWorkers < 1) {
+			throw new IllegalArgumentException("Large file workers must be greater than zero: " + largeFileWorkers);
+		}
+		this.largeFileSize = largeFileSize;
+		this.executor = new ThreadPoolExecutor(largeFileWorkers, largeFileWorkers, 0, TimeUnit.MILLISECONDS,
+				new PriorityBlockingQueue<Runnable>(), new DaemonThreadFactory("SizeScheduler"));
+	}
+
+	public long getLargeFileSize() {
+		return largeFileSize;
+	}
+
+	/**
+	 * @return number of large files waiting for a worker
+	 */
+	public int getQueuedFiles() {
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * @param size
+	 * @return true if a file of this size must be given to
+	 *         {@link #submit(long, Runnable)}
+	 */
+	public boolean isLarge(long size) {
+		return size >= largeFileSize;
+	}
+
+	/**
+	 * Queue the copy of a large file.
+	 *
+	 * @param size
+	 *            the file size, larger files are started first
+	 * @param copy
+	 * @return completes when the copy is done
+	 */
+	public Future<?> submit(long size, Runnable copy) {
+		LargeFileTask task = new LargeFileTask(size, sequence.getAndIncrement(), copy);
+		synchronized (idle) {
+			outstanding++;
+		}
+		executor.execute(task);
+		return task;
+	}
+
+	/**
+	 * @param completion
+	 *            runs once the group is closed and its copies ended
+	 * @return a new group for the large files of one directory
+	 */
+	public Group group(Runnable completion) {
+		return new Group(completion);
+	}
+
+	/**
+	 * Wait until every submitted copy ended, including the completions of
+	 * the groups they ended.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void awaitIdle() throws InterruptedException {
+		synchronized (idle) {
+			while (outstanding > 0) {
+				idle.wait();
+			}
+		}
+	}
+
+	private void ended() {
+		synchronized (idle) {
+			if (--outstanding == 0) {
+				idle.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Wait for queued copies. When called from a {@link ForkJoinPool} worker
+	 * the pool may start a spare thread meanwhile, so the tree walk goes on.
+	 *
+	 * @param copies
+	 *            futures returned by {@link #submit(long, Runnable)}, cleared
+	 *            once all are done
+	 * @throws InterruptedException
+	 */
+	public static void awaitAll(List<Future<?>> copies) throws InterruptedException {
+		for (final Future<?> copy : copies) {
+			ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+				@Override
+				public boolean block() throws InterruptedException {
+					try {
+						copy.get();
+					} catch (ExecutionException e) {
+						// Reported below
+					}
+					return true;
+				}
+
+				@Override
+				public boolean isReleasable() {
+					return copy.isDone();
+				}
+			});
+
+			try {
+				copy.get();
+			} catch (ExecutionException e) {
+				// Copies log their own errors, anything else is a bug
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+		copies.clear();
+	}
+
+	/**
+	 * The large file copies of one directory. The directory is listed without
+	 * waiting for them; the completion, like storing the manifest entries of
+	 * the directory, runs after the listing and the last copy, whichever ends
+	 * last.
+	 */
+	public final class Group {
+
+		/**
+		 * Copies running or queued, plus one until the group is closed.
+		 */
+		private final AtomicInteger pending = new AtomicInteger(1);
+		private final Runnable completion;
+
+		private Group(Runnable completion) {
+			this.completion = completion;
+		}
+
+		/**
+		 * @param size
+		 * @return true if a file of this size must be given to
+		 *         {@link #submit(long, Runnable)}
+		 */
+		public boolean isLarge(long size) {
+			return SizeScheduler.this.isLarge(size);
+		}
+
+		/**
+		 * Queue the copy of a large file of the group. Errors it does not
+		 * handle itself are logged.
+		 *
+		 * @param size
+		 * @param copy
+		 */
+		public void submit(long size, final Runnable copy) {
+			pending.incrementAndGet();
+			try {
+				SizeScheduler.this.submit(size, () -> {
+					try {
+						copy.run();
+					} catch (RuntimeException e) {
+						Logger.getLogger(SizeScheduler.class.getName()).log(Level.SEVERE, "Large file copy failed", e);
+					} finally {
+						release();
+					}
+				});
+			} catch (RuntimeException e) {
+				release();
+				throw e;
+			}
+		}
+
+		/**
+		 * Every large file of the group was submitted.
+		 */
+		public void close() {
+			release();
+		}
+
+		private void release() {
+			if (pending.decrementAndGet() == 0) {
+				completion.run();
+			}
+		}
+	}
+
+	/**
+	 * A queued large file copy, ordered by decreasing size and then by
+	 * submission.
+	 */
+	private final class LargeFileTask extends FutureTask<Void> implements Comparable<LargeFileTask> {
+
+		private final long size;
+		private final long sequence;
+
+		private LargeFileTask(long size, long sequence, Runnable copy) {
+			super(copy, null);
+			this.size = size;
+			this.sequence = sequence;
+		}
+
+		@Override
+		protected void done() {
+			ended();
+		}
+
+		@Override
+		public int compareTo(LargeFileTask o) {
+			if (size != o.size) {
+				return size > o.size ? -1 : 1;
+			}
+			return Long.compare(sequence, o.sequence);
+		}
+	}
+
+}
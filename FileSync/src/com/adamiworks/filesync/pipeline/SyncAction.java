@@ -0,0 +1,92 @@
+package com.adamiworks.filesync.pipeline;
+
+/**
+ * A change to be made in the destination tree, as produced by the diff stage
+ * of a {@link SyncPipeline}.
+ *
+ * @author Tiago J. Adami
+ */
+public final class SyncAction {
+
+	public enum Type {
+
+		/**
+		 * Create a destination directory, replacing a file with the same name.
+		 */
+		MKDIR,
+
+		/**
+		 * Copy a file that does not exist in the destination.
+		 */
+		ADD,
+
+		/**
+		 * Replace a destination file whose length or modification date differ.
+		 */
+		UPDATE,
+
+		/**
+		 * Compare the contents of files with the same length and modification
+		 * date, replacing the destination if they differ.
+		 */
+		VERIFY,
+
+		/**
+		 * Delete a destination file or directory tree missing in the source.
+		 */
+		DELETE
+
+	}
+
+	private final Type type;
+	private final String relativePath;
+	private final boolean directory;
+	private final long size;
+	private final long lastModified;
+
+	/**
+	 * @param type
+	 * @param relativePath
+	 *            path relative to the synchronized roots, "/" separated
+	 * @param directory
+	 *            true if the action is about a directory
+	 * @param size
+	 *            length of the source file, or of the destination file to be
+	 *            deleted
+	 * @param lastModified
+	 *            modification date of the same file
+	 */
+	public SyncAction(Type type, String relativePath, boolean directory, long size, long lastModified) {
+		this.type = type;
+		this.relativePath = relativePath;
+		this.directory = directory;
+		this.size = size;
+		this.lastModified = lastModified;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public String getRelativePath() {
+		return relativePath;
+	}
+
+	public boolean isDirectory() {
+		return directory;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	@Override
+	public String toString() {
+		return type + " " + relativePath;
+	}
+
+}
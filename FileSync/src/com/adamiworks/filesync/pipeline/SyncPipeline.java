@@ -0,0 +1,474 @@
+package com.adamiworks.filesync.pipeline;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.adamiworks.filesync.copy.CopyEngine;
+import com.adamiworks.filesync.filter.PathFilter;
+import com.adamiworks.filesync.metrics.Stage;
+import com.adamiworks.filesync.metrics.SyncMetrics;
+import com.adamiworks.filesync.scan.DirectoryScanner;
+import com.adamiworks.filesync.util.DaemonThreadFactory;
+import com.adamiworks.filesync.util.InternalFiles;
+
+/**
+ * Synchronizes two trees in three concurrent stages connected by bounded
+ * queues:
+ * <ol>
+ * <li><b>scan</b>: scanner threads list each directory in the source and in
+ * the destination and pass both sorted listings on;</li>
+ * <li><b>diff</b>: a single thread merges every pair of listings into
+ * {@link SyncAction}s;</li>
+ * <li><b>apply</b>: a pool of threads executes the actions through an
+ * {@link ActionApplier}. Actions are passed to it in batches of up to
+ * {@link #BATCH_SIZE} actions of neighboring files, so small files cost one
+ * queue transfer per batch instead of one per file.</li>
+ * </ol>
+ * With a {@link SizeScheduler}, copies of large files skip the batches and go
+ * to its dedicated workers, largest first.<BR>
+ * <BR>
+ * Copying starts as soon as the first directory is listed, and the bounded
+ * queues make fast stages wait for slow ones instead of buffering the whole
+ * tree. In mirror mode entries missing in the source are deleted from the
+ * destination. Entries excluded by a {@link PathFilter} are neither listed,
+ * copied nor deleted.
+ *
+ * @author Tiago J. Adami
+ */
+public final class SyncPipeline {
+
+	private static final int LISTING_QUEUE_CAPACITY = 64;
+	private static final int ACTION_QUEUE_CAPACITY = 4096;
+
+	/**
+	 * Maximum number of actions in a batch.
+	 */
+	public static final int BATCH_SIZE = 64;
+
+	/**
+	 * A batch is closed when its files add up to this many bytes, so one
+	 * applier does not get all the medium-sized files of a directory.
+	 */
+	private static final long BATCH_BYTES = 4L * 1024 * 1024;
+
+	private static final DirectoryListing END_OF_LISTINGS = new DirectoryListing(null, null, null, false, false);
+	private static final List<SyncAction> END_OF_ACTIONS = new ArrayList<SyncAction>(0);
+
+	private final Path sourceRoot;
+	private final Path destinationRoot;
+	private final ActionApplier applier;
+	private boolean mirror;
+	private boolean verifyContents;
+	private boolean deleteStaleTempFiles;
+	private int scannerThreads = 2;
+	private int applierThreads = Runtime.getRuntime().availableProcessors();
+	private SizeScheduler scheduler;
+	private PathFilter.Scope filter = PathFilter.NONE.root();
+	private SyncMetrics metrics = new SyncMetrics();
+
+	private final BlockingQueue<DirectoryListing> listings = new ArrayBlockingQueue<DirectoryListing>(
+			LISTING_QUEUE_CAPACITY);
+	private final BlockingQueue<List<SyncAction>> actions = new ArrayBlockingQueue<List<SyncAction>>(
+			ACTION_QUEUE_CAPACITY / BATCH_SIZE);
+	// Only used by the diff thread
+	private List<SyncAction> batch = new ArrayList<SyncAction>(BATCH_SIZE);
+	private long batchBytes;
+	private final List<Future<?>> largeCopies = new ArrayList<Future<?>>();
+	private final LinkedBlockingDeque<PathFilter.Scope> pendingDirectories
+			= new LinkedBlockingDeque<PathFilter.Scope>();
+	private final AtomicInteger outstandingDirectories = new AtomicInteger();
+	private final Map<SyncAction.Type, LongAdder> counts = new EnumMap<SyncAction.Type, LongAdder>(
+			SyncAction.Type.class);
+
+	/**
+	 * @param sourceRoot
+	 * @param destinationRoot
+	 * @param applier
+	 *            executes the actions
+	 */
+	public SyncPipeline(Path sourceRoot, Path destinationRoot, ActionApplier applier) {
+		this.sourceRoot = sourceRoot;
+		this.destinationRoot = destinationRoot;
+		this.applier = applier;
+
+		for (SyncAction.Type type : SyncAction.Type.values()) {
+			counts.put(type, new LongAdder());
+		}
+	}
+
+	/**
+	 * Delete destination entries that do not exist in the source, and replace
+	 * destination entries of the wrong type.
+	 *
+	 * @param mirror
+	 */
+	public void setMirror(boolean mirror) {
+		this.mirror = mirror;
+	}
+
+	/**
+	 * Emit {@link SyncAction.Type#VERIFY} actions for files with the same
+	 * length and modification date.
+	 *
+	 * @param verifyContents
+	 */
+	public void setVerifyContents(boolean verifyContents) {
+		this.verifyContents = verifyContents;
+	}
+
+	/**
+	 * Delete the temporary files left by interrupted copies in each
+	 * destination directory when it is listed, before any of its files is
+	 * copied. Plans leave the destination untouched and do not set it.
+	 *
+	 * @param deleteStaleTempFiles
+	 */
+	public void setDeleteStaleTempFiles(boolean deleteStaleTempFiles) {
+		this.deleteStaleTempFiles = deleteStaleTempFiles;
+	}
+
+	public void setScannerThreads(int scannerThreads) {
+		this.scannerThreads = Math.max(1, scannerThreads);
+	}
+
+	public void setApplierThreads(int applierThreads) {
+		this.applierThreads = Math.max(1, applierThreads);
+	}
+
+	/**
+	 * Skip the entries excluded by a filter, on both sides.
+	 *
+	 * @param filter
+	 *            scope of the filter at the synchronized roots
+	 */
+	public void setFilter(PathFilter.Scope filter) {
+		this.filter = filter;
+	}
+
+	/**
+	 * Copy and verify large files in the dedicated workers of a scheduler.
+	 *
+	 * @param scheduler
+	 *            the scheduler, or null to apply all actions in batches
+	 */
+	public void setScheduler(SizeScheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Count listed entries, time the scan and diff of each directory and
+	 * report the depths of the queues between the stages.
+	 *
+	 * @param metrics
+	 */
+	public void setMetrics(SyncMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @param type
+	 * @return number of actions of a type executed without errors
+	 */
+	public long getActionCount(SyncAction.Type type) {
+		return counts.get(type).sum();
+	}
+
+	/**
+	 * Run all stages and wait until every action has been applied.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void run() throws InterruptedException {
+		DaemonThreadFactory factory = new DaemonThreadFactory("SyncPipeline");
+		List<Thread> scanners = new ArrayList<Thread>();
+		List<Thread> appliers = new ArrayList<Thread>();
+
+		outstandingDirectories.set(1);
+		pendingDirectories.add(filter);
+
+		for (int i = 0; i < scannerThreads; i++) {
+			scanners.add(factory.newThread(this::scanLoop));
+		}
+		Thread differ = factory.newThread(this::diffLoop);
+		for (int i = 0; i < applierThreads; i++) {
+			appliers.add(factory.newThread(this::applyLoop));
+		}
+
+		metrics.registerQueue("directories", pendingDirectories::size);
+		metrics.registerQueue("listings", listings::size);
+		metrics.registerQueue("actions", () -> actions.size() * BATCH_SIZE);
+
+		try {
+			for (Thread t : scanners) {
+				t.start();
+			}
+			differ.start();
+			for (Thread t : appliers) {
+				t.start();
+			}
+
+			for (Thread t : scanners) {
+				t.join();
+			}
+			listings.put(END_OF_LISTINGS);
+			differ.join();
+			for (Thread t : appliers) {
+				t.join();
+			}
+			SizeScheduler.awaitAll(largeCopies);
+		} catch (InterruptedException e) {
+			for (Thread t : scanners) {
+				t.interrupt();
+			}
+			differ.interrupt();
+			for (Thread t : appliers) {
+				t.interrupt();
+			}
+			for (Future<?> copy : largeCopies) {
+				copy.cancel(true);
+			}
+			throw e;
+		} finally {
+			metrics.unregisterQueue("directories");
+			metrics.unregisterQueue("listings");
+			metrics.unregisterQueue("actions");
+		}
+	}
+
+	private void scanLoop() {
+		try {
+			while (true) {
+				PathFilter.Scope directory = pendingDirectories.pollFirst(100, TimeUnit.MILLISECONDS);
+
+				if (directory == null) {
+					if (outstandingDirectories.get() == 0) {
+						return;
+					}
+					continue;
+				}
+
+				try {
+					scan(directory);
+				} catch (IOException e) {
+					Logger.getLogger(SyncPipeline.class.getName()).log(Level.SEVERE,
+							"Cannot list directory \"" + directory.getPath() + "\"", e);
+				} finally {
+					outstandingDirectories.decrementAndGet();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void scan(PathFilter.Scope scope) throws IOException, InterruptedException {
+		long start = System.nanoTime();
+		String directory = scope.getPath();
+		List<ListingEntry> source = list(sourceRoot.resolve(directory), scope, null);
+
+		// Newest directories are taken first, which keeps the pending list
+		// as small as a depth-first walk would
+		for (ListingEntry e : source) {
+			if (e.directory) {
+				outstandingDirectories.incrementAndGet();
+				pendingDirectories.addFirst(scope.enter(e.name));
+			}
+		}
+
+		// Links to directories are followed, as the apply stage writes
+		// through them. Broken links are replaced by a directory.
+		Path destination = destinationRoot.resolve(directory);
+		BasicFileAttributes attrs = null;
+		metrics.stat();
+		try {
+			attrs = Files.readAttributes(destination, BasicFileAttributes.class);
+		} catch (IOException e) {
+			attrs = null;
+		}
+
+		boolean destinationIsDirectory = attrs != null && attrs.isDirectory();
+		Set<String> temporary = deleteStaleTempFiles ? new HashSet<String>() : null;
+		List<ListingEntry> existing = destinationIsDirectory ? list(destination, scope, temporary)
+				: Collections.<ListingEntry> emptyList();
+		if (temporary != null && !temporary.isEmpty()) {
+			CopyEngine.deleteStaleTempFiles(destination, temporary);
+		}
+
+		metrics.record(Stage.SCAN, System.nanoTime() - start);
+		listings.put(new DirectoryListing(directory, source, existing, attrs != null, destinationIsDirectory));
+	}
+
+	/**
+	 * @param temporary
+	 *            receives the names of the temporary files, or null
+	 */
+	private List<ListingEntry> list(Path directory, PathFilter.Scope scope, Set<String> temporary)
+			throws IOException {
+		final List<ListingEntry> entries = new ArrayList<ListingEntry>();
+
+		DirectoryScanner.scan(directory, (entry, attrs) -> {
+			metrics.scanned();
+			String name = entry.getFileName().toString();
+			if (temporary != null && InternalFiles.isTemporary(name)) {
+				temporary.add(name);
+			} else if (!InternalFiles.isInternal(name) && !scope.isExcluded(name, attrs.isDirectory())) {
+				entries.add(new ListingEntry(name, attrs));
+			}
+		});
+
+		Collections.sort(entries);
+		return entries;
+	}
+
+	private void diffLoop() {
+		try {
+			DirectoryListing listing;
+			while ((listing = listings.take()) != END_OF_LISTINGS) {
+				long start = System.nanoTime();
+				diff(listing);
+				metrics.record(Stage.DIFF, System.nanoTime() - start);
+
+				// Appliers must not sit idle with a partial batch while the
+				// scanners list the next directories
+				if (listings.isEmpty()) {
+					flush();
+				}
+			}
+			flush();
+			for (int i = 0; i < applierThreads; i++) {
+				actions.put(END_OF_ACTIONS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Merge the sorted listings of a directory into actions.
+	 */
+	private void diff(DirectoryListing listing) throws InterruptedException {
+		String directory = listing.relativePath;
+
+		if (!listing.destinationIsDirectory) {
+			if (listing.destinationExists && !mirror) {
+				Logger.getLogger(SyncPipeline.class.getName()).log(Level.WARNING,
+						"Destination \"" + directory + "\" is not a directory");
+				return;
+			}
+			emit(SyncAction.Type.MKDIR, directory, true, 0, 0);
+		}
+
+		List<ListingEntry> source = listing.source;
+		List<ListingEntry> destination = listing.destination;
+		int i = 0;
+		int j = 0;
+
+		while (i < source.size() || j < destination.size()) {
+			ListingEntry s = i < source.size() ? source.get(i) : null;
+			ListingEntry d = j < destination.size() ? destination.get(j) : null;
+			int cmp = s == null ? 1 : d == null ? -1 : s.name.compareTo(d.name);
+
+			if (cmp < 0) {
+				// Source directories emit their own MKDIR when listed
+				if (!s.directory) {
+					emit(SyncAction.Type.ADD, child(directory, s.name), false, s.size, s.lastModified);
+				}
+				i++;
+			} else if (cmp > 0) {
+				if (mirror) {
+					emit(SyncAction.Type.DELETE, child(directory, d.name), d.directory, d.size, d.lastModified);
+				}
+				j++;
+			} else {
+				if (!s.directory) {
+					if (d.directory) {
+						if (mirror) {
+							emit(SyncAction.Type.UPDATE, child(directory, s.name), false, s.size, s.lastModified);
+						} else {
+							Logger.getLogger(SyncPipeline.class.getName()).log(Level.WARNING,
+									"Destination \"" + child(directory, d.name) + "\" is a directory");
+						}
+					} else if (s.size != d.size || s.lastModified != d.lastModified) {
+						emit(SyncAction.Type.UPDATE, child(directory, s.name), false, s.size, s.lastModified);
+					} else if (verifyContents) {
+						emit(SyncAction.Type.VERIFY, child(directory, s.name), false, s.size, s.lastModified);
+					}
+				}
+				i++;
+				j++;
+			}
+		}
+	}
+
+	private void emit(SyncAction.Type type, String path, boolean directory, long size, long lastModified)
+			throws InterruptedException {
+		final SyncAction action = new SyncAction(type, path, directory, size, lastModified);
+
+		if (scheduler != null && type != SyncAction.Type.DELETE && !directory && scheduler.isLarge(size)) {
+			largeCopies.add(scheduler.submit(size, () -> apply(action)));
+			return;
+		}
+
+		batch.add(action);
+		if (type != SyncAction.Type.DELETE) {
+			batchBytes += size;
+		}
+		if (batch.size() >= BATCH_SIZE || batchBytes >= BATCH_BYTES) {
+			flush();
+		}
+	}
+
+	private void flush() throws InterruptedException {
+		if (!batch.isEmpty()) {
+			actions.put(batch);
+			batch = new ArrayList<SyncAction>(BATCH_SIZE);
+			batchBytes = 0;
+		}
+	}
+
+	private void applyLoop() {
+		try {
+			List<SyncAction> next;
+			while ((next = actions.take()) != END_OF_ACTIONS) {
+				for (SyncAction action : next) {
+					apply(action);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void apply(SyncAction action) {
+		try {
+			applier.apply(action, sourceRoot.resolve(action.getRelativePath()),
+					destinationRoot.resolve(action.getRelativePath()));
+			counts.get(action.getType()).increment();
+		} catch (IOException | RuntimeException e) {
+			Logger.getLogger(SyncPipeline.class.getName()).log(Level.SEVERE, "Cannot apply " + action, e);
+		}
+	}
+
+	private static String child(String directory, String name) {
+		return directory.isEmpty() ? name : directory + "/" + name;
+	}
+
+}
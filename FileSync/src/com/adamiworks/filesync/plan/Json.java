@@ -0,0 +1,179 @@
+package com.adamiworks.filesync.plan;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The little JSON a plan needs: flat objects of strings, numbers and
+ * booleans, one per line.
+ *
+ * @author Tiago J. Adami
+ */
+final class Json {
+
+	private Json() {
+	}
+
+	/**
+	 * Append a string as a JSON string literal.
+	 *
+	 * @param out
+	 * @param value
+	 */
+	static void quote(StringBuilder out, String value) {
+		out.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				out.append("\\\"");
+				break;
+			case '\\':
+				out.append("\\\\");
+				break;
+			case '\n':
+				out.append("\\n");
+				break;
+			case '\r':
+				out.append("\\r");
+				break;
+			case '\t':
+				out.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					out.append(String.format("\\u%04x", (int) c));
+				} else {
+					out.append(c);
+				}
+			}
+		}
+		out.append('"');
+	}
+
+	/**
+	 * Parse a flat object.
+	 *
+	 * @param line
+	 * @return the members, with strings unquoted and other values as written
+	 * @throws IOException
+	 *             if the line is not a flat JSON object
+	 */
+	static Map<String, String> parse(String line) throws IOException {
+		Map<String, String> members = new HashMap<String, String>();
+		int[] position = { skipSpaces(line, 0) };
+
+		expect(line, position, '{');
+		if (peek(line, position) == '}') {
+			position[0]++;
+			return members;
+		}
+
+		while (true) {
+			String key = string(line, position);
+			expect(line, position, ':');
+			String value = peek(line, position) == '"' ? string(line, position) : literal(line, position);
+			members.put(key, value);
+
+			char c = peek(line, position);
+			position[0]++;
+			if (c == '}') {
+				return members;
+			}
+			if (c != ',') {
+				throw new IOException("Expected , or } at " + (position[0] - 1) + ": " + line);
+			}
+		}
+	}
+
+	private static String string(String line, int[] position) throws IOException {
+		expect(line, position, '"');
+		StringBuilder value = new StringBuilder();
+		int i = position[0];
+
+		while (i < line.length()) {
+			char c = line.charAt(i++);
+			if (c == '"') {
+				position[0] = i;
+				return value.toString();
+			}
+			if (c != '\\') {
+				value.append(c);
+				continue;
+			}
+			if (i >= line.length()) {
+				break;
+			}
+
+			char e = line.charAt(i++);
+			switch (e) {
+			case 'n':
+				value.append('\n');
+				break;
+			case 'r':
+				value.append('\r');
+				break;
+			case 't':
+				value.append('\t');
+				break;
+			case 'b':
+				value.append('\b');
+				break;
+			case 'f':
+				value.append('\f');
+				break;
+			case 'u':
+				if (i + 4 > line.length()) {
+					throw new IOException("Truncated escape in " + line);
+				}
+				try {
+					value.append((char) Integer.parseInt(line.substring(i, i + 4), 16));
+				} catch (NumberFormatException ex) {
+					throw new IOException("Invalid escape in " + line, ex);
+				}
+				i += 4;
+				break;
+			default:
+				value.append(e);
+			}
+		}
+		throw new IOException("Unterminated string in " + line);
+	}
+
+	private static String literal(String line, int[] position) throws IOException {
+		int start = position[0];
+		int i = start;
+		while (i < line.length() && ",} \t".indexOf(line.charAt(i)) < 0) {
+			i++;
+		}
+		if (i == start) {
+			throw new IOException("Expected a value at " + start + ": " + line);
+		}
+		position[0] = i;
+		return line.substring(start, i);
+	}
+
+	private static void expect(String line, int[] position, char c) throws IOException {
+		if (peek(line, position) != c) {
+			throw new IOException("Expected " + c + " at " + position[0] + ": " + line);
+		}
+		position[0]++;
+	}
+
+	/**
+	 * @return the next character that is not a space, or 0 at the end
+	 */
+	private static char peek(String line, int[] position) {
+		position[0] = skipSpaces(line, position[0]);
+		return position[0] < line.length() ? line.charAt(position[0]) : 0;
+	}
+
+	private static int skipSpaces(String line, int i) {
+		while (i < line.length() && Character.isWhitespace(line.charAt(i))) {
+			i++;
+		}
+		return i;
+	}
+
+}
@@ -0,0 +1,151 @@
+package com.adamiworks.filesync.plan;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+
+import com.adamiworks.filesync.pipeline.SyncAction;
+
+/**
+ * Reads the actions of a change plan written by a {@link PlanWriter}, one at
+ * a time, so plans of any size are applied in constant memory.<BR>
+ * <BR>
+ * Instances may be shared by concurrent threads, each taking the next action.
+ *
+ * @author Tiago J. Adami
+ */
+public final class PlanReader implements Closeable {
+
+	private final Path file;
+	private final BufferedReader reader;
+	private final Path sourceRoot;
+	private final Path destinationRoot;
+	private final boolean mirror;
+	private final boolean verify;
+	private final String created;
+	private long lineNumber = 1;
+	private boolean ended;
+
+	/**
+	 * Open a plan and read its header.
+	 *
+	 * @param file
+	 * @throws IOException
+	 *             if the file cannot be read or is not a plan of a supported
+	 *             version
+	 */
+	public PlanReader(Path file) throws IOException {
+		this.file = file;
+		this.reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+
+		try {
+			String line = reader.readLine();
+			if (line == null) {
+				throw new IOException("Plan " + file + " is empty");
+			}
+
+			Map<String, String> header = Json.parse(line);
+			if (!String.valueOf(PlanWriter.VERSION).equals(header.get("version"))) {
+				throw new IOException("Unsupported plan version " + header.get("version") + " in " + file);
+			}
+			this.sourceRoot = Paths.get(this.required(header, "source"));
+			this.destinationRoot = Paths.get(this.required(header, "destination"));
+			this.mirror = Boolean.parseBoolean(header.get("mirror"));
+			this.verify = Boolean.parseBoolean(header.get("verify"));
+			this.created = header.get("created");
+		} catch (IOException e) {
+			reader.close();
+			throw e;
+		}
+	}
+
+	public Path getSourceRoot() {
+		return sourceRoot;
+	}
+
+	public Path getDestinationRoot() {
+		return destinationRoot;
+	}
+
+	/**
+	 * @return true if the plan deletes destination entries missing in the
+	 *         source
+	 */
+	public boolean isMirror() {
+		return mirror;
+	}
+
+	/**
+	 * @return true if the plan has files whose contents are to be compared
+	 */
+	public boolean isVerify() {
+		return verify;
+	}
+
+	/**
+	 * @return when the plan was written, as an ISO-8601 instant
+	 */
+	public String getCreated() {
+		return created;
+	}
+
+	/**
+	 * @return the next action, or null after the last one
+	 * @throws IOException
+	 *             if the plan is malformed, or ends without its totals. Later
+	 *             calls return null.
+	 */
+	public synchronized SyncAction next() throws IOException {
+		if (ended) {
+			return null;
+		}
+
+		try {
+			return this.read();
+		} catch (IOException e) {
+			ended = true;
+			throw e;
+		}
+	}
+
+	private SyncAction read() throws IOException {
+		String line = reader.readLine();
+		lineNumber++;
+		if (line == null) {
+			throw new IOException("Plan " + file + " ends without its totals, it may be incomplete");
+		}
+
+		Map<String, String> members = Json.parse(line);
+		if (members.containsKey("end")) {
+			ended = true;
+			return null;
+		}
+
+		try {
+			return new SyncAction(SyncAction.Type.valueOf(this.required(members, "type")),
+					this.required(members, "path"), Boolean.parseBoolean(members.get("directory")),
+					Long.parseLong(this.required(members, "size")), Long.parseLong(this.required(members, "modified")));
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Invalid action at line " + lineNumber + " of " + file + ": " + line, e);
+		}
+	}
+
+	private String required(Map<String, String> members, String name) throws IOException {
+		String value = members.get(name);
+		if (value == null) {
+			throw new IOException("Missing \"" + name + "\" at line " + lineNumber + " of " + file);
+		}
+		return value;
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+
+}
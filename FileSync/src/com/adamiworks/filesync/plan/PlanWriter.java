@@ -0,0 +1,220 @@
+package com.adamiworks.filesync.plan;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+
+import com.adamiworks.filesync.pipeline.ActionApplier;
+import com.adamiworks.filesync.pipeline.SyncAction;
+
+/**
+ * Writes the actions of a {@link com.adamiworks.filesync.pipeline.SyncPipeline}
+ * to a change plan instead of executing them, so the changes of a
+ * synchronization can be reviewed, or applied later by a {@link PlanReader}
+ * without scanning the trees again.<BR>
+ * <BR>
+ * A plan is a JSON-lines file: a header with the roots and the options that
+ * changed the diff, one line per action with its "/" separated path and the
+ * size and modification date the source had when it was scanned, and a last
+ * line with the totals:
+ *
+ * <pre>
+ * {"version":1,"source":"/data","destination":"/backup","mirror":true,"verify":false,"created":"..."}
+ * {"type":"ADD","path":"docs/a.txt","size":1024,"modified":1700000000000}
+ * {"type":"DELETE","path":"old","size":4096,"modified":1600000000000,"directory":true}
+ * {"end":true,"actions":2,"copies":1,"copyBytes":1024,"verifies":0,"verifyBytes":0,"deletes":1,"directories":0}
+ * </pre>
+ *
+ * The plan is written to a temporary file renamed when it is closed, so a
+ * plan whose scan was interrupted is never found under its name.<BR>
+ * <BR>
+ * Instances may be shared by concurrent threads.
+ *
+ * @author Tiago J. Adami
+ */
+public final class PlanWriter implements ActionApplier, Closeable {
+
+	static final int VERSION = 1;
+
+	private final Path file;
+	private final Path temp;
+	private final BufferedWriter writer;
+	private final StringBuilder line = new StringBuilder(256);
+	private long actions;
+	private long copies;
+	private long copyBytes;
+	private long verifies;
+	private long verifyBytes;
+	private long deletes;
+	private long directories;
+	private boolean closed;
+	private IOException failure;
+
+	/**
+	 * @param file
+	 *            the plan
+	 * @param sourceRoot
+	 * @param destinationRoot
+	 * @param mirror
+	 *            true if the plan deletes destination entries missing in the
+	 *            source
+	 * @param verify
+	 *            true if files with the same length and modification date are
+	 *            planned to be compared
+	 * @throws IOException
+	 *             if the plan cannot be created
+	 */
+	public PlanWriter(Path file, Path sourceRoot, Path destinationRoot, boolean mirror, boolean verify)
+			throws IOException {
+		this.file = file.toAbsolutePath();
+		this.temp = this.file.resolveSibling(".filesync-plan-" + this.file.getFileName());
+		this.writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8);
+
+		line.append("{\"version\":").append(VERSION).append(",\"source\":");
+		Json.quote(line, sourceRoot.toAbsolutePath().toString());
+		line.append(",\"destination\":");
+		Json.quote(line, destinationRoot.toAbsolutePath().toString());
+		line.append(",\"mirror\":").append(mirror).append(",\"verify\":").append(verify).append(",\"created\":");
+		Json.quote(line, Instant.now().toString());
+		line.append('}');
+		this.writeLine();
+	}
+
+	/**
+	 * Record an action. The source and destination paths are not touched.
+	 */
+	@Override
+	public synchronized void apply(SyncAction action, Path source, Path destination) throws IOException {
+		line.append("{\"type\":\"").append(action.getType()).append("\",\"path\":");
+		Json.quote(line, action.getRelativePath());
+		line.append(",\"size\":").append(action.getSize()).append(",\"modified\":").append(action.getLastModified());
+		if (action.isDirectory()) {
+			line.append(",\"directory\":true");
+		}
+		line.append('}');
+		try {
+			this.writeLine();
+		} catch (IOException e) {
+			// The pipeline goes on with the next action, but the plan is lost
+			failure = e;
+			throw e;
+		}
+
+		actions++;
+		switch (action.getType()) {
+		case ADD:
+		case UPDATE:
+			copies++;
+			copyBytes += action.getSize();
+			break;
+		case VERIFY:
+			verifies++;
+			verifyBytes += action.getSize();
+			break;
+		case DELETE:
+			deletes++;
+			break;
+		case MKDIR:
+			directories++;
+			break;
+		}
+	}
+
+	private void writeLine() throws IOException {
+		writer.append(line);
+		writer.newLine();
+		line.setLength(0);
+	}
+
+	/**
+	 * @return number of files to be copied, new or changed
+	 */
+	public synchronized long getCopies() {
+		return copies;
+	}
+
+	/**
+	 * @return bytes of the files to be copied
+	 */
+	public synchronized long getCopyBytes() {
+		return copyBytes;
+	}
+
+	/**
+	 * @return number of files whose contents are to be compared
+	 */
+	public synchronized long getVerifies() {
+		return verifies;
+	}
+
+	/**
+	 * @return bytes of the files to be compared, on each side
+	 */
+	public synchronized long getVerifyBytes() {
+		return verifyBytes;
+	}
+
+	/**
+	 * @return number of destination files and folders to be deleted
+	 */
+	public synchronized long getDeletes() {
+		return deletes;
+	}
+
+	/**
+	 * @return number of destination folders to be created
+	 */
+	public synchronized long getDirectories() {
+		return directories;
+	}
+
+	/**
+	 * Write the totals and give the plan its name.
+	 *
+	 * @throws IOException
+	 *             if the plan could not be written, in which case it is
+	 *             discarded
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		if (failure != null) {
+			this.discard();
+			throw new IOException("Actions could not be written to the plan", failure);
+		}
+		closed = true;
+
+		try {
+			line.append("{\"end\":true,\"actions\":").append(actions).append(",\"copies\":").append(copies)
+					.append(",\"copyBytes\":").append(copyBytes).append(",\"verifies\":").append(verifies)
+					.append(",\"verifyBytes\":").append(verifyBytes).append(",\"deletes\":").append(deletes)
+					.append(",\"directories\":").append(directories).append('}');
+			this.writeLine();
+		} finally {
+			writer.close();
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Delete an unfinished plan, leaving any plan with the same name as it
+	 * was.
+	 */
+	public synchronized void discard() {
+		closed = true;
+		try {
+			writer.close();
+			Files.deleteIfExists(temp);
+		} catch (IOException e) {
+			// Only a leftover temporary file
+		}
+	}
+
+}
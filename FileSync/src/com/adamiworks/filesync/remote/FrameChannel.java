@@ -0,0 +1,260 @@
+package com.adamiworks.filesync.remote;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+import com.adamiworks.filesync.compress.BlockCompressor;
+import com.adamiworks.filesync.compress.BlockDecompressor;
+import com.adamiworks.filesync.throttle.IoThrottle;
+
+/**
+ * Frames of the {@link Protocol} over a blocking socket channel. Reads never
+ * go past the current frame, so the raw file data that follows a FILE frame
+ * can be moved straight between the socket and a file channel.<BR>
+ * <BR>
+ * File data is sent raw, or as compressed blocks once both peers agreed on a
+ * compression. One thread may send while another one receives; concurrent
+ * senders or receivers are not supported.
+ *
+ * @author Tiago J. Adami
+ */
+final class FrameChannel implements Closeable {
+
+	private static final int HEADER_SIZE = 5;
+	private static final long TRANSFER_CHUNK_SIZE = 1024 * 1024;
+
+	private final SocketChannel channel;
+	private final ByteBuffer sendHeader = ByteBuffer.allocate(HEADER_SIZE);
+	private final ByteBuffer receiveHeader = ByteBuffer.allocate(HEADER_SIZE);
+	private final ByteBuffer payload = ByteBuffer.allocate(Protocol.MAX_FRAME_SIZE);
+	private final ByteBuffer sendStatus = ByteBuffer.allocate(1);
+	private final ByteBuffer receiveStatus = ByteBuffer.allocate(1);
+	private byte type;
+	private BlockCompressor compressor;
+	private BlockDecompressor decompressor;
+	private long fileBytesRead;
+	private long fileBytesSent;
+
+	FrameChannel(SocketChannel channel) throws IOException {
+		this.channel = channel;
+		channel.configureBlocking(true);
+		channel.socket().setTcpNoDelay(true);
+	}
+
+	/**
+	 * @param compressor
+	 *            compresses the files sent from now on, or null
+	 */
+	void setCompressor(BlockCompressor compressor) {
+		this.compressor = compressor;
+	}
+
+	/**
+	 * @param decompressor
+	 *            decompresses the files received from now on, or null
+	 */
+	void setDecompressor(BlockDecompressor decompressor) {
+		this.decompressor = decompressor;
+	}
+
+	/**
+	 * @return bytes of the files sent
+	 */
+	long getFileBytesRead() {
+		return fileBytesRead;
+	}
+
+	/**
+	 * @return bytes written to the socket for the files sent
+	 */
+	long getFileBytesSent() {
+		return fileBytesSent;
+	}
+
+	/**
+	 * @param type
+	 * @param frame
+	 *            the payload, from its position to its limit
+	 * @throws IOException
+	 */
+	void send(byte type, ByteBuffer frame) throws IOException {
+		sendHeader.clear();
+		sendHeader.put(type).putInt(frame.remaining());
+		sendHeader.flip();
+
+		ByteBuffer[] buffers = { sendHeader, frame };
+		while (frame.hasRemaining()) {
+			channel.write(buffers);
+		}
+		while (sendHeader.hasRemaining()) {
+			channel.write(sendHeader);
+		}
+	}
+
+	/**
+	 * Send length bytes of a file as raw data, followed by a status byte. If
+	 * the file ends early it is padded with zeros and the copy is marked as
+	 * failed.
+	 *
+	 * @return true if the whole file was sent
+	 */
+	boolean sendFile(FileChannel file, long length, IoThrottle throttle) throws IOException {
+		boolean complete = compressor == null ? sendRaw(file, length, throttle)
+				: sendCompressed(file, length, throttle);
+
+		sendStatus.clear();
+		sendStatus.put(complete ? Protocol.STATUS_OK : Protocol.STATUS_FAILED);
+		sendStatus.flip();
+		while (sendStatus.hasRemaining()) {
+			channel.write(sendStatus);
+		}
+		fileBytesRead += length;
+		return complete;
+	}
+
+	private boolean sendCompressed(FileChannel file, long length, IoThrottle throttle) throws IOException {
+		long before = compressor.getBytesOut();
+		boolean complete = compressor.send(file, length, channel, throttle);
+		fileBytesSent += compressor.getBytesOut() - before;
+		return complete;
+	}
+
+	private boolean sendRaw(FileChannel file, long length, IoThrottle throttle) throws IOException {
+		long position = 0;
+		boolean complete = true;
+
+		while (position < length) {
+			long chunk = Math.min(TRANSFER_CHUNK_SIZE, length - position);
+			if (throttle != null) {
+				throttle.acquire(chunk);
+			}
+			long n = file.transferTo(position, chunk, channel);
+			if (n <= 0) {
+				complete = false;
+				break;
+			}
+			position += n;
+		}
+
+		// The agent expects exactly the announced length
+		if (position < length) {
+			ByteBuffer zeros = ByteBuffer.allocate((int) Math.min(TRANSFER_CHUNK_SIZE, length - position));
+			while (position < length) {
+				zeros.clear();
+				zeros.limit((int) Math.min(zeros.capacity(), length - position));
+				while (zeros.hasRemaining()) {
+					position += channel.write(zeros);
+				}
+			}
+		}
+		fileBytesSent += length;
+		return complete;
+	}
+
+	/**
+	 * Receive the next frame.
+	 *
+	 * @return the payload, valid until the next call
+	 * @throws EOFException
+	 *             if the peer closed the connection
+	 * @throws IOException
+	 */
+	ByteBuffer receive() throws IOException {
+		receiveHeader.clear();
+		readFully(receiveHeader);
+		receiveHeader.flip();
+		type = receiveHeader.get();
+		int length = receiveHeader.getInt();
+
+		if (length < 0 || length > Protocol.MAX_FRAME_SIZE) {
+			throw new IOException("Frame of " + length + " bytes exceeds " + Protocol.MAX_FRAME_SIZE);
+		}
+		payload.clear();
+		payload.limit(length);
+		readFully(payload);
+		payload.flip();
+		return payload;
+	}
+
+	/**
+	 * @return the type of the last received frame
+	 */
+	byte type() {
+		return type;
+	}
+
+	/**
+	 * Receive the raw data sent by {@link #sendFile(FileChannel, long, IoThrottle)}
+	 * into a file.
+	 *
+	 * @return true if the sender marked the data as complete
+	 */
+	boolean receiveFile(FileChannel file, long length) throws IOException {
+		if (decompressor != null) {
+			decompressor.receive(channel, file, length);
+		} else {
+			receiveRaw(file, length);
+		}
+
+		receiveStatus.clear();
+		readFully(receiveStatus);
+		receiveStatus.flip();
+		return receiveStatus.get() == Protocol.STATUS_OK;
+	}
+
+	/**
+	 * Read and throw away the data sent by
+	 * {@link #sendFile(FileChannel, long, IoThrottle)}, for a file that cannot
+	 * be written. Nothing is written to disk.
+	 *
+	 * @return true if the sender marked the data as complete
+	 */
+	boolean discardFile(long length) throws IOException {
+		if (decompressor != null) {
+			decompressor.skip(channel, length);
+		} else {
+			long position = 0;
+			while (position < length) {
+				payload.clear();
+				payload.limit((int) Math.min(payload.capacity(), length - position));
+				readFully(payload);
+				position += payload.limit();
+			}
+		}
+
+		receiveStatus.clear();
+		readFully(receiveStatus);
+		receiveStatus.flip();
+		return receiveStatus.get() == Protocol.STATUS_OK;
+	}
+
+	private void receiveRaw(FileChannel file, long length) throws IOException {
+		long position = 0;
+		while (position < length) {
+			long n = file.transferFrom(channel, position, Math.min(TRANSFER_CHUNK_SIZE, length - position));
+			if (n <= 0) {
+				// A blocking socket only returns nothing at the end of the stream
+				throw new EOFException("Connection closed during a file transfer");
+			}
+			position += n;
+		}
+	}
+
+	private void readFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new EOFException("Connection closed");
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+}
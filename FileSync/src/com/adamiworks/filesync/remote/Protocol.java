@@ -0,0 +1,110 @@
+package com.adamiworks.filesync.remote;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The binary protocol between a {@link RemoteSyncClient} and a
+ * {@link SyncAgent}. Every message is a frame of a one byte type and a four
+ * byte payload length, followed by the payload. Numbers are big-endian and
+ * strings are an unsigned two byte length followed by UTF-8 bytes.
+ *
+ * <pre>
+ * client                                  agent
+ * HELLO magic version flags algorithm
+ *       compression                    -&gt;
+ *                                      &lt;-  HELLO version compression
+ * ENTRIES count (path size mtime hash)* -&gt;
+ * ENTRIES ...                          -&gt;
+ *                                      &lt;-  DECISIONS count (decision)*
+ * FILE path size mtime, size raw bytes,
+ *      one status byte                 -&gt;
+ *                                      &lt;-  ACK status message
+ * DONE                                 -&gt;
+ *                                      &lt;-  DONE
+ * </pre>
+ *
+ * The agent answers the compression of the client, or an empty string if it
+ * cannot decompress it; file data is then sent as compressed blocks, see
+ * {@link com.adamiworks.filesync.compress.BlockCompressor}.<BR>
+ * <BR>
+ * Directories are entries of size {@value #DIRECTORY}, created by the agent
+ * when it decides on them.<BR>
+ * <BR>
+ * The client does not wait for answers: batches of entries and files are
+ * streamed while the agent is still answering the previous ones. Decisions
+ * and acknowledgments come back in the order of the batches and files they
+ * answer, so they carry no paths.
+ *
+ * @author Tiago J. Adami
+ */
+final class Protocol {
+
+	static final int MAGIC = 0x4653594e; // "FSYN"
+	static final byte VERSION = 2;
+	static final int DEFAULT_PORT = 7341;
+
+	static final byte HELLO = 1;
+	static final byte ENTRIES = 2;
+	static final byte DECISIONS = 3;
+	static final byte FILE = 4;
+	static final byte ACK = 5;
+	static final byte DONE = 6;
+	static final byte ERROR = 7;
+
+	/**
+	 * HELLO flag: entries carry the source hash, compared when the size and
+	 * modification time match.
+	 */
+	static final byte FLAG_SECURE = 1;
+
+	/**
+	 * Size of the entries of directories.
+	 */
+	static final long DIRECTORY = -1;
+
+	static final byte SKIP = 0;
+	static final byte SEND = 1;
+
+	static final byte STATUS_OK = 0;
+	static final byte STATUS_FAILED = 1;
+
+	static final int MAX_FRAME_SIZE = 1024 * 1024;
+
+	/**
+	 * A batch of entries is sent when it reaches this many entries or bytes.
+	 */
+	static final int BATCH_ENTRIES = 512;
+	static final int BATCH_BYTES = 256 * 1024;
+
+	private Protocol() {
+	}
+
+	static void putString(ByteBuffer buffer, String s) {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length > 0xffff) {
+			throw new IllegalArgumentException("String too long: " + s.length() + " characters");
+		}
+		buffer.putShort((short) bytes.length);
+		buffer.put(bytes);
+	}
+
+	static String getString(ByteBuffer buffer) throws IOException {
+		int length = buffer.getShort() & 0xffff;
+		if (length > buffer.remaining()) {
+			throw new IOException("Malformed frame");
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return bytes taken by a string in a frame
+	 */
+	static int sizeOf(String s) {
+		return 2 + s.getBytes(StandardCharsets.UTF_8).length;
+	}
+
+}
@@ -0,0 +1,598 @@
+package com.adamiworks.filesync.remote;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.adamiworks.filesync.compress.BlockCompressor;
+import com.adamiworks.filesync.compress.Compression;
+import com.adamiworks.filesync.filter.PathFilter;
+import com.adamiworks.filesync.hash.FileHasher;
+import com.adamiworks.filesync.hash.HashAlgorithm;
+import com.adamiworks.filesync.hash.HashCache;
+import com.adamiworks.filesync.metrics.SyncMetrics;
+import com.adamiworks.filesync.scan.DirectoryScanner;
+import com.adamiworks.filesync.throttle.IoThrottle;
+import com.adamiworks.filesync.util.DaemonThreadFactory;
+import com.adamiworks.filesync.util.InternalFiles;
+
+/**
+ * Synchronizes a local folder to the folder served by a {@link SyncAgent}.
+ * Only the attributes of the source files cross the network to be compared;
+ * file data is sent for the files the agent asks for.<BR>
+ * <BR>
+ * Three threads share the connection: one walks the source and groups its
+ * files in batches, one writes batches and requested files to the socket, and
+ * one reads the decisions and acknowledgments of the agent. Up to
+ * {@value #MAX_PENDING_BATCHES} batches wait for their decisions at any time,
+ * so the walk, the comparisons on the agent and the file transfers overlap
+ * instead of paying a round trip per file.
+ *
+ * @author Tiago J. Adami
+ */
+public final class RemoteSyncClient {
+
+	private static final int MAX_PENDING_BATCHES = 16;
+
+	private static final Object FINISH = new Object();
+	private static final byte[] NO_HASH = new byte[0];
+
+	private final InetSocketAddress agent;
+	private PathFilter filter = PathFilter.NONE;
+	private boolean secure;
+	private HashAlgorithm hashAlgorithm = HashAlgorithm.XXHASH64;
+	private HashCache hashCache;
+	private IoThrottle throttle;
+	private SyncMetrics metrics;
+	private Consumer<String> listener;
+	private Compression compression;
+	private int compressionThreads = Runtime.getRuntime().availableProcessors();
+
+	private final LongAdder filesChecked = new LongAdder();
+	private final LongAdder filesSent = new LongAdder();
+	private final LongAdder bytesSent = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+	private final LongAdder bytesRead = new LongAdder();
+	private final LongAdder bytesTransferred = new LongAdder();
+
+	/**
+	 * @param agent
+	 *            address of the agent
+	 */
+	public RemoteSyncClient(InetSocketAddress agent) {
+		this.agent = agent;
+	}
+
+	public void setFilter(PathFilter filter) {
+		this.filter = filter == null ? PathFilter.NONE : filter;
+	}
+
+	/**
+	 * Send the hash of every file, so the agent also compares the content of
+	 * files of the same size and modification time.
+	 *
+	 * @param secure
+	 */
+	public void setSecure(boolean secure) {
+		this.secure = secure;
+	}
+
+	public void setHashAlgorithm(HashAlgorithm hashAlgorithm) {
+		this.hashAlgorithm = hashAlgorithm;
+	}
+
+	/**
+	 * @param hashCache
+	 *            cache of the source hashes, or null
+	 */
+	public void setHashCache(HashCache hashCache) {
+		this.hashCache = hashCache;
+	}
+
+	/**
+	 * @param throttle
+	 *            limits the file data sent, or null
+	 */
+	public void setThrottle(IoThrottle throttle) {
+		this.throttle = throttle;
+	}
+
+	public void setMetrics(SyncMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Compress file data when the agent supports the algorithm. Files whose
+	 * first block does not compress are sent raw.
+	 *
+	 * @param compression
+	 *            an available algorithm, or null to send files raw
+	 */
+	public void setCompression(Compression compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * @param compressionThreads
+	 *            threads compressing the blocks of a large file
+	 */
+	public void setCompressionThreads(int compressionThreads) {
+		this.compressionThreads = compressionThreads;
+	}
+
+	/**
+	 * @param listener
+	 *            receives the relative path of every file written by the agent
+	 */
+	public void setListener(Consumer<String> listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * @return number of source files compared by the agent
+	 */
+	public long getFilesChecked() {
+		return filesChecked.sum();
+	}
+
+	/**
+	 * @return number of files written by the agent
+	 */
+	public long getFilesSent() {
+		return filesSent.sum();
+	}
+
+	/**
+	 * @return bytes of the files written by the agent
+	 */
+	public long getBytesSent() {
+		return bytesSent.sum();
+	}
+
+	/**
+	 * @return number of files and folders that could not be read, sent or
+	 *         written
+	 */
+	public long getFailures() {
+		return failures.sum();
+	}
+
+	/**
+	 * @return bytes read from the files sent, including failed ones
+	 */
+	public long getBytesRead() {
+		return bytesRead.sum();
+	}
+
+	/**
+	 * @return bytes of file data written to the network, after compression
+	 */
+	public long getBytesTransferred() {
+		return bytesTransferred.sum();
+	}
+
+	/**
+	 * Synchronize a folder to the agent. Folders that cannot be listed and
+	 * files that cannot be hashed or sent are logged and counted in
+	 * {@link #getFailures()}.
+	 *
+	 * @param source
+	 *            the source folder
+	 * @throws IOException
+	 *             if the agent cannot be reached or the connection fails
+	 */
+	public void sync(Path source) throws IOException {
+		if (!Files.isDirectory(source)) {
+			throw new NoSuchFileException(source.toString(), null, "Not a directory");
+		}
+
+		BlockCompressor compressor = null;
+		try (FrameChannel channel = new FrameChannel(SocketChannel.open(agent))) {
+			Compression accepted = hello(channel);
+			if (accepted != null) {
+				compressor = new BlockCompressor(accepted, compressionThreads);
+				channel.setCompressor(compressor);
+			}
+
+			try {
+				new Session(channel, source).run();
+			} finally {
+				bytesRead.add(channel.getFileBytesRead());
+				bytesTransferred.add(channel.getFileBytesSent());
+			}
+		} finally {
+			if (compressor != null) {
+				compressor.close();
+			}
+		}
+	}
+
+	/**
+	 * @return the compression accepted by the agent, or null
+	 */
+	private Compression hello(FrameChannel channel) throws IOException {
+		ByteBuffer out = ByteBuffer.allocate(256);
+		out.putInt(Protocol.MAGIC);
+		out.put(Protocol.VERSION);
+		out.put(secure ? Protocol.FLAG_SECURE : 0);
+		Protocol.putString(out, hashAlgorithm.getName());
+		Protocol.putString(out, compression == null ? "" : compression.getName());
+		out.flip();
+		channel.send(Protocol.HELLO, out);
+
+		ByteBuffer frame = channel.receive();
+		if (channel.type() == Protocol.ERROR) {
+			throw new IOException("Agent " + agent + " refused the connection: " + Protocol.getString(frame));
+		}
+		if (channel.type() != Protocol.HELLO) {
+			throw new IOException(agent + " is not a FileSync agent");
+		}
+
+		frame.get();
+		Compression accepted = Compression.forName(Protocol.getString(frame));
+		if (compression != null && accepted == null) {
+			Logger.getLogger(RemoteSyncClient.class.getName()).log(Level.INFO,
+					"Agent " + agent + " does not support " + compression.getName() + ", files are sent raw");
+		}
+		return accepted;
+	}
+
+	/**
+	 * A source file, as announced to the agent.
+	 */
+	private static final class Entry {
+
+		private final String path;
+		private final Path file;
+		private final long size;
+		private final long modified;
+		private final byte[] hash;
+
+		private Entry(String path, Path file, long size, long modified, byte[] hash) {
+			this.path = path;
+			this.file = file;
+			this.size = size;
+			this.modified = modified;
+			this.hash = hash;
+		}
+	}
+
+	/**
+	 * One synchronization over a connection.
+	 */
+	private final class Session {
+
+		private final FrameChannel channel;
+		private final Path source;
+		private final ByteBuffer out = ByteBuffer.allocate(Protocol.MAX_FRAME_SIZE);
+
+		/**
+		 * Batches of entries, files to send, errors and {@link #FINISH}, in
+		 * the order they must be handled by the writing thread.
+		 */
+		private final BlockingQueue<Object> events = new LinkedBlockingQueue<Object>();
+		private final Semaphore batchPermits = new Semaphore(MAX_PENDING_BATCHES);
+		private final ConcurrentLinkedQueue<List<Entry>> pendingBatches = new ConcurrentLinkedQueue<List<Entry>>();
+		private final ConcurrentLinkedQueue<Entry> pendingFiles = new ConcurrentLinkedQueue<Entry>();
+
+		/**
+		 * The walk and every batch waiting for decisions. The one who brings
+		 * it to zero queues {@link #FINISH}, after any file it queued.
+		 */
+		private final AtomicInteger unfinished = new AtomicInteger(1);
+
+		private Session(FrameChannel channel, Path source) {
+			this.channel = channel;
+			this.source = source;
+		}
+
+		private void run() throws IOException {
+			DaemonThreadFactory threads = new DaemonThreadFactory("RemoteSyncClient");
+			Thread walker = threads.newThread(this::walk);
+			Thread reader = threads.newThread(this::read);
+			walker.start();
+			reader.start();
+
+			if (metrics != null) {
+				metrics.registerQueue("remote", events::size);
+			}
+			try {
+				write();
+				reader.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while synchronizing to " + agent, e);
+			} finally {
+				walker.interrupt();
+				if (metrics != null) {
+					metrics.unregisterQueue("remote");
+				}
+			}
+		}
+
+		/**
+		 * Send batches and files in the order they are queued.
+		 */
+		@SuppressWarnings("unchecked")
+		private void write() throws IOException, InterruptedException {
+			while (true) {
+				Object event = events.take();
+
+				if (event == FINISH) {
+					out.clear();
+					out.flip();
+					channel.send(Protocol.DONE, out);
+					return;
+				} else if (event instanceof IOException) {
+					throw (IOException) event;
+				} else if (event instanceof Entry) {
+					send((Entry) event);
+				} else {
+					List<Entry> batch = (List<Entry>) event;
+					if (batch.isEmpty()) {
+						// The walk is over
+						finished();
+						continue;
+					}
+
+					out.clear();
+					out.putInt(batch.size());
+					for (Entry entry : batch) {
+						Protocol.putString(out, entry.path);
+						out.putLong(entry.size);
+						out.putLong(entry.modified);
+						out.put((byte) entry.hash.length);
+						out.put(entry.hash);
+					}
+					out.flip();
+					pendingBatches.add(batch);
+					channel.send(Protocol.ENTRIES, out);
+				}
+			}
+		}
+
+		private void finished() {
+			if (unfinished.decrementAndGet() == 0) {
+				events.add(FINISH);
+			}
+		}
+
+		/**
+		 * Send a FILE frame and its data. The size is read again, so a file
+		 * changed since it was listed is sent as it is now.
+		 */
+		private void send(Entry entry) throws IOException {
+			long start = System.nanoTime();
+			FileChannel data;
+			BasicFileAttributes attrs;
+			try {
+				data = FileChannel.open(entry.file, StandardOpenOption.READ);
+				attrs = Files.readAttributes(entry.file, BasicFileAttributes.class);
+			} catch (IOException e) {
+				Logger.getLogger(RemoteSyncClient.class.getName()).log(Level.WARNING, "Cannot read " + entry.file,
+						e);
+				failures.increment();
+				return;
+			}
+
+			try {
+				long size = data.size();
+				out.clear();
+				Protocol.putString(out, entry.path);
+				out.putLong(size);
+				out.putLong(attrs.lastModifiedTime().toMillis());
+				out.flip();
+
+				Entry sent = new Entry(entry.path, entry.file, size, 0, null);
+				pendingFiles.add(sent);
+				channel.send(Protocol.FILE, out);
+				channel.sendFile(data, size, throttle);
+
+				if (metrics != null) {
+					metrics.copied(size, System.nanoTime() - start);
+				}
+			} finally {
+				data.close();
+			}
+		}
+
+		/**
+		 * Handle the answers of the agent until it confirms the end of the
+		 * synchronization.
+		 */
+		private void read() {
+			try {
+				while (true) {
+					ByteBuffer frame = channel.receive();
+
+					switch (channel.type()) {
+					case Protocol.DECISIONS:
+						decisions(frame);
+						break;
+					case Protocol.ACK:
+						acknowledge(frame);
+						break;
+					case Protocol.DONE:
+						return;
+					case Protocol.ERROR:
+						throw new IOException("Agent failed: " + Protocol.getString(frame));
+					default:
+						throw new IOException("Unexpected frame " + channel.type());
+					}
+				}
+			} catch (IOException e) {
+				events.add(e);
+			} catch (RuntimeException e) {
+				events.add(new IOException("Cannot read the answers of " + agent, e));
+			}
+		}
+
+		private void decisions(ByteBuffer frame) throws IOException {
+			List<Entry> batch = pendingBatches.poll();
+			int count = frame.getInt();
+			if (batch == null || count != batch.size()) {
+				throw new IOException("Decisions do not match the entries sent");
+			}
+
+			for (Entry entry : batch) {
+				if (entry.size != Protocol.DIRECTORY) {
+					filesChecked.increment();
+				}
+				if (frame.get() == Protocol.SEND) {
+					events.add(entry);
+				}
+			}
+			batchPermits.release();
+			finished();
+		}
+
+		private void acknowledge(ByteBuffer frame) throws IOException {
+			Entry entry = pendingFiles.poll();
+			if (entry == null) {
+				throw new IOException("Acknowledgment of a file that was not sent");
+			}
+
+			byte status = frame.get();
+			String message = Protocol.getString(frame);
+			if (status == Protocol.STATUS_OK) {
+				filesSent.increment();
+				bytesSent.add(entry.size);
+				if (listener != null) {
+					listener.accept(entry.path);
+				}
+			} else {
+				failures.increment();
+				Logger.getLogger(RemoteSyncClient.class.getName()).log(Level.WARNING,
+						"Agent cannot write " + entry.path + ": " + message);
+			}
+		}
+
+		/**
+		 * Walk the source, queueing batches of entries, and an empty batch at
+		 * the end.
+		 */
+		private void walk() {
+			try {
+				List<Entry> batch = walk(source, filter.root(), new ArrayList<Entry>());
+				if (!batch.isEmpty()) {
+					queue(batch);
+				}
+				events.add(new ArrayList<Entry>());
+			} catch (IOException e) {
+				events.add(e);
+			} catch (InterruptedException e) {
+				// The session ended first
+			} catch (RuntimeException e) {
+				events.add(new IOException("Cannot walk " + source, e));
+			}
+		}
+
+		private List<Entry> walk(Path directory, PathFilter.Scope scope, List<Entry> batch)
+				throws IOException, InterruptedException {
+			final List<Path> subdirectories = new ArrayList<Path>();
+			// Directories are announced before their files, so the agent creates
+			// empty ones too
+			final List<Entry> entries = new ArrayList<Entry>();
+
+			// Like a local synchronization, entries that cannot be read are
+			// logged and counted, and the walk goes on with the others
+			try {
+				DirectoryScanner.scan(directory, (entry, attrs) -> {
+					String name = entry.getFileName().toString();
+					if (metrics != null) {
+						metrics.scanned();
+					}
+					if (InternalFiles.isInternal(name) || scope.isExcluded(name, attrs.isDirectory())) {
+						return;
+					}
+
+					String path = scope.getPath().isEmpty() ? name : scope.getPath() + "/" + name;
+					if (attrs.isDirectory()) {
+						subdirectories.add(entry);
+						entries.add(new Entry(path, entry, Protocol.DIRECTORY, 0, NO_HASH));
+						return;
+					}
+
+					byte[] hash = NO_HASH;
+					if (secure) {
+						try {
+							hash = hash(entry, attrs);
+						} catch (IOException e) {
+							Logger.getLogger(RemoteSyncClient.class.getName()).log(Level.SEVERE,
+									"Cannot hash " + entry, e);
+							failures.increment();
+							return;
+						}
+					}
+					entries.add(new Entry(path, entry, attrs.size(), attrs.lastModifiedTime().toMillis(), hash));
+				});
+			} catch (IOException e) {
+				Logger.getLogger(RemoteSyncClient.class.getName()).log(Level.SEVERE, "Cannot list " + directory, e);
+				failures.increment();
+			}
+
+			int bytes = 4;
+			for (Entry entry : batch) {
+				bytes += sizeOf(entry);
+			}
+			for (Entry entry : entries) {
+				if (batch.size() >= Protocol.BATCH_ENTRIES || bytes + sizeOf(entry) > Protocol.BATCH_BYTES) {
+					queue(batch);
+					batch = new ArrayList<Entry>();
+					bytes = 4;
+				}
+				batch.add(entry);
+				bytes += sizeOf(entry);
+			}
+
+			for (Path subdirectory : subdirectories) {
+				batch = walk(subdirectory, scope.enter(subdirectory.getFileName().toString()), batch);
+			}
+			return batch;
+		}
+
+		private void queue(List<Entry> batch) throws InterruptedException {
+			batchPermits.acquire();
+			unfinished.incrementAndGet();
+			events.add(batch);
+		}
+
+		private int sizeOf(Entry entry) {
+			return Protocol.sizeOf(entry.path) + 17 + entry.hash.length;
+		}
+
+		private byte[] hash(Path file, BasicFileAttributes attrs) throws IOException {
+			byte[] hash = hashCache == null ? null : hashCache.get(file, attrs, hashAlgorithm);
+			if (hash == null) {
+				long start = System.nanoTime();
+				hash = FileHasher.hash(file, hashAlgorithm, throttle);
+				if (metrics != null) {
+					metrics.hashed(attrs.size(), System.nanoTime() - start);
+				}
+				if (hashCache != null) {
+					hashCache.put(file, attrs, hashAlgorithm, hash);
+				}
+			}
+			return hash;
+		}
+	}
+
+}
@@ -0,0 +1,363 @@
+package com.adamiworks.filesync.remote;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.adamiworks.filesync.compress.BlockDecompressor;
+import com.adamiworks.filesync.compress.Compression;
+import com.adamiworks.filesync.copy.CopyEngine;
+import com.adamiworks.filesync.hash.FileHasher;
+import com.adamiworks.filesync.hash.HashAlgorithm;
+import com.adamiworks.filesync.hash.HashCache;
+import com.adamiworks.filesync.util.DaemonThreadFactory;
+import com.adamiworks.filesync.util.InternalFiles;
+
+/**
+ * Runs on the destination host and synchronizes a local folder on behalf of
+ * a {@link RemoteSyncClient}. The client sends the size, modification time
+ * and, in secure mode, the hash of its files in batches; the agent compares
+ * them with its local files, where every check is a local system call, and
+ * answers which files must be sent. Received files are written to a temporary
+ * file, given the source modification time and renamed over the destination.
+ * <BR>
+ * <BR>
+ * Each connection is served by its own thread. Paths leaving the destination
+ * folder are rejected. The protocol has no authentication nor encryption: the
+ * agent must only be reachable from trusted hosts, or through an SSH tunnel.
+ *
+ * @author Tiago J. Adami
+ */
+public final class SyncAgent implements Closeable {
+
+	public static final int DEFAULT_PORT = Protocol.DEFAULT_PORT;
+
+	private static final int MIN_ENTRY_SIZE = Protocol.sizeOf("") + 8 + 8 + 1;
+
+	private final Path root;
+	private final ServerSocketChannel server;
+	private final DaemonThreadFactory threads = new DaemonThreadFactory("SyncAgent");
+	private HashCache hashCache;
+
+	/**
+	 * @param root
+	 *            the destination folder
+	 * @param address
+	 *            where to listen for clients
+	 * @throws IOException
+	 *             if the address cannot be bound
+	 */
+	public SyncAgent(Path root, InetSocketAddress address) throws IOException {
+		this.root = root.toAbsolutePath().normalize();
+		this.server = ServerSocketChannel.open();
+		server.bind(address);
+	}
+
+	/**
+	 * @return the address the agent listens on
+	 * @throws IOException
+	 */
+	public InetSocketAddress getAddress() throws IOException {
+		return (InetSocketAddress) server.getLocalAddress();
+	}
+
+	/**
+	 * Keep the hashes of local files in a {@link HashCache}, so secure
+	 * comparisons do not read unchanged files again.
+	 *
+	 * @param hashCache
+	 *            the cache, or null
+	 */
+	public void setHashCache(HashCache hashCache) {
+		this.hashCache = hashCache;
+	}
+
+	/**
+	 * Serve clients until the agent is closed or the thread is interrupted.
+	 *
+	 * @throws IOException
+	 */
+	public void run() throws IOException {
+		Files.createDirectories(root);
+		Logger.getLogger(SyncAgent.class.getName()).log(Level.INFO,
+				"Serving " + root + " on " + server.getLocalAddress());
+
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				final SocketChannel client = server.accept();
+				threads.newThread(() -> serve(client)).start();
+			}
+		} catch (AsynchronousCloseException e) {
+			// Closed by another thread
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		server.close();
+	}
+
+	private void serve(SocketChannel client) {
+		String peer = String.valueOf(client.socket().getRemoteSocketAddress());
+
+		try (FrameChannel channel = new FrameChannel(client)) {
+			new Session(channel).run();
+			Logger.getLogger(SyncAgent.class.getName()).log(Level.INFO, "Session of " + peer + " finished");
+		} catch (IOException | RuntimeException e) {
+			Logger.getLogger(SyncAgent.class.getName()).log(Level.WARNING, "Session of " + peer + " failed", e);
+		} finally {
+			HashCache cache = hashCache;
+			if (cache != null) {
+				cache.flush();
+			}
+		}
+	}
+
+	/**
+	 * The conversation with one client.
+	 */
+	private final class Session {
+
+		private final FrameChannel channel;
+		private final ByteBuffer out = ByteBuffer.allocate(Protocol.MAX_FRAME_SIZE);
+		private HashAlgorithm algorithm;
+		private boolean secure;
+
+		private Session(FrameChannel channel) {
+			this.channel = channel;
+		}
+
+		private void run() throws IOException {
+			hello(channel.receive());
+
+			while (true) {
+				ByteBuffer frame = channel.receive();
+				switch (channel.type()) {
+				case Protocol.ENTRIES:
+					decide(frame);
+					break;
+				case Protocol.FILE:
+					receive(frame);
+					break;
+				case Protocol.DONE:
+					out.clear();
+					out.flip();
+					channel.send(Protocol.DONE, out);
+					return;
+				default:
+					throw new IOException("Unexpected frame " + channel.type());
+				}
+			}
+		}
+
+		private void hello(ByteBuffer frame) throws IOException {
+			if (channel.type() != Protocol.HELLO || frame.remaining() < 6 || frame.getInt() != Protocol.MAGIC) {
+				throw new IOException("Not a FileSync client");
+			}
+			byte version = frame.get();
+			if (version != Protocol.VERSION) {
+				error("Protocol version " + version + " not supported, the agent speaks " + Protocol.VERSION);
+				throw new IOException("Client of protocol version " + version);
+			}
+			secure = (frame.get() & Protocol.FLAG_SECURE) != 0;
+			String name = Protocol.getString(frame);
+			algorithm = HashAlgorithm.forName(name);
+			if (secure && algorithm == null) {
+				error("Hash algorithm " + name + " not supported");
+				throw new IOException("Client of unknown hash algorithm " + name);
+			}
+
+			// File data stays raw if the compression of the client is unknown here
+			Compression compression = Compression.forName(Protocol.getString(frame));
+			if (compression != null && compression.isAvailable()) {
+				channel.setDecompressor(new BlockDecompressor(compression));
+			} else {
+				compression = null;
+			}
+
+			out.clear();
+			out.put(Protocol.VERSION);
+			Protocol.putString(out, compression == null ? "" : compression.getName());
+			out.flip();
+			channel.send(Protocol.HELLO, out);
+		}
+
+		private void error(String message) throws IOException {
+			out.clear();
+			Protocol.putString(out, message);
+			out.flip();
+			channel.send(Protocol.ERROR, out);
+		}
+
+		/**
+		 * Answer a batch of entries with one decision per entry.
+		 */
+		private void decide(ByteBuffer frame) throws IOException {
+			int count = frame.getInt();
+			// Each entry takes at least the length of its path, its size, its
+			// date and the length of its hash
+			if (count < 0 || count > frame.remaining() / MIN_ENTRY_SIZE) {
+				throw new IOException("Malformed batch of " + count + " entries");
+			}
+			byte[] decisions = new byte[count];
+
+			for (int i = 0; i < count; i++) {
+				String path = Protocol.getString(frame);
+				long size = frame.getLong();
+				long modified = frame.getLong();
+				byte[] hash = new byte[frame.get() & 0xff];
+				frame.get(hash);
+
+				decisions[i] = decide(path, size, modified, hash);
+			}
+
+			out.clear();
+			out.putInt(count);
+			out.put(decisions);
+			out.flip();
+			channel.send(Protocol.DECISIONS, out);
+		}
+
+		private byte decide(String path, long size, long modified, byte[] hash) {
+			try {
+				Path file = resolve(path);
+				if (size == Protocol.DIRECTORY) {
+					// A directory has no data to send, even when it cannot
+					// be created
+					try {
+						Files.createDirectories(file);
+					} catch (IOException e) {
+						Logger.getLogger(SyncAgent.class.getName()).log(Level.WARNING, "Cannot create " + path, e);
+					}
+					return Protocol.SKIP;
+				}
+
+				BasicFileAttributes attrs;
+				try {
+					attrs = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+				} catch (NoSuchFileException e) {
+					return Protocol.SEND;
+				}
+
+				if (attrs.isDirectory()) {
+					Logger.getLogger(SyncAgent.class.getName()).log(Level.WARNING,
+							"Destination " + file + " is a directory");
+					return Protocol.SKIP;
+				}
+				if (attrs.size() != size || attrs.lastModifiedTime().toMillis() != modified) {
+					return Protocol.SEND;
+				}
+				if (secure && hash.length > 0 && !Arrays.equals(hash, hash(file, attrs))) {
+					return Protocol.SEND;
+				}
+				return Protocol.SKIP;
+			} catch (IOException e) {
+				Logger.getLogger(SyncAgent.class.getName()).log(Level.WARNING, "Cannot check " + path, e);
+				return Protocol.SEND;
+			}
+		}
+
+		private byte[] hash(Path file, BasicFileAttributes attrs) throws IOException {
+			HashCache cache = hashCache;
+			byte[] hash = cache == null ? null : cache.get(file, attrs, algorithm);
+			if (hash == null) {
+				hash = FileHasher.hash(file, algorithm);
+				if (cache != null) {
+					cache.put(file, attrs, algorithm, hash);
+				}
+			}
+			return hash;
+		}
+
+		/**
+		 * Write the data that follows a FILE frame and acknowledge it.
+		 */
+		private void receive(ByteBuffer frame) throws IOException {
+			String path = Protocol.getString(frame);
+			long size = frame.getLong();
+			long modified = frame.getLong();
+
+			Path file = null;
+			String failure = null;
+			try {
+				file = resolve(path);
+				Files.createDirectories(file.getParent());
+			} catch (IOException e) {
+				failure = e.toString();
+			}
+
+			// The data is always read, so the stream stays in step
+			Path temp = failure == null ? CopyEngine.tempFile(file) : null;
+			boolean complete;
+			if (temp == null) {
+				complete = false;
+				channel.discardFile(size);
+			} else {
+				try (FileChannel data = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+					complete = channel.receiveFile(data, size);
+				}
+			}
+
+			if (failure == null && !complete) {
+				failure = "Source changed while being sent";
+			}
+			if (failure == null) {
+				try {
+					Files.setLastModifiedTime(temp, FileTime.fromMillis(modified));
+					try {
+						Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+					} catch (AtomicMoveNotSupportedException e) {
+						Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+					}
+				} catch (IOException e) {
+					failure = e.toString();
+				}
+			}
+			if (failure != null && temp != null) {
+				Files.deleteIfExists(temp);
+				Logger.getLogger(SyncAgent.class.getName()).log(Level.WARNING, "Cannot write " + path + ": " + failure);
+			}
+
+			out.clear();
+			out.put(failure == null ? Protocol.STATUS_OK : Protocol.STATUS_FAILED);
+			Protocol.putString(out, failure == null ? "" : failure);
+			out.flip();
+			channel.send(Protocol.ACK, out);
+		}
+
+		/**
+		 * @return the local file of a "/" separated relative path
+		 * @throws IOException
+		 *             if the path leaves the root or names an internal file
+		 */
+		private Path resolve(String path) throws IOException {
+			Path file = root.resolve(path).normalize();
+			if (!file.startsWith(root) || file.equals(root) || path.startsWith("/")) {
+				throw new IOException("Path outside of the destination: " + path);
+			}
+			if (InternalFiles.isInternal(file.getFileName().toString())) {
+				throw new IOException("Internal file name: " + path);
+			}
+			return file;
+		}
+	}
+
+}
@@ -0,0 +1,348 @@
+package com.adamiworks.filesync.scan;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * A first-in first-out queue of directories still to be scanned, held in a
+ * bounded amount of memory whatever the size of the tree.<BR>
+ * <BR>
+ * Directories are "/" separated paths relative to the scanned root. They are
+ * stored UTF-8 encoded in segments of {@value #SEGMENT_SIZE} bytes, each path
+ * as the length of the prefix it shares with the previous path of the segment
+ * followed by the rest of its bytes. Subdirectories of a directory are queued
+ * one after the other and share their parent path, so most paths take a few
+ * bytes more than their own name.<BR>
+ * <BR>
+ * The segments being written and read stay in memory, as do the full ones in
+ * between as long as they fit in the memory limit. Beyond it, full segments
+ * are appended to a spill file and read back in order when the reader gets to
+ * them.<BR>
+ * <BR>
+ * Workers {@link #take()} a directory, scan it, {@link #add(String)} its
+ * subdirectories and call {@link #done()}. {@link #take()} returns null once
+ * the queue is empty and no directory is being scanned. Instances may be
+ * shared by concurrent threads.
+ *
+ * @author Tiago J. Adami
+ */
+public final class DirectoryQueue implements Closeable {
+
+	static final int SEGMENT_SIZE = 256 * 1024;
+
+	/**
+	 * Paths longer than this are not front coded with the next one.
+	 */
+	private static final int MAX_PATH_BYTES = 64 * 1024;
+
+	private final int maxMemorySegments;
+	private final Path spillFile;
+	private FileChannel spill;
+	private long spillReadPosition;
+	private long spillWritePosition;
+
+	/**
+	 * Full segments kept in memory, in order; all of them come before the
+	 * spilled ones, which come before the tail.
+	 */
+	private final ArrayDeque<byte[]> memory = new ArrayDeque<byte[]>();
+	private int spilledSegments;
+
+	private Segment head;
+	private Segment tail = new Segment(new byte[SEGMENT_SIZE], 0);
+
+	private long size;
+	private int inProgress;
+	private long spilledBytes;
+
+	/**
+	 * @param maxMemory
+	 *            bytes of paths to keep in memory before spilling to disk
+	 * @param spillDirectory
+	 *            where the spill file is created, when needed
+	 */
+	public DirectoryQueue(long maxMemory, Path spillDirectory) {
+		this.maxMemorySegments = (int) Math.max(2, Math.min(Integer.MAX_VALUE, maxMemory / SEGMENT_SIZE));
+		this.spillFile = spillDirectory.resolve("filesync-queue-" + Long.toHexString(System.nanoTime()));
+		this.head = tail;
+	}
+
+	/**
+	 * @return number of queued directories
+	 */
+	public synchronized long size() {
+		return size;
+	}
+
+	/**
+	 * @return bytes of paths written to disk so far
+	 */
+	public synchronized long getSpilledBytes() {
+		return spilledBytes;
+	}
+
+	/**
+	 * @param path
+	 *            "/" separated directory path, "" for the root
+	 * @throws IOException
+	 *             if the queue cannot spill to disk
+	 */
+	public synchronized void add(String path) throws IOException {
+		byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+
+		if (!tail.add(bytes)) {
+			rotateTail();
+			if (!tail.add(bytes)) {
+				throw new IOException("Directory path of " + bytes.length + " bytes is too long: " + path);
+			}
+		}
+		size++;
+		notifyAll();
+	}
+
+	/**
+	 * Wait for a directory to scan.
+	 *
+	 * @return the directory, or null when every directory has been scanned
+	 * @throws IOException
+	 *             if spilled directories cannot be read back
+	 * @throws InterruptedException
+	 */
+	public synchronized String take() throws IOException, InterruptedException {
+		while (size == 0) {
+			if (inProgress == 0) {
+				return null;
+			}
+			wait();
+		}
+
+		String path = head.next();
+		while (path == null) {
+			nextHead();
+			path = head.next();
+		}
+		size--;
+		inProgress++;
+		return path;
+	}
+
+	/**
+	 * A directory returned by {@link #take()} was scanned, and its
+	 * subdirectories added.
+	 */
+	public synchronized void done() {
+		inProgress--;
+		if (inProgress == 0 && size == 0) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Make the full tail one of the queued segments, and start a new tail.
+	 */
+	private void rotateTail() throws IOException {
+		if (head == tail) {
+			// The reader goes on with the segment as it is
+			tail = new Segment(new byte[SEGMENT_SIZE], 0);
+			return;
+		}
+
+		byte[] full = tail.trimmed();
+		if (spilledSegments == 0 && memory.size() + 2 < maxMemorySegments) {
+			memory.add(full);
+		} else {
+			spill(full);
+		}
+		tail = new Segment(new byte[SEGMENT_SIZE], 0);
+	}
+
+	/**
+	 * Move the reader to the next segment: kept in memory, spilled, or the
+	 * tail.
+	 */
+	private void nextHead() throws IOException {
+		if (!memory.isEmpty()) {
+			byte[] data = memory.poll();
+			head = new Segment(data, data.length);
+		} else if (spilledSegments > 0) {
+			byte[] data = unspill();
+			head = new Segment(data, data.length);
+		} else {
+			head = tail;
+		}
+	}
+
+	private void spill(byte[] segment) throws IOException {
+		if (spill == null) {
+			spill = FileChannel.open(spillFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+					StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+		}
+
+		ByteBuffer length = ByteBuffer.allocate(4).putInt(segment.length);
+		length.flip();
+		writeFully(length);
+		writeFully(ByteBuffer.wrap(segment));
+		spilledSegments++;
+		spilledBytes += segment.length;
+	}
+
+	private void writeFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			spillWritePosition += spill.write(buffer, spillWritePosition);
+		}
+	}
+
+	private byte[] unspill() throws IOException {
+		ByteBuffer length = ByteBuffer.allocate(4);
+		readFully(length);
+		byte[] segment = new byte[length.getInt(0)];
+		readFully(ByteBuffer.wrap(segment));
+		spilledSegments--;
+
+		// Everything spilled was read back, start the file over
+		if (spilledSegments == 0) {
+			spill.truncate(0);
+			spillReadPosition = 0;
+			spillWritePosition = 0;
+		}
+		return segment;
+	}
+
+	private void readFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			int n = spill.read(buffer, spillReadPosition);
+			if (n < 0) {
+				throw new IOException("Spill file " + spillFile + " is truncated");
+			}
+			spillReadPosition += n;
+		}
+	}
+
+	/**
+	 * Delete the spill file.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (spill != null) {
+			spill.close();
+			spill = null;
+		}
+		Files.deleteIfExists(spillFile);
+	}
+
+	/**
+	 * Front coded paths. Written only while it is the tail and read from the
+	 * start while it is the head, both under the lock of the queue.
+	 */
+	private static final class Segment {
+
+		private final byte[] data;
+		private int writePosition;
+		private int readPosition;
+		private byte[] lastWritten = new byte[0];
+		private byte[] lastRead = new byte[0];
+
+		/**
+		 * @param data
+		 *            a new array to write to, or the data of a full segment
+		 *            to read
+		 * @param length
+		 *            bytes written
+		 */
+		private Segment(byte[] data, int length) {
+			this.data = data;
+			this.writePosition = length;
+		}
+
+		/**
+		 * @return false if the segment is full
+		 */
+		private boolean add(byte[] path) {
+			int shared = 0;
+			int max = Math.min(path.length, lastWritten.length);
+			while (shared < max && path[shared] == lastWritten[shared]) {
+				shared++;
+			}
+
+			int suffix = path.length - shared;
+			if (writePosition + varIntSize(shared) + varIntSize(suffix) + suffix > data.length) {
+				return false;
+			}
+			writePosition = putVarInt(data, writePosition, shared);
+			writePosition = putVarInt(data, writePosition, suffix);
+			System.arraycopy(path, shared, data, writePosition, suffix);
+			writePosition += suffix;
+
+			lastWritten = path.length > MAX_PATH_BYTES ? new byte[0] : path;
+			return true;
+		}
+
+		/**
+		 * @return the next path, or null at the end of the written data
+		 */
+		private String next() {
+			if (readPosition >= writePosition) {
+				return null;
+			}
+
+			int[] value = new int[1];
+			readPosition = getVarInt(data, readPosition, value);
+			int shared = value[0];
+			readPosition = getVarInt(data, readPosition, value);
+			int suffix = value[0];
+
+			byte[] path = Arrays.copyOf(lastRead, shared + suffix);
+			System.arraycopy(data, readPosition, path, shared, suffix);
+			readPosition += suffix;
+
+			lastRead = path.length > MAX_PATH_BYTES ? new byte[0] : path;
+			return new String(path, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * @return the written data, which a reader may take as a segment
+		 */
+		private byte[] trimmed() {
+			return writePosition == data.length ? data : Arrays.copyOf(data, writePosition);
+		}
+	}
+
+	private static int varIntSize(int value) {
+		int size = 1;
+		while ((value >>>= 7) != 0) {
+			size++;
+		}
+		return size;
+	}
+
+	private static int putVarInt(byte[] data, int position, int value) {
+		while ((value & ~0x7f) != 0) {
+			data[position++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		data[position++] = (byte) value;
+		return position;
+	}
+
+	private static int getVarInt(byte[] data, int position, int[] value) {
+		int result = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = data[position++];
+			result |= (b & 0x7f) << shift;
+			shift += 7;
+		} while (b < 0);
+		value[0] = result;
+		return position;
+	}
+
+}
@@ -0,0 +1,70 @@
+package com.adamiworks.filesync.scan;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Lists a directory as a stream of entries with their attributes.<BR>
+ * Entries are read from a {@link DirectoryStream} and handed to the visitor
+ * one at a time, so a directory with millions of entries is never held in
+ * memory. Type, length and modification date of every entry come from a
+ * single attribute read, which replaces the separate isDirectory, length and
+ * lastModified calls. Entries are visited in file system order.
+ *
+ * @author Tiago J. Adami
+ */
+public final class DirectoryScanner {
+
+	/**
+	 * Receives the entries of a scanned directory.
+	 */
+	public interface Visitor {
+
+		/**
+		 * @param entry
+		 *            full path of the entry
+		 * @param attrs
+		 *            attributes of the entry, following symbolic links
+		 * @throws IOException
+		 *             stops the scan and is thrown by
+		 *             {@link DirectoryScanner#scan(Path, Visitor)}
+		 */
+		void visit(Path entry, BasicFileAttributes attrs) throws IOException;
+
+	}
+
+	private DirectoryScanner() {
+	}
+
+	/**
+	 * Visit every entry of a directory. Entries whose attributes cannot be read,
+	 * like broken symbolic links, are logged and skipped.
+	 *
+	 * @param directory
+	 * @param visitor
+	 * @throws IOException
+	 *             if the directory cannot be listed
+	 */
+	public static void scan(Path directory, Visitor visitor) throws IOException {
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+			for (Path entry : stream) {
+				BasicFileAttributes attrs;
+				try {
+					attrs = Files.readAttributes(entry, BasicFileAttributes.class);
+				} catch (IOException e) {
+					Logger.getLogger(DirectoryScanner.class.getName()).log(Level.WARNING,
+							"Skipping " + entry + ": " + e);
+					continue;
+				}
+
+				visitor.visit(entry, attrs);
+			}
+		}
+	}
+
+}
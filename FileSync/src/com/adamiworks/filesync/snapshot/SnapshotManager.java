@@ -0,0 +1,172 @@
+package com.adamiworks.filesync.snapshot;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import com.adamiworks.filesync.util.FileTrees;
+
+/**
+ * Generation directories of a snapshot destination. Every snapshot run writes
+ * a new generation named by its start time, like 2016-05-21_031500, where
+ * files unchanged since the previous generation are hard links to it. Names
+ * sort in chronological order.<BR>
+ * <BR>
+ * A generation is built in a temporary directory and renamed when its run
+ * ends, so a run that was interrupted never leaves a generation behind. A run
+ * where some files failed still publishes its generation, which is then
+ * partial: the report lists its failures. The files written, linked and
+ * failed by each run are appended to a report in the destination root.
+ *
+ * @author Tiago J. Adami
+ */
+public final class SnapshotManager {
+
+	public static final String REPORT_FILE_NAME = ".filesync-snapshots";
+
+	private static final String INCOMPLETE_PREFIX = ".filesync-incomplete-";
+	private static final DateTimeFormatter NAME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd_HHmmss");
+	private static final Pattern NAME_PATTERN = Pattern.compile("\\d{4}-\\d{2}-\\d{2}_\\d{6}(-\\d+)?");
+
+	private final Path root;
+
+	public SnapshotManager(Path root) {
+		this.root = root;
+	}
+
+	/**
+	 * @return published generations, oldest first
+	 * @throws IOException
+	 */
+	public List<Path> getGenerations() throws IOException {
+		List<Path> generations = new ArrayList<Path>();
+		if (!Files.isDirectory(root)) {
+			return generations;
+		}
+
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(root)) {
+			for (Path p : stream) {
+				if (NAME_PATTERN.matcher(p.getFileName().toString()).matches()
+						&& Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS)) {
+					generations.add(p);
+				}
+			}
+		}
+
+		Collections.sort(generations);
+		return generations;
+	}
+
+	/**
+	 * @return the newest published generation, or null if there is none
+	 * @throws IOException
+	 */
+	public Path getLatest() throws IOException {
+		List<Path> generations = getGenerations();
+		return generations.isEmpty() ? null : generations.get(generations.size() - 1);
+	}
+
+	/**
+	 * Choose the name of a new generation and delete the leftovers of runs
+	 * that did not finish.
+	 *
+	 * @return the name of the new generation, which does not exist yet
+	 * @throws IOException
+	 */
+	public String newGeneration() throws IOException {
+		Files.createDirectories(root);
+
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(root, INCOMPLETE_PREFIX + "*")) {
+			for (Path p : stream) {
+				FileTrees.delete(p);
+			}
+		}
+
+		String name = LocalDateTime.now().format(NAME_FORMAT);
+		String unique = name;
+		for (int i = 1; Files.exists(root.resolve(unique), LinkOption.NOFOLLOW_LINKS); i++) {
+			unique = name + "-" + i;
+		}
+		return unique;
+	}
+
+	/**
+	 * @param generation
+	 * @return the directory a generation is written to until its run ends
+	 */
+	public Path getIncomplete(String generation) {
+		return root.resolve(INCOMPLETE_PREFIX + generation);
+	}
+
+	/**
+	 * Publish a generation under its final name.
+	 *
+	 * @param generation
+	 * @return the generation directory
+	 * @throws IOException
+	 */
+	public Path complete(String generation) throws IOException {
+		Path target = root.resolve(generation);
+		Files.move(getIncomplete(generation), target);
+		return target;
+	}
+
+	/**
+	 * Delete the oldest generations.
+	 *
+	 * @param keep
+	 *            number of generations to keep
+	 * @return the deleted generations
+	 * @throws IOException
+	 */
+	public List<Path> prune(int keep) throws IOException {
+		List<Path> generations = getGenerations();
+		List<Path> deleted = new ArrayList<Path>();
+
+		for (int i = 0; i < generations.size() - keep; i++) {
+			FileTrees.delete(generations.get(i));
+			deleted.add(generations.get(i));
+		}
+		return deleted;
+	}
+
+	/**
+	 * Append the statistics of a generation to the report.
+	 *
+	 * @param generation
+	 * @param filesCopied
+	 * @param filesLinked
+	 * @param bytesWritten
+	 * @param failures
+	 *            files that could not be copied and folders that could not
+	 *            be created or listed; the generation is partial if any
+	 * @throws IOException
+	 */
+	public void report(String generation, long filesCopied, long filesLinked, long bytesWritten, long failures)
+			throws IOException {
+		Path report = root.resolve(REPORT_FILE_NAME);
+		boolean header = !Files.exists(report);
+
+		try (BufferedWriter writer = Files.newBufferedWriter(report, StandardCharsets.UTF_8,
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+			if (header) {
+				writer.write("generation\tfiles copied\tfiles linked\tbytes written\tfailures");
+				writer.newLine();
+			}
+			writer.write(generation + "\t" + filesCopied + "\t" + filesLinked + "\t" + bytesWritten + "\t" + failures);
+			writer.newLine();
+		}
+	}
+
+}
@@ -0,0 +1,486 @@
+package com.adamiworks.filesync.store;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.adamiworks.filesync.copy.CopyEngine;
+import com.adamiworks.filesync.hash.FileHasher;
+import com.adamiworks.filesync.hash.HashAlgorithm;
+import com.adamiworks.filesync.metrics.FlightRecorderEvents;
+import com.adamiworks.filesync.metrics.SyncMetrics;
+
+/**
+ * Destination layout that stores the body of every distinct file once. Bodies
+ * are kept in a sharded object directory inside the destination root, named
+ * by the SHA-256 of their content:
+ *
+ * <pre>
+ * .filesync-store/objects/ab/cd/abcd...   file bodies
+ * .filesync-store/index                   {@link HashIndex} of stored objects
+ * .filesync-store/paths                   "hash TAB size TAB modified TAB path" of every stored file
+ * </pre>
+ *
+ * Destination files are hard links to their objects. Where hard links are not
+ * supported they are small pointer files with the object hash instead. A file
+ * whose content is already stored costs one hash of the source and one index
+ * lookup; no stored object is ever read again. A new object is hashed again
+ * while it is copied, and it is only stored if the source still has the
+ * content its name was computed from. An object that reached the
+ * link limit of its file system is copied again, and later files link to the
+ * new copy.<BR>
+ * <BR>
+ * A destination file shares the attributes of its object, which are those of
+ * the first source stored with that content, so its own size and
+ * modification date say nothing about its source. The length and
+ * modification date of the source each file was stored from are kept in the
+ * path manifest instead, and {@link #isStored(Path, BasicFileAttributes, Path, boolean)}
+ * compares them.<BR>
+ * <BR>
+ * Objects are never modified: destination files are replaced by renaming a
+ * new link over them, so other files sharing the object are not affected.
+ * Instances may be shared by concurrent threads.
+ *
+ * @author Tiago J. Adami
+ */
+public final class ContentStore implements Closeable {
+
+	public static final String DIRECTORY_NAME = ".filesync-store";
+
+	/**
+	 * First line of the pointer files written when hard links are not
+	 * supported, followed by the object hash.
+	 */
+	public static final String POINTER_HEADER = "filesync-object sha-256";
+
+	/**
+	 * First line of the path manifest. Manifests without it have the hash
+	 * and the path only.
+	 */
+	private static final String PATHS_HEADER = "filesync-paths 2";
+
+	/**
+	 * Pointer files are never larger than this.
+	 */
+	private static final int MAX_POINTER_SIZE = 256;
+
+	private static final HashAlgorithm ALGORITHM = HashAlgorithm.SHA256;
+	private static final int LOCK_STRIPES = 64;
+
+	private final Path root;
+	private final Path objects;
+	private final Path pathsFile;
+	private final HashIndex index;
+	private final CopyEngine copyEngine;
+	private final ConcurrentNavigableMap<String, StoredFile> paths = new ConcurrentSkipListMap<String, StoredFile>();
+	private final Object[] locks = new Object[LOCK_STRIPES];
+	private volatile boolean hardLinks = true;
+	private volatile SyncMetrics metrics;
+
+	private ContentStore(Path root, Path directory, HashIndex index, CopyEngine copyEngine) {
+		this.root = root;
+		this.objects = directory.resolve("objects");
+		this.pathsFile = directory.resolve("paths");
+		this.index = index;
+		this.copyEngine = copyEngine;
+
+		for (int i = 0; i < LOCK_STRIPES; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	/**
+	 * Open the store of a destination folder, creating it if needed.
+	 *
+	 * @param destinationRoot
+	 * @param copyEngine
+	 *            copies new objects into the store
+	 * @return
+	 * @throws IOException
+	 */
+	public static ContentStore open(Path destinationRoot, CopyEngine copyEngine) throws IOException {
+		Path directory = destinationRoot.resolve(DIRECTORY_NAME);
+		Files.createDirectories(directory.resolve("objects"));
+
+		ContentStore store = new ContentStore(destinationRoot, directory,
+				HashIndex.open(directory.resolve("index"), ALGORITHM.newHasher().digest().length), copyEngine);
+
+		if (Files.exists(store.pathsFile)) {
+			try (BufferedReader reader = Files.newBufferedReader(store.pathsFile, StandardCharsets.UTF_8)) {
+				String line = reader.readLine();
+				boolean attributes = PATHS_HEADER.equals(line);
+				if (attributes) {
+					line = reader.readLine();
+				}
+				for (; line != null; line = reader.readLine()) {
+					store.readPath(line, attributes);
+				}
+			}
+		}
+		return store;
+	}
+
+	/**
+	 * Add a line of the path manifest. Files recorded without their source
+	 * attributes are stored again by the next run, which records them.
+	 */
+	private void readPath(String line, boolean attributes) {
+		String[] fields = line.split("\t", attributes ? 4 : 2);
+		if (fields.length < (attributes ? 4 : 2) || fields[0].isEmpty()) {
+			return;
+		}
+		if (!attributes) {
+			paths.put(fields[1], new StoredFile(fields[0], -1, -1));
+			return;
+		}
+		try {
+			paths.put(fields[3], new StoredFile(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+		} catch (NumberFormatException e) {
+			Logger.getLogger(ContentStore.class.getName()).log(Level.WARNING, "Invalid line in " + pathsFile + ": "
+					+ line);
+		}
+	}
+
+	/**
+	 * @param metrics
+	 *            counts the hashes of stored files and the attributes read,
+	 *            or null
+	 */
+	public void setMetrics(SyncMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	private void stat() {
+		SyncMetrics metrics = this.metrics;
+		if (metrics != null) {
+			metrics.stat();
+		}
+	}
+
+	/**
+	 * Make dest a copy of source, storing the source body if no other file
+	 * has the same content.
+	 *
+	 * @param source
+	 * @param dest
+	 *            a path inside the destination root
+	 * @return true if the content was already stored and no data was copied
+	 * @throws IOException
+	 *             if the file could not be stored. dest is left untouched.
+	 */
+	public boolean store(Path source, Path dest) throws IOException {
+		stat();
+		BasicFileAttributes attrs = Files.readAttributes(source, BasicFileAttributes.class);
+		byte[] hash = this.hash(source);
+		String hex = FileHasher.toHex(hash);
+		Path object = this.object(hex);
+		Object lock = locks[(hash[0] & 0xff) % LOCK_STRIPES];
+		boolean deduplicated;
+
+		// Identical files copied at the same time must not write the same
+		// object concurrently
+		synchronized (lock) {
+			deduplicated = index.contains(hash);
+			if (deduplicated) {
+				stat();
+				deduplicated = Files.isRegularFile(object);
+			}
+			if (!deduplicated) {
+				Files.createDirectories(object.getParent());
+				this.copyObject(source, object, hash);
+				index.add(hash);
+			}
+		}
+
+		link(object, hex, dest, lock);
+		paths.put(this.key(dest), new StoredFile(hex, attrs.size(), attrs.lastModifiedTime().toMillis()));
+		return deduplicated;
+	}
+
+	/**
+	 * Copy a source to a new object, hashing the data as it is copied. The
+	 * name of the object comes from an earlier read of the source, so the
+	 * copy is only renamed to it if the data copied has that hash.
+	 */
+	private void copyObject(Path source, Path object, byte[] hash) throws IOException {
+		Path staging = object.resolveSibling(object.getFileName() + ".new");
+		byte[] copied;
+		try {
+			copied = copyEngine.copyVerified(source, staging, ALGORITHM);
+		} catch (IOException e) {
+			Files.deleteIfExists(staging);
+			throw e;
+		}
+		if (!Arrays.equals(hash, copied)) {
+			Files.deleteIfExists(staging);
+			throw new IOException("File changed while being stored: " + source);
+		}
+		Files.move(staging, object, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Check if dest is still the stored copy of a source: it was stored from
+	 * a source with the same length and modification date, and is still a
+	 * link or a pointer to its object.
+	 *
+	 * @param source
+	 * @param attrs
+	 *            attributes of the source
+	 * @param dest
+	 *            a path inside the destination root
+	 * @param compareContents
+	 *            also compare the hash of the source with the object, for the
+	 *            secure and compare methods
+	 * @return true if dest does not need to be stored again
+	 * @throws IOException
+	 *             if the source cannot be hashed
+	 */
+	public boolean isStored(Path source, BasicFileAttributes attrs, Path dest, boolean compareContents)
+			throws IOException {
+		StoredFile stored = paths.get(this.key(dest));
+		if (stored == null || stored.size != attrs.size()
+				|| stored.modified != attrs.lastModifiedTime().toMillis() || !this.isLinked(dest, stored.hash)) {
+			return false;
+		}
+		return !compareContents || stored.hash.equals(FileHasher.toHex(this.hash(source)));
+	}
+
+	/**
+	 * @param dest
+	 *            a path inside the destination root
+	 * @return true if dest was stored, by this run or a previous one
+	 */
+	public boolean contains(Path dest) {
+		return paths.containsKey(this.key(dest));
+	}
+
+	/**
+	 * Forget a destination file or directory tree that was deleted. Its
+	 * objects are kept, other files may link to them.
+	 *
+	 * @param dest
+	 *            a path inside the destination root
+	 */
+	public void remove(Path dest) {
+		String key = this.key(dest);
+		paths.remove(key);
+		// '0' follows '/', so the range holds every path below the directory
+		paths.subMap(key + "/", key + "0").clear();
+	}
+
+	/**
+	 * @return true if dest is a hard link to the object, or a pointer to it
+	 */
+	private boolean isLinked(Path dest, String hex) {
+		try {
+			stat();
+			BasicFileAttributes attrs = Files.readAttributes(dest, BasicFileAttributes.class,
+					LinkOption.NOFOLLOW_LINKS);
+			if (!attrs.isRegularFile()) {
+				return false;
+			}
+
+			// A link to the object, or to an older copy of it made when it
+			// reached the link limit, which kept its times
+			stat();
+			BasicFileAttributes object = Files.readAttributes(this.object(hex), BasicFileAttributes.class);
+			if (attrs.fileKey() != null && attrs.fileKey().equals(object.fileKey())
+					|| attrs.size() == object.size()
+							&& attrs.lastModifiedTime().toMillis() == object.lastModifiedTime().toMillis()) {
+				return true;
+			}
+			if (attrs.size() > MAX_POINTER_SIZE) {
+				return false;
+			}
+
+			List<String> lines = Files.readAllLines(dest, StandardCharsets.UTF_8);
+			return lines.size() >= 2 && POINTER_HEADER.equals(lines.get(0)) && hex.equals(lines.get(1));
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private byte[] hash(Path source) throws IOException {
+		Object event = FlightRecorderEvents.beginHash();
+		long start = System.nanoTime();
+		byte[] hash = FileHasher.hash(source, ALGORITHM, copyEngine.getThrottle());
+		if (metrics != null) {
+			metrics.stat();
+			long bytes = Files.size(source);
+			metrics.hashed(bytes, System.nanoTime() - start);
+			FlightRecorderEvents.commitHash(event, source.toString(), bytes, ALGORITHM.getName());
+		}
+		return hash;
+	}
+
+	private Path object(String hex) {
+		return objects.resolve(hex.substring(0, 2)).resolve(hex.substring(2, 4)).resolve(hex);
+	}
+
+	/**
+	 * @return the "/" separated path of dest relative to the root
+	 */
+	private String key(Path dest) {
+		return root.relativize(dest).toString().replace(dest.getFileSystem().getSeparator(), "/");
+	}
+
+	/**
+	 * Replace dest with a hard link to the object, or a pointer file.
+	 *
+	 * @param lock
+	 *            the lock of the object
+	 */
+	private void link(Path object, String hex, Path dest, Object lock) throws IOException {
+		Path temp = CopyEngine.tempFile(dest);
+		Files.deleteIfExists(temp);
+		boolean linked = false;
+
+		if (hardLinks) {
+			try {
+				Files.createLink(temp, object);
+				linked = true;
+			} catch (UnsupportedOperationException e) {
+				this.disableHardLinks(e);
+			} catch (FileSystemException e) {
+				if (isLinkLimit(e)) {
+					this.relink(object, temp, lock);
+					linked = true;
+				} else if (isUnsupported(e)) {
+					this.disableHardLinks(e);
+				} else {
+					Logger.getLogger(ContentStore.class.getName()).log(Level.WARNING,
+							"Cannot link " + dest + ", writing a pointer file", e);
+				}
+			}
+		}
+
+		if (!linked) {
+			try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+				writer.write(POINTER_HEADER);
+				writer.newLine();
+				writer.write(hex);
+				writer.newLine();
+			}
+		}
+
+		try {
+			Files.move(temp, dest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp, dest, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Give the object a new copy with no links yet, and link to it. Files
+	 * already linked keep the old copy.
+	 */
+	private void relink(Path object, Path temp, Object lock) throws IOException {
+		synchronized (lock) {
+			try {
+				Files.createLink(temp, object);
+				// Another thread copied it already
+				return;
+			} catch (FileSystemException e) {
+				if (!isLinkLimit(e)) {
+					throw e;
+				}
+			}
+
+			Logger.getLogger(ContentStore.class.getName()).log(Level.FINE,
+					"Link limit reached by " + object + ", copying it again");
+			copyEngine.copy(object, object);
+			Files.createLink(temp, object);
+		}
+	}
+
+	/**
+	 * EMLINK, which comes without a more specific exception.
+	 */
+	private static boolean isLinkLimit(FileSystemException e) {
+		String reason = e.getReason();
+		return reason != null && (reason.contains("Too many links") || reason.contains("more links"));
+	}
+
+	/**
+	 * EPERM and EOPNOTSUPP, returned by file systems without hard links.
+	 */
+	private static boolean isUnsupported(FileSystemException e) {
+		String reason = e.getReason();
+		return reason != null && (reason.contains("not permitted") || reason.contains("not supported"));
+	}
+
+	private void disableHardLinks(Exception e) {
+		if (hardLinks) {
+			hardLinks = false;
+			Logger.getLogger(ContentStore.class.getName()).log(Level.WARNING,
+					"Hard links not supported in " + root + ", writing pointer files", e);
+		}
+	}
+
+	/**
+	 * Write the path manifest and close the index.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			Path temp = pathsFile.resolveSibling("paths.tmp");
+			try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+				writer.write(PATHS_HEADER);
+				writer.newLine();
+				for (Map.Entry<String, StoredFile> e : paths.entrySet()) {
+					StoredFile stored = e.getValue();
+					writer.write(stored.hash);
+					writer.write('\t');
+					writer.write(Long.toString(stored.size));
+					writer.write('\t');
+					writer.write(Long.toString(stored.modified));
+					writer.write('\t');
+					writer.write(e.getKey());
+					writer.newLine();
+				}
+			}
+
+			try {
+				Files.move(temp, pathsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, pathsFile, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			index.close();
+		}
+	}
+
+	/**
+	 * Object of a destination file, and the source attributes it was stored
+	 * with.
+	 */
+	private static final class StoredFile {
+
+		private final String hash;
+		private final long size;
+		private final long modified;
+
+		private StoredFile(String hash, long size, long modified) {
+			this.hash = hash;
+			this.size = size;
+			this.modified = modified;
+		}
+	}
+
+}
@@ -0,0 +1,258 @@
+package com.adamiworks.filesync.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Set of content hashes kept in a file as an open addressing hash table, so a
+ * lookup reads a few consecutive slots of a memory-mapped file and never
+ * touches the stored objects.<BR>
+ * <BR>
+ * The file has a header with the hash length, the number of slots and the
+ * number of hashes, followed by the slots. Empty slots are all zeros. Hashes
+ * are uniformly distributed already, so their first eight bytes choose the
+ * first slot probed. When the table is 70% full it is rebuilt with twice the
+ * slots from the hashes in the old table.<BR>
+ * <BR>
+ * A mapping cannot exceed 2 GB, so the slots are mapped in regions of up to
+ * 1 GB, each holding a whole number of slots.
+ *
+ * @author Tiago J. Adami
+ */
+final class HashIndex implements Closeable {
+
+	private static final int MAGIC = 0x46534849;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 32;
+	private static final long INITIAL_SLOTS = 1024;
+	private static final int MAX_LOAD_PERCENT = 70;
+	private static final long REGION_SIZE = 1L << 30;
+
+	private final Path file;
+	private final int hashLength;
+	private FileChannel channel;
+	private MappedByteBuffer header;
+	private MappedByteBuffer[] regions;
+	private long slotsPerRegion;
+	private long slots;
+	private long count;
+
+	private HashIndex(Path file, int hashLength) {
+		this.file = file;
+		this.hashLength = hashLength;
+	}
+
+	/**
+	 * Open an index, creating it if it does not exist.
+	 *
+	 * @param file
+	 * @param hashLength
+	 *            length of the hashes in bytes
+	 * @return
+	 * @throws IOException
+	 *             if the file is not an index of hashes of that length
+	 */
+	static HashIndex open(Path file, int hashLength) throws IOException {
+		HashIndex index = new HashIndex(file, hashLength);
+
+		if (!Files.exists(file)) {
+			create(file, hashLength, INITIAL_SLOTS).close();
+		}
+		index.map(FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE));
+		return index;
+	}
+
+	private static FileChannel create(Path file, int hashLength, long slots) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		// Writing the last byte sizes the file; the slots stay zeros
+		channel.write(ByteBuffer.allocate(1), HEADER_SIZE + slots * hashLength - 1);
+		MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+		header.putInt(0, MAGIC);
+		header.putInt(4, VERSION);
+		header.putInt(8, hashLength);
+		header.putLong(16, slots);
+		header.putLong(24, 0);
+		return channel;
+	}
+
+	/**
+	 * @throws IOException
+	 *             if the file is not an index of hashes of this length, or
+	 *             cannot be mapped. The channel is closed then.
+	 */
+	private void map(FileChannel channel) throws IOException {
+		this.channel = channel;
+		try {
+			long size = channel.size();
+			if (size < HEADER_SIZE) {
+				throw new IOException("Invalid hash index " + file);
+			}
+			this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+			this.slots = header.getLong(16);
+			this.count = header.getLong(24);
+
+			if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getInt(8) != hashLength
+					|| slots < 1 || Long.bitCount(slots) != 1 || size != HEADER_SIZE + slots * hashLength) {
+				throw new IOException("Invalid hash index " + file);
+			}
+
+			this.slotsPerRegion = REGION_SIZE / hashLength;
+			this.regions = new MappedByteBuffer[(int) ((slots + slotsPerRegion - 1) / slotsPerRegion)];
+			for (int i = 0; i < regions.length; i++) {
+				long first = i * slotsPerRegion;
+				regions[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + first * hashLength,
+						Math.min(slotsPerRegion, slots - first) * hashLength);
+			}
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @param hash
+	 * @return true if the hash was added before
+	 */
+	synchronized boolean contains(byte[] hash) {
+		return find(hash) < 0;
+	}
+
+	/**
+	 * Add a hash, if not added yet.
+	 *
+	 * @param hash
+	 * @throws IOException
+	 *             if the table cannot grow
+	 */
+	synchronized void add(byte[] hash) throws IOException {
+		long slot = find(hash);
+		if (slot < 0) {
+			return;
+		}
+
+		if ((count + 1) * 100 > slots * MAX_LOAD_PERCENT) {
+			grow();
+			slot = find(hash);
+		}
+
+		write(slot, hash);
+		header.putLong(24, ++count);
+	}
+
+	/**
+	 * @return minus one if the hash is in the table, otherwise the empty slot
+	 *         where it belongs
+	 */
+	private long find(byte[] hash) {
+		long mask = slots - 1;
+		long slot = start(hash) & mask;
+
+		while (true) {
+			MappedByteBuffer region = region(slot);
+			int offset = offset(slot);
+			boolean empty = true;
+			boolean equal = true;
+
+			for (int i = 0; i < hashLength; i++) {
+				byte b = region.get(offset + i);
+				empty &= b == 0;
+				equal &= b == hash[i];
+			}
+
+			if (equal) {
+				return -1;
+			}
+			if (empty) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private static long start(byte[] hash) {
+		long h = 0;
+		for (int i = 0; i < 8 && i < hash.length; i++) {
+			h = (h << 8) | (hash[i] & 0xff);
+		}
+		return h;
+	}
+
+	private MappedByteBuffer region(long slot) {
+		return regions[(int) (slot / slotsPerRegion)];
+	}
+
+	/**
+	 * @return offset of the slot in its region
+	 */
+	private int offset(long slot) {
+		return (int) (slot % slotsPerRegion * hashLength);
+	}
+
+	private void write(long slot, byte[] hash) {
+		MappedByteBuffer region = region(slot);
+		int offset = offset(slot);
+		for (int i = 0; i < hashLength; i++) {
+			region.put(offset + i, hash[i]);
+		}
+	}
+
+	private void force() {
+		for (MappedByteBuffer region : regions) {
+			region.force();
+		}
+		header.force();
+	}
+
+	/**
+	 * Move all hashes to a table with twice the slots, built in a temporary
+	 * file that replaces the index when complete.
+	 */
+	private void grow() throws IOException {
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		HashIndex bigger = new HashIndex(temp, hashLength);
+		bigger.map(create(temp, hashLength, slots * 2));
+
+		byte[] hash = new byte[hashLength];
+		for (long slot = 0; slot < slots; slot++) {
+			MappedByteBuffer region = region(slot);
+			int offset = offset(slot);
+			boolean empty = true;
+			for (int i = 0; i < hashLength; i++) {
+				hash[i] = region.get(offset + i);
+				empty &= hash[i] == 0;
+			}
+			if (!empty) {
+				bigger.write(bigger.find(hash), hash);
+			}
+		}
+		bigger.header.putLong(24, count);
+		bigger.force();
+		bigger.channel.close();
+		channel.close();
+
+		try {
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+		}
+		map(FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE));
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (channel.isOpen()) {
+			force();
+			channel.close();
+		}
+	}
+
+}
@@ -0,0 +1,249 @@
+package com.adamiworks.filesync.throttle;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Limits the I/O of all copy workers together, so a synchronization can run
+ * next to other loads on the same disks:
+ * <ul>
+ * <li>a bandwidth limit, in bytes per second;</li>
+ * <li>an IOPS limit, in read and write requests per second;</li>
+ * <li>a maximum number of files copied at the same time on each device. The
+ * source and destination {@link FileStore}s of a copy are both entered, so
+ * two synchronizations to the same disk share its workers.</li>
+ * </ul>
+ * Both rates are {@link TokenBucket}s and can be changed while copies are
+ * running, through JMX or a {@link ThrottleControlFile}.
+ *
+ * @author Tiago J. Adami
+ */
+public final class IoThrottle implements IoThrottleMBean {
+
+	public static final String OBJECT_NAME = "com.adamiworks.filesync:type=IoThrottle";
+
+	private final TokenBucket bandwidth = new TokenBucket();
+	private final TokenBucket iops = new TokenBucket();
+	private final int deviceWorkers;
+	private final ConcurrentHashMap<FileStore, Semaphore> devices = new ConcurrentHashMap<FileStore, Semaphore>();
+	private final ConcurrentHashMap<Path, FileStore> stores = new ConcurrentHashMap<Path, FileStore>();
+	private final LongAdder bytesTransferred = new LongAdder();
+	private final LongAdder throttledNanos = new LongAdder();
+
+	/**
+	 * @param deviceWorkers
+	 *            maximum number of files copied at the same time on a device,
+	 *            or 0 for no limit
+	 */
+	public IoThrottle(int deviceWorkers) {
+		if (deviceWorkers < 0) {
+			throw new IllegalArgumentException("Device workers must not be negative: " + deviceWorkers);
+		}
+		this.deviceWorkers = deviceWorkers;
+	}
+
+	/**
+	 * Wait until an I/O request of some bytes is allowed by the limits.
+	 *
+	 * @param bytes
+	 * @throws InterruptedIOException
+	 *             if interrupted while waiting
+	 */
+	public void acquire(long bytes) throws InterruptedIOException {
+		bytesTransferred.add(bytes);
+		long wait = Math.max(bandwidth.reserve(bytes), iops.reserve(1));
+
+		if (wait > 0) {
+			throttledNanos.add(wait);
+			try {
+				TimeUnit.NANOSECONDS.sleep(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while throttled");
+			}
+		}
+	}
+
+	/**
+	 * Take a worker of the devices of a copy, waiting if all are busy. The
+	 * workers are released by closing the returned handle.
+	 *
+	 * @param source
+	 * @param dest
+	 * @return
+	 * @throws IOException
+	 */
+	public Closeable enter(Path source, Path dest) throws IOException {
+		if (deviceWorkers == 0) {
+			return () -> {
+			};
+		}
+
+		Semaphore first = device(source);
+		Semaphore second = device(dest);
+
+		// Always taken in the same order, so two copies in opposite
+		// directions cannot wait for each other
+		if (first == second) {
+			second = null;
+		} else if (System.identityHashCode(first) > System.identityHashCode(second)) {
+			Semaphore s = first;
+			first = second;
+			second = s;
+		}
+
+		final Semaphore a = first;
+		final Semaphore b = second;
+		try {
+			a.acquire();
+			if (b != null) {
+				try {
+					b.acquire();
+				} catch (InterruptedException e) {
+					a.release();
+					throw e;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a device");
+		}
+
+		return () -> {
+			if (b != null) {
+				b.release();
+			}
+			a.release();
+		};
+	}
+
+	/**
+	 * The semaphore of the device of a file. File stores are cached by
+	 * directory, as finding one may read the whole mount table.
+	 */
+	private Semaphore device(Path file) throws IOException {
+		Path directory = file.toAbsolutePath().getParent();
+		FileStore store = stores.get(directory);
+
+		if (store == null) {
+			Path existing = directory;
+			while (existing != null && !Files.exists(existing)) {
+				existing = existing.getParent();
+			}
+			if (existing == null) {
+				throw new IOException("No file store for " + file);
+			}
+			store = Files.getFileStore(existing);
+			stores.put(directory, store);
+		}
+
+		Semaphore semaphore = devices.get(store);
+		if (semaphore == null) {
+			Semaphore created = new Semaphore(deviceWorkers, true);
+			semaphore = devices.putIfAbsent(store, created);
+			if (semaphore == null) {
+				semaphore = created;
+			}
+		}
+		return semaphore;
+	}
+
+	/**
+	 * Register the throttle in the platform MBean server, so the limits can
+	 * be changed with JConsole or any JMX client.
+	 */
+	public void registerMBean() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (!server.isRegistered(name)) {
+				server.registerMBean(this, name);
+			}
+		} catch (JMException e) {
+			Logger.getLogger(IoThrottle.class.getName()).log(Level.WARNING, "Cannot register " + OBJECT_NAME, e);
+		}
+	}
+
+	/**
+	 * Parse a rate with an optional K, M or G suffix, in powers of 1024.
+	 *
+	 * @param value
+	 *            like 500, 64K or 20M
+	 * @return the rate
+	 * @throws NumberFormatException
+	 *             if the value is not a valid rate
+	 */
+	public static long parseRate(String value) {
+		String v = value.trim().toUpperCase(Locale.ROOT);
+		long unit = 1;
+
+		if (v.endsWith("K")) {
+			unit = 1024L;
+		} else if (v.endsWith("M")) {
+			unit = 1024L * 1024;
+		} else if (v.endsWith("G")) {
+			unit = 1024L * 1024 * 1024;
+		}
+		if (unit > 1) {
+			v = v.substring(0, v.length() - 1);
+		}
+
+		long rate = Long.parseLong(v) * unit;
+		if (rate < 0) {
+			throw new NumberFormatException("Negative rate: " + value);
+		}
+		return rate;
+	}
+
+	@Override
+	public long getBandwidthLimit() {
+		return bandwidth.getRate();
+	}
+
+	@Override
+	public void setBandwidthLimit(long bytesPerSecond) {
+		bandwidth.setRate(Math.max(0, bytesPerSecond));
+	}
+
+	@Override
+	public long getIopsLimit() {
+		return iops.getRate();
+	}
+
+	@Override
+	public void setIopsLimit(long requestsPerSecond) {
+		iops.setRate(Math.max(0, requestsPerSecond));
+	}
+
+	@Override
+	public int getDeviceWorkers() {
+		return deviceWorkers;
+	}
+
+	@Override
+	public long getBytesTransferred() {
+		return bytesTransferred.sum();
+	}
+
+	@Override
+	public long getThrottledMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(throttledNanos.sum());
+	}
+
+}
@@ -0,0 +1,41 @@
+package com.adamiworks.filesync.throttle;
+
+/**
+ * Management interface of an {@link IoThrottle}, to change its limits while
+ * the program runs.
+ *
+ * @author Tiago J. Adami
+ */
+public interface IoThrottleMBean {
+
+	/**
+	 * @return bytes per second, 0 if unlimited
+	 */
+	long getBandwidthLimit();
+
+	void setBandwidthLimit(long bytesPerSecond);
+
+	/**
+	 * @return I/O requests per second, 0 if unlimited
+	 */
+	long getIopsLimit();
+
+	void setIopsLimit(long requestsPerSecond);
+
+	/**
+	 * @return maximum number of files copied at the same time on a device, 0
+	 *         if unlimited
+	 */
+	int getDeviceWorkers();
+
+	/**
+	 * @return bytes read or written through the throttle
+	 */
+	long getBytesTransferred();
+
+	/**
+	 * @return time spent waiting for the limits, in milliseconds
+	 */
+	long getThrottledMillis();
+
+}
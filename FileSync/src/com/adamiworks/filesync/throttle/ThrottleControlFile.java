@@ -0,0 +1,89 @@
+package com.adamiworks.filesync.throttle;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.adamiworks.filesync.util.DaemonThreadFactory;
+
+/**
+ * Applies the limits written in a properties file to an {@link IoThrottle},
+ * checking the file for changes every second:
+ *
+ * <pre>
+ * bandwidth=20M
+ * iops=200
+ * </pre>
+ *
+ * A missing key or a value of 0 removes the limit.
+ *
+ * @author Tiago J. Adami
+ */
+public final class ThrottleControlFile implements Runnable {
+
+	private static final long POLL_MILLIS = 1000;
+
+	private final Path file;
+	private final IoThrottle throttle;
+	private FileTime lastModified;
+
+	public ThrottleControlFile(Path file, IoThrottle throttle) {
+		this.file = file;
+		this.throttle = throttle;
+	}
+
+	/**
+	 * Apply the file now and keep watching it in a daemon thread.
+	 */
+	public void start() {
+		check();
+		new DaemonThreadFactory("ThrottleControlFile").newThread(this).start();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				Thread.sleep(POLL_MILLIS);
+				check();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void check() {
+		try {
+			if (!Files.exists(file)) {
+				return;
+			}
+
+			FileTime modified = Files.getLastModifiedTime(file);
+			if (modified.equals(lastModified)) {
+				return;
+			}
+			lastModified = modified;
+
+			Properties properties = new Properties();
+			try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+				properties.load(reader);
+			}
+
+			throttle.setBandwidthLimit(IoThrottle.parseRate(properties.getProperty("bandwidth", "0")));
+			throttle.setIopsLimit(IoThrottle.parseRate(properties.getProperty("iops", "0")));
+
+			Logger.getLogger(ThrottleControlFile.class.getName()).log(Level.INFO,
+					"Throttle set to " + throttle.getBandwidthLimit() + " bytes/s and " + throttle.getIopsLimit()
+							+ " IOPS");
+		} catch (IOException | NumberFormatException e) {
+			Logger.getLogger(ThrottleControlFile.class.getName()).log(Level.WARNING, "Cannot read " + file, e);
+		}
+	}
+
+}
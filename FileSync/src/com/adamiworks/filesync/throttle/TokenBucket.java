@@ -0,0 +1,61 @@
+package com.adamiworks.filesync.throttle;
+
+/**
+ * Token bucket refilled at a constant rate, holding at most one second of
+ * tokens. A request larger than the tokens available is granted at once and
+ * leaves the bucket in debt; the caller then waits until the debt is paid
+ * back. Concurrent callers see the debt of each other, so together they never
+ * go above the rate.
+ *
+ * @author Tiago J. Adami
+ */
+final class TokenBucket {
+
+	private static final double NANOS_PER_SECOND = 1e9;
+
+	private long rate;
+	private double available;
+	private long last = System.nanoTime();
+
+	/**
+	 * @return tokens per second, or 0 if unlimited
+	 */
+	synchronized long getRate() {
+		return rate;
+	}
+
+	/**
+	 * @param rate
+	 *            tokens per second, or 0 for no limit
+	 */
+	synchronized void setRate(long rate) {
+		refill();
+		this.rate = rate;
+		available = Math.min(available, rate);
+	}
+
+	/**
+	 * Take tokens from the bucket.
+	 *
+	 * @param tokens
+	 * @return nanoseconds the caller must wait before using the tokens
+	 */
+	synchronized long reserve(long tokens) {
+		if (rate <= 0) {
+			return 0;
+		}
+
+		refill();
+		available -= tokens;
+		return available >= 0 ? 0 : (long) (-available / rate * NANOS_PER_SECOND);
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		if (rate > 0) {
+			available = Math.min(rate, available + (now - last) / NANOS_PER_SECOND * rate);
+		}
+		last = now;
+	}
+
+}
@@ -0,0 +1,28 @@
+package com.adamiworks.filesync.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads, so helper pools never keep the JVM alive
+ * after the synchronization has finished.
+ *
+ * @author Tiago J. Adami
+ */
+public final class DaemonThreadFactory implements ThreadFactory {
+
+	private final String name;
+	private final AtomicInteger count = new AtomicInteger();
+
+	public DaemonThreadFactory(String name) {
+		this.name = name;
+	}
+
+	@Override
+	public Thread newThread(Runnable r) {
+		Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	}
+
+}
@@ -0,0 +1,46 @@
+package com.adamiworks.filesync.util;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Operations on whole directory trees.
+ *
+ * @author Tiago J. Adami
+ */
+public final class FileTrees {
+
+	private FileTrees() {
+	}
+
+	/**
+	 * Delete a file, or a directory with all its contents. Symbolic links are
+	 * deleted, never followed.
+	 *
+	 * @param path
+	 * @throws IOException
+	 */
+	public static void delete(Path path) throws IOException {
+		Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+				if (exc != null) {
+					throw exc;
+				}
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+}
@@ -0,0 +1,102 @@
+package com.adamiworks.filesync.util;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Names of the files FileSync itself creates inside synchronized trees, like
+ * the manifest and temporary copies. They are never synchronized nor deleted
+ * as stale files.<BR>
+ * <BR>
+ * Only the exact names FileSync writes match, so user files that merely
+ * start with ".filesync" are synchronized like any other.
+ *
+ * @author Tiago J. Adami
+ */
+public final class InternalFiles {
+
+	public static final String PREFIX = ".filesync";
+
+	/**
+	 * Suffix of the temporary file a copy is written to, ".name.filesync-tmp"
+	 */
+	public static final String TEMP_SUFFIX = PREFIX + "-tmp";
+
+	/**
+	 * Suffix of the journal of a resumable copy, ".name.filesync-journal"
+	 */
+	public static final String JOURNAL_SUFFIX = PREFIX + "-journal";
+
+	/**
+	 * Suffix of the file a delta copy is rebuilt in, ".name.filesync-delta"
+	 */
+	public static final String DELTA_SUFFIX = PREFIX + "-delta";
+
+	// The manifest, the hash sidecar and their temporary files, the content
+	// store and the snapshot report
+	private static final Set<String> NAMES = new HashSet<String>(Arrays.asList(PREFIX + ".manifest",
+			PREFIX + ".manifest.tmp", PREFIX + ".hashes", PREFIX + ".hashes-tmp", PREFIX + "-store",
+			PREFIX + "-snapshots"));
+
+	// Snapshot generations being written, and plans being written
+	private static final String[] PREFIXES = { PREFIX + "-incomplete-", PREFIX + "-plan-" };
+
+	private static final String[] SUFFIXES = { TEMP_SUFFIX, JOURNAL_SUFFIX, DELTA_SUFFIX };
+
+	private InternalFiles() {
+	}
+
+	/**
+	 * @param name
+	 *            file name, without the parent directory
+	 * @return true for files created by FileSync
+	 */
+	public static boolean isInternal(String name) {
+		if (NAMES.contains(name) || isTemporary(name)) {
+			return true;
+		}
+		for (String prefix : PREFIXES) {
+			if (name.startsWith(prefix) && name.length() > prefix.length()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param name
+	 *            file name, without the parent directory
+	 * @return true for the temporary files, journals and delta files kept
+	 *         next to the file being copied
+	 */
+	public static boolean isTemporary(String name) {
+		if (!name.startsWith(".")) {
+			return false;
+		}
+		for (String suffix : SUFFIXES) {
+			// "." + name + suffix, the name not being empty
+			if (name.length() > suffix.length() + 1 && name.endsWith(suffix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param name
+	 *            name of a temporary file
+	 * @param suffix
+	 *            one of {@link #TEMP_SUFFIX}, {@link #JOURNAL_SUFFIX} or
+	 *            {@link #DELTA_SUFFIX}
+	 * @return the name of the file it belongs to, or null if it does not have
+	 *         that suffix
+	 */
+	public static String temporaryOwner(String name, String suffix) {
+		if (!isTemporary(name) || !name.endsWith(suffix)) {
+			return null;
+		}
+		return name.substring(1, name.length() - suffix.length());
+	}
+
+}
@@ -0,0 +1,221 @@
+package com.adamiworks.filesync.verify;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.adamiworks.filesync.throttle.IoThrottle;
+import com.adamiworks.filesync.util.DaemonThreadFactory;
+
+/**
+ * Compares the contents of two files byte by byte, stopping at the first
+ * difference. No hash is computed, so it is cheaper than hashing both files
+ * when both are reachable, and a file that differs near its beginning is
+ * detected after reading a single small chunk.<BR>
+ * <BR>
+ * Both files are read at the same time, one of them in a helper thread. The
+ * first chunks are small and every next chunk doubles up to
+ * {@link #MAX_CHUNK_SIZE}, always starting at an offset aligned to its own
+ * size. On Java 9 or newer chunks are compared with the vectorized
+ * ByteBuffer.mismatch method, on Java 8 eight bytes are compared at a time.
+ * With an {@link IoThrottle}, every chunk read passes through its limits.
+ *
+ * @author Tiago J. Adami
+ */
+public final class ContentComparator {
+
+	private static final int MIN_CHUNK_SIZE = 64 * 1024;
+	private static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+
+	private static final MethodHandle MISMATCH;
+
+	static {
+		MethodHandle mismatch;
+		try {
+			mismatch = MethodHandles.publicLookup().findVirtual(ByteBuffer.class, "mismatch",
+					MethodType.methodType(int.class, ByteBuffer.class));
+		} catch (ReflectiveOperationException e) {
+			mismatch = null;
+		}
+		MISMATCH = mismatch;
+	}
+
+	private static final ThreadLocal<ByteBuffer[]> BUFFERS = new ThreadLocal<ByteBuffer[]>() {
+		@Override
+		protected ByteBuffer[] initialValue() {
+			return new ByteBuffer[] { ByteBuffer.allocateDirect(MAX_CHUNK_SIZE).order(ByteOrder.nativeOrder()),
+					ByteBuffer.allocateDirect(MAX_CHUNK_SIZE).order(ByteOrder.nativeOrder()) };
+		}
+	};
+
+	private static final ExecutorService EXECUTOR = Executors
+			.newCachedThreadPool(new DaemonThreadFactory("ContentComparator"));
+
+	private ContentComparator() {
+	}
+
+	/**
+	 * Check if two files have different contents.
+	 *
+	 * @param first
+	 * @param second
+	 * @return true at the first differing byte or if the lengths differ
+	 * @throws IOException
+	 */
+	public static boolean differs(Path first, Path second) throws IOException {
+		return differs(first, second, null);
+	}
+
+	/**
+	 * Check if two files have different contents, within the limits of a
+	 * throttle.
+	 *
+	 * @param first
+	 * @param second
+	 * @param throttle
+	 *            the throttle, or null
+	 * @return true at the first differing byte or if the lengths differ
+	 * @throws IOException
+	 */
+	public static boolean differs(Path first, Path second, final IoThrottle throttle) throws IOException {
+		ByteBuffer[] buffers = BUFFERS.get();
+		final ByteBuffer a = buffers[0];
+		ByteBuffer b = buffers[1];
+
+		try (final FileChannel in1 = FileChannel.open(first, StandardOpenOption.READ);
+				FileChannel in2 = FileChannel.open(second, StandardOpenOption.READ)) {
+			long length = in1.size();
+			if (length != in2.size()) {
+				return true;
+			}
+
+			long position = 0;
+			while (position < length) {
+				final int chunk = (int) Math.min(length - position,
+						Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, position)));
+				final long offset = position;
+
+				Future<Integer> read = EXECUTOR.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws IOException {
+						if (throttle != null) {
+							throttle.acquire(chunk);
+						}
+						return readFully(in1, a, offset, chunk);
+					}
+				});
+				try {
+					if (throttle != null) {
+						throttle.acquire(chunk);
+					}
+					int n2 = readFully(in2, b, offset, chunk);
+					int n1 = get(read, first);
+
+					if (n1 != n2 || n1 < chunk || mismatch(a, b) >= 0) {
+						return true;
+					}
+				} finally {
+					// The helper must be done with the buffer and the channel
+					// before they are reused or closed
+					await(read);
+				}
+				position += chunk;
+			}
+		}
+
+		return false;
+	}
+
+	private static int get(Future<Integer> read, Path file) throws IOException {
+		try {
+			return read.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reading " + file, e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Cannot read " + file, e.getCause());
+		}
+	}
+
+	/**
+	 * Wait for a task to end, whatever its outcome, even if the thread is
+	 * interrupted.
+	 */
+	private static void await(Future<?> task) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				task.get();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			} catch (ExecutionException | CancellationException e) {
+				break;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Read up to length bytes at a position, stopping only at the end of the
+	 * file. The buffer is flipped and ready to be compared.
+	 */
+	private static int readFully(FileChannel channel, ByteBuffer buffer, long position, int length)
+			throws IOException {
+		buffer.clear();
+		buffer.limit(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				break;
+			}
+		}
+		buffer.flip();
+		return buffer.limit();
+	}
+
+	/**
+	 * @return the index of the first different byte of two buffers with the
+	 *         same number of remaining bytes, or -1 if they are equal
+	 */
+	static int mismatch(ByteBuffer a, ByteBuffer b) {
+		if (MISMATCH != null) {
+			try {
+				return (int) MISMATCH.invoke(a, b);
+			} catch (Throwable e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		int length = a.remaining();
+		int i = 0;
+		for (; i + 8 <= length; i += 8) {
+			if (a.getLong(a.position() + i) != b.getLong(b.position() + i)) {
+				break;
+			}
+		}
+		for (; i < length; i++) {
+			if (a.get(a.position() + i) != b.get(b.position() + i)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+}
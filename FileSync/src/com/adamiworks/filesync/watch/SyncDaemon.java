@@ -0,0 +1,250 @@
+package com.adamiworks.filesync.watch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.adamiworks.filesync.FileSync;
+import com.adamiworks.filesync.filter.PathFilter;
+import com.adamiworks.filesync.util.InternalFiles;
+
+/**
+ * Keeps a destination folder synchronized while the program runs. After an
+ * initial synchronization of the whole tree, every source directory is
+ * watched by a {@link WatchService}, and only the paths named by change
+ * events are synchronized again.<BR>
+ * <BR>
+ * Events are collected for a short window after the first one, so a burst of
+ * writes to the same file causes a single copy. New directories are watched as
+ * soon as they appear and synchronized as a whole. When the event queue of a
+ * directory overflows, only that directory tree is scanned again. Directories
+ * excluded by the filter of the {@link FileSync} are not watched.
+ *
+ * @author Tiago J. Adami
+ */
+public final class SyncDaemon implements Closeable {
+
+	private final FileSync fileSync;
+	private final Path sourceRoot;
+	private final Path destinationRoot;
+	private final boolean mirror;
+	private long coalesceWindow = 500;
+
+	private final WatchService watcher;
+	private final Map<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+
+	/**
+	 * @param fileSync
+	 *            configured synchronizer used for all copies
+	 * @param sourceRoot
+	 * @param destinationRoot
+	 * @param mirror
+	 *            delete from the destination the paths deleted in the source
+	 * @throws IOException
+	 *             if the file system cannot be watched
+	 */
+	public SyncDaemon(FileSync fileSync, Path sourceRoot, Path destinationRoot, boolean mirror) throws IOException {
+		this.fileSync = fileSync;
+		this.sourceRoot = sourceRoot.toAbsolutePath();
+		this.destinationRoot = destinationRoot.toAbsolutePath();
+		this.mirror = mirror;
+		this.watcher = sourceRoot.getFileSystem().newWatchService();
+	}
+
+	public long getCoalesceWindow() {
+		return coalesceWindow;
+	}
+
+	/**
+	 * @param coalesceWindow
+	 *            milliseconds to wait for more events after the first one
+	 *            before synchronizing
+	 */
+	public void setCoalesceWindow(long coalesceWindow) {
+		if (coalesceWindow < 0) {
+			throw new IllegalArgumentException("Coalesce window must not be negative: " + coalesceWindow);
+		}
+		this.coalesceWindow = coalesceWindow;
+	}
+
+	/**
+	 * Synchronize the whole tree, then keep synchronizing changes until the
+	 * thread is interrupted or the daemon is closed.
+	 *
+	 * @throws IOException
+	 *             if the source root cannot be watched
+	 */
+	public void run() throws IOException {
+		// Watch before the initial sync, so changes made during it are not lost
+		register(sourceRoot);
+
+		if (mirror) {
+			fileSync.mirrorFolder(sourceRoot.toString(), destinationRoot.toString());
+		} else {
+			fileSync.syncFolder(sourceRoot.toString(), destinationRoot.toString());
+		}
+		fileSync.showFileCount(true);
+
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				// Relative path of every changed entry, mapped to true when
+				// the whole tree under it must be synchronized
+				Map<Path, Boolean> changes = new TreeMap<Path, Boolean>();
+
+				// Keys signalled after the deadline stay queued for the next
+				// round, so a steady stream of changes cannot delay the
+				// synchronization forever
+				WatchKey key = watcher.take();
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(coalesceWindow);
+				while (key != null) {
+					collect(key, changes);
+					long wait = deadline - System.nanoTime();
+					key = wait > 0 ? watcher.poll(wait, TimeUnit.NANOSECONDS) : null;
+				}
+
+				synchronize(changes);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ClosedWatchServiceException e) {
+			// Closed by another thread
+		}
+	}
+
+	private void collect(WatchKey key, Map<Path, Boolean> changes) {
+		Path directory = keys.get(key);
+
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (directory == null) {
+				continue;
+			}
+
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				Logger.getLogger(SyncDaemon.class.getName()).log(Level.WARNING,
+						"Too many changes in " + directory + ", scanning it again");
+				changes.put(sourceRoot.relativize(directory), Boolean.TRUE);
+				registerQuietly(directory);
+				continue;
+			}
+
+			Path child = directory.resolve((Path) event.context());
+			if (InternalFiles.isInternal(child.getFileName().toString())) {
+				continue;
+			}
+
+			boolean tree = false;
+			if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+					&& Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+				registerQuietly(child);
+				tree = true;
+			}
+
+			Path relative = sourceRoot.relativize(child);
+			Boolean previous = changes.get(relative);
+			changes.put(relative, tree || (previous != null && previous));
+		}
+
+		if (!key.reset()) {
+			keys.remove(key);
+		}
+	}
+
+	/**
+	 * Synchronize the collected paths, skipping those inside a tree that is
+	 * synchronized as a whole. Paths are sorted, so a tree comes before its
+	 * contents.
+	 */
+	private void synchronize(Map<Path, Boolean> changes) {
+		Path tree = null;
+
+		for (Map.Entry<Path, Boolean> e : changes.entrySet()) {
+			Path relative = e.getKey();
+			if (tree != null && relative.startsWith(tree) && !relative.equals(tree)) {
+				continue;
+			}
+
+			Path source = sourceRoot.resolve(relative);
+			boolean directory = Files.isDirectory(source, LinkOption.NOFOLLOW_LINKS);
+
+			// A modified directory only means that its contents changed,
+			// which are reported by their own events
+			if (directory && !e.getValue()) {
+				continue;
+			}
+			if (directory) {
+				tree = relative;
+			}
+
+			fileSync.syncPath(source.toString(), destinationRoot.resolve(relative.toString()).toString(),
+					toRule(relative), mirror);
+		}
+
+		fileSync.showFileCount(true);
+	}
+
+	/**
+	 * @return a relative path in the "/" separated form of filter rules
+	 */
+	private static String toRule(Path relative) {
+		return relative.toString().replace(relative.getFileSystem().getSeparator(), "/");
+	}
+
+	/**
+	 * Watch a directory and all directories inside it, except the excluded
+	 * ones.
+	 */
+	private void register(Path start) throws IOException {
+		final PathFilter filter = fileSync.getFilter();
+
+		Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				Path relative = sourceRoot.relativize(dir);
+				if (!relative.toString().isEmpty() && filter.isExcluded(toRule(relative), true)) {
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+
+				WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+				keys.put(key, dir);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException exc) {
+				Logger.getLogger(SyncDaemon.class.getName()).log(Level.WARNING, "Cannot watch " + file, exc);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private void registerQuietly(Path start) {
+		try {
+			register(start);
+		} catch (IOException e) {
+			Logger.getLogger(SyncDaemon.class.getName()).log(Level.WARNING, "Cannot watch " + start, e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		watcher.close();
+	}
+
+}
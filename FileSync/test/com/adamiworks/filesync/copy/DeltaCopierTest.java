@@ -0,0 +1,139 @@
+package com.adamiworks.filesync.copy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Updates a destination with {@link DeltaCopier} in both modes after typical
+ * edits of its source, and checks that the result is the source and that the
+ * rolling mode reuses the data that only moved.
+ *
+ * @author Tiago J. Adami
+ */
+public class DeltaCopierTest {
+
+	private static final int LENGTH = 1024 * 1024 + 12345;
+
+	private Path work;
+	private Path source;
+	private Path destination;
+	private byte[] original;
+
+	@Before
+	public void setUp() throws IOException {
+		work = Files.createTempDirectory("filesync-delta-test");
+		source = work.resolve("source.bin");
+		destination = work.resolve("destination.bin");
+		original = new byte[LENGTH];
+		new Random(7).nextBytes(original);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(work)) {
+			for (Path file : stream) {
+				Files.delete(file);
+			}
+		}
+		Files.delete(work);
+	}
+
+	@Test
+	public void insertedBytes() throws IOException {
+		byte[] inserted = new byte[1000];
+		new Random(8).nextBytes(inserted);
+		byte[] changed = concat(Arrays.copyOfRange(original, 0, 300000), inserted,
+				Arrays.copyOfRange(original, 300000, LENGTH));
+
+		DeltaResult rolling = this.update(DeltaMode.ROLLING, changed);
+		assertTrue("Literal bytes " + rolling.getLiteralBytes(),
+				rolling.getLiteralBytes() <= inserted.length + 2 * DeltaCopier.blockSize(LENGTH));
+		this.update(DeltaMode.IN_PLACE, changed);
+	}
+
+	@Test
+	public void deletedBytes() throws IOException {
+		byte[] changed = concat(Arrays.copyOfRange(original, 0, 500000),
+				Arrays.copyOfRange(original, 501000, LENGTH));
+
+		DeltaResult rolling = this.update(DeltaMode.ROLLING, changed);
+		assertTrue("Literal bytes " + rolling.getLiteralBytes(),
+				rolling.getLiteralBytes() <= 2 * DeltaCopier.blockSize(LENGTH));
+		this.update(DeltaMode.IN_PLACE, changed);
+	}
+
+	@Test
+	public void changedTail() throws IOException {
+		byte[] changed = original.clone();
+		for (int i = LENGTH - 100; i < LENGTH; i++) {
+			changed[i] ^= 0x5a;
+		}
+
+		for (DeltaMode mode : DeltaMode.values()) {
+			DeltaResult result = this.update(mode, changed);
+			assertTrue(mode + " literal bytes " + result.getLiteralBytes(),
+					result.getLiteralBytes() <= 2 * DeltaCopier.blockSize(LENGTH));
+		}
+	}
+
+	@Test
+	public void sourceShorterThanOneBlock() throws IOException {
+		byte[] changed = Arrays.copyOfRange(original, 0, 100);
+
+		// No whole block to match, but the same bytes at the same offset
+		assertEquals(changed.length, this.update(DeltaMode.ROLLING, changed).getLiteralBytes());
+		assertEquals(0, this.update(DeltaMode.IN_PLACE, changed).getLiteralBytes());
+	}
+
+	@Test
+	public void sourceShrinks() throws IOException {
+		byte[] changed = Arrays.copyOfRange(original, 0, LENGTH / 2 + 77);
+
+		for (DeltaMode mode : DeltaMode.values()) {
+			DeltaResult result = this.update(mode, changed);
+			assertTrue(mode + " literal bytes " + result.getLiteralBytes(),
+					result.getLiteralBytes() <= DeltaCopier.blockSize(LENGTH));
+		}
+	}
+
+	/**
+	 * Write the original to the destination and the changed content to the
+	 * source, update the destination and check it equals the source.
+	 */
+	private DeltaResult update(DeltaMode mode, byte[] changed) throws IOException {
+		Files.write(destination, original);
+		Files.write(source, changed);
+
+		DeltaResult result = new DeltaCopier(mode).copy(source.toFile(), destination.toFile());
+		assertArrayEquals(mode + " result", changed, Files.readAllBytes(destination));
+		assertEquals(mode + " bytes", changed.length, result.getLiteralBytes() + result.getReusedBytes());
+		return result;
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		int length = 0;
+		for (byte[] part : parts) {
+			length += part.length;
+		}
+		byte[] all = new byte[length];
+		int position = 0;
+		for (byte[] part : parts) {
+			System.arraycopy(part, 0, all, position, part.length);
+			position += part.length;
+		}
+		return all;
+	}
+
+}
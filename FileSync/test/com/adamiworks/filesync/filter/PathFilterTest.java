@@ -0,0 +1,164 @@
+package com.adamiworks.filesync.filter;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Checks {@link Glob} and the gitignore rules of {@link PathFilter}: "**"
+ * patterns, anchoring, negation order, character classes, escapes and
+ * directory-only rules.
+ *
+ * @author Tiago J. Adami
+ */
+public class PathFilterTest {
+
+	@Test
+	public void globStarStaysInOneDirectory() {
+		Glob glob = Glob.compile("src/*.java");
+		assertTrue("src/Main.java", glob.matches("src", "Main.java"));
+		assertTrue("src/.java", glob.matches("src", ".java"));
+		assertFalse("src/util/Main.java", glob.matches("src/util", "Main.java"));
+		assertFalse("Main.java", glob.matches("", "Main.java"));
+
+		Glob any = Glob.compile("a?c");
+		assertTrue("abc", any.matches("", "abc"));
+		assertFalse("ac", any.matches("", "ac"));
+		assertFalse("a/c", any.matches("a", "c"));
+	}
+
+	@Test
+	public void globDirectories() {
+		Glob glob = Glob.compile("docs/**/*.pdf");
+		assertTrue("docs/a.pdf", glob.matches("docs", "a.pdf"));
+		assertTrue("docs/x/a.pdf", glob.matches("docs/x", "a.pdf"));
+		assertTrue("docs/x/y/a.pdf", glob.matches("docs/x/y", "a.pdf"));
+		assertFalse("other/a.pdf", glob.matches("other", "a.pdf"));
+		assertFalse("docsx/a.pdf", glob.matches("docsx", "a.pdf"));
+
+		Glob leading = Glob.compile("**/cache");
+		assertTrue("cache", leading.matches("", "cache"));
+		assertTrue("a/b/cache", leading.matches("a/b", "cache"));
+		assertFalse("a/xcache", leading.matches("a", "xcache"));
+	}
+
+	@Test
+	public void globEverythingInside() {
+		Glob glob = Glob.compile("logs/**");
+		assertTrue("logs/a", glob.matches("logs", "a"));
+		assertTrue("logs/a/b", glob.matches("logs/a", "b"));
+		assertFalse("logs", glob.matches("", "logs"));
+		assertFalse("logsx/a", glob.matches("logsx", "a"));
+	}
+
+	@Test
+	public void globClassesAndEscapes() {
+		Glob range = Glob.compile("file[a-c].txt");
+		assertTrue("filea.txt", range.matches("", "filea.txt"));
+		assertTrue("filec.txt", range.matches("", "filec.txt"));
+		assertFalse("filed.txt", range.matches("", "filed.txt"));
+
+		for (String pattern : new String[] { "file[!0-9]", "file[^0-9]" }) {
+			Glob negated = Glob.compile(pattern);
+			assertTrue(pattern + " filex", negated.matches("", "filex"));
+			assertFalse(pattern + " file1", negated.matches("", "file1"));
+		}
+
+		Glob escaped = Glob.compile("\\*\\?\\[a]");
+		assertTrue("*?[a]", escaped.matches("", "*?[a]"));
+		assertFalse("x?[a]", escaped.matches("", "x?[a]"));
+		assertFalse("*?a", escaped.matches("", "*?a"));
+	}
+
+	@Test
+	public void unanchoredRulesMatchAtAnyDepth() {
+		PathFilter filter = compile("build", "*.o", "**/cache");
+		assertTrue("build", filter.isExcluded("build", true));
+		assertTrue("src/build", filter.isExcluded("src/build", true));
+		assertTrue("src/main.o", filter.isExcluded("src/main.o", false));
+		assertTrue("a/b/cache", filter.isExcluded("a/b/cache", true));
+		assertFalse("src/builder", filter.isExcluded("src/builder", true));
+	}
+
+	@Test
+	public void anchoredRulesMatchFromTheRoot() {
+		PathFilter filter = compile("/build", "src/*.o", "docs/**/*.pdf", "logs/**");
+		assertTrue("build", filter.isExcluded("build", true));
+		assertFalse("src/build", filter.isExcluded("src/build", true));
+		assertTrue("src/main.o", filter.isExcluded("src/main.o", false));
+		assertFalse("lib/src/main.o", filter.isExcluded("lib/src/main.o", false));
+		assertFalse("src/util/main.o", filter.isExcluded("src/util/main.o", false));
+		assertTrue("docs/a.pdf", filter.isExcluded("docs/a.pdf", false));
+		assertTrue("docs/x/y/a.pdf", filter.isExcluded("docs/x/y/a.pdf", false));
+		assertFalse("x/docs/a.pdf", filter.isExcluded("x/docs/a.pdf", false));
+		assertFalse("logs", filter.isExcluded("logs", true));
+		assertTrue("logs/today.txt", filter.isExcluded("logs/today.txt", false));
+		assertTrue("logs/2020/today.txt", filter.isExcluded("logs/2020/today.txt", false));
+	}
+
+	@Test
+	public void lastMatchingRuleWins() {
+		PathFilter includeAfter = compile("*.log", "!keep.log");
+		assertTrue("other.log", includeAfter.isExcluded("other.log", false));
+		assertFalse("keep.log", includeAfter.isExcluded("keep.log", false));
+		assertFalse("a/keep.log", includeAfter.isExcluded("a/keep.log", false));
+
+		PathFilter excludeAfter = compile("!keep.log", "*.log");
+		assertTrue("keep.log", excludeAfter.isExcluded("keep.log", false));
+
+		PathFilter again = compile("*.log", "!keep.log", "/keep.log");
+		assertTrue("keep.log", again.isExcluded("keep.log", false));
+		assertFalse("a/keep.log", again.isExcluded("a/keep.log", false));
+	}
+
+	@Test
+	public void filesOfExcludedDirectoriesStayExcluded() {
+		PathFilter filter = compile("logs/", "!logs/keep.log");
+		assertTrue("logs/keep.log", filter.isExcluded("logs/keep.log", false));
+	}
+
+	@Test
+	public void directoryOnlyRules() {
+		PathFilter filter = compile("node_modules/", "/out/", "tmp*/");
+		assertTrue("node_modules", filter.isExcluded("node_modules", true));
+		assertTrue("web/node_modules/x.js", filter.isExcluded("web/node_modules/x.js", false));
+		assertFalse("file node_modules", filter.isExcluded("node_modules", false));
+		assertTrue("out", filter.isExcluded("out", true));
+		assertFalse("file out", filter.isExcluded("out", false));
+		assertFalse("a/out", filter.isExcluded("a/out", true));
+		assertTrue("a/tmp1", filter.isExcluded("a/tmp1", true));
+		assertFalse("file a/tmp1", filter.isExcluded("a/tmp1", false));
+	}
+
+	@Test
+	public void classesEscapesAndComments() {
+		PathFilter filter = compile("# comment", "", "*.[oa]", "file[!0-9]", "\\#hash", "\\!bang", "\\*.txt");
+		assertTrue("x.o", filter.isExcluded("x.o", false));
+		assertTrue("x.a", filter.isExcluded("x.a", false));
+		assertFalse("x.c", filter.isExcluded("x.c", false));
+		assertTrue("filex", filter.isExcluded("filex", false));
+		assertFalse("file1", filter.isExcluded("file1", false));
+		assertTrue("#hash", filter.isExcluded("#hash", false));
+		assertTrue("!bang", filter.isExcluded("!bang", false));
+		assertTrue("*.txt", filter.isExcluded("*.txt", false));
+		assertFalse("a.txt", filter.isExcluded("a.txt", false));
+		assertFalse("# comment", filter.isExcluded("# comment", false));
+	}
+
+	@Test
+	public void scopesMatchIsExcluded() {
+		PathFilter filter = compile("docs/**/*.pdf", "!docs/keep/*.pdf");
+		PathFilter.Scope keep = filter.scope("docs/keep");
+		assertTrue(keep.getPath(), "docs/keep".equals(keep.getPath()));
+		assertFalse("docs/keep/a.pdf", keep.isExcluded("a.pdf", false));
+		assertTrue("docs/other/a.pdf", filter.scope("docs").enter("other").isExcluded("a.pdf", false));
+	}
+
+	private static PathFilter compile(String... lines) {
+		return PathFilter.compile(Arrays.asList(lines));
+	}
+
+}
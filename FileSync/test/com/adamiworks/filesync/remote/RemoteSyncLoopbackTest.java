@@ -0,0 +1,181 @@
+package com.adamiworks.filesync.remote;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.adamiworks.filesync.compress.Compression;
+
+/**
+ * Synchronizes a small tree to a {@link SyncAgent} listening on the loopback
+ * interface, twice, and checks that the second run sends only what changed.
+ *
+ * @author Tiago J. Adami
+ */
+public class RemoteSyncLoopbackTest {
+
+	private static final int FILES = 4;
+
+	private Path work;
+	private Path source;
+	private Path destination;
+	private SyncAgent agent;
+	private Thread agentThread;
+
+	@Before
+	public void setUp() throws IOException {
+		work = Files.createTempDirectory("filesync-remote-test");
+		source = work.resolve("source");
+		destination = work.resolve("destination");
+
+		Files.createDirectories(source.resolve("docs/old"));
+		write(source.resolve("empty.txt"), new byte[0]);
+		write(source.resolve("docs/readme.txt"), text(300 * 1024));
+		write(source.resolve("docs/old/notes.txt"), text(10 * 1024));
+		byte[] random = new byte[700 * 1024];
+		new Random(42).nextBytes(random);
+		write(source.resolve("random.bin"), random);
+
+		agent = new SyncAgent(destination, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		agentThread = new Thread(() -> {
+			try {
+				agent.run();
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}, "SyncAgent");
+		agentThread.setDaemon(true);
+		agentThread.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		agent.close();
+		agentThread.join(10000);
+		Files.walkFileTree(work, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	@Test
+	public void plainSyncSendsOnlyChangedFiles() throws IOException {
+		RemoteSyncClient first = this.sync(false, null);
+		assertEquals(FILES, first.getFilesSent());
+		assertEquals(0, first.getFailures());
+		this.assertSameTree();
+
+		RemoteSyncClient second = this.sync(false, null);
+		assertEquals(FILES, second.getFilesChecked());
+		assertEquals(0, second.getFilesSent());
+
+		write(source.resolve("docs/old/notes.txt"), text(12 * 1024));
+		RemoteSyncClient third = this.sync(false, null);
+		assertEquals(FILES, third.getFilesChecked());
+		assertEquals(1, third.getFilesSent());
+		this.assertSameTree();
+	}
+
+	@Test
+	public void secureCompressedSyncSendsOnlyChangedFiles() throws IOException {
+		RemoteSyncClient first = this.sync(true, Compression.DEFLATE);
+		assertEquals(FILES, first.getFilesSent());
+		assertEquals(0, first.getFailures());
+		assertTrue("Text should be sent compressed", first.getBytesTransferred() < first.getBytesRead());
+		this.assertSameTree();
+
+		RemoteSyncClient second = this.sync(true, Compression.DEFLATE);
+		assertEquals(FILES, second.getFilesChecked());
+		assertEquals(0, second.getFilesSent());
+
+		// Same length and modification date: only the hash tells them apart
+		Path readme = source.resolve("docs/readme.txt");
+		FileTime modified = Files.getLastModifiedTime(readme);
+		byte[] changed = Files.readAllBytes(readme);
+		changed[changed.length / 2] ^= 1;
+		write(readme, changed);
+		Files.setLastModifiedTime(readme, modified);
+
+		RemoteSyncClient third = this.sync(true, Compression.DEFLATE);
+		assertEquals(FILES, third.getFilesChecked());
+		assertEquals(1, third.getFilesSent());
+		this.assertSameTree();
+	}
+
+	@Test
+	public void rejectedFilesAreDiscarded() throws IOException {
+		// A file where a folder should be: the agent reads and throws away the
+		// data of the files below it, and goes on with the next ones
+		Files.createDirectories(destination);
+		write(destination.resolve("docs"), new byte[0]);
+
+		for (Compression compression : new Compression[] { null, Compression.DEFLATE }) {
+			RemoteSyncClient client = this.sync(false, compression);
+			assertEquals(2, client.getFilesSent());
+			assertEquals(2, client.getFailures());
+			assertArrayEquals(Files.readAllBytes(source.resolve("random.bin")),
+					Files.readAllBytes(destination.resolve("random.bin")));
+			Files.delete(destination.resolve("empty.txt"));
+			Files.delete(destination.resolve("random.bin"));
+		}
+	}
+
+	private RemoteSyncClient sync(boolean secure, Compression compression) throws IOException {
+		RemoteSyncClient client = new RemoteSyncClient(agent.getAddress());
+		client.setSecure(secure);
+		client.setCompression(compression);
+		client.sync(source);
+		return client;
+	}
+
+	private void assertSameTree() throws IOException {
+		Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Path copy = destination.resolve(source.relativize(file).toString());
+				assertArrayEquals(file.toString(), Files.readAllBytes(file), Files.readAllBytes(copy));
+				assertEquals(file.toString(), attrs.lastModifiedTime().toMillis(),
+						Files.getLastModifiedTime(copy).toMillis());
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private static byte[] text(int length) {
+		StringBuilder text = new StringBuilder(length);
+		for (int line = 0; text.length() < length; line++) {
+			text.append("Line ").append(line).append(" of a file that compresses well\n");
+		}
+		return text.substring(0, length).getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static void write(Path file, byte[] data) throws IOException {
+		Files.write(file, data);
+	}
+
+}
@@ -0,0 +1,43 @@
+package com.adamiworks.filesync.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the benchmarks with the JMH command line, writing the results as JSON
+ * to filesync-VERSION.json unless another result file or format is given. The
+ * files of two versions can be compared side by side or loaded in any JMH
+ * result viewer to find regressions.
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar                      all benchmarks
+ * java -jar target/benchmarks.jar FileSyncBenchmark    only FileSync
+ * java -jar target/benchmarks.jar -p storage=TMPFS     only in memory
+ * </pre>
+ *
+ * @author Tiago J. Adami
+ */
+public class BenchmarkMain {
+
+	/**
+	 * @param args
+	 *            JMH command line options
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		List<String> options = new ArrayList<String>(Arrays.asList(args));
+
+		if (!options.contains("-rf") && !options.contains("-rff") && !options.contains("-h")
+				&& !options.contains("-l")) {
+			String version = BenchmarkMain.class.getPackage().getImplementationVersion();
+			options.add("-rf");
+			options.add("json");
+			options.add("-rff");
+			options.add("filesync-" + (version == null ? "dev" : version) + ".json");
+		}
+
+		org.openjdk.jmh.Main.main(options.toArray(new String[options.size()]));
+	}
+
+}
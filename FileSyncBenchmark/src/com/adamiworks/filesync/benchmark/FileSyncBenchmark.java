@@ -0,0 +1,167 @@
+package com.adamiworks.filesync.benchmark;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.adamiworks.filesync.FileSync;
+import com.adamiworks.filesync.util.FileTrees;
+
+/**
+ * Measures FileSync on the synthetic {@link TreeShape}s, on memory and on
+ * disk:
+ * <ul>
+ * <li><b>isSyncAble</b>: the check of one up to date file, which every run
+ * repeats for every file of the tree;</li>
+ * <li><b>syncFolder</b>: a whole first synchronization into an empty
+ * destination, from the listing to the last copy.</li>
+ * </ul>
+ *
+ * @author Tiago J. Adami
+ */
+@Fork(1)
+public class FileSyncBenchmark {
+
+	/**
+	 * A {@link TreeShape#SMALL_FILES} tree and an up to date copy of it.
+	 */
+	@State(Scope.Benchmark)
+	public static class UpToDateTree {
+
+		@Param({ "TMPFS", "DISK" })
+		public Storage storage;
+
+		@Param({ "false", "true" })
+		public boolean secure;
+
+		private Path root;
+		private FileSync fileSync;
+		private String[] sources;
+		private String[] destinations;
+		private int next;
+
+		@Setup(Level.Trial)
+		public void createTrees() throws IOException {
+			root = storage.createDirectory("filesync-check");
+			final Path source = Files.createDirectory(root.resolve("source"));
+			final Path dest = Files.createDirectory(root.resolve("dest"));
+			final List<Path> files = new ArrayList<Path>();
+
+			TreeShape.SMALL_FILES.create(source);
+			Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+					Files.createDirectories(dest.resolve(source.relativize(dir)));
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+					Files.copy(file, dest.resolve(source.relativize(file)), StandardCopyOption.COPY_ATTRIBUTES);
+					files.add(source.relativize(file));
+					return FileVisitResult.CONTINUE;
+				}
+			});
+
+			sources = new String[files.size()];
+			destinations = new String[files.size()];
+			for (int i = 0; i < files.size(); i++) {
+				sources[i] = source.resolve(files.get(i)).toString();
+				destinations[i] = dest.resolve(files.get(i)).toString();
+			}
+			fileSync = new FileSync(secure, false);
+		}
+
+		@TearDown(Level.Trial)
+		public void deleteTrees() throws IOException {
+			FileTrees.delete(root);
+		}
+	}
+
+	/**
+	 * A source tree and an empty destination, emptied again before every
+	 * synchronization.
+	 */
+	@State(Scope.Benchmark)
+	public static class FirstSync {
+
+		@Param({ "TMPFS", "DISK" })
+		public Storage storage;
+
+		@Param({ "SMALL_FILES", "HUGE_FILES", "DEEP", "WIDE" })
+		public TreeShape shape;
+
+		private Path root;
+		private Path source;
+		private Path dest;
+		private FileSync fileSync;
+
+		@Setup(Level.Trial)
+		public void createTree() throws IOException {
+			root = storage.createDirectory("filesync-sync");
+			source = Files.createDirectory(root.resolve("source"));
+			shape.create(source);
+
+			fileSync = new FileSync(false, false, Runtime.getRuntime().availableProcessors());
+			fileSync.setListFiles(false);
+		}
+
+		@Setup(Level.Invocation)
+		public void emptyDestination() throws IOException {
+			dest = root.resolve("dest");
+			if (Files.exists(dest)) {
+				FileTrees.delete(dest);
+			}
+			Files.createDirectory(dest);
+		}
+
+		@TearDown(Level.Trial)
+		public void deleteTrees() throws IOException {
+			FileTrees.delete(root);
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	@Warmup(iterations = 3, time = 2)
+	@Measurement(iterations = 5, time = 2)
+	public boolean isSyncAble(UpToDateTree state) {
+		int i = state.next++;
+		if (state.next == state.sources.length) {
+			state.next = 0;
+		}
+		return state.fileSync.isSyncAble(state.sources[i], state.destinations[i]);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 2)
+	@Measurement(iterations = 5)
+	public void syncFolder(FirstSync state) {
+		state.fileSync.syncFolder(state.source.toString(), state.dest.toString());
+	}
+
+}
@@ -0,0 +1,118 @@
+package com.adamiworks.filesync.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.adamiworks.filesync.util.FileTrees;
+import com.adamiworks.utils.FileUtils;
+
+/**
+ * Measures the {@link FileUtils} methods FileSync was first built on, on
+ * memory and on disk.
+ *
+ * @author Tiago J. Adami
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileUtilsBenchmark {
+
+	/**
+	 * A {@link TreeShape#WIDE} directory.
+	 */
+	@State(Scope.Benchmark)
+	public static class WideDirectory {
+
+		@Param({ "TMPFS", "DISK" })
+		public Storage storage;
+
+		private Path root;
+		private File directory;
+
+		@Setup(Level.Trial)
+		public void createTree() throws IOException {
+			root = storage.createDirectory("filesync-list");
+			TreeShape.WIDE.create(root);
+			directory = root.toFile();
+		}
+
+		@TearDown(Level.Trial)
+		public void deleteTree() throws IOException {
+			FileTrees.delete(root);
+		}
+	}
+
+	/**
+	 * A file to hash or copy, and where to copy it.
+	 */
+	@State(Scope.Benchmark)
+	public static class SingleFile {
+
+		@Param({ "TMPFS", "DISK" })
+		public Storage storage;
+
+		@Param({ "4096", "1048576", "268435456" })
+		public long size;
+
+		private Path root;
+		private File source;
+		private File dest;
+
+		@Setup(Level.Trial)
+		public void createFile() throws IOException {
+			root = storage.createDirectory("filesync-file");
+			source = Files.createFile(root.resolve("source")).toFile();
+			dest = root.resolve("dest").toFile();
+			HashAlgorithmBenchmark.writeRandom(source.toPath(), size);
+		}
+
+		/**
+		 * {@link FileUtils#fileCopy(File, File)} does not replace existing
+		 * files.
+		 */
+		@TearDown(Level.Invocation)
+		public void deleteCopy() throws IOException {
+			Files.deleteIfExists(dest.toPath());
+		}
+
+		@TearDown(Level.Trial)
+		public void deleteFiles() throws IOException {
+			FileTrees.delete(root);
+		}
+	}
+
+	@Benchmark
+	public String[] getDirList(WideDirectory state) {
+		return FileUtils.getDirList(state.directory, true);
+	}
+
+	@Benchmark
+	public String getHashMD5(SingleFile state) {
+		return FileUtils.getHashMD5(state.source);
+	}
+
+	@Benchmark
+	public void fileCopy(SingleFile state) {
+		FileUtils.fileCopy(state.source, state.dest);
+	}
+
+}
@@ -0,0 +1,105 @@
+package com.adamiworks.filesync.benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.adamiworks.filesync.hash.FileHasher;
+import com.adamiworks.filesync.hash.HashAlgorithm;
+
+/**
+ * Compares the hash algorithms available to the secure method. The files are
+ * read once before measuring, so they come from the page cache and the
+ * benchmark measures the hashing cost rather than the disk.
+ *
+ * @author Tiago J. Adami
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HashAlgorithmBenchmark {
+
+	@Param({ "CRC32C", "XXHASH64", "SHA256", "MD5" })
+	public HashAlgorithm algorithm;
+
+	@Param({ "4096", "1048576", "1073741824" })
+	public long size;
+
+	private Path source;
+	private Path copy;
+
+	@Setup(Level.Trial)
+	public void createFiles() throws IOException {
+		source = Files.createTempFile("filesync-hash", ".bin");
+		copy = Files.createTempFile("filesync-hash", ".bin");
+		writeRandom(source, size);
+		Files.copy(source, copy, StandardCopyOption.REPLACE_EXISTING);
+		FileHasher.hash(source, copy, algorithm);
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteFiles() throws IOException {
+		Files.deleteIfExists(source);
+		Files.deleteIfExists(copy);
+	}
+
+	/**
+	 * Hash a single file.
+	 */
+	@Benchmark
+	public byte[] hashFile() throws IOException {
+		return FileHasher.hash(source, algorithm);
+	}
+
+	/**
+	 * Hash a source and a destination file concurrently, as the secure method
+	 * does.
+	 */
+	@Benchmark
+	public byte[][] hashPair() throws IOException {
+		return FileHasher.hash(source, copy, algorithm);
+	}
+
+	static void writeRandom(Path file, long size) throws IOException {
+		Random random = new Random(size);
+		ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			long remaining = size;
+			while (remaining > 0) {
+				random.nextBytes(buffer.array());
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), remaining));
+				remaining -= buffer.remaining();
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}
+		}
+	}
+
+}
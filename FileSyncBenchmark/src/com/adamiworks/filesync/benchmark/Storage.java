@@ -0,0 +1,53 @@
+package com.adamiworks.filesync.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Where benchmark files are created. Files in memory show the CPU cost of the
+ * code, files on disk show how it behaves with real I/O latency.<BR>
+ * <BR>
+ * The directories can be changed with the system properties
+ * filesync.benchmark.tmpfs and filesync.benchmark.disk, passed to the forked
+ * JVM with -jvmArgsAppend.
+ *
+ * @author Tiago J. Adami
+ */
+public enum Storage {
+
+	/**
+	 * A memory file system, /dev/shm by default.
+	 */
+	TMPFS("filesync.benchmark.tmpfs", "/dev/shm"),
+
+	/**
+	 * The default temporary directory, usually on disk.
+	 */
+	DISK("filesync.benchmark.disk", System.getProperty("java.io.tmpdir"));
+
+	private final String property;
+	private final String defaultDirectory;
+
+	private Storage(String property, String defaultDirectory) {
+		this.property = property;
+		this.defaultDirectory = defaultDirectory;
+	}
+
+	/**
+	 * @param prefix
+	 * @return a new empty directory on this storage
+	 * @throws IOException
+	 *             if the storage directory does not exist
+	 */
+	public Path createDirectory(String prefix) throws IOException {
+		Path parent = Paths.get(System.getProperty(property, defaultDirectory));
+		if (!Files.isDirectory(parent)) {
+			throw new IOException(
+					"No directory for " + this + " benchmarks: " + parent + ", set it with -D" + property);
+		}
+		return Files.createTempDirectory(parent, prefix);
+	}
+
+}
@@ -0,0 +1,100 @@
+package com.adamiworks.filesync.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Synthetic trees that stress different parts of a synchronization. Trees are
+ * generated from a fixed seed, so every run and every version of FileSync is
+ * measured on the same files.
+ *
+ * @author Tiago J. Adami
+ */
+public enum TreeShape {
+
+	/**
+	 * 10,000 files of 1 to 16 KB in 100 directories: the cost of opening,
+	 * comparing and creating each file dominates.
+	 */
+	SMALL_FILES {
+		@Override
+		void create(Path root, Random random) throws IOException {
+			for (int d = 0; d < 100; d++) {
+				Path directory = Files.createDirectory(root.resolve("d" + d));
+				for (int f = 0; f < 100; f++) {
+					writeFile(directory.resolve("f" + f), 1024 + random.nextInt(15 * 1024), random);
+				}
+			}
+		}
+	},
+
+	/**
+	 * 4 files of 256 MB: the copy throughput dominates.
+	 */
+	HUGE_FILES {
+		@Override
+		void create(Path root, Random random) throws IOException {
+			for (int f = 0; f < 4; f++) {
+				writeFile(root.resolve("huge" + f), 256L * 1024 * 1024, random);
+			}
+		}
+	},
+
+	/**
+	 * A chain of 200 nested directories with 10 files each: per directory
+	 * costs and long paths dominate, with little parallelism to exploit.
+	 */
+	DEEP {
+		@Override
+		void create(Path root, Random random) throws IOException {
+			Path directory = root;
+			for (int d = 0; d < 200; d++) {
+				directory = Files.createDirectory(directory.resolve("level" + d));
+				for (int f = 0; f < 10; f++) {
+					writeFile(directory.resolve("f" + f), 512 + random.nextInt(4096), random);
+				}
+			}
+		}
+	},
+
+	/**
+	 * A single directory of 20,000 small files: the listing and the work of
+	 * one directory dominate.
+	 */
+	WIDE {
+		@Override
+		void create(Path root, Random random) throws IOException {
+			for (int f = 0; f < 20000; f++) {
+				writeFile(root.resolve("file" + f), 256 + random.nextInt(1024), random);
+			}
+		}
+	};
+
+	private static final long SEED = 20160101L;
+
+	/**
+	 * Generate the tree in an empty directory.
+	 *
+	 * @param root
+	 * @throws IOException
+	 */
+	public void create(Path root) throws IOException {
+		create(root, new Random(SEED + ordinal()));
+	}
+
+	abstract void create(Path root, Random random) throws IOException;
+
+	private static void writeFile(Path file, long size, Random random) throws IOException {
+		if (size > 1024 * 1024) {
+			Files.createFile(file);
+			HashAlgorithmBenchmark.writeRandom(file, size);
+			return;
+		}
+		byte[] data = new byte[(int) size];
+		random.nextBytes(data);
+		Files.write(file, data);
+	}
+
+}